@@ -1,12 +1,20 @@
 package parsleyj.simplerules;
 
 import parsleyj.simplerules.forward.FCKnowledgeBase;
+import parsleyj.simplerules.forward.RetentionPolicy;
+import parsleyj.simplerules.forward.RuleBase;
+import parsleyj.simplerules.storage.ColumnarFactTable;
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.storage.MappedFactTable;
 import parsleyj.simplerules.terms.*;
 import parsleyj.simplerules.utils.Uniquer;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
 /**
@@ -17,7 +25,8 @@ public class KBBuilders {
     } //don't instantiate
 
     /**
-     * Creates a new {@link Atom} with the specified java object as wrapped value.
+     * Returns a new {@link Atom} with the specified java object as wrapped value. The value is added to the global
+     * {@link AtomDictionary} only if the atom is stored in a compact fact table.
      *
      * @param javaValue the wrapped object
      * @param <T>       the type of the wrapped object
@@ -302,6 +311,21 @@ public class KBBuilders {
          */
         final List<Term> facts = new ArrayList<>();
 
+        /**
+         * Chosen retention policies of the to-be-created knowledge base, by relation name and arity.
+         */
+        final Map<String, Map<Integer, RetentionPolicy>> retentionPolicies = new LinkedHashMap<>();
+
+        /**
+         * Factory of the tables used by the to-be-created knowledge base to store facts in compact form, if any.
+         */
+        FactTable.Factory tableFactory = null;
+
+        /**
+         * Rule base shared by the to-be-created knowledge base, if any.
+         */
+        RuleBase ruleBase = null;
+
         /**
          * Adds a fact to the to-be-created knowledge base.
          * @param fact the fact
@@ -362,14 +386,75 @@ public class KBBuilders {
             return this;
         }
 
+        /**
+         * Makes the to-be-created knowledge base use the rules of the specified rule base, instead of its own rules;
+         * in this case, no rules can be added to the builder.
+         * @param ruleBase the rule base
+         * @return this builder object for method-call-chaining
+         */
+        public FCKnowledgeBaseBuilder withRuleBase(RuleBase ruleBase) {
+            this.ruleBase = ruleBase;
+            return this;
+        }
+
+        /**
+         * Sets the retention policy for the facts of a relation in the to-be-created knowledge base.
+         * @param name the name of the relation
+         * @param arity the arity of the relation
+         * @param policy the retention policy
+         * @return this builder object for method-call-chaining
+         */
+        public FCKnowledgeBaseBuilder withRetentionPolicy(String name, int arity, RetentionPolicy policy) {
+            this.retentionPolicies.computeIfAbsent(name, k -> new LinkedHashMap<>()).put(arity, policy);
+            return this;
+        }
+
+        /**
+         * Makes the to-be-created knowledge base store its ground facts in compact form, using the tables created by
+         * the specified factory.
+         * @param tableFactory the table factory
+         * @return this builder object for method-call-chaining
+         */
+        public FCKnowledgeBaseBuilder withFactTables(FactTable.Factory tableFactory) {
+            this.tableFactory = tableFactory;
+            return this;
+        }
+
+        /**
+         * Makes the to-be-created knowledge base store its ground facts in compact form, in
+         * {@link ColumnarFactTable}s.
+         * @return this builder object for method-call-chaining
+         */
+        public FCKnowledgeBaseBuilder withCompactStorage() {
+            return withFactTables(ColumnarFactTable::new);
+        }
+
+        /**
+         * Sets the knowledge base to store its ground relations whose arguments are all atoms off-heap, in
+         * {@link MappedFactTable}s whose files are created in the specified directory.
+         * @param directory the directory of the files of the tables
+         * @return this builder object for method-call-chaining
+         */
+        public FCKnowledgeBaseBuilder withMappedStorage(Path directory) {
+            return withFactTables(MappedFactTable.factory(directory));
+        }
+
         /**
          * Builds the knowledge base object with the provided information
          * @return the knowledge base
          */
         public FCKnowledgeBase build() {
-            FCKnowledgeBase fckb = new FCKnowledgeBase();
+            if (ruleBase != null && !rules.isEmpty()) {
+                throw new IllegalStateException("Rules cannot be added to a knowledge base using a rule base");
+            }
+            FCKnowledgeBase fckb = new FCKnowledgeBase(tableFactory, ruleBase);
+            retentionPolicies.forEach((name, byArity) -> byArity.forEach(
+                    (arity, policy) -> fckb.setRetentionPolicy(name, arity, policy)
+            ));
             fckb.addFacts(facts);
-            fckb.getRules().addAll(rules);
+            if (ruleBase == null) {
+                fckb.getRules().addAll(rules);
+            }
             return fckb;
         }
     }
@@ -27,7 +27,7 @@ public class KnowledgeBase {
     public List<Rule> getEverythingAsRule(){
         List<Rule> result = new ArrayList<>();
         getAllFacts().forEach(f -> result.add(new Rule(Collections.emptyList(), f)));
-        result.addAll(rules);
+        result.addAll(getRules());
         return result;
     }
 
@@ -55,6 +55,15 @@ public class KnowledgeBase {
         allFacts.addAll(facts);
     }
 
+    /**
+     * Removes from this knowledge base all the facts of which {@code fact} is "just a renaming".
+     * @param fact the fact to be removed
+     * @return true if at least one fact was removed
+     */
+    public boolean retractFact(Term fact){
+        return allFacts.removeIf(f -> f.justARenaming(fact));
+    }
+
     /**
      * Creates a new knowledge base with all the contents of this one.
      * @return the copy of this knowledge base
@@ -62,7 +71,7 @@ public class KnowledgeBase {
     public KnowledgeBase copy(){
         KnowledgeBase kb = new FCKnowledgeBase();
         allFacts.forEach(kb::addFact);
-        kb.rules.addAll(this.rules);
+        kb.getRules().addAll(getRules());
         return kb;
     }
 
@@ -70,12 +79,14 @@ public class KnowledgeBase {
     @Override
     public String toString(){
         StringBuilder sb = new StringBuilder();
+        List<Rule> rules = getRules();
         sb.append("Rules(").append(rules.size()).append("):\n");
         for (Rule rule : rules) {
             sb.append(rule.toString()).append(".\n");
         }
-        sb.append("\nFacts(").append(allFacts.size()).append("):\n");
-        for (Term fact : allFacts) {
+        List<Term> facts = getAllFacts();
+        sb.append("\nFacts(").append(facts.size()).append("):\n");
+        for (Term fact : facts) {
             sb.append(fact.toString()).append("\n");//.append(".          [").append(fact.directory()).append("]\n");
         }
         sb.append("\n\n");
@@ -25,6 +25,14 @@ public class NativeFacts {
     private NativeFacts() {
     } // don't instantiate
 
+    /**
+     * Returns true if the term is an atom whose type is assignable to the class with the specified class ID (see
+     * {@link AtomDictionary#isAssignable(int, int)}).
+     */
+    private static boolean isAtomOf(int classId, Term term) {
+        return term instanceof Atom && AtomDictionary.global().isAssignable(classId, ((Atom<?>) term).getClassId());
+    }
+
     /**
      * Creates a native fact that represents a binary relation between two values of the specified types.
      *
@@ -47,6 +55,8 @@ public class NativeFacts {
                                                       String shortDescription) {
         Variable x1Var = var("X1");
         Variable x2Var = var("X2");
+        int t1Id = AtomDictionary.global().classIdOf(t1);
+        int t2Id = AtomDictionary.global().classIdOf(t2);
         return new NativeFact(type, module, name, Arrays.asList(x1Var, x2Var), (self, theta, other) -> {
             UnificationResult tempTheta = unify(theta.copy(), new StructImpl(Type.ANY, self.toJavaList()), other);
             if (tempTheta.isFailure()) {
@@ -74,10 +84,10 @@ public class NativeFacts {
             if (term1 == null || term2 == null) {
                 return UnificationResult.FAILURE;
             }
-            if (!(term1 instanceof Atom) || !t1.isAssignableFrom(((Atom) term1).getType())) {
+            if (!isAtomOf(t1Id, term1)) {
                 return UnificationResult.FAILURE;
             }
-            if (!(term2 instanceof Atom) || !t2.isAssignableFrom(((Atom) term2).getType())) {
+            if (!isAtomOf(t2Id, term2)) {
                 return UnificationResult.FAILURE;
             }
             UnificationResult result = theta.copy();
@@ -123,6 +133,9 @@ public class NativeFacts {
         Variable x1Var = var("X1");
         Variable x2Var = var("X2");
         Variable rVar = var("R");
+        int t1Id = AtomDictionary.global().classIdOf(t1);
+        int t2Id = AtomDictionary.global().classIdOf(t2);
+        int trId = AtomDictionary.global().classIdOf(tr);
         return new NativeFact(type, module, name, Arrays.asList(x1Var, x2Var, rVar),
                 ((self, theta, other) -> {
                     UnificationResult tempTheta = unify(theta.copy(), new StructImpl(type, self.toJavaList()), other);
@@ -151,10 +164,10 @@ public class NativeFacts {
                     if (term1 == null || term2 == null) {
                         return UnificationResult.FAILURE;
                     }
-                    if (!(term1 instanceof Atom) || !t1.isAssignableFrom(((Atom) term1).getType())) {
+                    if (!isAtomOf(t1Id, term1)) {
                         return UnificationResult.FAILURE;
                     }
-                    if (!(term2 instanceof Atom) || !t2.isAssignableFrom(((Atom) term2).getType())) {
+                    if (!isAtomOf(t2Id, term2)) {
                         return UnificationResult.FAILURE;
                     }
                     UnificationResult result = theta.copy();
@@ -162,8 +175,7 @@ public class NativeFacts {
                     @SuppressWarnings("unchecked") T2 x2 = ((Atom<T2>) term2).getWrappedValue();
                     if (!(term3 instanceof Variable) ||
                             tempTheta.getSubstitution().contains(((Variable) term3).getName())) {
-                        //noinspection rawtypes
-                        if (term3 instanceof Atom && tr.isAssignableFrom(((Atom) term3).getType())) {
+                        if (isAtomOf(trId, term3)) {
                             @SuppressWarnings("unchecked") R r = ((Atom<R>) term3).getWrappedValue();
                             return r.equals(function.apply(x1, x2)) ? result : UnificationResult.FAILURE;
                         } else {
@@ -203,6 +215,8 @@ public class NativeFacts {
                                                   String shortDescription) {
         Variable xVar = var("X");
         Variable rVar = var("R");
+        int tId = AtomDictionary.global().classIdOf(t);
+        int trId = AtomDictionary.global().classIdOf(tr);
         return new NativeFact(type, module, name, Arrays.asList(xVar, rVar), ((self, theta, other) -> {
             UnificationResult tempTheta = unify(theta.copy(), new StructImpl(type, self.toJavaList()), other);
             if (tempTheta.isFailure()) {
@@ -228,7 +242,7 @@ public class NativeFacts {
             if (term1 == null) {
                 return UnificationResult.FAILURE;
             }
-            if (!(term1 instanceof Atom) || !t.isAssignableFrom(((Atom) term1).getType())) {
+            if (!isAtomOf(tId, term1)) {
                 return UnificationResult.FAILURE;
             }
 
@@ -236,8 +250,7 @@ public class NativeFacts {
             @SuppressWarnings("unchecked") T x1 = ((Atom<T>) term1).getWrappedValue();
             if (!(term2 instanceof Variable) ||
                     tempTheta.getSubstitution().contains(((Variable) term2).getName())) {
-                //noinspection rawtypes
-                if (term2 instanceof Atom && tr.isAssignableFrom(((Atom) term2).getType())) {
+                if (isAtomOf(trId, term2)) {
                     @SuppressWarnings("unchecked") R r = ((Atom<R>) term2).getWrappedValue();
                     return r.equals(function.apply(x1)) ? result : UnificationResult.FAILURE;
                 } else {
@@ -90,6 +90,13 @@ public class Rule {
         return whenFiredAction != null;
     }
 
+    /**
+     * Returns the action of this rule, or null if this rule has no action.
+     */
+    public Consumer<Term> getAction() {
+        return whenFiredAction;
+    }
+
     /**
      * Executes the action. The term q is the head after the unification of the premises.
      * @param q the head of the rule, after the substitutions resulting from the unification of the premises are
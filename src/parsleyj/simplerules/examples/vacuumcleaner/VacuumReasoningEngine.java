@@ -1,27 +1,27 @@
 package parsleyj.simplerules.examples.vacuumcleaner;
 
-import parsleyj.simplerules.forward.FCKnowledgeBase;
-import parsleyj.simplerules.forward.SimpleForwardChaining;
+import parsleyj.simplerules.forward.FCIngestionEngine;
+import parsleyj.simplerules.forward.RetentionPolicy;
 import parsleyj.simplerules.terms.Atom;
 import parsleyj.simplerules.terms.RelationImpl;
 import parsleyj.simplerules.terms.Term;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static parsleyj.simplerules.KBBuilders.*;
 
 public class VacuumReasoningEngine extends Thread{
+    private static final int LOGBOOK_SIZE = 100;
+
     private final AtomicReference<VacuumAgent> agentInterface = new AtomicReference<>();
-    private FCKnowledgeBase currentKB = kb().build();
-    private long perceptIDCounter = 0;
+    private final AtomicLong perceptIDCounter = new AtomicLong(0);
 
-    private final BlockingQueue<VacuumPerceptType> perceptQueue = new ArrayBlockingQueue<>(10, true);
+    private FCIngestionEngine ingestionEngine = null;
 
     public void setup(VacuumAgent agentInterface){
         // keeps a reference to the agent, in order to send actions
@@ -65,11 +65,13 @@ public class VacuumReasoningEngine extends Thread{
            }
         }));
 
-        // note that the KB object will contain within its facts a logbook with all the data perceived and all the
-        // actions performed by the agent.
-        currentKB = kb()
+        // note that the KB object will contain within its facts a logbook with the most recent data perceived and
+        // actions performed by the agent; older percepts expire, and the actions derived from them are removed too.
+        // the percepts are fed to the knowledge base by an ingestion engine, which adds them in small batches
+        ingestionEngine = new FCIngestionEngine(kb()
                 .withRules(ruleBuilders.stream().map(RuleBuilder::build).collect(Collectors.toList()))
-                .build();
+                .withRetentionPolicy("percept", 2, RetentionPolicy.maxCount(LOGBOOK_SIZE).cascading())
+                .build(), 10, 10, 50, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -77,20 +79,23 @@ public class VacuumReasoningEngine extends Thread{
         //noinspection InfiniteLoopStatement
         while (true) {
             try {
-                VacuumPerceptType perceptType = perceptQueue.take();
-                RelationImpl percept = relation("percept", new Atom<>(perceptIDCounter++), new Atom<>(perceptType));
-                System.out.println("Perceived: "+percept);
-                currentKB.addFact(percept);
-                currentKB = SimpleForwardChaining.getToFixedPoint(currentKB).getUpdatedKB();
+                List<Term> percepts = ingestionEngine.nextBatch();
+                percepts.forEach(percept -> System.out.println("Perceived: "+percept));
+                ingestionEngine.processBatch(percepts);
             } catch (InterruptedException e) {
                 e.printStackTrace();
+            } catch (RuntimeException e) {
+                // a failing batch does not stop the agent
+                e.printStackTrace();
             }
         }
     }
 
     public void addPercept(VacuumPerceptType perceptType){
+        RelationImpl percept = relation("percept", new Atom<>(perceptIDCounter.getAndIncrement()), new Atom<>(perceptType));
         try {
-            perceptQueue.offer(perceptType, 100, TimeUnit.MILLISECONDS);
+            // the percept is dropped if the reasoning engine is lagging behind
+            ingestionEngine.submit(percept, 100, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,337 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.CustomUnifiable;
+import parsleyj.simplerules.terms.NativeFactInvoker;
+import parsleyj.simplerules.terms.Relation;
+import parsleyj.simplerules.terms.Struct;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Variable;
+
+import java.util.*;
+
+/**
+ * Discrimination tree over the full structure of a set of terms, used to retrieve the terms which can possibly unify
+ * with a pattern (e.g. a premise), without trying to unify the pattern with all the terms in a directory.
+ * <br>
+ * Each term is flattened in pre-order into a sequence of symbols: an atom is a symbol by itself, a struct is
+ * represented by its length followed by the symbols of its sub-terms, and a variable (or a term with a custom
+ * unification, e.g. a native fact) is a wildcard. The terms are stored in the leaves of a tree whose paths are these
+ * sequences. A lookup follows the symbols of the pattern, also following the wildcards of the terms, and skipping a
+ * whole sub-term of the stored terms for each variable of the pattern.
+ * <br>
+ * The index is an over-approximation: it does not check repeated variables nor the types of the variables, so the
+ * retrieved terms still have to be unified with the pattern. The terms are returned in insertion order.
+ */
+class DiscriminationTree {
+
+    /**
+     * The symbol of variables and of the terms with custom unification.
+     */
+    private static final Object WILDCARD = new Object() {
+        @Override
+        public String toString() {
+            return "*";
+        }
+    };
+
+    private final Node root = new Node();
+    private long nextSequence = 0;
+    private int size = 0;
+
+    DiscriminationTree() {
+    }
+
+    DiscriminationTree(Collection<? extends Term> terms) {
+        terms.forEach(this::add);
+    }
+
+    /**
+     * Returns true if the tree can discard some terms which cannot unify with the pattern, i.e. if the pattern is a
+     * struct (without custom unification) with at least an argument which is not a variable. For other patterns, a
+     * lookup would return all the terms.
+     */
+    static boolean isSelective(Term pattern) {
+        if (!(pattern instanceof Struct) || pattern instanceof CustomUnifiable
+                || pattern instanceof NativeFactInvoker) {
+            return false;
+        }
+        List<Term> terms = ((Struct) pattern).toJavaList();
+        // the first term of a relation is its name, shared by all the relations in the same directory
+        for (int i = pattern instanceof Relation ? 1 : 0; i < terms.size(); i++) {
+            if (!(terms.get(i) instanceof Variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a term.
+     */
+    void add(Term term) {
+        Node node = root;
+        for (Object symbol : flatten(term)) {
+            if (node.children == null) {
+                node.children = new HashMap<>(4);
+            }
+            node = node.children.computeIfAbsent(symbol, s -> new Node());
+        }
+        if (node.entries == null) {
+            node.entries = new ArrayList<>(1);
+        }
+        node.entries.add(new Entry(nextSequence++, term));
+        size++;
+    }
+
+    /**
+     * Removes the terms contained in the specified set, according to the notion of equality of the set (e.g.
+     * identity, for sets backed by an {@link IdentityHashMap}). Only the leaves of the specified terms are visited.
+     *
+     * @param terms       the terms whose leaves are visited
+     * @param toBeRemoved the terms to be removed
+     */
+    void removeAll(Collection<Term> terms, Set<Term> toBeRemoved) {
+        for (Term term : terms) {
+            List<Object> symbols = flatten(term);
+            Node[] path = new Node[symbols.size() + 1];
+            path[0] = root;
+            for (int i = 0; i < symbols.size() && path[i] != null; i++) {
+                path[i + 1] = path[i].children == null ? null : path[i].children.get(symbols.get(i));
+            }
+            Node leaf = path[symbols.size()];
+            if (leaf == null || leaf.entries == null) {
+                continue;
+            }
+            int before = leaf.entries.size();
+            leaf.entries.removeIf(entry -> toBeRemoved.contains(entry.term));
+            size -= before - leaf.entries.size();
+            if (!leaf.entries.isEmpty()) {
+                continue;
+            }
+            leaf.entries = null;
+            // prunes the nodes left without terms
+            for (int i = symbols.size(); i > 0 && path[i].isEmpty(); i--) {
+                path[i - 1].children.remove(symbols.get(i - 1));
+                if (path[i - 1].children.isEmpty()) {
+                    path[i - 1].children = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the terms which can possibly unify with the pattern, in insertion order.
+     */
+    List<Term> candidates(Term pattern) {
+        List<Node> leaves = new ArrayList<>();
+        retrieve(root, new Pending(pattern, null), leaves);
+        if (leaves.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (leaves.size() == 1) {
+            List<Term> result = new ArrayList<>(leaves.get(0).entries.size());
+            leaves.get(0).entries.forEach(entry -> result.add(entry.term));
+            return result;
+        }
+        List<Entry> entries = new ArrayList<>();
+        leaves.forEach(leaf -> entries.addAll(leaf.entries));
+        entries.sort(Comparator.comparingLong(entry -> entry.sequence));
+        List<Term> result = new ArrayList<>(entries.size());
+        entries.forEach(entry -> result.add(entry.term));
+        return result;
+    }
+
+    /**
+     * Returns an iterator over the terms which can possibly unify with the pattern, in insertion order, which reads
+     * them from the leaves of the tree only when it advances (the leaves are merged by insertion order). The tree
+     * must not be modified while the iterator is in use.
+     */
+    Iterator<Term> cursor(Term pattern) {
+        List<Node> leaves = new ArrayList<>();
+        retrieve(root, new Pending(pattern, null), leaves);
+        return new Cursor(leaves);
+    }
+
+    /**
+     * Returns the number of terms which can possibly unify with the pattern.
+     */
+    int count(Term pattern) {
+        List<Node> leaves = new ArrayList<>();
+        retrieve(root, new Pending(pattern, null), leaves);
+        return leaves.stream().mapToInt(leaf -> leaf.entries.size()).sum();
+    }
+
+    private static Object symbol(Term term) {
+        if (term instanceof CustomUnifiable || term instanceof Variable) {
+            return WILDCARD;
+        } else if (term instanceof Atom) {
+            return term;
+        } else if (term instanceof Struct) {
+            return ((Struct) term).toJavaList().size();
+        }
+        // other kinds of terms only compare with eq(), so they could unify with anything
+        return WILDCARD;
+    }
+
+    private static int arity(Object symbol) {
+        return symbol instanceof Integer ? (Integer) symbol : 0;
+    }
+
+    private static List<Object> flatten(Term term) {
+        List<Object> result = new ArrayList<>();
+        Deque<Term> stack = new ArrayDeque<>();
+        stack.push(term);
+        while (!stack.isEmpty()) {
+            Term t = stack.pop();
+            Object symbol = symbol(t);
+            result.add(symbol);
+            if (symbol instanceof Integer) {
+                List<Term> terms = ((Struct) t).toJavaList();
+                for (int i = terms.size() - 1; i >= 0; i--) {
+                    stack.push(terms.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collects the leaves reachable from the node by matching the pending sub-terms of the pattern.
+     */
+    private static void retrieve(Node node, Pending pending, List<Node> leaves) {
+        if (pending == null) {
+            if (node.entries != null) {
+                leaves.add(node);
+            }
+            return;
+        }
+        if (node.children == null) {
+            return;
+        }
+        // the terms with a wildcard here can unify with any sub-term of the pattern
+        Node wildcard = node.children.get(WILDCARD);
+        if (wildcard != null) {
+            retrieve(wildcard, pending.next, leaves);
+        }
+        Term term = pending.term;
+        Object symbol = symbol(term);
+        if (symbol == WILDCARD) {
+            // the pattern can unify with any sub-term of the stored terms here
+            node.children.forEach((s, child) -> {
+                if (s != WILDCARD) {
+                    skip(child, arity(s), pending.next, leaves);
+                }
+            });
+            return;
+        }
+        Node child = node.children.get(symbol);
+        if (child == null) {
+            return;
+        }
+        Pending next = pending.next;
+        if (symbol instanceof Integer) {
+            List<Term> terms = ((Struct) term).toJavaList();
+            for (int i = terms.size() - 1; i >= 0; i--) {
+                next = new Pending(terms.get(i), next);
+            }
+        }
+        retrieve(child, next, leaves);
+    }
+
+    /**
+     * Skips the specified number of sub-terms of the stored terms, then goes on matching the pending sub-terms of the
+     * pattern.
+     */
+    private static void skip(Node node, int remaining, Pending pending, List<Node> leaves) {
+        if (remaining == 0) {
+            retrieve(node, pending, leaves);
+            return;
+        }
+        if (node.children == null) {
+            return;
+        }
+        node.children.forEach((s, child) -> skip(child, remaining - 1 + arity(s), pending, leaves));
+    }
+
+    private static class Node {
+        private HashMap<Object, Node> children = null;
+        private List<Entry> entries = null;
+
+        private boolean isEmpty() {
+            return children == null && entries == null;
+        }
+    }
+
+    private static class Entry {
+        private final long sequence;
+        private final Term term;
+
+        private Entry(long sequence, Term term) {
+            this.sequence = sequence;
+            this.term = term;
+        }
+    }
+
+    /**
+     * Iterator over the entries of some leaves, in insertion order.
+     */
+    private static class Cursor implements Iterator<Term> {
+        private final PriorityQueue<LeafPosition> positions = new PriorityQueue<>(
+                Comparator.comparingLong(LeafPosition::sequence));
+
+        private Cursor(List<Node> leaves) {
+            for (Node leaf : leaves) {
+                positions.add(new LeafPosition(leaf.entries));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !positions.isEmpty();
+        }
+
+        @Override
+        public Term next() {
+            LeafPosition position = positions.poll();
+            if (position == null) {
+                throw new NoSuchElementException();
+            }
+            Term result = position.entries.get(position.index++).term;
+            if (position.index < position.entries.size()) {
+                positions.add(position);
+            }
+            return result;
+        }
+    }
+
+    private static class LeafPosition {
+        private final List<Entry> entries;
+        private int index = 0;
+
+        private LeafPosition(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        private long sequence() {
+            return entries.get(index).sequence;
+        }
+    }
+
+    /**
+     * Immutable stack of the sub-terms of the pattern still to be matched.
+     */
+    private static class Pending {
+        private final Term term;
+        private final Pending next;
+
+        private Pending(Term term, Pending next) {
+            this.term = term;
+            this.next = next;
+        }
+    }
+}
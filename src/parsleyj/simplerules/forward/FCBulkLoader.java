@@ -0,0 +1,652 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.AtomDictionary;
+import parsleyj.simplerules.terms.RelationImpl;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Streaming loader of the facts of a relation from a CSV, TSV or NDJSON (one JSON object per line) file. Each line
+ * of the file becomes a fact, whose arguments are the values of the columns (or fields) declared in the schema of the
+ * loader, converted to atoms.
+ * <br>
+ * The file is read with NIO in large blocks, and the facts are added in batches. When the knowledge base stores its
+ * facts in compact form (see {@link FCKnowledgeBase#FCKnowledgeBase(FactTable.Factory)}), the atom IDs of each row
+ * are written directly in the table of the relation, without building {@link Term} objects.
+ * <br>
+ * Optionally, the file can be split in chunks, parsed in parallel by several threads; in this case, the facts are
+ * not added in the same order of the file.
+ * <br>
+ * Quoted CSV fields can contain delimiters and escaped quotes ({@code ""}), but not line breaks. JSON objects must be
+ * flat: their fields can only be strings, numbers or booleans.
+ */
+public class FCBulkLoader {
+
+    /**
+     * Supported file formats.
+     */
+    public enum Format {
+        CSV, TSV, NDJSON
+    }
+
+    private static final int BLOCK_BYTES = 1 << 20;
+
+    private final Format format;
+    private final String relation;
+    private final List<String> columnNames = new ArrayList<>();
+    private final List<Integer> columnIndexes = new ArrayList<>();
+    private final List<Function<String, ?>> parsers = new ArrayList<>();
+    private boolean header = false;
+    private int parallelism = 1;
+    private int batchSize = 4096;
+
+    /**
+     * Creates a loader of facts of the specified relation, from files in the specified format.
+     *
+     * @param format   the format of the files
+     * @param relation the name of the relation
+     */
+    public FCBulkLoader(Format format, String relation) {
+        this.format = format;
+        this.relation = relation;
+    }
+
+    /**
+     * Adds an argument to the facts, taken from the column with the specified name (in the header of a CSV/TSV file)
+     * or from the field with the specified name (in a NDJSON file).
+     *
+     * @param name the name of the column or field
+     * @param type the Java type of the atoms: String, a boxed primitive type or an enum
+     * @return this loader for method-call-chaining
+     */
+    public FCBulkLoader withColumn(String name, Class<?> type) {
+        return withColumn(name, parserFor(type));
+    }
+
+    /**
+     * Adds an argument to the facts, taken from the column or field with the specified name, and converted by the
+     * specified function.
+     *
+     * @param name   the name of the column or field
+     * @param parser the function converting the text of the column to the value of the atom
+     * @return this loader for method-call-chaining
+     */
+    public FCBulkLoader withColumn(String name, Function<String, ?> parser) {
+        columnNames.add(name);
+        columnIndexes.add(-1);
+        parsers.add(parser);
+        return this;
+    }
+
+    /**
+     * Adds an argument to the facts, taken from the column with the specified position in a CSV/TSV file.
+     *
+     * @param index the position of the column, starting from 0
+     * @param type  the Java type of the atoms: String, a boxed primitive type or an enum
+     * @return this loader for method-call-chaining
+     */
+    public FCBulkLoader withColumn(int index, Class<?> type) {
+        return withColumn(index, parserFor(type));
+    }
+
+    /**
+     * Adds an argument to the facts, taken from the column with the specified position in a CSV/TSV file, and
+     * converted by the specified function.
+     *
+     * @param index  the position of the column, starting from 0
+     * @param parser the function converting the text of the column to the value of the atom
+     * @return this loader for method-call-chaining
+     */
+    public FCBulkLoader withColumn(int index, Function<String, ?> parser) {
+        if (format == Format.NDJSON) {
+            throw new IllegalArgumentException("NDJSON fields must be referenced by name");
+        }
+        columnNames.add(null);
+        columnIndexes.add(index);
+        parsers.add(parser);
+        return this;
+    }
+
+    /**
+     * Declares that the first line of the CSV/TSV files contains the names of the columns.
+     *
+     * @return this loader for method-call-chaining
+     */
+    public FCBulkLoader withHeader() {
+        this.header = true;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used to parse the files.
+     *
+     * @param parallelism the number of threads
+     * @return this loader for method-call-chaining
+     */
+    public FCBulkLoader withParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the number of facts added to the knowledge base at once.
+     *
+     * @param batchSize the number of facts
+     * @return this loader for method-call-chaining
+     */
+    public FCBulkLoader withBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Loads the facts in the specified file into the knowledge base, as asserted facts. The knowledge base is not
+     * brought to its fixed point.
+     *
+     * @param file the file
+     * @param kb   the knowledge base
+     * @return the number of rows read
+     * @throws IOException if an I/O error occurs, or if a row is malformed
+     */
+    public long load(Path file, FCKnowledgeBase kb) throws IOException {
+        int arity = parsers.size();
+        long start = 0;
+        int[] fieldIndexes = new int[arity];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (format != Format.NDJSON) {
+                List<String> headerFields = null;
+                if (header) {
+                    LineCursor lines = new LineCursor(channel, 0);
+                    String line = lines.nextLine();
+                    headerFields = line == null ? Collections.emptyList() : splitFields(line, 0);
+                    start = lines.position();
+                }
+                for (int c = 0; c < arity; c++) {
+                    fieldIndexes[c] = columnIndexes.get(c);
+                    if (fieldIndexes[c] < 0) {
+                        if (headerFields == null || !headerFields.contains(columnNames.get(c))) {
+                            throw new IllegalArgumentException("Unknown column: " + columnNames.get(c));
+                        }
+                        fieldIndexes[c] = headerFields.indexOf(columnNames.get(c));
+                    }
+                }
+            }
+            long size = channel.size();
+            FactTable table = kb.bulkTableFor(relation, arity);
+            Sink sink = new Sink(kb, table);
+            if (parallelism == 1 || size - start < (long) BLOCK_BYTES * 2) {
+                parseRange(file, start, size, fieldIndexes, table != null, sink::accept);
+            } else {
+                parseInParallel(file, start, size, fieldIndexes, table != null, sink);
+            }
+            return sink.count;
+        }
+    }
+
+    private void parseInParallel(Path file, long start, long size, int[] fieldIndexes, boolean encode, Sink sink)
+            throws IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(parallelism * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<?>> workers = new ArrayList<>();
+        long chunk = (size - start + parallelism - 1) / parallelism;
+        try {
+            for (int w = 0; w < parallelism; w++) {
+                long from = start + w * chunk;
+                long to = Math.min(size, from + chunk);
+                workers.add(executor.submit(() -> {
+                    parseRange(file, from, to, fieldIndexes, encode, batch -> {
+                        try {
+                            queue.put(batch);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new CancellationException();
+                        }
+                    });
+                    return null;
+                }));
+            }
+            while (true) {
+                Batch batch = queue.poll(10, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    sink.accept(batch);
+                } else if (workers.stream().allMatch(Future::isDone) && queue.isEmpty()) {
+                    break;
+                }
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface BatchConsumer {
+        void accept(Batch batch) throws IOException;
+    }
+
+    /**
+     * Parses the lines starting in the range [from, to) of the file. A line belongs to the range in which its first
+     * byte is.
+     */
+    private void parseRange(Path file, long from, long to, int[] fieldIndexes, boolean encode, BatchConsumer consumer)
+            throws IOException {
+        int arity = parsers.size();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            LineCursor lines = new LineCursor(channel, from);
+            if (from > 0 && !lines.atLineStart()) {
+                lines.nextLine();
+            }
+            Batch batch = new Batch(encode, arity, batchSize);
+            Object[] values = new Object[arity];
+            while (lines.position() < to) {
+                long offset = lines.position();
+                String line = lines.nextLine();
+                if (line == null) {
+                    break;
+                }
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    parseLine(line, fieldIndexes, values);
+                } catch (RuntimeException e) {
+                    throw new IOException("Malformed row at byte " + offset + " of " + file + ": " + line, e);
+                }
+                batch.add(relation, values);
+                if (batch.size == batchSize) {
+                    consumer.accept(batch);
+                    batch = new Batch(encode, arity, batchSize);
+                }
+            }
+            if (batch.size > 0) {
+                consumer.accept(batch);
+            }
+        }
+    }
+
+    private void parseLine(String line, int[] fieldIndexes, Object[] values) {
+        if (format == Format.NDJSON) {
+            Map<String, String> fields = parseJsonObject(line);
+            for (int c = 0; c < values.length; c++) {
+                String field = fields.get(columnNames.get(c));
+                if (field == null) {
+                    throw new IllegalArgumentException("Missing field: " + columnNames.get(c));
+                }
+                values[c] = parse(c, field);
+            }
+        } else {
+            List<String> fields = splitFields(line, 0);
+            for (int c = 0; c < values.length; c++) {
+                if (fieldIndexes[c] >= fields.size()) {
+                    throw new IllegalArgumentException("Missing column: " + fieldIndexes[c]);
+                }
+                values[c] = parse(c, fields.get(fieldIndexes[c]));
+            }
+        }
+    }
+
+    private Object parse(int column, String text) {
+        Object value = parsers.get(column).apply(text);
+        if (value == null) {
+            throw new IllegalArgumentException("Null value for column " + column);
+        }
+        return value;
+    }
+
+    private List<String> splitFields(String line, int from) {
+        List<String> result = new ArrayList<>();
+        if (format == Format.TSV) {
+            int start = from;
+            for (int i = from; i <= line.length(); i++) {
+                if (i == line.length() || line.charAt(i) == '\t') {
+                    result.add(line.substring(start, i));
+                    start = i + 1;
+                }
+            }
+            return result;
+        }
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = from; i < line.length(); i++) {
+            char ch = line.charAt(i);
+            if (quoted) {
+                if (ch == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(ch);
+                }
+            } else if (ch == '"') {
+                quoted = true;
+            } else if (ch == ',') {
+                result.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(ch);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        result.add(field.toString());
+        return result;
+    }
+
+    /**
+     * Parses a flat JSON object, returning the text of the values of its fields (strings are unescaped).
+     */
+    private static Map<String, String> parseJsonObject(String line) {
+        Map<String, String> result = new HashMap<>();
+        int[] pos = {skipSpaces(line, 0)};
+        expect(line, pos, '{');
+        if (peek(line, pos) == '}') {
+            return result;
+        }
+        while (true) {
+            String key = parseJsonString(line, pos);
+            expect(line, pos, ':');
+            pos[0] = skipSpaces(line, pos[0]);
+            String value;
+            if (peek(line, pos) == '"') {
+                value = parseJsonString(line, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = line.substring(start, pos[0]);
+                if (value.isEmpty() || value.startsWith("{") || value.startsWith("[")) {
+                    throw new IllegalArgumentException("Unsupported JSON value for field " + key);
+                }
+                if (value.equals("null")) {
+                    value = null;
+                }
+            }
+            if (value != null) {
+                result.put(key, value);
+            }
+            pos[0] = skipSpaces(line, pos[0]);
+            char next = peek(line, pos);
+            pos[0]++;
+            if (next == '}') {
+                return result;
+            } else if (next != ',') {
+                throw new IllegalArgumentException("Expected ',' or '}' at " + (pos[0] - 1));
+            }
+        }
+    }
+
+    private static String parseJsonString(String line, int[] pos) {
+        expect(line, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        while (pos[0] < line.length()) {
+            char ch = line.charAt(pos[0]++);
+            if (ch == '"') {
+                return sb.toString();
+            }
+            if (ch != '\\') {
+                sb.append(ch);
+                continue;
+            }
+            char escaped = line.charAt(pos[0]++);
+            switch (escaped) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(line.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default:
+                    sb.append(escaped);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+
+    private static void expect(String line, int[] pos, char expected) {
+        pos[0] = skipSpaces(line, pos[0]);
+        if (peek(line, pos) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static char peek(String line, int[] pos) {
+        pos[0] = skipSpaces(line, pos[0]);
+        if (pos[0] >= line.length()) {
+            throw new IllegalArgumentException("Unexpected end of line");
+        }
+        return line.charAt(pos[0]);
+    }
+
+    private static int skipSpaces(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Function<String, ?> parserFor(Class<?> type) {
+        if (type == String.class) {
+            return s -> s;
+        } else if (type == Integer.class) {
+            return s -> Integer.valueOf(s.trim());
+        } else if (type == Long.class) {
+            return s -> Long.valueOf(s.trim());
+        } else if (type == Double.class) {
+            return s -> Double.valueOf(s.trim());
+        } else if (type == Float.class) {
+            return s -> Float.valueOf(s.trim());
+        } else if (type == Short.class) {
+            return s -> Short.valueOf(s.trim());
+        } else if (type == Byte.class) {
+            return s -> Byte.valueOf(s.trim());
+        } else if (type == Boolean.class) {
+            return s -> {
+                String t = s.trim();
+                if (!t.equalsIgnoreCase("true") && !t.equalsIgnoreCase("false")) {
+                    throw new IllegalArgumentException("Not a boolean: " + s);
+                }
+                return Boolean.valueOf(t);
+            };
+        } else if (type == Character.class) {
+            return s -> {
+                if (s.length() != 1) {
+                    throw new IllegalArgumentException("Not a character: " + s);
+                }
+                return s.charAt(0);
+            };
+        } else if (type.isEnum()) {
+            return s -> Enum.valueOf((Class) type, s.trim());
+        }
+        throw new IllegalArgumentException("Unsupported column type: " + type.getName());
+    }
+
+    /**
+     * A batch of parsed rows: either encoded as atom IDs (when they are stored directly in a table), or as facts.
+     */
+    private static class Batch {
+        private final int arity;
+        private final int[] ids;
+        private final List<Term> facts;
+        private int size = 0;
+
+        Batch(boolean encode, int arity, int capacity) {
+            this.arity = arity;
+            this.ids = encode ? new int[arity * capacity] : null;
+            this.facts = encode ? null : new ArrayList<>(capacity);
+        }
+
+        void add(String relation, Object[] values) {
+            if (ids != null) {
+                AtomDictionary dictionary = AtomDictionary.global();
+                for (int c = 0; c < arity; c++) {
+                    ids[size * arity + c] = dictionary.atomOf(values[c]).id();
+                }
+            } else {
+                List<Term> args = new ArrayList<>(arity);
+                for (Object value : values) {
+                    args.add(new Atom<>(value));
+                }
+                facts.add(new RelationImpl(Type.ANY, relation, args));
+            }
+            size++;
+        }
+    }
+
+    /**
+     * Adds the batches to the knowledge base, from a single thread.
+     */
+    private static class Sink {
+        private final FCKnowledgeBase kb;
+        private final FactTable table;
+        private long count = 0;
+
+        Sink(FCKnowledgeBase kb, FactTable table) {
+            this.kb = kb;
+            this.table = table;
+        }
+
+        void accept(Batch batch) {
+            if (table != null) {
+                int[] row = new int[batch.arity];
+                for (int r = 0; r < batch.size; r++) {
+                    System.arraycopy(batch.ids, r * batch.arity, row, 0, batch.arity);
+                    table.add(row, false);
+                }
+            } else {
+                kb.addFacts(batch.facts);
+            }
+            count += batch.size;
+        }
+    }
+
+    /**
+     * Reads the lines of a file from a given position, in blocks.
+     */
+    private static class LineCursor {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_BYTES);
+        private final byte[] bytes = buffer.array();
+        private long bufferStart;
+        private int pos = 0;
+        private int limit = 0;
+
+        LineCursor(FileChannel channel, long start) {
+            this.channel = channel;
+            this.bufferStart = start;
+        }
+
+        /**
+         * Returns the position in the file of the next line to be read.
+         */
+        long position() {
+            return bufferStart + pos;
+        }
+
+        /**
+         * Returns true if the current position is the start of a line.
+         */
+        boolean atLineStart() throws IOException {
+            ByteBuffer previous = ByteBuffer.allocate(1);
+            return channel.read(previous, position() - 1) == 1 && previous.get(0) == '\n';
+        }
+
+        /**
+         * Returns the next line (without the line terminator), or null at the end of the file.
+         */
+        String nextLine() throws IOException {
+            ByteArrayOutputStream partial = null;
+            while (true) {
+                if (pos >= limit && !fill()) {
+                    return partial == null ? null : decode(partial.toByteArray(), 0, partial.size());
+                }
+                for (int i = pos; i < limit; i++) {
+                    if (bytes[i] == '\n') {
+                        String line;
+                        if (partial == null) {
+                            line = decode(bytes, pos, i - pos);
+                        } else {
+                            partial.write(bytes, pos, i - pos);
+                            line = decode(partial.toByteArray(), 0, partial.size());
+                        }
+                        pos = i + 1;
+                        return line;
+                    }
+                }
+                if (partial == null) {
+                    partial = new ByteArrayOutputStream();
+                }
+                partial.write(bytes, pos, limit - pos);
+                pos = limit;
+            }
+        }
+
+        private boolean fill() throws IOException {
+            bufferStart += limit;
+            pos = 0;
+            limit = 0;
+            buffer.clear();
+            int read = channel.read(buffer, bufferStart);
+            if (read <= 0) {
+                return false;
+            }
+            limit = read;
+            return true;
+        }
+
+        private static String decode(byte[] bytes, int offset, int length) {
+            if (length > 0 && bytes[offset + length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.terms.NativeFact;
+import parsleyj.simplerules.terms.Relation;
+
+/**
+ * Listener of the internal events of the {@link SimpleForwardChaining} engine, e.g. to forward them to a profiler or
+ * to an event recorder such as JDK Flight Recorder (by committing a custom event in each method).
+ * <br>
+ * A listener is installed globally with {@link SimpleForwardChaining#setEventListener(FCEventListener, long)}; when
+ * no listener is installed, the engine does not measure anything, so the overhead is a single field read per event.
+ * Methods are called synchronously by the thread running the reasoning process, so they should be fast. All the
+ * methods do nothing by default.
+ */
+public interface FCEventListener {
+
+    /**
+     * Called when an iteration of a fixpoint computation starts.
+     *
+     * @param iteration the number of the iteration, starting from 0
+     * @param deltaSize the number of facts to be used for the first time in this iteration (0 for the first, naive,
+     *                  iteration of {@link SimpleForwardChaining#getToFixedPoint(FCKnowledgeBase)})
+     */
+    default void iterationStarted(int iteration, int deltaSize) {
+    }
+
+    /**
+     * Called when an iteration of a fixpoint computation ends.
+     *
+     * @param iteration     the number of the iteration, starting from 0
+     * @param newFacts      the number of new facts derived by the iteration
+     * @param durationNanos the duration of the iteration
+     */
+    default void iterationEnded(int iteration, int newFacts, long durationNanos) {
+    }
+
+    /**
+     * Called after a rule has been evaluated in an iteration.
+     *
+     * @param rule          the rule
+     * @param iteration     the number of the iteration
+     * @param candidates    the number of sequences of facts matching the premises in this iteration
+     * @param newFacts      the number of new facts derived by the rule in this iteration
+     * @param durationNanos the duration of the evaluation
+     */
+    default void ruleEvaluated(Rule rule, int iteration, long candidates, long newFacts, long durationNanos) {
+    }
+
+    /**
+     * Called after the custom unification of a native fact has been invoked, if it took at least the threshold
+     * specified when the listener was installed.
+     *
+     * @param fact          the native fact
+     * @param other         the relation unified with the native fact
+     * @param durationNanos the duration of the invocation
+     */
+    default void nativeFactInvoked(NativeFact fact, Relation other, long durationNanos) {
+    }
+
+    /**
+     * Called after a knowledge base has been copied, including the rebuild of the indexes of its facts.
+     *
+     * @param facts         the number of facts in the knowledge base
+     * @param durationNanos the duration of the copy
+     */
+    default void knowledgeBaseCopied(int facts, long durationNanos) {
+    }
+}
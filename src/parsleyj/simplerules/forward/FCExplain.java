@@ -0,0 +1,410 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.terms.CustomUnifiable;
+import parsleyj.simplerules.terms.NativeFactInvoker;
+import parsleyj.simplerules.terms.Relation;
+import parsleyj.simplerules.terms.Struct;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.utils.Uniquer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how {@link SimpleForwardChaining} evaluates a rule against a knowledge base, in order to tune the rules.
+ * <br>
+ * {@link #explain(FCKnowledgeBase, Rule)} shows, for each premise, in the order in which they are matched: the
+ * directory (or the compact table) from which its candidate facts are retrieved, whether they are filtered by the
+ * discrimination tree of the directory, or by a range scan on an argument compared with a constant by an integer
+ * comparison guard (see {@link FCKnowledgeBase#createRangeIndex(String, int, int)}), the estimated number of candidates,
+ * whether its candidates are joined with the previous premises with a hash table on the shared variables, whether it
+ * is a native fact, whose custom unification is invoked on every candidate sequence that reaches it, and whether it is
+ * an existence check, which stops at the first match. Rules whose premises form a cyclic pattern of shared variables
+ * are instead joined by a leapfrog triejoin, binding a variable at a time (see {@link Plan#getJoinStrategy()}).
+ * <br>
+ * {@link #profile(FCKnowledgeBase, Rule)} also evaluates the rule with the same {@link JoinIterator} used by the
+ * engine, and reports the join strategy actually used (hash joins, compiled matchers or trie join), the actual number of
+ * candidates of each premise, how many partial matches enter and survive each premise, and how many times its hash
+ * table is probed; the evaluation does not change the knowledge base, nor executes the action of the rule.
+ */
+public class FCExplain {
+
+    private FCExplain() {
+    }
+
+    /**
+     * Describes how the rule would be evaluated against the knowledge base, without evaluating it.
+     *
+     * @param kb   the knowledge base
+     * @param rule the rule
+     * @return the plan of the rule
+     */
+    public static Plan explain(FCKnowledgeBase kb, Rule rule) {
+        List<Step> steps = new ArrayList<>();
+        List<Term> premises = rule.getPremises();
+        boolean trieJoin = TrieJoin.isApplicable(premises);
+        RangeGuards guards = RangeGuards.of(premises);
+        boolean[] existential = JoinIterator.existentialPremises(premises, rule.getHead());
+        for (int i = 0; i < premises.size(); i++) {
+            Step step = describe(kb, i, premises.get(i));
+            step.existenceCheck = existential[i] && !trieJoin;
+            long[] scan = kb.rangeScanFor(premises.get(i), guards);
+            if (scan != null) {
+                step.access = "range scan on argument " + scan[0] + " in ["
+                        + (scan[1] == Long.MIN_VALUE ? "-inf" : String.valueOf(scan[1])) + ", "
+                        + (scan[2] == Long.MAX_VALUE ? "+inf" : String.valueOf(scan[2])) + "]";
+                step.estimatedCandidates = kb.countRangeCandidates(premises.get(i), scan);
+            }
+            int[] keyPositions = JoinIterator.joinKeyPositions(premises, i);
+            if (keyPositions != null && !step.isNative && !trieJoin) {
+                List<Term> args = ((Struct) premises.get(i)).toJavaList();
+                List<Term> keys = new ArrayList<>();
+                for (int position : keyPositions) {
+                    keys.add(args.get(position));
+                }
+                step.hashJoinKeys = keys;
+                if (step.estimatedCandidates >= JoinIterator.HASH_JOIN_THRESHOLD) {
+                    step.access += ", hash join on " + keys;
+                } else {
+                    step.access += ", nested loop on " + keys + " (too few candidates for a hash join)";
+                }
+            }
+            if (step.existenceCheck) {
+                step.access += ", existence check";
+            }
+            steps.add(step);
+        }
+        Plan plan = new Plan(rule, steps);
+        if (trieJoin) {
+            plan.joinStrategy = "leapfrog triejoin, binding the variables in order "
+                    + TrieJoin.variables(premises) + " (if all the candidates are relations of atoms)";
+        } else if (kb.isCompiledMatching() && RuleMatcher.isApplicable(premises)) {
+            plan.joinStrategy += ", matched by compiled matchers (if all the candidates are relations of atoms)";
+        }
+        return plan;
+    }
+
+    /**
+     * Evaluates the rule against the knowledge base, and describes how it was evaluated.
+     *
+     * @param kb   the knowledge base
+     * @param rule the rule
+     * @return the plan of the rule, with the actual counters of the evaluation
+     */
+    public static Plan profile(FCKnowledgeBase kb, Rule rule) {
+        Plan plan = explain(kb, rule);
+        Rule std = rule.standardizeApart(new Uniquer<>(l -> "__gen_" + l));
+        RangeGuards guards = RangeGuards.of(std.getPremises());
+        List<List<Term>> candidates = new ArrayList<>();
+        for (Term premise : std.getPremises()) {
+            candidates.add(kb.candidatesFor(premise, guards));
+        }
+        long enumerated = 1;
+        for (int i = 0; i < candidates.size(); i++) {
+            Step step = plan.steps.get(i);
+            step.actualCandidates = candidates.get(i).size();
+            step.entered = 0;
+            step.survived = 0;
+            enumerated = multiplySaturated(enumerated, candidates.get(i).size());
+        }
+        plan.enumeratedTuples = enumerated;
+        plan.headsProduced = 0;
+        plan.newHeads = 0;
+        long start = System.nanoTime();
+        JoinIterator join = new JoinIterator(std.getPremises(), std.getHead(), Collections.singletonList(candidates),
+                kb.matcherFor(rule));
+        while (join.hasNext()) {
+            join.next();
+            plan.headsProduced++;
+            if (!kb.containsRenamingOf(std.getHead().applySubstitution(join.unification().getSubstitution()))) {
+                plan.newHeads++;
+            }
+        }
+        plan.profileNanos = System.nanoTime() - start;
+        for (int i = 0; i < plan.steps.size(); i++) {
+            Step step = plan.steps.get(i);
+            step.entered = join.entered(i);
+            step.survived = join.survived(i);
+            step.hashProbes = join.probes(i);
+        }
+        if (join.trieJoinPasses() > 0) {
+            plan.joinStrategy = "leapfrog triejoin, binding the variables in order "
+                    + TrieJoin.variables(std.getPremises());
+        } else if (join.compiledPasses() > 0) {
+            plan.joinStrategy = "premises joined from left to right, matched by compiled matchers";
+        } else {
+            plan.joinStrategy = "premises joined from left to right";
+        }
+        return plan;
+    }
+
+    private static Step describe(FCKnowledgeBase kb, int position, Term premise) {
+        Step step = new Step(position, premise, premise.directoryPath());
+        if (premise instanceof NativeFactInvoker || premise instanceof CustomUnifiable) {
+            step.isNative = true;
+            step.access = "native fact, unified by custom code on each sequence reaching premise " + position;
+            step.estimatedCandidates = kb.countInDirectory(step.directory);
+            return step;
+        }
+        FactTable table = kb.premiseTable(premise);
+        int inDirectory = kb.countInDirectory(step.directory);
+        boolean indexed = DiscriminationTree.isSelective(premise);
+        if (table == null) {
+            step.access = indexed ? "discrimination tree lookup" : "directory scan";
+            step.estimatedCandidates = indexed ? kb.countIndexedCandidates(premise) : inDirectory;
+            return step;
+        }
+        int[] pattern = FactTable.pattern((Relation) premise);
+        List<Integer> bound = new ArrayList<>();
+        if (pattern != null) {
+            for (int c = 0; c < pattern.length; c++) {
+                if (pattern[c] != FactTable.ANY_ID) {
+                    bound.add(c);
+                }
+            }
+        }
+        int others = indexed ? kb.countIndexedCandidates(premise) : inDirectory - table.size();
+        if (pattern == null) {
+            step.access = "compact table, no row can match (unknown atom)";
+            step.estimatedCandidates = others;
+        } else if (bound.isEmpty()) {
+            step.access = "compact table scan";
+            step.estimatedCandidates = inDirectory;
+        } else {
+            step.access = "compact table scan, filtered on columns " + bound;
+            // assumes that each constant column keeps a fraction 1/sqrt(rows) of the rows
+            double selectivity = Math.pow(Math.max(1, table.size()), -0.5 * bound.size());
+            step.estimatedCandidates = others + (long) Math.ceil(table.size() * selectivity);
+        }
+        return step;
+    }
+
+    private static long multiplySaturated(long a, long b) {
+        if (a != 0 && b > Long.MAX_VALUE / a) {
+            return Long.MAX_VALUE;
+        }
+        return a * b;
+    }
+
+    /**
+     * The description of the evaluation of a rule.
+     */
+    public static class Plan {
+        private final Rule rule;
+        private final List<Step> steps;
+        private long enumeratedTuples = -1;
+        private long headsProduced = -1;
+        private long newHeads = -1;
+        private long profileNanos = -1;
+        private String joinStrategy = "premises joined from left to right";
+
+        private Plan(Rule rule, List<Step> steps) {
+            this.rule = rule;
+            this.steps = steps;
+        }
+
+        public Rule getRule() {
+            return rule;
+        }
+
+        /**
+         * Returns the description of each premise, in the order in which the premises are matched.
+         */
+        public List<Step> getSteps() {
+            return Collections.unmodifiableList(steps);
+        }
+
+        /**
+         * Returns a description of how the candidates of the premises are joined.
+         */
+        public String getJoinStrategy() {
+            return joinStrategy;
+        }
+
+        /**
+         * Returns true if the counters of an actual evaluation are available.
+         */
+        public boolean isProfiled() {
+            return profileNanos >= 0;
+        }
+
+        /**
+         * Returns the number of candidate sequences of facts of a naive nested loop over the candidates of the premises
+         * (the product of the numbers of candidates), or -1 if not profiled. The engine joins the premises one at a
+         * time, so it enumerates only the partial matches counted by the steps.
+         */
+        public long getEnumeratedTuples() {
+            return enumeratedTuples;
+        }
+
+        /**
+         * Returns the number of instances of the head produced, or -1 if not profiled.
+         */
+        public long getHeadsProduced() {
+            return headsProduced;
+        }
+
+        /**
+         * Returns the number of produced instances of the head not already in the knowledge base, or -1 if not
+         * profiled.
+         */
+        public long getNewHeads() {
+            return newHeads;
+        }
+
+        /**
+         * Returns the duration of the profiled evaluation, in nanoseconds, or -1 if not profiled.
+         */
+        public long getProfileNanos() {
+            return profileNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(isProfiled() ? "PROFILE " : "EXPLAIN ").append(rule).append('\n');
+            sb.append("  ").append(joinStrategy).append('\n');
+            for (Step step : steps) {
+                sb.append("  ").append(step).append('\n');
+            }
+            if (isProfiled()) {
+                sb.append("  cartesian product of the candidates: ").append(enumeratedTuples)
+                        .append(", heads: ").append(getHeadsProduced())
+                        .append(" (new: ").append(getNewHeads()).append(")")
+                        .append(", time: ").append(profileNanos / 1_000).append("us\n");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The description of the evaluation of a premise of a rule.
+     */
+    public static class Step {
+        private final int position;
+        private final Term premise;
+        private final List<String> directory;
+        private boolean isNative = false;
+        private String access;
+        private long estimatedCandidates;
+        private long actualCandidates = -1;
+        private long entered = -1;
+        private long survived = -1;
+        private long hashProbes = -1;
+        private List<Term> hashJoinKeys = null;
+        private boolean existenceCheck = false;
+
+        private Step(int position, Term premise, List<String> directory) {
+            this.position = position;
+            this.premise = premise;
+            this.directory = directory;
+        }
+
+        /**
+         * Returns the position of the premise in the rule.
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        public Term getPremise() {
+            return premise;
+        }
+
+        /**
+         * Returns the directory path from which the candidates of the premise are retrieved.
+         */
+        public List<String> getDirectory() {
+            return directory;
+        }
+
+        /**
+         * Returns true if the premise is matched by a native fact.
+         */
+        public boolean isNative() {
+            return isNative;
+        }
+
+        /**
+         * Returns a description of how the candidates of the premise are retrieved.
+         */
+        public String getAccess() {
+            return access;
+        }
+
+        /**
+         * Returns the variables shared with the previous premises, which are used as keys to join the candidates of
+         * this premise with a hash table when they are enough, or null if there are none.
+         */
+        public List<Term> getHashJoinKeys() {
+            return hashJoinKeys;
+        }
+
+        /**
+         * Returns true if the premise is evaluated as an existence check, i.e. if its new variables are not used by
+         * the head nor by the next premises, so that the evaluation stops at the first matching candidate for each
+         * match of the previous premises (if the candidates are ground).
+         */
+        public boolean isExistenceCheck() {
+            return existenceCheck;
+        }
+
+        /**
+         * Returns the estimated number of candidate facts of the premise.
+         */
+        public long getEstimatedCandidates() {
+            return estimatedCandidates;
+        }
+
+        /**
+         * Returns the actual number of candidate facts of the premise, or -1 if not profiled.
+         */
+        public long getActualCandidates() {
+            return actualCandidates;
+        }
+
+        /**
+         * Returns the number of partial matches of the previous premises that reached this premise, or -1 if not
+         * profiled.
+         */
+        public long getEntered() {
+            return entered;
+        }
+
+        /**
+         * Returns the number of partial matches extended by a candidate of this premise, or -1 if not profiled.
+         */
+        public long getSurvived() {
+            return survived;
+        }
+
+        /**
+         * Returns the number of lookups in the hash table of the candidates of the premise (0 if the evaluation
+         * joined them with a nested loop), or -1 if not profiled.
+         */
+        public long getHashProbes() {
+            return hashProbes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(position).append(". ").append(premise)
+                    .append(" [").append(String.join("/", directory)).append("] ")
+                    .append(access)
+                    .append(", estimated candidates: ").append(estimatedCandidates);
+            if (actualCandidates >= 0) {
+                sb.append(", actual candidates: ").append(actualCandidates)
+                        .append(", matches in: ").append(entered)
+                        .append(", out: ").append(survived);
+                if (hashJoinKeys != null) {
+                    sb.append(", hash probes: ").append(hashProbes);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffer in which many producer threads can assert facts concurrently, to be added in batches to a knowledge base by
+ * the thread which owns it (e.g. the one running the fixpoint computations), since {@link FCKnowledgeBase} itself is
+ * not thread safe.
+ * <br>
+ * The buffer is striped: each producer thread appends its facts to one of several lock-free stacks, chosen by its
+ * thread ID, with a single compare-and-set, so producers running on different cores do not contend with each other.
+ * The consumer takes all the facts of each stripe with a single atomic swap (see {@link #drain()}): each batch
+ * contains all the facts added to the stripe before the swap and none of the later ones, and the facts of each
+ * producer keep their order. Since the knowledge base is modified only by the consumer, between two batches the
+ * inference sees a consistent view of it.
+ * <br>
+ * Optionally, the pending facts are deduplicated: a fact is rejected if a renaming of it (see
+ * {@link Term#justARenaming(Term)}) is already pending, using a concurrent hash set, so that e.g. sensors repeating
+ * the same reading do not flood the knowledge base. The facts already in the knowledge base are not checked here, but
+ * by {@link #drainInto(FCKnowledgeBase)}.
+ */
+public class FCFactInbox {
+
+    /**
+     * Distance between the used slots of the array of stripes, so that the heads of two stripes are never on the same
+     * cache line.
+     */
+    private static final int PADDING = 16;
+
+    private final AtomicReferenceArray<Node> stripes;
+    private final int mask;
+    private final LongAdder pendingCount = new LongAdder();
+    /**
+     * The keys of the pending facts, or null if they are not deduplicated.
+     */
+    private final Set<PendingKey> pendingKeys;
+
+    /**
+     * Creates an inbox with two stripes for each available processor, which does not deduplicate the facts.
+     */
+    public FCFactInbox() {
+        this(2 * Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Creates an inbox.
+     *
+     * @param stripes     the minimum number of stripes (rounded up to a power of two)
+     * @param deduplicate if true, the facts of which a renaming is already pending are rejected
+     */
+    public FCFactInbox(int stripes, boolean deduplicate) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new AtomicReferenceArray<>(size * PADDING);
+        this.mask = size - 1;
+        this.pendingKeys = deduplicate ? ConcurrentHashMap.newKeySet() : null;
+    }
+
+    /**
+     * Adds a fact to the inbox, without blocking. This method can be called by any thread.
+     *
+     * @param fact the fact
+     * @return true if the fact was added, false if it was rejected because a renaming of it is already pending
+     */
+    public boolean add(Term fact) {
+        if (pendingKeys != null && !pendingKeys.add(new PendingKey(fact))) {
+            return false;
+        }
+        int slot = stripeOf(Thread.currentThread()) * PADDING;
+        Node node = new Node(fact);
+        Node head;
+        do {
+            head = stripes.get(slot);
+            node.next = head;
+        } while (!stripes.compareAndSet(slot, head, node));
+        pendingCount.increment();
+        return true;
+    }
+
+    /**
+     * Adds some facts to the inbox, in order, without blocking. This method can be called by any thread.
+     *
+     * @param facts the facts
+     * @return the number of facts added (see {@link #add(Term)})
+     */
+    public int addAll(List<Term> facts) {
+        int count = 0;
+        for (Term fact : facts) {
+            if (add(fact)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes and returns all the pending facts. The facts of each stripe are taken atomically, and the facts added
+     * by each producer are in the order in which they were added. This method should be called by a single consumer
+     * thread.
+     *
+     * @return the pending facts
+     */
+    public List<Term> drain() {
+        List<Term> result = new ArrayList<>();
+        for (int s = 0; s <= mask; s++) {
+            Node node = stripes.getAndSet(s * PADDING, null);
+            if (node == null) {
+                continue;
+            }
+            int start = result.size();
+            for (; node != null; node = node.next) {
+                result.add(node.fact);
+            }
+            // the stripes are stacks: the newest facts come first
+            Collections.reverse(result.subList(start, result.size()));
+        }
+        pendingCount.add(-result.size());
+        if (pendingKeys != null) {
+            for (Term fact : result) {
+                pendingKeys.remove(new PendingKey(fact));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drains the pending facts (see {@link #drain()}) and adds the ones which are not already in the knowledge base
+     * as asserted facts (see {@link FCKnowledgeBase#addNewFacts(List)}). This method must be called by the thread
+     * which owns the knowledge base, e.g. between two fixpoint computations; to add the facts to a knowledge base at
+     * its fixed point, use {@link SimpleForwardChaining#extendToFixedPoint(FCKnowledgeBase, List)} with the result of
+     * {@link #drain()} instead.
+     *
+     * @param kb the knowledge base
+     * @return the facts actually added
+     */
+    public List<Term> drainInto(FCKnowledgeBase kb) {
+        List<Term> facts = drain();
+        return facts.isEmpty() ? facts : kb.addNewFacts(facts);
+    }
+
+    /**
+     * Returns the number of pending facts; the result is exact only when no fact is being added or drained.
+     */
+    public long pendingCount() {
+        return pendingCount.sum();
+    }
+
+    /**
+     * Returns true if there are no pending facts.
+     */
+    public boolean isEmpty() {
+        for (int s = 0; s <= mask; s++) {
+            if (stripes.get(s * PADDING) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of stripes.
+     */
+    public int getStripes() {
+        return mask + 1;
+    }
+
+    private int stripeOf(Thread thread) {
+        long id = thread.getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return "FCFactInbox(stripes: " + getStripes() + ", pending: " + pendingCount() + ")";
+    }
+
+    private static class Node {
+        private final Term fact;
+        private Node next;
+
+        private Node(Term fact) {
+            this.fact = fact;
+        }
+    }
+
+    /**
+     * Key of a pending fact, equal to the keys of its renamings.
+     */
+    private static class PendingKey {
+        private final Term fact;
+        private final int hash;
+
+        private PendingKey(Term fact) {
+            this.fact = fact;
+            this.hash = RenamingIndex.renamingHash(fact);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PendingKey && hash == ((PendingKey) o).hash
+                    && fact.justARenaming(((PendingKey) o).fact);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Reactive component that keeps a knowledge base at its fixed point while it is fed with a stream of facts (e.g.
+ * percepts or other events coming from the environment).
+ * <br>
+ * Instead of running a whole fixpoint computation for each fact, the queued facts are drained in micro-batches,
+ * bounded both in size and in the time spent waiting for the batch to fill up, and each batch is added to the
+ * knowledge base with a single incremental fixpoint computation (see
+ * {@link SimpleForwardChaining#extendToFixedPoint(FCKnowledgeBase, List)}).
+ * <br>
+ * The queue of the pending facts is bounded: when it is full, the producers are blocked until the engine catches up
+ * (backpressure), so that no fact is ever dropped.
+ * <br>
+ * After each batch, the facts that expired according to the {@link RetentionPolicy}s of the knowledge base are
+ * removed (see {@link FCKnowledgeBase#expireFacts()}).
+ * <br>
+ * A batch which fails (e.g. because an action of a rule throws an exception) does not stop the engine: the failure is
+ * counted and kept (see {@link #getFailedBatches()} and {@link #getLastFailure()}), and the next batch brings the whole
+ * knowledge base to its fixed point again.
+ * <br>
+ * The knowledge base is owned by the thread running the engine, and it is updated in place: it should be accessed by
+ * other threads only from the batch listener.
+ */
+public class FCIngestionEngine implements Runnable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    public static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = 10;
+
+    /**
+     * Enqueued by {@link #stop()} to wake up the engine waiting for facts; never added to the knowledge base.
+     */
+    private static final Term STOP = new Atom<>(new Object());
+
+    private final BlockingQueue<Term> pendingFacts;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final IncrementalFixpoint fixpoint;
+    private volatile Consumer<FCResult> batchListener = null;
+    private volatile boolean stopped = false;
+    private volatile long failedBatches = 0;
+    private volatile RuntimeException lastFailure = null;
+
+    /**
+     * Creates an ingestion engine for a copy of the specified knowledge base.
+     *
+     * @param kb             the initial knowledge base
+     * @param queueCapacity  the maximum number of facts waiting to be processed; when it is reached, producers block
+     * @param maxBatchSize   the maximum number of facts added to the knowledge base with a single fixpoint
+     * @param maxBatchDelay  the maximum time spent waiting for a batch to fill up, after its first fact arrived
+     * @param unit           the time unit of {@code maxBatchDelay}
+     */
+    public FCIngestionEngine(FCKnowledgeBase kb, int queueCapacity, int maxBatchSize, long maxBatchDelay, TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.fixpoint = new IncrementalFixpoint(kb.copy());
+        this.pendingFacts = new ArrayBlockingQueue<>(queueCapacity, true);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = unit.toNanos(maxBatchDelay);
+    }
+
+    /**
+     * Creates an ingestion engine for a copy of the specified knowledge base, with default queue capacity and batch
+     * size/time limits.
+     *
+     * @param kb the initial knowledge base
+     */
+    public FCIngestionEngine(FCKnowledgeBase kb) {
+        this(kb, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Enqueues a fact to be added to the knowledge base, waiting if the queue is full.
+     *
+     * @param fact the fact
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(Term fact) throws InterruptedException {
+        pendingFacts.put(fact);
+    }
+
+    /**
+     * Enqueues a fact to be added to the knowledge base, waiting up to the specified time if the queue is full.
+     *
+     * @param fact    the fact
+     * @param timeout how long to wait before giving up
+     * @param unit    the time unit of {@code timeout}
+     * @return true if the fact was enqueued, false if the timeout elapsed before space was available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean submit(Term fact, long timeout, TimeUnit unit) throws InterruptedException {
+        return pendingFacts.offer(fact, timeout, unit);
+    }
+
+    /**
+     * Enqueues some facts to be added to the knowledge base, waiting for space in the queue when needed.
+     *
+     * @param facts the facts
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submitAll(List<Term> facts) throws InterruptedException {
+        for (Term fact : facts) {
+            pendingFacts.put(fact);
+        }
+    }
+
+    /**
+     * Waits for at least one fact to be available, then collects the facts arriving in the following
+     * {@code maxBatchDelay} time interval, up to {@code maxBatchSize} facts.
+     *
+     * @return the next batch, which is empty only if the engine was stopped while waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Term> nextBatch() throws InterruptedException {
+        List<Term> batch = new ArrayList<>();
+        Term first = pendingFacts.take();
+        if (first == STOP) {
+            return batch;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + maxBatchDelayNanos;
+        while (batch.size() < maxBatchSize) {
+            // first, takes whatever is already available without waiting
+            if (pendingFacts.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                if (batch.remove(STOP)) {
+                    break;
+                }
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            Term fact = pendingFacts.poll(remaining, TimeUnit.NANOSECONDS);
+            if (fact == null || fact == STOP) {
+                break;
+            }
+            batch.add(fact);
+        }
+        return batch;
+    }
+
+    /**
+     * Waits for the next batch and adds it to the knowledge base, bringing it to its fixed point.
+     *
+     * @return the result of the fixpoint computation
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public FCResult processNextBatch() throws InterruptedException {
+        return processBatch(nextBatch());
+    }
+
+    /**
+     * Adds a batch of facts to the knowledge base, bringing it to its fixed point. The first time this method is
+     * called, the whole knowledge base is brought to its fixed point; afterwards, the computation is incremental.
+     *
+     * @param batch the facts to be added
+     * @return the result of the fixpoint computation
+     */
+    public FCResult processBatch(List<Term> batch) {
+        FCResult result = fixpoint.add(batch);
+        Consumer<FCResult> listener = batchListener;
+        if (listener != null) {
+            listener.accept(result);
+        }
+        return result;
+    }
+
+    /**
+     * Processes batches until {@link #stop()} is called or the running thread is interrupted. A failing batch is
+     * counted, and does not stop the loop.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            List<Term> batch;
+            try {
+                batch = nextBatch();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            try {
+                processBatch(batch);
+            } catch (RuntimeException e) {
+                failedBatches++;
+                lastFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Requests the engine loop to terminate after the current batch, waking it up if it is waiting for facts. The
+     * facts still in the queue are not processed.
+     */
+    public void stop() {
+        stopped = true;
+        // if the queue is full, the loop is not waiting, and it terminates after the current batch
+        pendingFacts.offer(STOP);
+    }
+
+    /**
+     * Returns the number of batches whose processing failed with an exception in {@link #run()}.
+     */
+    public long getFailedBatches() {
+        return failedBatches;
+    }
+
+    /**
+     * Returns the exception thrown by the last failed batch in {@link #run()}, or null.
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Sets a listener that is notified with the result of each processed batch, from the thread running the engine.
+     *
+     * @param batchListener the listener, or null to remove it
+     */
+    public void setBatchListener(Consumer<FCResult> batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    /**
+     * Returns the number of facts waiting to be processed.
+     */
+    public int pendingCount() {
+        return pendingFacts.size();
+    }
+
+    /**
+     * Returns the knowledge base maintained by this engine.
+     */
+    public FCKnowledgeBase getKnowledgeBase() {
+        return fixpoint.knowledgeBase();
+    }
+}
@@ -1,30 +1,734 @@
 package parsleyj.simplerules.forward;
 
 import parsleyj.simplerules.KnowledgeBase;
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.storage.ColumnarFactTable;
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.terms.AtomDictionary;
+import parsleyj.simplerules.terms.CustomUnifiable;
+import parsleyj.simplerules.terms.NativeFactInvoker;
+import parsleyj.simplerules.terms.Relation;
+import parsleyj.simplerules.terms.RelationImpl;
 import parsleyj.simplerules.terms.Struct;
 import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Variable;
+import parsleyj.simplerules.unify.SimpleUnify;
+import parsleyj.simplerules.unify.Substitution;
+import parsleyj.simplerules.unify.UnificationResult;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 /**
  * Knowledge base, optimized for {@link SimpleForwardChaining} algorithm.
+ * <br>
+ * Optionally, the knowledge base can store its ground facts in compact form: when a {@link FactTable.Factory} is
+ * provided, each ground relation whose arguments are all atoms is stored as a row of a per-relation
+ * {@link FactTable}, and its {@link Term} representation is materialized only when it is retrieved (e.g. by
+ * {@link #getAllFacts()} or {@link #factsInDirectory(List)}). In this mode, such facts are also deduplicated.
  */
 public class FCKnowledgeBase extends KnowledgeBase {
 
     private final DirectoryNode globalFacts = new DirectoryNode(Term.GLOBAL_DIR);
 
+    /**
+     * The facts of this knowledge base that were produced by the reasoning engine (as opposed to the ones that were
+     * explicitly asserted).
+     */
+    private final Set<Term> derivedFacts = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Retention state of the relations with a {@link RetentionPolicy}, by predicate-style name.
+     */
+    private final Map<String, RetentionTracker> retention = new HashMap<>();
+
+    /**
+     * The factory of the tables used to store the ground facts in compact form, or null if all the facts are stored
+     * as {@link Term} objects.
+     */
+    private final FactTable.Factory tableFactory;
+
+    /**
+     * The shared rules used by this knowledge base instead of its own list of rules, or null.
+     */
+    private final RuleBase ruleBase;
+
+    /**
+     * The tables containing the facts stored in compact form, by predicate-style name.
+     */
+    private final Map<String, FactTable> tables = new LinkedHashMap<>();
+
+    /**
+     * The arguments of the relations indexed by value (see {@link #createRangeIndex(String, int, int)}), by directory
+     * of the relation.
+     */
+    private final Map<List<String>, Set<Integer>> rangeIndexes = new HashMap<>();
+
+    /**
+     * The range indexes of the rows of the tables, by directory of the relation and indexed argument, built on the
+     * first range scan of a table, and discarded when facts are removed.
+     */
+    private final Map<List<String>, Map<Integer, TableRangeIndex>> tableRangeIndexes = new HashMap<>();
+
+    /**
+     * The candidates of the premises whose arguments are all variables (i.e. all the facts of a relation), by
+     * directory of the relation, with the hash tables and the tries built on them by the joins (see
+     * {@link #joinIndex(Term, List, int[])} and {@link #joinTrie(Term, List, int[])}). The entry of a relation is
+     * replaced when facts are added to it, and all the entries are discarded when facts are removed, or a table is
+     * attached.
+     */
+    private final Map<List<String>, JoinCandidates> joinCandidates = new HashMap<>();
+
+    /**
+     * The IDs of the atoms in the tries of {@link #joinCandidates}.
+     */
+    private TrieJoin.Ids trieIds = new TrieJoin.Ids();
+
+    /**
+     * The log in which the changes to the asserted facts are recorded, or null.
+     */
+    private FCWriteAheadLog writeAheadLog = null;
+
+    /**
+     * The compiled matchers of the rules (null for the rules which cannot be compiled), or null if compiled matching
+     * is disabled (see {@link #setCompiledMatching(boolean)}).
+     */
+    private Map<Rule, RuleMatcher> matchers = null;
+
+    /**
+     * The last published version of the facts, shared with the copies of this knowledge base, or null if versions are
+     * disabled (see {@link #enableVersions()}).
+     */
+    private AtomicReference<FCVersion> versions = null;
+
+    /**
+     * The state used by this knowledge base to publish its versions, or null if versions are disabled.
+     */
+    private FCVersion.Writer versionWriter = null;
+
+    /**
+     * Creates an empty knowledge base, which stores all the facts as {@link Term} objects.
+     */
+    public FCKnowledgeBase() {
+        this(null);
+    }
+
+    /**
+     * Creates an empty knowledge base, which stores the ground relations whose arguments are all atoms in the tables
+     * created by the specified factory.
+     *
+     * @param tableFactory the table factory, or null to store all the facts as {@link Term} objects
+     */
+    public FCKnowledgeBase(FactTable.Factory tableFactory) {
+        this(tableFactory, null);
+    }
+
+    /**
+     * Creates an empty knowledge base, which stores the ground relations whose arguments are all atoms in the tables
+     * created by the specified factory, and uses the rules of the specified rule base (see {@link RuleBase}). A
+     * knowledge base using a rule base has no rules of its own: its list of rules is the unmodifiable one of the rule
+     * base.
+     *
+     * @param tableFactory the table factory, or null to store all the facts as {@link Term} objects
+     * @param ruleBase     the rule base, or null to use a list of rules of this knowledge base
+     */
+    public FCKnowledgeBase(FactTable.Factory tableFactory, RuleBase ruleBase) {
+        this.tableFactory = tableFactory;
+        this.ruleBase = ruleBase;
+    }
+
+    /**
+     * Creates an empty knowledge base which stores its ground facts in compact form, in {@link ColumnarFactTable}s.
+     *
+     * @return the knowledge base
+     */
+    public static FCKnowledgeBase compact() {
+        return new FCKnowledgeBase(ColumnarFactTable::new);
+    }
+
+    @Override
+    public List<Rule> getRules() {
+        return ruleBase != null ? ruleBase.getRules() : rules;
+    }
+
+    /**
+     * Returns the rule base whose rules are used by this knowledge base, or null if it has its own list of rules.
+     */
+    public RuleBase getRuleBase() {
+        return ruleBase;
+    }
 
     @Override
     public void addFact(Term fact) {
-        super.addFact(fact);
-        globalFacts.addTerm(fact);
+        logAddition(Collections.singletonList(fact));
+        storeFact(fact, false);
+        track(fact);
     }
 
     @Override
     public void addFacts(List<Term> facts) {
-        super.addFacts(facts);
-        facts.forEach(globalFacts::addTerm);
+        logAddition(facts);
+        insertFacts(facts);
+    }
+
+    /**
+     * Adds the asserted facts that are not already in this knowledge base, skipping the ones of which a fact in this
+     * knowledge base (or a previous fact in the batch) is "just a renaming". Unlike {@link #addFacts(List)}, no
+     * duplicates are introduced. Duplicates are detected with hash lookups, and the facts are inserted grouped by
+     * relation, so this method is suitable for very large batches.
+     *
+     * @param facts the asserted facts
+     * @return the facts actually added
+     */
+    public List<Term> addNewFacts(List<Term> facts) {
+        List<Term> added = new ArrayList<>();
+        RenamingIndex batch = new RenamingIndex();
+        for (Term fact : facts) {
+            if (!containsRenamingOf(fact) && batch.addIfAbsent(fact)) {
+                added.add(fact);
+            }
+        }
+        logAddition(added);
+        insertFacts(added);
+        return added;
+    }
+
+    /**
+     * Adds some asserted facts, without recording them in the write-ahead log.
+     *
+     * @param facts the asserted facts
+     */
+    void insertFacts(List<Term> facts) {
+        storeFacts(facts, false);
+        if (!retention.isEmpty()) {
+            facts.forEach(this::track);
+        }
+    }
+
+    /**
+     * Adds some facts that have been derived by the reasoning engine.
+     *
+     * @param facts the derived facts
+     */
+    void addDerivedFacts(List<Term> facts) {
+        storeFacts(facts, true);
+        if (!retention.isEmpty()) {
+            facts.forEach(this::track);
+        }
+    }
+
+    /**
+     * Sets the log in which the additions and retractions of asserted facts are durably recorded before being
+     * applied. Copies of this knowledge base (e.g. the ones produced by
+     * {@link SimpleForwardChaining#getToFixedPoint(FCKnowledgeBase)}) keep recording their changes in the same log.
+     *
+     * @param writeAheadLog the log, or null to stop recording the changes
+     */
+    public void setWriteAheadLog(FCWriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    /**
+     * Returns the log in which the changes to the asserted facts are recorded, or null.
+     */
+    public FCWriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Enables or disables compiled matching. When enabled, the premises of each rule whose premises are all relations
+     * with atoms or variables as arguments are compiled, the first time the rule is evaluated, into a specialized
+     * matcher, which is used instead of the unification algorithm when all the candidates of the premises are
+     * relations of atoms. Compiling a rule takes some time, which is paid back by the rules evaluated many times
+     * on many facts. The derived facts are the same.
+     * <br>
+     * The compiled matchers are shared with the copies of this knowledge base. The rules of a {@link RuleBase} are
+     * always compiled, so this setting has no effect on the knowledge bases using one.
+     *
+     * @param enabled true to enable compiled matching
+     */
+    public void setCompiledMatching(boolean enabled) {
+        if (!enabled) {
+            matchers = null;
+        } else if (matchers == null) {
+            matchers = Collections.synchronizedMap(new WeakHashMap<>());
+        }
+    }
+
+    /**
+     * Returns true if compiled matching is enabled (see {@link #setCompiledMatching(boolean)}).
+     */
+    public boolean isCompiledMatching() {
+        return ruleBase != null || matchers != null;
+    }
+
+    /**
+     * Returns the compiled matcher of the premises of the rule, compiling it if needed, or null if compiled matching
+     * is disabled or the rule cannot be compiled.
+     */
+    RuleMatcher matcherFor(Rule rule) {
+        if (ruleBase != null) {
+            return ruleBase.matcherFor(rule);
+        }
+        Map<Rule, RuleMatcher> matchers = this.matchers;
+        if (matchers == null) {
+            return null;
+        }
+        synchronized (matchers) {
+            if (matchers.containsKey(rule)) {
+                return matchers.get(rule);
+            }
+            RuleMatcher matcher = RuleMatcher.compile(rule.getPremises());
+            matchers.put(rule, matcher);
+            return matcher;
+        }
+    }
+
+    /**
+     * Enables the publication of versions of the facts of this knowledge base, which can be read by other threads
+     * while this knowledge base is being modified (e.g. during a fixpoint computation), without any locking: a reader
+     * obtains the last published version with {@link #currentVersion()}, and it can keep using it while newer ones are
+     * published. The first version is published immediately.
+     * <br>
+     * Versions are published by the reasoning engine at the end of each iteration of the fixpoint computations and
+     * at the end of each process which updates the knowledge base in place (see
+     * {@link SimpleForwardChaining#extendToFixedPoint(FCKnowledgeBase, List)},
+     * {@link SimpleForwardChaining#retractFromFixedPoint(FCKnowledgeBase, List)} and {@link #expireFacts()}), or
+     * explicitly with {@link #publishVersion()}. The copies of this knowledge base (e.g. the one updated by
+     * {@link SimpleForwardChaining#getToFixedPoint(FCKnowledgeBase)}) publish their versions in the same place, so
+     * that the readers of this knowledge base see the progress of the computation.
+     * <br>
+     * This knowledge base itself is still not thread safe: only one thread at a time can modify it.
+     */
+    public void enableVersions() {
+        if (versions == null) {
+            versions = new AtomicReference<>();
+            versionWriter = new FCVersion.Writer();
+            publishVersion();
+        }
+    }
+
+    /**
+     * Returns the last published version of the facts of this knowledge base (or of its copies), or null if versions
+     * are disabled (see {@link #enableVersions()}). This method can be called by any thread.
+     */
+    public FCVersion currentVersion() {
+        AtomicReference<FCVersion> versions = this.versions;
+        return versions != null ? versions.get() : null;
+    }
+
+    /**
+     * Publishes a version with the current facts of this knowledge base, if versions are enabled (see
+     * {@link #enableVersions()}) and the facts changed since the previous version. Only the facts added since the
+     * previous version are copied, unless some facts were removed.
+     */
+    public void publishVersion() {
+        if (versions == null) {
+            return;
+        }
+        synchronized (versions) {
+            FCVersion previous = versions.get();
+            FCVersion version = versionWriter.publish(previous != null ? previous.getVersion() + 1 : 0,
+                    allFacts, tables.values());
+            if (version != previous) {
+                versions.set(version);
+            }
+        }
+    }
+
+    /**
+     * Returns the indexes of the rules which can be triggered by the specified new facts (see {@link RuleBase}), or
+     * null if all the rules have to be evaluated.
+     */
+    BitSet rulesTriggeredBy(Collection<Term> facts) {
+        return ruleBase != null ? ruleBase.rulesTriggeredBy(facts) : null;
+    }
+
+    void logAddition(List<Term> facts) {
+        if (writeAheadLog != null && !facts.isEmpty()) {
+            try {
+                writeAheadLog.logAddition(facts);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    void logRetraction(List<Term> facts) {
+        if (writeAheadLog != null && !facts.isEmpty()) {
+            try {
+                writeAheadLog.logRetraction(facts);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void logExpiry(Collection<Term> facts, boolean cascading) {
+        if (writeAheadLog != null && !facts.isEmpty()) {
+            try {
+                writeAheadLog.logExpiry(new ArrayList<>(facts), cascading);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Adds a fact restored from a snapshot, keeping track of whether it was derived.
+     */
+    void restoreFact(Term fact, boolean derived) {
+        storeFact(fact, derived);
+        track(fact);
+    }
+
+    /**
+     * Adds a table restored from a snapshot. There must be no other table for the same relation.
+     */
+    void restoreTable(FactTable table) {
+        tables.put(Relation.getPredicateStyleName(table.getName(), table.getArity()), table);
+        globalFacts.attachTable(relationDirectory(table.getName(), table.getArity()), table);
+        clearJoinCandidates();
+    }
+
+    /**
+     * Returns the tables containing the facts stored in compact form.
+     */
+    Collection<FactTable> factTables() {
+        return tables.values();
+    }
+
+    /**
+     * Returns the facts stored as {@link Term} objects.
+     */
+    List<Term> termFacts() {
+        return allFacts;
+    }
+
+    private void storeFact(Term fact, boolean derived) {
+        if (tableFactory != null) {
+            int[] ids = FactTable.encode(fact);
+            if (ids != null) {
+                Relation relation = (Relation) fact;
+                tableFor(relation.getName(), relation.length() - 1).add(ids, derived);
+                return;
+            }
+        }
+        allFacts.add(fact);
+        globalFacts.addTerm(fact);
+        if (derived) {
+            derivedFacts.add(fact);
+        }
+    }
+
+    /**
+     * Stores a batch of facts: the ones stored in compact form are appended to their tables, and the other ones are
+     * grouped by directory, so that each directory is looked up (and its index updated) once per batch.
+     */
+    private void storeFacts(List<Term> facts, boolean derived) {
+        if (facts.size() == 1) {
+            storeFact(facts.get(0), derived);
+            return;
+        }
+        Map<List<String>, List<Term>> byDirectory = new LinkedHashMap<>();
+        FactTable lastTable = null;
+        for (Term fact : facts) {
+            if (tableFactory != null) {
+                int[] ids = FactTable.encode(fact);
+                if (ids != null) {
+                    Relation relation = (Relation) fact;
+                    int arity = relation.length() - 1;
+                    if (lastTable == null || lastTable.getArity() != arity
+                            || !lastTable.getName().equals(relation.getName())) {
+                        lastTable = tableFor(relation.getName(), arity);
+                    }
+                    lastTable.add(ids, derived);
+                    continue;
+                }
+            }
+            allFacts.add(fact);
+            if (derived) {
+                derivedFacts.add(fact);
+            }
+            byDirectory.computeIfAbsent(fact.directoryPath(), d -> new ArrayList<>()).add(fact);
+        }
+        globalFacts.addTerms(byDirectory);
+    }
+
+    private FactTable tableFor(String name, int arity) {
+        String key = Relation.getPredicateStyleName(name, arity);
+        FactTable table = tables.get(key);
+        if (table == null) {
+            table = tableFactory.create(name, arity);
+            tables.put(key, table);
+            globalFacts.attachTable(relationDirectory(name, arity), table);
+            clearJoinCandidates();
+        }
+        return table;
+    }
+
+    /**
+     * Returns the table in which the facts of the specified relation can be stored directly, bypassing this knowledge
+     * base (e.g. by a bulk loader), or null if they cannot: when the facts are not stored in compact form, or when
+     * they must be recorded in the write-ahead log or tracked by a retention policy.
+     */
+    FactTable bulkTableFor(String name, int arity) {
+        if (tableFactory == null || writeAheadLog != null
+                || retention.containsKey(Relation.getPredicateStyleName(name, arity))) {
+            return null;
+        }
+        return tableFor(name, arity);
+    }
+
+    /**
+     * Returns the table storing the facts with the same name and arity of the specified one, if it is a plain
+     * relation, or null if there is no such table.
+     */
+    private FactTable tableOf(Term fact) {
+        if (tables.isEmpty() || !(fact instanceof Relation)) {
+            return null;
+        }
+        return tables.get(((Relation) fact).getPredicateStyleName());
+    }
+
+    /**
+     * Returns all the facts in this knowledge base. When facts are stored in compact form, the returned list is a new
+     * list, in which such facts are materialized.
+     */
+    @Override
+    public List<Term> getAllFacts() {
+        if (tables.isEmpty()) {
+            return allFacts;
+        }
+        List<Term> result = new ArrayList<>(allFacts);
+        for (FactTable table : tables.values()) {
+            result.addAll(table.materializeAll());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of facts in this knowledge base.
+     */
+    public int factsCount() {
+        int result = allFacts.size();
+        for (FactTable table : tables.values()) {
+            result += table.size();
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the specified fact is in this knowledge base because it was derived by the reasoning engine,
+     * false if it was explicitly asserted (or if it is not in this knowledge base). Facts stored as {@link Term}
+     * objects are compared by identity, while facts stored in compact form are compared by value.
+     */
+    public boolean isDerived(Term fact) {
+        FactTable table = tableOf(fact);
+        if (table != null) {
+            int[] ids = FactTable.lookup(fact);
+            if (ids != null) {
+                int row = table.find(ids);
+                if (row >= 0) {
+                    return table.isDerived(row);
+                }
+            }
+        }
+        return derivedFacts.contains(fact);
+    }
+
+    /**
+     * Returns true if this knowledge base contains a fact of which {@code fact} is "just a renaming".
+     *
+     * @param fact the fact
+     * @return true if there is such a fact
+     */
+    public boolean containsRenamingOf(Term fact) {
+        FactTable table = tableOf(fact);
+        if (table != null) {
+            int[] ids = FactTable.lookup(fact);
+            if (ids != null && table.find(ids) >= 0) {
+                return true;
+            }
+        }
+        return globalFacts.containsRenamingOf(fact);
+    }
+
+    /**
+     * Retracts an asserted fact, and removes all the derived facts that are not supported anymore as a consequence.
+     * The knowledge base is assumed to be at its fixed point.
+     *
+     * @param fact the fact to be retracted
+     * @return true if at least one asserted fact was retracted
+     * @see SimpleForwardChaining#retractFromFixedPoint(FCKnowledgeBase, List)
+     */
+    @Override
+    public boolean retractFact(Term fact) {
+        return !retractFacts(Collections.singletonList(fact)).isEmpty();
+    }
+
+    /**
+     * Retracts some asserted facts, and removes all the derived facts that are not supported anymore as a consequence.
+     * The knowledge base is assumed to be at its fixed point.
+     *
+     * @param facts the facts to be retracted
+     * @return all the facts removed from the knowledge base
+     * @see SimpleForwardChaining#retractFromFixedPoint(FCKnowledgeBase, List)
+     */
+    public List<Term> retractFacts(List<Term> facts) {
+        return SimpleForwardChaining.retractFromFixedPoint(this, facts);
+    }
+
+    /**
+     * Removes the specified facts from this knowledge base, without any further maintenance. Facts stored as
+     * {@link Term} objects are compared by identity, while facts stored in compact form are compared by value.
+     *
+     * @param facts the facts to be removed
+     */
+    void removeFacts(Set<Term> facts) {
+        if (facts.isEmpty()) {
+            return;
+        }
+        for (Term fact : facts) {
+            FactTable table = tableOf(fact);
+            if (table != null) {
+                int[] ids = FactTable.lookup(fact);
+                if (ids != null) {
+                    table.remove(ids);
+                }
+            }
+        }
+        allFacts.removeIf(facts::contains);
+        derivedFacts.removeAll(facts);
+        clearJoinCandidates();
+        tableRangeIndexes.clear();
+        if (versionWriter != null) {
+            versionWriter.invalidate();
+        }
+        globalFacts.removeTerms(facts);
+        if (!retention.isEmpty()) {
+            for (Term fact : facts) {
+                RetentionTracker tracker = retention.get(retentionKey(fact));
+                if (tracker != null) {
+                    tracker.untrack(fact);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the retention policy for the facts of the relation with specified name and arity. The facts already in
+     * this knowledge base are subject to the policy as if they were added now.
+     *
+     * @param name   the name of the relation
+     * @param arity  the arity of the relation
+     * @param policy the policy, or null to retain the facts forever
+     */
+    public void setRetentionPolicy(String name, int arity, RetentionPolicy policy) {
+        String key = Relation.getPredicateStyleName(name, arity);
+        if (policy == null) {
+            retention.remove(key);
+            return;
+        }
+        RetentionTracker tracker = new RetentionTracker(policy);
+        retention.put(key, tracker);
+        for (Term fact : factsInDirectory(relationDirectory(name, arity))) {
+            tracker.track(fact);
+        }
+    }
+
+    /**
+     * Removes from this knowledge base all the facts that expired according to the retention policies. For
+     * cascading policies, the derived facts that are not supported anymore are removed as well; in this case, the
+     * knowledge base is assumed to be at its fixed point.
+     * This method should be called between two reasoning processes (e.g. after each fixpoint computation).
+     *
+     * @return all the facts removed from the knowledge base
+     */
+    public List<Term> expireFacts() {
+        if (retention.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long now = System.nanoTime();
+        List<Term> result = new ArrayList<>();
+        for (RetentionTracker tracker : new ArrayList<>(retention.values())) {
+            Set<Term> expired = tracker.pollExpired(now);
+            if (expired.isEmpty()) {
+                continue;
+            }
+            logExpiry(expired, tracker.policy.isCascading());
+            List<Term> removed = removeExpired(expired, tracker.policy.isCascading());
+            tracker.policy.notifyExpired(removed);
+            result.addAll(removed);
+        }
+        publishVersion();
+        return result;
+    }
+
+    /**
+     * Removes some expired facts (compared by identity): for a cascading policy, together with the derived facts that
+     * are not supported anymore, otherwise alone.
+     *
+     * @return all the removed facts
+     */
+    private List<Term> removeExpired(Set<Term> expired, boolean cascading) {
+        if (cascading) {
+            return SimpleForwardChaining.removeFromFixedPoint(this, expired, false);
+        }
+        removeFacts(expired);
+        return new ArrayList<>(expired);
+    }
+
+    /**
+     * Removes the facts of which the specified expired facts are "just a renaming" (one for each expired fact), as
+     * {@link #expireFacts()} removed them; used to replay the expirations recorded in a write-ahead log.
+     *
+     * @param facts     the expired facts
+     * @param cascading true if they expired according to a cascading policy
+     */
+    void replayExpiry(List<Term> facts, boolean cascading) {
+        Set<Term> expired = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Term fact : facts) {
+            for (Term f : candidatesFor(fact)) {
+                if (f.justARenaming(fact) && expired.add(f)) {
+                    break;
+                }
+            }
+        }
+        removeExpired(expired, cascading);
+        publishVersion();
+    }
+
+    private void track(Term fact) {
+        if (retention.isEmpty()) {
+            return;
+        }
+        RetentionTracker tracker = retention.get(retentionKey(fact));
+        if (tracker != null) {
+            tracker.track(fact);
+        }
+    }
+
+    private static String retentionKey(Term fact) {
+        if (fact instanceof Relation) {
+            return ((Relation) fact).getPredicateStyleName();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the directory path of the (non-native) relations with specified name and arity.
+     */
+    static List<String> relationDirectory(String name, int arity) {
+        List<String> result = new ArrayList<>();
+        result.add(Term.GLOBAL_DIR);
+        result.add(Struct.STRUCT_DIR);
+        result.add(Relation.RELATION_DIR);
+        result.add(Relation.getPredicateStyleName(name, arity));
+        return result;
     }
 
     /**
@@ -37,23 +741,622 @@ public class FCKnowledgeBase extends KnowledgeBase {
         return globalFacts.findTerms(directory);
     }
 
+    /**
+     * Creates a sorted index on an integer argument of the facts of the specified relation. When a rule compares the
+     * variable in that argument of a premise with an integer constant, by means of the integer comparisons of
+     * {@link parsleyj.simplerules.NativeFacts#nativeIntegerFacts()} (e.g.
+     * {@code invokeNative("INT_LIB", "<", var("M"), atom(10))}), the candidates of the premise are retrieved with a
+     * range scan of the index, instead of being all enumerated and then filtered by the comparison.
+     * <br>
+     * The rows of the table storing the facts of the relation in compact form are indexed as well, by a
+     * {@link TableRangeIndex} on their atom IDs, which indexes the rows added to the table on the next range scan.
+     * The index is kept by the copies of this knowledge base.
+     *
+     * @param name     the name of the relation
+     * @param arity    the arity of the relation
+     * @param argument the position of the indexed argument, starting from 0
+     */
+    public void createRangeIndex(String name, int arity, int argument) {
+        if (argument < 0 || argument >= arity) {
+            throw new IllegalArgumentException("Invalid argument position " + argument + " for "
+                    + Relation.getPredicateStyleName(name, arity));
+        }
+        List<String> directory = relationDirectory(name, arity);
+        if (rangeIndexes.computeIfAbsent(directory, d -> new TreeSet<>()).add(argument)) {
+            globalFacts.attachRangeIndex(directory, argument + 1);
+        }
+    }
+
+    /**
+     * Returns true if the specified argument of the facts of the relation is indexed by a range index (see
+     * {@link #createRangeIndex(String, int, int)}).
+     */
+    public boolean hasRangeIndex(String name, int arity, int argument) {
+        return rangeIndexes.getOrDefault(relationDirectory(name, arity), Collections.emptySet()).contains(argument);
+    }
+
+    /**
+     * Returns the range scan that can be used to retrieve the candidates of the premise, given the ranges allowed by
+     * the comparison guards of its rule, or null if there is none: as {@code {argument, min, max}}.
+     */
+    long[] rangeScanFor(Term premise, RangeGuards guards) {
+        if (guards.isEmpty() || rangeIndexes.isEmpty() || premise.getClass() != RelationImpl.class) {
+            return null;
+        }
+        Set<Integer> arguments = rangeIndexes.get(premise.directoryPath());
+        if (arguments == null) {
+            return null;
+        }
+        List<Term> terms = ((Relation) premise).toJavaList();
+        for (int argument : arguments) {
+            Term term = terms.get(argument + 1);
+            if (term instanceof Variable) {
+                long[] range = guards.rangeOf(((Variable) term).getName());
+                if (range != null) {
+                    return new long[]{argument, range[0], range[1]};
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the facts which are candidates to unify with the specified premise of a rule, whose comparison guards
+     * allow the specified ranges. If one of the arguments of the premise is a variable constrained by the guards and
+     * indexed by a range index, the candidates are the facts whose argument is in the range; otherwise, they are the
+     * same of {@link #candidatesFor(Term)}. The facts are returned in the same order of {@link #candidatesFor(Term)}.
+     * <br>
+     * The rows of the table storing the facts of the premise in compact form are filtered on their atom IDs, and
+     * returned as a {@link TableCandidates} list, which materializes each row only when it is read: the list must
+     * not be used after the knowledge base is modified.
+     *
+     * @param premise the premise
+     * @param guards  the ranges allowed by the comparison guards of the rule
+     * @return the candidate facts
+     */
+    List<Term> candidatesFor(Term premise, RangeGuards guards) {
+        long[] scan = rangeScanFor(premise, guards);
+        FactTable table = premiseTable(premise);
+        if (scan == null) {
+            if (premise instanceof Relation && !(premise instanceof CustomUnifiable)
+                    && !(premise instanceof NativeFactInvoker) && !DiscriminationTree.isSelective(premise)) {
+                return joinCandidates(premise, table).facts;
+            }
+            if (table == null) {
+                return globalFacts.findCandidates(premise, true);
+            }
+            int[] pattern = FactTable.pattern((Relation) premise);
+            return new TableCandidates(globalFacts.findCandidates(premise, false), table,
+                    pattern == null ? new int[0] : matchingRows(table, pattern));
+        }
+        int argument = (int) scan[0];
+        List<Term> result = globalFacts.findInRange(premise.directoryPath(), argument + 1, scan[1], scan[2]);
+        if (table == null) {
+            return result;
+        }
+        int[] pattern = FactTable.pattern((Relation) premise);
+        return new TableCandidates(result, table,
+                pattern == null ? new int[0] : matchingRows(premise, table, pattern, scan));
+    }
+
+    /**
+     * Returns the rows of the table matching the pattern, without materializing them.
+     */
+    private static int[] matchingRows(FactTable table, int[] pattern) {
+        int[] result = new int[16];
+        int count = 0;
+        for (int row = 0; row < table.size(); row++) {
+            if (rowMatches(table, row, pattern)) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = row;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Returns the rows of the table of the premise matching the pattern, whose atom in the argument of the range
+     * scan is an integer in its range, found with the range index of the table, in increasing order.
+     */
+    private int[] matchingRows(Term premise, FactTable table, int[] pattern, long[] scan) {
+        int argument = (int) scan[0];
+        TableRangeIndex index = tableRangeIndexes.computeIfAbsent(premise.directoryPath(), d -> new HashMap<>())
+                .get(argument);
+        if (index == null || index.table() != table) {
+            index = new TableRangeIndex(table, argument);
+            tableRangeIndexes.get(premise.directoryPath()).put(argument, index);
+        }
+        int[] rows = index.rowsInRange(scan[1], scan[2]);
+        int count = 0;
+        for (int row : rows) {
+            if (rowMatches(table, row, pattern)) {
+                rows[count++] = row;
+            }
+        }
+        return count == rows.length ? rows : Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Returns the candidates of a premise whose arguments are all variables, i.e. all the facts of its relation, which
+     * are reused until the relation changes. When facts were only added to the relation since the previous call, and
+     * they come after the previous candidates (i.e. they are all stored as {@link Term} objects, or all in the table),
+     * the hash tables built on the previous candidates are extended to the added ones.
+     */
+    private JoinCandidates joinCandidates(Term premise, FactTable table) {
+        List<String> directory = premise.directoryPath();
+        int rows = table == null ? 0 : table.size();
+        int terms = globalFacts.countTerms(directory) - rows;
+        JoinCandidates cached = joinCandidates.get(directory);
+        if (cached != null && cached.terms == terms && cached.rows == rows) {
+            return cached;
+        }
+        List<Term> facts = table == null
+                ? globalFacts.findCandidates(premise, true)
+                : new TableCandidates(globalFacts.findCandidates(premise, false), table, allRows(rows));
+        JoinCandidates result = new JoinCandidates(facts, terms, rows);
+        if (cached != null && cached.terms <= terms && cached.rows <= rows
+                && (cached.rows == 0 || cached.terms == terms)) {
+            cached.indexes.forEach((positions, index) -> result.indexes.put(positions,
+                    JoinIterator.HashIndex.extend(index, facts, positions.stream().mapToInt(i -> i).toArray())));
+            cached.tries.forEach((shape, trie) -> result.tries.put(shape, trie.extend(facts)));
+        }
+        joinCandidates.put(directory, result);
+        return result;
+    }
+
+    private void clearJoinCandidates() {
+        joinCandidates.clear();
+        trieIds = new TrieJoin.Ids();
+    }
+
+    private static int[] allRows(int rows) {
+        int[] result = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            result[row] = row;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the hash table of the specified candidates of a premise on the arguments in the specified positions, if
+     * they are all the facts of its relation, as returned by {@link #candidatesFor(Term, RangeGuards)} (possibly
+     * followed by other candidates, see {@link TableCandidates#concat(List, List)}), or null. The hash table is built
+     * on the first request, kept until the relation changes, and extended when facts are added to the relation.
+     *
+     * @param premise   the premise
+     * @param facts     the candidates of the premise
+     * @param positions the positions of the arguments used as keys
+     * @return the hash table, or null if the candidates are not cached
+     */
+    JoinIterator.HashIndex joinIndex(Term premise, List<Term> facts, int[] positions) {
+        JoinCandidates cached = joinCandidates.get(premise.directoryPath());
+        if (cached == null) {
+            return null;
+        }
+        if (cached.facts == facts) {
+            return cached.index(positions);
+        }
+        if (TableCandidates.prefixOf(facts) == cached.facts) {
+            // e.g. the old facts followed by the delta in semi-naive evaluation: only the delta is indexed
+            return JoinIterator.HashIndex.extend(cached.index(positions), facts, positions);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the trie of the specified candidates of a premise, whose variables have their first occurrences in the
+     * specified positions, if they are all the facts of its relation (as in {@link #joinIndex(Term, List, int[])}),
+     * or null. The trie is built on the first request with the IDs of {@link #trieIds()}, kept until the relation
+     * changes, and extended when facts are added to the relation.
+     *
+     * @param premise           the premise
+     * @param facts             the candidates of the premise
+     * @param argumentPositions the positions of the first occurrences of the variables, ordered by the variables
+     * @return the trie, or null if the candidates are not cached
+     */
+    TrieJoin.Trie joinTrie(Term premise, List<Term> facts, int[] argumentPositions) {
+        JoinCandidates cached = joinCandidates.get(premise.directoryPath());
+        if (cached == null) {
+            return null;
+        }
+        if (cached.facts == facts) {
+            return cached.trie(premise, argumentPositions, trieIds);
+        }
+        if (TableCandidates.prefixOf(facts) == cached.facts) {
+            return cached.trie(premise, argumentPositions, trieIds).extend(facts);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the IDs of the atoms of the tries returned by {@link #joinTrie(Term, List, int[])}, which must be used
+     * by the other tries joined with them.
+     */
+    TrieJoin.Ids trieIds() {
+        return trieIds;
+    }
+
+    /**
+     * Returns the number of candidates that {@link #candidatesFor(Term, RangeGuards)} would return, without
+     * materializing them.
+     */
+    int countRangeCandidates(Term premise, long[] scan) {
+        int argument = (int) scan[0];
+        int result = globalFacts.countInRange(premise.directoryPath(), argument + 1, scan[1], scan[2]);
+        FactTable table = premiseTable(premise);
+        if (table != null) {
+            int[] pattern = FactTable.pattern((Relation) premise);
+            if (pattern != null) {
+                result += matchingRows(premise, table, pattern, scan).length;
+            }
+        }
+        return result;
+    }
+
+    private static boolean rowMatches(FactTable table, int row, int[] pattern) {
+        for (int column = 0; column < pattern.length; column++) {
+            if (pattern[column] != FactTable.ANY_ID && table.get(row, column) != pattern[column]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the facts which are candidates to unify with the specified premise. They are the facts of
+     * {@link #factsInDirectory(List)} on the directory of the premise which can possibly unify with it: the facts in
+     * the directories are filtered by the full structure of the premise (constants and nested structs, at any
+     * depth) with a discrimination tree, and the facts stored in compact form are filtered by the atom arguments of
+     * the premise before being materialized. The facts are returned in the same order of
+     * {@link #factsInDirectory(List)}.
+     *
+     * @param premise the premise
+     * @return the candidate facts
+     */
+    public List<Term> candidatesFor(Term premise) {
+        FactTable table = premiseTable(premise);
+        if (table == null) {
+            return globalFacts.findCandidates(premise, true);
+        }
+        List<Term> result = new ArrayList<>(globalFacts.findCandidates(premise, false));
+        int[] pattern = FactTable.pattern((Relation) premise);
+        if (pattern != null) {
+            result.addAll(table.materializeMatching(pattern));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the substitutions that unify the facts in this knowledge base with the specified pattern, without
+     * running the rules (unlike {@link SimpleForwardChaining#forwardChainingAsk(FCKnowledgeBase, Struct)}) and
+     * without copying the knowledge base. See {@link #query(Struct, int)}.
+     *
+     * @param pattern the pattern
+     * @return an iterator over the substitutions, one for each matching fact
+     */
+    public Iterator<Substitution> query(Struct pattern) {
+        return query(pattern, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns at most {@code limit} substitutions that unify the facts in this knowledge base with the specified
+     * pattern, without running the rules and without copying the knowledge base.
+     * <br>
+     * The facts are retrieved lazily, in the same order of {@link #candidatesFor(Term)}: the directories, and the
+     * leaves of their discrimination trees, are walked only when the iterator advances, and only the facts that could
+     * unify with the pattern are unified with it; the rows of the tables storing
+     * facts in compact form are filtered by the atom arguments of the pattern (or, if the pattern is ground, looked
+     * up directly), and only the matching rows are materialized. So, a query with a small limit stops as soon as
+     * enough facts are found.
+     * <br>
+     * The knowledge base must not be modified while the iterator is in use.
+     *
+     * @param pattern the pattern
+     * @param limit   the maximum number of substitutions
+     * @return an iterator over the substitutions, one for each matching fact
+     */
+    public Iterator<Substitution> query(Struct pattern, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        return new QueryIterator(pattern, limit);
+    }
+
+    /**
+     * Returns the table used by {@link #candidatesFor(Term)} to retrieve the candidates of the specified premise, or
+     * null if they are all retrieved from the directories.
+     */
+    FactTable premiseTable(Term premise) {
+        return premise.getClass() == RelationImpl.class ? tableOf(premise) : null;
+    }
+
+    /**
+     * Returns the number of facts in the specified directory and in its sub-directories, including the ones stored
+     * in compact form, without materializing them.
+     */
+    int countInDirectory(List<String> directory) {
+        return globalFacts.countTerms(directory);
+    }
+
+    /**
+     * Returns the number of facts not stored in compact form which can possibly unify with the specified premise,
+     * according to the discrimination trees of the directories.
+     */
+    int countIndexedCandidates(Term premise) {
+        return globalFacts.countCandidates(premise);
+    }
+
+    /**
+     * Releases the resources held by the tables storing the facts in compact form (e.g. the files of
+     * {@link parsleyj.simplerules.storage.MappedFactTable}s). The knowledge base cannot be used anymore.
+     */
+    public void releaseStorage() {
+        tables.values().forEach(FactTable::release);
+    }
+
     @Override
     public FCKnowledgeBase copy() {
-        FCKnowledgeBase fckb = new FCKnowledgeBase();
-        allFacts.forEach(fckb::addFact);
+        FCEventListener listener = SimpleForwardChaining.eventListener();
+        long start = listener != null ? System.nanoTime() : 0;
+        FCKnowledgeBase fckb = new FCKnowledgeBase(tableFactory, ruleBase);
+        rangeIndexes.forEach((directory, arguments) -> arguments.forEach(argument -> {
+            fckb.rangeIndexes.computeIfAbsent(directory, d -> new TreeSet<>()).add(argument);
+            fckb.globalFacts.attachRangeIndex(directory, argument + 1);
+        }));
+        allFacts.forEach(f -> fckb.storeFact(f, derivedFacts.contains(f)));
+        tables.forEach((key, table) -> {
+            FactTable tableCopy = table.copy();
+            fckb.tables.put(key, tableCopy);
+            fckb.globalFacts.attachTable(relationDirectory(table.getName(), table.getArity()), tableCopy);
+        });
+        retention.forEach((key, tracker) -> fckb.retention.put(key, tracker.copy()));
+        fckb.writeAheadLog = writeAheadLog;
+        fckb.matchers = matchers;
+        if (versions != null) {
+            fckb.versions = versions;
+            fckb.versionWriter = new FCVersion.Writer();
+        }
         fckb.rules.addAll(this.rules);
+        if (listener != null) {
+            listener.knowledgeBaseCopied(fckb.factsCount(), System.nanoTime() - start);
+        }
         return fckb;
     }
 
 
+    /**
+     * Lazy iterator over the results of {@link #query(Struct, int)}.
+     */
+    private class QueryIterator implements Iterator<Substitution> {
+        private final Struct pattern;
+        private final Iterator<Term> candidates;
+        private final FactTable table;
+        private final int[] tablePattern;
+        private int row;
+        private int endRow;
+        private int remaining;
+        private Substitution next = null;
+
+        private QueryIterator(Struct pattern, int limit) {
+            this.pattern = pattern;
+            this.remaining = limit;
+            FactTable table = premiseTable(pattern);
+            int[] tablePattern = table != null ? FactTable.pattern((Relation) pattern) : null;
+            this.candidates = globalFacts.candidatesCursor(pattern, table == null);
+            this.table = tablePattern != null ? table : null;
+            this.tablePattern = tablePattern;
+            this.row = 0;
+            this.endRow = this.table != null ? this.table.size() : 0;
+            if (this.table != null && Arrays.stream(tablePattern).noneMatch(id -> id == FactTable.ANY_ID)) {
+                // ground pattern: at most one row
+                int found = this.table.find(tablePattern);
+                this.row = found < 0 ? 0 : found;
+                this.endRow = found < 0 ? 0 : found + 1;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && remaining > 0) {
+                next = advance();
+                if (next == null) {
+                    remaining = 0;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Substitution next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Substitution result = next;
+            next = null;
+            remaining--;
+            return result;
+        }
+
+        private Substitution advance() {
+            while (candidates.hasNext()) {
+                UnificationResult unify = SimpleUnify.unify(candidates.next(), pattern);
+                if (!unify.isFailure()) {
+                    return unify.getSubstitution();
+                }
+            }
+            while (row < endRow) {
+                int r = row++;
+                if (rowMatches(table, r, tablePattern)) {
+                    // the pattern can still fail to unify with the row, e.g. when it has repeated variables
+                    UnificationResult unify = SimpleUnify.unify(table.materialize(r), pattern);
+                    if (!unify.isFailure()) {
+                        return unify.getSubstitution();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Internal class used to keep track of the facts subject to a {@link RetentionPolicy}, from the oldest to the
+     * newest.
+     */
+    private static class RetentionTracker {
+        private final RetentionPolicy policy;
+        private final PriorityQueue<TrackedFact> queue = new PriorityQueue<>();
+        /**
+         * The tracked facts that are still in the knowledge base, with their multiplicity; the queue may contain
+         * stale entries for facts removed by other means, which are skipped.
+         */
+        private final Map<Term, Integer> live = new HashMap<>();
+        private int liveCount = 0;
+        private long newestTimestamp = Long.MIN_VALUE;
+        private long sequence = 0;
+
+        public RetentionTracker(RetentionPolicy policy) {
+            this.policy = policy;
+        }
+
+        public void track(Term fact) {
+            long key;
+            if (policy.isInsertionOrdered()) {
+                key = System.nanoTime();
+            } else {
+                Long timestamp = policy.timestampOf(fact);
+                if (timestamp == null) {
+                    return;
+                }
+                key = timestamp;
+                newestTimestamp = Math.max(newestTimestamp, timestamp);
+            }
+            live.merge(fact, 1, Integer::sum);
+            liveCount++;
+            queue.add(new TrackedFact(fact, key, sequence++));
+        }
+
+        public void untrack(Term fact) {
+            Integer count = live.get(fact);
+            if (count == null) {
+                return;
+            }
+            if (count == 1) {
+                live.remove(fact);
+            } else {
+                live.put(fact, count - 1);
+            }
+            liveCount--;
+        }
+
+        /**
+         * Removes from the queue and returns the expired facts. The facts are not untracked: this happens when they
+         * are actually removed from the knowledge base.
+         */
+        public Set<Term> pollExpired(long now) {
+            Set<Term> expired = Collections.newSetFromMap(new IdentityHashMap<>());
+            Map<Term, Integer> polled = new HashMap<>();
+            int retained = liveCount;
+            while (!queue.isEmpty()) {
+                TrackedFact oldest = queue.peek();
+                int available = live.getOrDefault(oldest.fact, 0) - polled.getOrDefault(oldest.fact, 0);
+                if (available <= 0) {
+                    // stale entry
+                    queue.poll();
+                } else if (policy.isExpired(oldest.key, retained, now, newestTimestamp)) {
+                    queue.poll();
+                    polled.merge(oldest.fact, 1, Integer::sum);
+                    retained--;
+                    expired.add(oldest.fact);
+                } else {
+                    break;
+                }
+            }
+            return expired;
+        }
+
+        public RetentionTracker copy() {
+            RetentionTracker result = new RetentionTracker(policy);
+            result.queue.addAll(queue);
+            result.live.putAll(live);
+            result.liveCount = liveCount;
+            result.newestTimestamp = newestTimestamp;
+            result.sequence = sequence;
+            return result;
+        }
+    }
+
+    private static class TrackedFact implements Comparable<TrackedFact> {
+        private final Term fact;
+        private final long key;
+        private final long sequence;
+
+        public TrackedFact(Term fact, long key, long sequence) {
+            this.fact = fact;
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(TrackedFact o) {
+            int c = Long.compare(key, o.key);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+
     /**
      * Internal class used to organize facts in a tree of "directories" for improved retrieval during the reasoning
      * phase.
      */
+    /**
+     * The candidates of the premises whose arguments are all variables in a relation (see
+     * {@link #joinCandidates(Term, FactTable)}), the number of facts of the relation stored as {@link Term} objects
+     * and in its table when they were retrieved, their hash tables by key positions, and their tries by shape of the
+     * premise (see {@link TrieJoin.Trie#shape(Term, int[])}).
+     */
+    private static class JoinCandidates {
+        private final List<Term> facts;
+        private final int terms;
+        private final int rows;
+        private final Map<List<Integer>, JoinIterator.HashIndex> indexes = new HashMap<>();
+        private final Map<List<Object>, TrieJoin.Trie> tries = new HashMap<>();
+
+        private JoinCandidates(List<Term> facts, int terms, int rows) {
+            this.facts = facts;
+            this.terms = terms;
+            this.rows = rows;
+        }
+
+        private JoinIterator.HashIndex index(int[] positions) {
+            List<Integer> key = new ArrayList<>(positions.length);
+            for (int position : positions) {
+                key.add(position);
+            }
+            return indexes.computeIfAbsent(key, k -> new JoinIterator.HashIndex(facts, positions));
+        }
+
+        private TrieJoin.Trie trie(Term premise, int[] argumentPositions, TrieJoin.Ids ids) {
+            return tries.computeIfAbsent(TrieJoin.Trie.shape(premise, argumentPositions),
+                    k -> TrieJoin.Trie.build(premise, argumentPositions, facts, ids));
+        }
+    }
+
     private static class DirectoryNode {
         private final String dirName;
         private final HashMap<String, DirectoryNode> subDirs = new HashMap<>();
         private final List<Term> terms = new ArrayList<>();
+        private final RenamingIndex index = new RenamingIndex();
+        /**
+         * Index of the terms of this node by their full structure, built by the first selective lookup (see
+         * {@link #findCandidates(Term, boolean)}).
+         */
+        private DiscriminationTree tree = null;
+        /**
+         * The range indexes of the terms of this node, by position of the indexed argument, or null.
+         */
+        private Map<Integer, RangeIndex> ranges = null;
+        private FactTable table = null;
 
         public DirectoryNode(String name) {
             this.dirName = name;
@@ -67,22 +1370,199 @@ public class FCKnowledgeBase extends KnowledgeBase {
             addTerm(term, term.directoryPath());
         }
 
+        /**
+         * Adds some groups of terms, each one to the directory specified by its key.
+         */
+        public void addTerms(Map<List<String>, List<Term>> byDirectory) {
+            byDirectory.forEach((directory, group) -> getOrGenNode(directory).ifPresent(dn -> {
+                dn.terms.addAll(group);
+                group.forEach(dn.index::add);
+                if (dn.tree != null) {
+                    group.forEach(dn.tree::add);
+                }
+                if (dn.ranges != null) {
+                    dn.ranges.values().forEach(range -> group.forEach(range::add));
+                }
+            }));
+        }
+
+        /**
+         * Returns true if the directory of the specified term, or one of its sub-directories, contains a term of
+         * which it is "just a renaming". Terms stored in tables are not considered.
+         */
+        public boolean containsRenamingOf(Term term) {
+            DirectoryNode node = nodeAt(term.directoryPath());
+            return node != null && node.subtreeContainsRenamingOf(term);
+        }
+
+        /**
+         * Walks this node and its sub-directories (depth first, without collecting them) looking for a term of which
+         * the specified one is "just a renaming".
+         */
+        private boolean subtreeContainsRenamingOf(Term term) {
+            if (index.containsRenamingOf(term)) {
+                return true;
+            }
+            for (DirectoryNode subDir : subDirs.values()) {
+                if (subDir.subtreeContainsRenamingOf(term)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int countTerms(List<String> directory) {
+            return getNode(directory)
+                    .map(dn -> dn.flatten().stream()
+                            .mapToInt(n -> n.terms.size() + (n.table == null ? 0 : n.table.size()))
+                            .sum())
+                    .orElse(0);
+        }
+
         public List<Term> getExactTerms(List<String> directory) {
-            return getNode(directory).map(dn -> dn.terms).orElse(Collections.emptyList());
+            return getNode(directory).map(dn -> dn.nodeTerms(true)).orElse(Collections.emptyList());
         }
 
         public List<Term> findTerms(List<String> directory) {
-            return getNode(directory).map(DirectoryNode::getAllTerms).orElse(Collections.emptyList());
+            return findTerms(directory, true);
+        }
+
+        public List<Term> findTerms(List<String> directory, boolean includeTables) {
+            return getNode(directory).map(dn -> dn.getAllTerms(includeTables)).orElse(Collections.emptyList());
+        }
+
+        /**
+         * Returns the terms in the directory of the specified premise, and in its sub-directories, which can possibly
+         * unify with it. If the premise has atoms or structs as arguments, the terms are retrieved from the
+         * discrimination tree of each directory, otherwise all the terms are returned.
+         */
+        public List<Term> findCandidates(Term premise, boolean includeTables) {
+            if (!DiscriminationTree.isSelective(premise)) {
+                return findTerms(premise.directoryPath(), includeTables);
+            }
+            return getNode(premise.directoryPath()).map(dn -> {
+                List<Term> result = new ArrayList<>();
+                for (DirectoryNode n : dn.flatten()) {
+                    result.addAll(n.tree().candidates(premise));
+                    if (includeTables && n.table != null) {
+                        result.addAll(n.table.materializeAll());
+                    }
+                }
+                return result;
+            }).orElse(Collections.emptyList());
+        }
+
+        /**
+         * Returns an iterator over the same terms of {@link #findCandidates(Term, boolean)}, in the same order, which
+         * walks the directories, their discrimination trees and their tables only when it advances: the rows of the
+         * tables are materialized one at a time. The directories must not be modified while the iterator is in use.
+         */
+        public Iterator<Term> candidatesCursor(Term premise, boolean includeTables) {
+            Optional<DirectoryNode> node = getNode(premise.directoryPath());
+            if (!node.isPresent()) {
+                return Collections.emptyIterator();
+            }
+            return new CandidatesCursor(node.get(), DiscriminationTree.isSelective(premise) ? premise : null,
+                    includeTables);
+        }
+
+        /**
+         * Returns the number of terms in the directory of the specified premise, and in its sub-directories, which
+         * can possibly unify with it, without counting the terms stored in tables.
+         */
+        public int countCandidates(Term premise) {
+            if (!DiscriminationTree.isSelective(premise)) {
+                return findTerms(premise.directoryPath(), false).size();
+            }
+            return getNode(premise.directoryPath())
+                    .map(dn -> dn.flatten().stream().mapToInt(n -> n.tree().count(premise)).sum())
+                    .orElse(0);
+        }
+
+        /**
+         * Adds a range index on the argument in the specified position of the terms of the directory.
+         */
+        public void attachRangeIndex(List<String> directory, int position) {
+            getOrGenNode(directory).ifPresent(dn -> {
+                if (dn.ranges == null) {
+                    dn.ranges = new HashMap<>();
+                }
+                dn.ranges.computeIfAbsent(position, p -> new RangeIndex(p, dn.terms));
+            });
+        }
+
+        /**
+         * Returns the terms of the directory whose argument in the specified position can be in the range, using its
+         * range index, followed by all the terms of its sub-directories. Terms stored in tables are not included.
+         */
+        public List<Term> findInRange(List<String> directory, int position, long min, long max) {
+            return getNode(directory).map(dn -> {
+                List<Term> result = dn.ranges.get(position).inRange(min, max);
+                dn.subDirs.values().forEach(sub -> result.addAll(sub.getAllTerms(false)));
+                return result;
+            }).orElseGet(ArrayList::new);
+        }
+
+        public int countInRange(List<String> directory, int position, long min, long max) {
+            return getNode(directory).map(dn -> dn.ranges.get(position).countInRange(min, max)
+                    + dn.subDirs.values().stream().mapToInt(sub -> sub.getAllTerms(false).size()).sum())
+                    .orElse(0);
+        }
+
+        private DiscriminationTree tree() {
+            if (tree == null) {
+                tree = new DiscriminationTree(terms);
+            }
+            return tree;
         }
 
-        public List<Term> getAllTerms() {
+        public List<Term> getAllTerms(boolean includeTables) {
             return this.flatten().stream()
-                    .flatMap(dn -> dn.terms.stream())
+                    .flatMap(dn -> dn.nodeTerms(includeTables).stream())
                     .collect(Collectors.toList());
         }
 
+        private List<Term> nodeTerms(boolean includeTables) {
+            if (!includeTables || table == null || table.size() == 0) {
+                return terms;
+            }
+            List<Term> result = new ArrayList<>(terms);
+            result.addAll(table.materializeAll());
+            return result;
+        }
+
+        public void attachTable(List<String> directory, FactTable table) {
+            getOrGenNode(directory).ifPresent(directoryNode -> directoryNode.table = table);
+        }
+
         private void addTerm(Term term, List<String> directory) {
-            getOrGenNode(directory).ifPresent(directoryNode -> directoryNode.terms.add(term));
+            getOrGenNode(directory).ifPresent(directoryNode -> {
+                directoryNode.terms.add(term);
+                directoryNode.index.add(term);
+                if (directoryNode.tree != null) {
+                    directoryNode.tree.add(term);
+                }
+                if (directoryNode.ranges != null) {
+                    directoryNode.ranges.values().forEach(range -> range.add(term));
+                }
+            });
+        }
+
+        public void removeTerms(Set<Term> toBeRemoved) {
+            Map<DirectoryNode, List<Term>> nodes = new IdentityHashMap<>();
+            for (Term term : toBeRemoved) {
+                getNode(term.directoryPath()).ifPresent(dn -> nodes.computeIfAbsent(dn, n -> new ArrayList<>()).add(term));
+            }
+            nodes.forEach((dn, removed) -> {
+                dn.terms.removeIf(toBeRemoved::contains);
+                dn.index.removeAll(removed, toBeRemoved);
+                if (dn.tree != null) {
+                    dn.tree.removeAll(removed, toBeRemoved);
+                }
+                if (dn.ranges != null) {
+                    dn.ranges.values().forEach(range -> range.removeAll(removed, toBeRemoved));
+                }
+            });
         }
 
         private List<DirectoryNode> flatten() {
@@ -92,6 +1572,55 @@ public class FCKnowledgeBase extends KnowledgeBase {
             return result;
         }
 
+        /**
+         * Iterator over the terms of a directory and of its sub-directories (in the order of {@link #flatten()}),
+         * possibly filtered by the discrimination trees.
+         */
+        private static class CandidatesCursor implements Iterator<Term> {
+            private final Deque<DirectoryNode> pendingNodes = new ArrayDeque<>();
+            /**
+             * The pattern used to look up the discrimination trees, or null if the terms are not filtered.
+             */
+            private final Term premise;
+            private final boolean includeTables;
+            private Iterator<Term> terms = Collections.emptyIterator();
+            private FactTable table = null;
+            private int row = 0;
+
+            private CandidatesCursor(DirectoryNode node, Term premise, boolean includeTables) {
+                this.premise = premise;
+                this.includeTables = includeTables;
+                pendingNodes.push(node);
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (!terms.hasNext() && (table == null || row >= table.size())) {
+                    DirectoryNode node = pendingNodes.poll();
+                    if (node == null) {
+                        return false;
+                    }
+                    // the sub-directories are visited after the node, in the order of flatten()
+                    List<DirectoryNode> children = new ArrayList<>(node.subDirs.values());
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        pendingNodes.push(children.get(i));
+                    }
+                    terms = premise != null ? node.tree().cursor(premise) : node.terms.iterator();
+                    table = includeTables ? node.table : null;
+                    row = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public Term next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return terms.hasNext() ? terms.next() : table.materialize(row++);
+            }
+        }
+
         private Optional<DirectoryNode> getOrGenNode(List<String> directory) {
             if (!directory.isEmpty() && directory.get(0).equals(dirName)) {
                 if (directory.size() == 1) {
@@ -111,20 +1640,22 @@ public class FCKnowledgeBase extends KnowledgeBase {
         }
 
         private Optional<DirectoryNode> getNode(List<String> directory) {
-            if (!directory.isEmpty() && directory.get(0).equals(dirName)) {
-                if (directory.size() == 1) {
-                    return Optional.of(this);
-                } else {//(directory.size() > 1)
-                    List<String> subDir = directory.subList(1, directory.size());
-                    DirectoryNode directoryNode = subDirs.get(subDir.get(0));
-                    if (directoryNode != null) {
-                        return directoryNode.getNode(subDir);
-                    } else {
-                        return Optional.empty();
-                    }
-                }
+            return Optional.ofNullable(nodeAt(directory));
+        }
+
+        /**
+         * Returns the node of the specified directory (whose first element is the name of this node), or null if it
+         * does not exist, following the sub-directories without allocating.
+         */
+        private DirectoryNode nodeAt(List<String> directory) {
+            if (directory.isEmpty() || !directory.get(0).equals(dirName)) {
+                return null;
             }
-            return Optional.empty();
+            DirectoryNode node = this;
+            for (int i = 1; i < directory.size() && node != null; i++) {
+                node = node.subDirs.get(directory.get(i));
+            }
+            return node;
         }
     }
 }
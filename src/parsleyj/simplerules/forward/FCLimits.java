@@ -0,0 +1,95 @@
+package parsleyj.simplerules.forward;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Limits on the work done by a {@link SimpleForwardChaining} reasoning process: a deadline, a maximum number of
+ * iterations and a maximum number of derived facts. When a limit is hit, the process stops and returns a partial
+ * {@link FCResult}, whose status tells which limit was hit.
+ * <br>
+ * Instances are immutable; each {@code with...} method returns a new instance. A timeout is measured from the start
+ * of each process, so the same limits can be reused for several processes.
+ */
+public class FCLimits {
+
+    /**
+     * No limits.
+     */
+    public static final FCLimits NONE = new FCLimits(null, null, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    private final Instant deadline;
+    private final Duration timeout;
+    private final int maxIterations;
+    private final long maxDerivedFacts;
+
+    private FCLimits(Instant deadline, Duration timeout, int maxIterations, long maxDerivedFacts) {
+        this.deadline = deadline;
+        this.timeout = timeout;
+        this.maxIterations = maxIterations;
+        this.maxDerivedFacts = maxDerivedFacts;
+    }
+
+    /**
+     * Returns limits equal to these ones, with the specified absolute deadline.
+     */
+    public FCLimits withDeadline(Instant deadline) {
+        return new FCLimits(deadline, timeout, maxIterations, maxDerivedFacts);
+    }
+
+    /**
+     * Returns limits equal to these ones, with the specified maximum duration of each process.
+     */
+    public FCLimits withTimeout(Duration timeout) {
+        return new FCLimits(deadline, timeout, maxIterations, maxDerivedFacts);
+    }
+
+    /**
+     * Returns limits equal to these ones, with the specified maximum number of iterations.
+     */
+    public FCLimits withMaxIterations(int maxIterations) {
+        return new FCLimits(deadline, timeout, maxIterations, maxDerivedFacts);
+    }
+
+    /**
+     * Returns limits equal to these ones, with the specified maximum number of derived facts. A process stops with
+     * {@link FCResult.Status#FACT_LIMIT_REACHED} only when it finds a new fact beyond this number; the facts derived
+     * until then are kept in the knowledge base.
+     */
+    public FCLimits withMaxDerivedFacts(long maxDerivedFacts) {
+        return new FCLimits(deadline, timeout, maxIterations, maxDerivedFacts);
+    }
+
+    public Instant getDeadline() {
+        return deadline;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public long getMaxDerivedFacts() {
+        return maxDerivedFacts;
+    }
+
+    /**
+     * Returns the maximum duration, in nanoseconds, of a process starting now, or {@link Long#MAX_VALUE} if there is
+     * no deadline.
+     */
+    long budgetNanos() {
+        long result = Long.MAX_VALUE;
+        if (timeout != null) {
+            result = timeout.compareTo(Duration.ofNanos(Long.MAX_VALUE)) >= 0 ? Long.MAX_VALUE : timeout.toNanos();
+        }
+        if (deadline != null) {
+            long remainingMillis = Math.max(0, deadline.toEpochMilli() - System.currentTimeMillis());
+            result = Math.min(result, remainingMillis >= Long.MAX_VALUE / 1_000_000L
+                    ? Long.MAX_VALUE : remainingMillis * 1_000_000L);
+        }
+        return result;
+    }
+}
@@ -11,6 +11,33 @@ import parsleyj.simplerules.unify.Substitution;
  * the fact produced by the reasoning process itself, and some statistics about the process just ended.
  */
 public class FCResult {
+
+    /**
+     * The reason why a reasoning process ended.
+     */
+    public enum Status {
+        /**
+         * The process reached the fixed point, or found a fact unifying with the query.
+         */
+        COMPLETED,
+        /**
+         * The process stopped because its deadline expired.
+         */
+        DEADLINE_EXCEEDED,
+        /**
+         * The process stopped because it performed the maximum number of iterations.
+         */
+        ITERATION_LIMIT_REACHED,
+        /**
+         * The process stopped because it derived the maximum number of facts.
+         */
+        FACT_LIMIT_REACHED,
+        /**
+         * The process stopped because it was cancelled, or its thread was interrupted.
+         */
+        CANCELLED
+    }
+
     /**
      * Flag that specifies if the FC algorithm was successful in answering the query (or in reaching the fixed point)?
      */
@@ -32,6 +59,16 @@ public class FCResult {
      */
     private final FCKnowledgeBase newKB;
 
+    /**
+     * Per-rule and per-iteration execution statistics of the reasoning process.
+     */
+    private final FCStatistics statistics;
+
+    /**
+     * The reason why the reasoning process ended.
+     */
+    private final Status status;
+
     /**
      * Creates a result structure.
      *
@@ -41,10 +78,41 @@ public class FCResult {
      * @param newKB the updated knowledge base
      */
     public FCResult(boolean success, int iterationsDone, Substitution subs, FCKnowledgeBase newKB) {
+        this(success, iterationsDone, subs, newKB, new FCStatistics());
+    }
+
+    /**
+     * Creates a result structure.
+     *
+     * @param success must be set to true if this result represents a success in reaching the goal, false otherwise
+     * @param iterationsDone the number of iterations done by the reasoning algorithm
+     * @param subs the substitutions applied to the rule used to generate the fact that unifies with the goal
+     * @param newKB the updated knowledge base
+     * @param statistics the execution statistics of the reasoning process
+     */
+    public FCResult(boolean success, int iterationsDone, Substitution subs, FCKnowledgeBase newKB,
+                    FCStatistics statistics) {
+        this(success, iterationsDone, subs, newKB, statistics, Status.COMPLETED);
+    }
+
+    /**
+     * Creates a result structure.
+     *
+     * @param success must be set to true if this result represents a success in reaching the goal, false otherwise
+     * @param iterationsDone the number of iterations done by the reasoning algorithm
+     * @param subs the substitutions applied to the rule used to generate the fact that unifies with the goal
+     * @param newKB the updated knowledge base
+     * @param statistics the execution statistics of the reasoning process
+     * @param status the reason why the reasoning process ended
+     */
+    public FCResult(boolean success, int iterationsDone, Substitution subs, FCKnowledgeBase newKB,
+                    FCStatistics statistics, Status status) {
+        this.status = status;
         this.success = success;
         this.iterationsDone = iterationsDone;
         this.subs = subs;
         this.newKB = newKB;
+        this.statistics = statistics;
     }
 
     /**
@@ -73,4 +141,20 @@ public class FCResult {
     public FCKnowledgeBase getUpdatedKB() {
         return newKB;
     }
+
+    public FCStatistics getStatistics() {
+        return statistics;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns true if the reasoning process stopped before its end because of a limit or a cancellation; in this
+     * case, the updated knowledge base contains only the facts derived up to that moment.
+     */
+    public boolean isPartial() {
+        return status != Status.COMPLETED;
+    }
 }
@@ -0,0 +1,441 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runtime hosting many reasoning sessions (e.g. one for each agent) on a bounded pool of worker threads, instead of
+ * a thread for each session blocked on its queue, as in {@link FCIngestionEngine}.
+ * <br>
+ * Each {@link Session} has its own knowledge base and its own bounded queue of pending facts. When facts are
+ * submitted to an idle session, the session is scheduled on the pool; when it runs, it drains a batch of pending
+ * facts (up to the maximum batch size), adds them to its knowledge base with a single fixpoint computation (executing
+ * the actions of the rules), and removes the expired facts, exactly as {@link FCIngestionEngine#processBatch(List)}.
+ * A session processes one batch per turn: if more facts are pending, it is scheduled again at the end of the queue of
+ * the pool, so that a busy session cannot starve the other ones. A session never runs on two threads at the same
+ * time, and idle sessions do not hold any thread, so a scheduler can host a large number of mostly idle sessions.
+ * <br>
+ * The pool is a {@link ForkJoinPool} in FIFO mode, whose idle workers steal the scheduled sessions from the busy
+ * ones. Producers are never blocked: when the queue of a session is full, the submitted facts are rejected (and
+ * counted in the metrics of the session).
+ */
+public class FCSessionScheduler implements AutoCloseable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = FCIngestionEngine.DEFAULT_QUEUE_CAPACITY;
+    public static final int DEFAULT_MAX_BATCH_SIZE = FCIngestionEngine.DEFAULT_MAX_BATCH_SIZE;
+
+    private final ExecutorService pool;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong processedBatches = new AtomicLong();
+    private final AtomicLong processedFacts = new AtomicLong();
+    private final AtomicInteger runningSessions = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a scheduler running the sessions on a pool with the specified number of worker threads.
+     *
+     * @param parallelism the number of worker threads
+     */
+    public FCSessionScheduler(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Creates a scheduler running the sessions on a pool with a worker thread for each available processor.
+     */
+    public FCSessionScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Opens a session on a copy of the specified knowledge base (e.g. a knowledge base created by
+     * {@link RuleBase#newSession()}), with default queue capacity and batch size.
+     *
+     * @param kb the initial knowledge base
+     * @return the session
+     */
+    public Session openSession(FCKnowledgeBase kb) {
+        return openSession(kb, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Opens a session on a copy of the specified knowledge base.
+     *
+     * @param kb            the initial knowledge base
+     * @param queueCapacity the maximum number of facts waiting to be processed; further facts are rejected
+     * @param maxBatchSize  the maximum number of facts added to the knowledge base with a single fixpoint
+     * @return the session
+     */
+    public Session openSession(FCKnowledgeBase kb, int queueCapacity, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        if (closed) {
+            throw new IllegalStateException("The scheduler is closed");
+        }
+        Session session = new Session(kb.copy(), queueCapacity, maxBatchSize);
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Returns the number of open sessions.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the number of sessions currently processing a batch.
+     */
+    public int getRunningSessions() {
+        return runningSessions.get();
+    }
+
+    /**
+     * Returns the total number of facts waiting to be processed by the open sessions.
+     */
+    public long getPendingFacts() {
+        return sessions.stream().mapToLong(Session::pendingCount).sum();
+    }
+
+    /**
+     * Returns the number of batches processed by all the sessions.
+     */
+    public long getProcessedBatches() {
+        return processedBatches.get();
+    }
+
+    /**
+     * Returns the number of facts processed by all the sessions.
+     */
+    public long getProcessedFacts() {
+        return processedFacts.get();
+    }
+
+    /**
+     * Returns the open sessions.
+     */
+    public List<Session> getSessions() {
+        return Collections.unmodifiableList(new ArrayList<>(sessions));
+    }
+
+    /**
+     * Closes all the sessions, and stops the worker threads after the batches being processed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        sessions.forEach(Session::close);
+        pool.shutdown();
+    }
+
+    /**
+     * Waits for the worker threads to stop after {@link #close()}.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit of {@code timeout}
+     * @return true if the worker threads stopped, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return "sessions: " + getSessionCount()
+                + ", running: " + getRunningSessions()
+                + ", batches: " + getProcessedBatches()
+                + ", facts: " + getProcessedFacts();
+    }
+
+    /**
+     * A reasoning session hosted by a {@link FCSessionScheduler}: a knowledge base kept at its fixed point while it
+     * is fed with facts, with its own queue of pending facts and its own metrics.
+     * <br>
+     * The knowledge base is updated in place by the worker threads, one batch at a time: it should be accessed by
+     * other threads only from the batch listener.
+     */
+    public class Session {
+
+        private final IncrementalFixpoint fixpoint;
+        private final ConcurrentLinkedQueue<Term> pendingFacts = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final int queueCapacity;
+        private final int maxBatchSize;
+        private volatile Consumer<FCResult> batchListener = null;
+        private volatile boolean sessionClosed = false;
+
+        private final AtomicLong submittedFacts = new AtomicLong();
+        private final AtomicLong rejectedFacts = new AtomicLong();
+        private volatile long processedFacts = 0;
+        private volatile long processedBatches = 0;
+        private volatile long failedBatches = 0;
+        private volatile long busyNanos = 0;
+        private volatile long maxBatchNanos = 0;
+        private volatile long scheduledAtNanos = 0;
+        private volatile long maxWaitNanos = 0;
+        private volatile RuntimeException lastFailure = null;
+
+        private Session(FCKnowledgeBase kb, int queueCapacity, int maxBatchSize) {
+            this.fixpoint = new IncrementalFixpoint(kb);
+            this.queueCapacity = queueCapacity;
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        /**
+         * Enqueues a fact to be added to the knowledge base, without waiting.
+         *
+         * @param fact the fact
+         * @return true if the fact was enqueued, false if the queue is full or the session is closed
+         */
+        public boolean submit(Term fact) {
+            if (!enqueue(fact)) {
+                return false;
+            }
+            schedule();
+            return true;
+        }
+
+        /**
+         * Enqueues some facts to be added to the knowledge base, without waiting. The facts are enqueued in order,
+         * until the queue is full.
+         *
+         * @param facts the facts
+         * @return the number of enqueued facts
+         */
+        public int submitAll(List<Term> facts) {
+            int count = 0;
+            for (Term fact : facts) {
+                if (!enqueue(fact)) {
+                    break;
+                }
+                count++;
+            }
+            if (count > 0) {
+                schedule();
+            }
+            return count;
+        }
+
+        private boolean enqueue(Term fact) {
+            if (sessionClosed || closed) {
+                return false;
+            }
+            if (pendingCount.incrementAndGet() > queueCapacity) {
+                pendingCount.decrementAndGet();
+                rejectedFacts.incrementAndGet();
+                return false;
+            }
+            pendingFacts.add(fact);
+            submittedFacts.incrementAndGet();
+            return true;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                scheduledAtNanos = System.nanoTime();
+                try {
+                    pool.execute(this::runBatch);
+                } catch (RejectedExecutionException e) {
+                    // the scheduler was closed in the meantime
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        /**
+         * Processes a batch of pending facts, then schedules the session again if more facts are pending.
+         */
+        private void runBatch() {
+            long start = System.nanoTime();
+            maxWaitNanos = Math.max(maxWaitNanos, start - scheduledAtNanos);
+            runningSessions.incrementAndGet();
+            try {
+                List<Term> batch = new ArrayList<>(Math.min(maxBatchSize, pendingCount.get()));
+                Term fact;
+                while (batch.size() < maxBatchSize && (fact = pendingFacts.poll()) != null) {
+                    batch.add(fact);
+                }
+                pendingCount.addAndGet(-batch.size());
+                if (!batch.isEmpty() && !sessionClosed) {
+                    process(batch);
+                }
+            } finally {
+                runningSessions.decrementAndGet();
+                long elapsed = System.nanoTime() - start;
+                busyNanos += elapsed;
+                maxBatchNanos = Math.max(maxBatchNanos, elapsed);
+                scheduled.set(false);
+            }
+            if (!pendingFacts.isEmpty() && !sessionClosed && !pool.isShutdown()) {
+                schedule();
+            }
+        }
+
+        private void process(List<Term> batch) {
+            FCResult result;
+            try {
+                result = fixpoint.add(batch);
+            } catch (RuntimeException e) {
+                // the session survives a failing batch, e.g. a rule action throwing an exception: the next batch
+                // brings the whole knowledge base to its fixed point again (see IncrementalFixpoint#add)
+                failedBatches++;
+                lastFailure = e;
+                return;
+            }
+            processedBatches++;
+            processedFacts += batch.size();
+            FCSessionScheduler.this.processedBatches.incrementAndGet();
+            FCSessionScheduler.this.processedFacts.addAndGet(batch.size());
+            Consumer<FCResult> listener = batchListener;
+            if (listener != null) {
+                listener.accept(result);
+            }
+        }
+
+        /**
+         * Sets a listener that is notified with the result of each processed batch, from the worker thread running
+         * the session.
+         *
+         * @param batchListener the listener, or null to remove it
+         */
+        public void setBatchListener(Consumer<FCResult> batchListener) {
+            this.batchListener = batchListener;
+        }
+
+        /**
+         * Closes the session: the pending facts are discarded, no more facts are accepted, and the session is removed
+         * from the scheduler. A batch being processed is completed.
+         */
+        public void close() {
+            sessionClosed = true;
+            sessions.remove(this);
+            int discarded = 0;
+            while (pendingFacts.poll() != null) {
+                discarded++;
+            }
+            pendingCount.addAndGet(-discarded);
+        }
+
+        /**
+         * Returns true if the session is closed.
+         */
+        public boolean isClosed() {
+            return sessionClosed;
+        }
+
+        /**
+         * Returns the knowledge base maintained by this session.
+         */
+        public FCKnowledgeBase getKnowledgeBase() {
+            return fixpoint.knowledgeBase();
+        }
+
+        /**
+         * Returns the number of facts waiting to be processed.
+         */
+        public int pendingCount() {
+            return pendingCount.get();
+        }
+
+        /**
+         * Returns true if the session has no pending facts and it is not processing a batch.
+         */
+        public boolean isIdle() {
+            return pendingCount.get() == 0 && !scheduled.get();
+        }
+
+        /**
+         * Returns the number of facts accepted by {@link #submit(Term)} and {@link #submitAll(List)}.
+         */
+        public long getSubmittedFacts() {
+            return submittedFacts.get();
+        }
+
+        /**
+         * Returns the number of facts rejected because the queue was full.
+         */
+        public long getRejectedFacts() {
+            return rejectedFacts.get();
+        }
+
+        /**
+         * Returns the number of facts added to the knowledge base.
+         */
+        public long getProcessedFacts() {
+            return processedFacts;
+        }
+
+        /**
+         * Returns the number of batches added to the knowledge base.
+         */
+        public long getProcessedBatches() {
+            return processedBatches;
+        }
+
+        /**
+         * Returns the number of batches whose processing failed with an exception (see {@link #getLastFailure()}).
+         */
+        public long getFailedBatches() {
+            return failedBatches;
+        }
+
+        /**
+         * Returns the exception thrown by the last failed batch, or null.
+         */
+        public RuntimeException getLastFailure() {
+            return lastFailure;
+        }
+
+        /**
+         * Returns the total time spent by the worker threads processing the batches of this session, in
+         * nanoseconds.
+         */
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        /**
+         * Returns the longest time spent processing a batch, in nanoseconds.
+         */
+        public long getMaxBatchNanos() {
+            return maxBatchNanos;
+        }
+
+        /**
+         * Returns the longest time the session waited for a worker thread after being scheduled, in nanoseconds.
+         */
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "pending: " + pendingCount()
+                    + ", submitted: " + getSubmittedFacts()
+                    + ", rejected: " + getRejectedFacts()
+                    + ", processed: " + getProcessedFacts()
+                    + " in " + getProcessedBatches() + " batches"
+                    + " (failed: " + getFailedBatches() + ")"
+                    + ", busy: " + getBusyNanos() / 1_000 + "us"
+                    + ", max wait: " + getMaxWaitNanos() / 1_000 + "us";
+        }
+    }
+}
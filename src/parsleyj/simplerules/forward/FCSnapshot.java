@@ -0,0 +1,641 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.storage.ColumnarFactTable;
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.storage.SnapshotFactTable;
+import parsleyj.simplerules.terms.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Binary snapshot of a {@link FCKnowledgeBase}, which can be saved to a file and loaded back much faster than by
+ * re-asserting its facts.
+ * <br>
+ * The file starts with a header ({@code magic, version, metadata length}), followed by a metadata section and by a
+ * block for each table of facts stored in compact form (see {@link SnapshotFactTable}), with its rows and a prebuilt
+ * hash index. The metadata section contains the values of the atoms used by the tables (the snapshot-local atom
+ * dictionary), the facts stored as {@link Term} objects, the rules, and the directory of the table blocks.
+ * <br>
+ * Native facts and rule actions, being Java code, are stored by name, and are resolved on load by a
+ * {@link Registry}. Atom values can be strings, boxed primitives, enum constants or other serializable objects.
+ * Retention policies are not stored, and should be set again on the loaded knowledge base.
+ * <br>
+ * On load, only the metadata section is read: the table blocks are memory-mapped, so the time taken does not depend
+ * on the number of facts stored in compact form.
+ */
+public class FCSnapshot {
+
+    private static final int MAGIC = 0x534B5253;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private static final byte FACT = 0;
+    private static final byte DERIVED_FACT = 1;
+    private static final byte NATIVE_MODULE = 2;
+
+    private static final byte ATOM = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte RELATION = 2;
+    private static final byte INVOKER = 3;
+    private static final byte STRUCT = 4;
+    private static final byte NATIVE = 5;
+
+    private static final byte ANY_TYPE = 0;
+    private static final byte JAVA_TYPE = 1;
+
+    private static final byte STRING_VALUE = 0;
+    private static final byte INTEGER_VALUE = 1;
+    private static final byte LONG_VALUE = 2;
+    private static final byte DOUBLE_VALUE = 3;
+    private static final byte FLOAT_VALUE = 4;
+    private static final byte BOOLEAN_VALUE = 5;
+    private static final byte CHARACTER_VALUE = 6;
+    private static final byte SHORT_VALUE = 7;
+    private static final byte BYTE_VALUE = 8;
+    private static final byte ENUM_VALUE = 9;
+    private static final byte SERIALIZED_VALUE = 10;
+
+    private FCSnapshot() {
+    } // don't instantiate
+
+    /**
+     * Resolves by name the Java code referenced by the rules and the facts of a knowledge base: the modules of
+     * native facts and the actions of the rules.
+     */
+    public static class Registry {
+        private final Map<String, List<Term>> modules = new LinkedHashMap<>();
+        private final Map<String, Consumer<Term>> actions = new HashMap<>();
+        private final Map<Consumer<Term>, String> actionNames = new IdentityHashMap<>();
+
+        /**
+         * Registers some native facts, by the names of their modules.
+         *
+         * @param nativeFacts the native facts (e.g. {@link parsleyj.simplerules.NativeFacts#nativeIntegerFacts()})
+         * @return this registry for method-call-chaining
+         */
+        public Registry withNativeFacts(List<Term> nativeFacts) {
+            for (Term fact : nativeFacts) {
+                if (!(fact instanceof NativeFact)) {
+                    throw new IllegalArgumentException("Not a native fact: " + fact);
+                }
+                modules.computeIfAbsent(((NativeFact) fact).getModule(), m -> new ArrayList<>()).add(fact);
+            }
+            return this;
+        }
+
+        /**
+         * Registers a rule action with the specified name. Actions are matched by identity when a snapshot is saved.
+         *
+         * @param name   the name of the action
+         * @param action the action
+         * @return this registry for method-call-chaining
+         */
+        public Registry withAction(String name, Consumer<Term> action) {
+            actions.put(name, action);
+            actionNames.put(action, name);
+            return this;
+        }
+
+        private List<Term> module(String name) {
+            List<Term> result = modules.get(name);
+            if (result == null) {
+                throw new IllegalArgumentException("Native module not registered: " + name);
+            }
+            return result;
+        }
+
+        private NativeFact nativeFact(String module, String name, int arity) {
+            for (Term fact : module(module)) {
+                NativeFact nativeFact = (NativeFact) fact;
+                if (nativeFact.getName().equals(name) && nativeFact.length() - 1 == arity) {
+                    return nativeFact;
+                }
+            }
+            throw new IllegalArgumentException("Native fact not registered: " + module + ":"
+                    + Relation.getPredicateStyleName(name, arity));
+        }
+
+        private Consumer<Term> action(String name) {
+            Consumer<Term> result = actions.get(name);
+            if (result == null) {
+                throw new IllegalArgumentException("Action not registered: " + name);
+            }
+            return result;
+        }
+
+        private String actionName(Consumer<Term> action) {
+            String result = actionNames.get(action);
+            if (result == null) {
+                throw new IllegalArgumentException("Rule action not registered: " + action);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Saves a snapshot of the specified knowledge base.
+     *
+     * @param kb       the knowledge base
+     * @param file     the snapshot file, which is atomically replaced if it exists (so it can be the file from which
+     *                 the knowledge base was loaded)
+     * @param registry the registry used to name the actions of the rules
+     * @throws IOException if an I/O error occurs
+     */
+    public static void save(FCKnowledgeBase kb, Path file, Registry registry) throws IOException {
+        List<FactTable> tables = new ArrayList<>(kb.factTables());
+
+        // local dictionary: only the atoms used by the tables
+        int[] globalToLocal = new int[AtomDictionary.global().size()];
+        Arrays.fill(globalToLocal, -1);
+        List<Object> localValues = new ArrayList<>();
+        for (FactTable table : tables) {
+            for (int row = 0; row < table.size(); row++) {
+                for (int c = 0; c < table.getArity(); c++) {
+                    int id = table.get(row, c);
+                    if (globalToLocal[id] < 0) {
+                        globalToLocal[id] = localValues.size();
+                        localValues.add(AtomDictionary.global().atom(id).getWrappedValue());
+                    }
+                }
+            }
+        }
+
+        Output out = new Output();
+        out.putInt(localValues.size());
+        for (Object value : localValues) {
+            writeValue(out, value);
+        }
+
+        Set<String> writtenModules = new HashSet<>();
+        List<Term> facts = kb.termFacts();
+        out.putInt(facts.size());
+        for (Term fact : facts) {
+            if (fact instanceof NativeFact) {
+                String module = ((NativeFact) fact).getModule();
+                out.putByte(NATIVE_MODULE);
+                out.putString(writtenModules.add(module) ? module : "");
+            } else {
+                out.putByte(kb.isDerived(fact) ? DERIVED_FACT : FACT);
+                writeTerm(out, fact);
+            }
+        }
+
+        out.putInt(kb.getRules().size());
+        for (Rule rule : kb.getRules()) {
+            out.putInt(rule.getPremises().size());
+            for (Term premise : rule.getPremises()) {
+                writeTerm(out, premise);
+            }
+            writeTerm(out, rule.getHead());
+            out.putString(rule.hasAction() ? registry.actionName(rule.getAction()) : "");
+        }
+
+        out.putInt(tables.size());
+        int[] offsetPositions = new int[tables.size()];
+        for (int t = 0; t < tables.size(); t++) {
+            FactTable table = tables.get(t);
+            out.putString(table.getName());
+            out.putInt(table.getArity());
+            out.putInt(table.size());
+            offsetPositions[t] = out.position();
+            out.putLong(0);
+        }
+
+        long[] offsets = new long[tables.size()];
+        long offset = align(HEADER_BYTES + out.position());
+        for (int t = 0; t < tables.size(); t++) {
+            offsets[t] = offset;
+            out.putLong(offsetPositions[t], offset);
+            offset = align(offset + SnapshotFactTable.blockBytes(tables.get(t).getArity(), tables.get(t).size()));
+        }
+
+        // the snapshot is written to a temporary file which then replaces the old one, since the tables of a
+        // knowledge base loaded from the old snapshot may still be mapped, and a failed save must not destroy it
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        boolean moved = false;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putLong(out.position());
+                header.flip();
+                writeFully(channel, header);
+                writeFully(channel, out.flipped());
+                for (int t = 0; t < tables.size(); t++) {
+                    SnapshotFactTable.write(tables.get(t), channel, offsets[t], globalToLocal);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+            forceDirectory(absolute.getParent());
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Makes the renaming of a file in the specified directory durable, where the platform allows it.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened (or forced) on some platforms, e.g. Windows
+        }
+    }
+
+    /**
+     * Loads a knowledge base from a snapshot. The facts of each table are modified in new
+     * {@link ColumnarFactTable}s, which are also used for the new relations.
+     *
+     * @param file     the snapshot file
+     * @param registry the registry used to resolve native modules and actions by name
+     * @return the knowledge base
+     * @throws IOException if an I/O error occurs
+     */
+    public static FCKnowledgeBase load(Path file, Registry registry) throws IOException {
+        return load(file, registry, ColumnarFactTable::new);
+    }
+
+    /**
+     * Loads a knowledge base from a snapshot.
+     *
+     * @param file         the snapshot file
+     * @param registry     the registry used to resolve native modules and actions by name
+     * @param tableFactory the factory of the tables of the knowledge base; the facts of a table of the snapshot are
+     *                     copied in a table created by this factory when they are modified for the first time
+     * @return the knowledge base
+     * @throws IOException if an I/O error occurs
+     */
+    public static FCKnowledgeBase load(Path file, Registry registry, FactTable.Factory tableFactory)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a knowledge base snapshot: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+            long metadataLength = header.getLong();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, metadataLength)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            int[] localToGlobal = new int[in.getInt()];
+            int maxGlobal = -1;
+            for (int i = 0; i < localToGlobal.length; i++) {
+                localToGlobal[i] = AtomDictionary.global().atomOf(readValue(in)).id();
+                maxGlobal = Math.max(maxGlobal, localToGlobal[i]);
+            }
+            int[] globalToLocal = new int[maxGlobal + 1];
+            Arrays.fill(globalToLocal, -1);
+            for (int i = 0; i < localToGlobal.length; i++) {
+                globalToLocal[localToGlobal[i]] = i;
+            }
+
+            List<Term> facts = new ArrayList<>();
+            List<Boolean> derived = new ArrayList<>();
+            int factsCount = in.getInt();
+            for (int i = 0; i < factsCount; i++) {
+                byte kind = in.get();
+                if (kind == NATIVE_MODULE) {
+                    String module = getString(in);
+                    if (!module.isEmpty()) {
+                        for (Term nativeFact : registry.module(module)) {
+                            facts.add(nativeFact);
+                            derived.add(false);
+                        }
+                    }
+                } else {
+                    facts.add(readTerm(in, registry));
+                    derived.add(kind == DERIVED_FACT);
+                }
+            }
+
+            List<Rule> rules = new ArrayList<>();
+            int rulesCount = in.getInt();
+            for (int i = 0; i < rulesCount; i++) {
+                int premisesCount = in.getInt();
+                List<Term> premises = new ArrayList<>(premisesCount);
+                for (int p = 0; p < premisesCount; p++) {
+                    premises.add(readTerm(in, registry));
+                }
+                Term head = readTerm(in, registry);
+                String action = getString(in);
+                rules.add(action.isEmpty()
+                        ? new Rule(premises, head)
+                        : new Rule(premises, head, registry.action(action)));
+            }
+
+            FCKnowledgeBase kb = new FCKnowledgeBase(tableFactory);
+            int tablesCount = in.getInt();
+            for (int i = 0; i < tablesCount; i++) {
+                String name = getString(in);
+                int arity = in.getInt();
+                int size = in.getInt();
+                long offset = in.getLong();
+                kb.restoreTable(SnapshotFactTable.map(channel, name, arity, size, offset,
+                        localToGlobal, globalToLocal, tableFactory));
+            }
+            for (int i = 0; i < facts.size(); i++) {
+                kb.restoreFact(facts.get(i), derived.get(i));
+            }
+            kb.getRules().addAll(rules);
+            return kb;
+        }
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeType(Output out, Type type) {
+        if (type == Type.ANY) {
+            out.putByte(ANY_TYPE);
+        } else if (type instanceof JavaType) {
+            out.putByte(JAVA_TYPE);
+            out.putString(((JavaType) type).getJavaClass().getName());
+        } else {
+            throw new IllegalArgumentException("Type cannot be stored in a snapshot: " + type);
+        }
+    }
+
+    private static Type readType(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        if (tag == ANY_TYPE) {
+            return Type.ANY;
+        }
+        return JavaType.of(classForName(getString(in)));
+    }
+
+    static void writeTerm(Output out, Term term) {
+        if (term instanceof Atom) {
+            Atom<?> atom = (Atom<?>) term;
+            out.putByte(ATOM);
+            writeValue(out, atom.getWrappedValue());
+            out.putString(AtomDictionary.isEncodable(atom) ? "" : atom.getType().getName());
+        } else if (term instanceof Variable) {
+            out.putByte(VARIABLE);
+            writeType(out, term.type());
+            out.putString(((Variable) term).getName());
+        } else if (term instanceof NativeFact) {
+            NativeFact nativeFact = (NativeFact) term;
+            out.putByte(NATIVE);
+            out.putString(nativeFact.getModule());
+            out.putString(nativeFact.getName());
+            out.putInt(nativeFact.length() - 1);
+        } else if (term.getClass() == RelationImpl.class || term.getClass() == NativeFactInvoker.class) {
+            RelationImpl relation = (RelationImpl) term;
+            if (term instanceof NativeFactInvoker) {
+                out.putByte(INVOKER);
+                writeType(out, term.type());
+                out.putString(((NativeFactInvoker) term).getModule());
+            } else {
+                out.putByte(RELATION);
+                writeType(out, term.type());
+            }
+            out.putString(relation.getName());
+            List<Term> terms = relation.toJavaList();
+            out.putInt(terms.size() - 1);
+            for (Term arg : terms.subList(1, terms.size())) {
+                writeTerm(out, arg);
+            }
+        } else if (term.getClass() == StructImpl.class) {
+            List<Term> terms = ((StructImpl) term).toJavaList();
+            out.putByte(STRUCT);
+            writeType(out, term.type());
+            out.putInt(terms.size());
+            for (Term arg : terms) {
+                writeTerm(out, arg);
+            }
+        } else {
+            throw new IllegalArgumentException("Term cannot be stored in a snapshot: " + term);
+        }
+    }
+
+    static Term readTerm(ByteBuffer in, Registry registry) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case ATOM: {
+                Object value = readValue(in);
+                String typeName = getString(in);
+                return typeName.isEmpty()
+                        ? new Atom<>(value)
+                        : new Atom<>(value, classForName(typeName));
+            }
+            case VARIABLE: {
+                Type type = readType(in);
+                return new Variable(type, getString(in));
+            }
+            case RELATION:
+            case INVOKER: {
+                Type type = readType(in);
+                String module = tag == INVOKER ? getString(in) : null;
+                String name = getString(in);
+                List<Term> args = readTerms(in, registry);
+                return tag == INVOKER
+                        ? new NativeFactInvoker(type, module, name, args)
+                        : new RelationImpl(type, name, args);
+            }
+            case STRUCT: {
+                Type type = readType(in);
+                return new StructImpl(type, readTerms(in, registry));
+            }
+            case NATIVE: {
+                String module = getString(in);
+                String name = getString(in);
+                return registry.nativeFact(module, name, in.getInt());
+            }
+            default:
+                throw new IOException("Corrupted snapshot: unknown term tag " + tag);
+        }
+    }
+
+    private static List<Term> readTerms(ByteBuffer in, Registry registry) throws IOException {
+        int count = in.getInt();
+        List<Term> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(readTerm(in, registry));
+        }
+        return result;
+    }
+
+    private static void writeValue(Output out, Object value) {
+        if (value instanceof String) {
+            out.putByte(STRING_VALUE);
+            out.putString((String) value);
+        } else if (value instanceof Integer) {
+            out.putByte(INTEGER_VALUE);
+            out.putInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.putByte(LONG_VALUE);
+            out.putLong((Long) value);
+        } else if (value instanceof Double) {
+            out.putByte(DOUBLE_VALUE);
+            out.putLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            out.putByte(FLOAT_VALUE);
+            out.putInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Boolean) {
+            out.putByte(BOOLEAN_VALUE);
+            out.putByte((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Character) {
+            out.putByte(CHARACTER_VALUE);
+            out.putInt((Character) value);
+        } else if (value instanceof Short) {
+            out.putByte(SHORT_VALUE);
+            out.putInt((Short) value);
+        } else if (value instanceof Byte) {
+            out.putByte(BYTE_VALUE);
+            out.putByte((Byte) value);
+        } else if (value instanceof Enum) {
+            out.putByte(ENUM_VALUE);
+            out.putString(((Enum<?>) value).getDeclaringClass().getName());
+            out.putString(((Enum<?>) value).name());
+        } else if (value instanceof Serializable) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+                objects.writeObject(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            out.putByte(SERIALIZED_VALUE);
+            out.putBytes(bytes.toByteArray());
+        } else {
+            throw new IllegalArgumentException("Atom value cannot be stored in a snapshot: " + value);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readValue(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case STRING_VALUE:
+                return getString(in);
+            case INTEGER_VALUE:
+                return in.getInt();
+            case LONG_VALUE:
+                return in.getLong();
+            case DOUBLE_VALUE:
+                return Double.longBitsToDouble(in.getLong());
+            case FLOAT_VALUE:
+                return Float.intBitsToFloat(in.getInt());
+            case BOOLEAN_VALUE:
+                return in.get() != 0;
+            case CHARACTER_VALUE:
+                return (char) in.getInt();
+            case SHORT_VALUE:
+                return (short) in.getInt();
+            case BYTE_VALUE:
+                return in.get();
+            case ENUM_VALUE: {
+                Class enumClass = classForName(getString(in));
+                return Enum.valueOf(enumClass, getString(in));
+            }
+            case SERIALIZED_VALUE: {
+                byte[] bytes = new byte[in.getInt()];
+                in.get(bytes);
+                try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return objects.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+            default:
+                throw new IOException("Corrupted snapshot: unknown value tag " + tag);
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Class<?> classForName(String name) throws IOException {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Growable little-endian buffer used to build the metadata section (and the records of the
+     * {@link FCWriteAheadLog}).
+     */
+    static class Output {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+
+        int position() {
+            return buffer.position();
+        }
+
+        void putByte(byte value) {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putLong(int position, long value) {
+            buffer.putLong(position, value);
+        }
+
+        void putBytes(byte[] bytes) {
+            putInt(bytes.length);
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void putString(String value) {
+            putBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteBuffer flipped() {
+            ByteBuffer result = buffer.duplicate();
+            result.flip();
+            return result;
+        }
+    }
+}
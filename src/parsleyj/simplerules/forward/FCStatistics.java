@@ -0,0 +1,219 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Rule;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Execution statistics of a {@link SimpleForwardChaining} reasoning process: for each rule, the counters of the work
+ * done to evaluate it, and for each iteration, the number of new facts produced.
+ * <br>
+ * The counters are plain fields updated by the thread running the process, so collecting them is cheap enough to be
+ * always enabled. The CPU time is measured once per rule per iteration, and only if the JVM supports measuring the
+ * CPU time of the current thread.
+ */
+public class FCStatistics {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported()
+            && THREADS.isThreadCpuTimeEnabled();
+
+    private final List<RuleStatistics> rules = new ArrayList<>();
+    private final List<Integer> deltaSizes = new ArrayList<>();
+    private long wallNanos = 0;
+
+    /**
+     * Creates empty statistics, without rules.
+     */
+    public FCStatistics() {
+    }
+
+    /**
+     * Creates empty statistics for the specified rules.
+     *
+     * @param rules the rules
+     */
+    public FCStatistics(List<Rule> rules) {
+        for (Rule rule : rules) {
+            this.rules.add(new RuleStatistics(rule));
+        }
+    }
+
+    /**
+     * Returns the statistics of each rule, in the same order of the rules in the knowledge base.
+     */
+    public List<RuleStatistics> getRuleStatistics() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Returns the statistics of the i-th rule of the knowledge base.
+     */
+    public RuleStatistics getRuleStatistics(int i) {
+        return rules.get(i);
+    }
+
+    /**
+     * Returns, for each iteration, the number of new facts produced by it (i.e. the size of the delta used by the
+     * next iteration).
+     */
+    public List<Integer> getDeltaSizes() {
+        return Collections.unmodifiableList(deltaSizes);
+    }
+
+    /**
+     * Returns the total elapsed time of the process, in nanoseconds.
+     */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * Returns the statistics of the i-th rule, adding them if the rule was added to the knowledge base during the
+     * process.
+     */
+    RuleStatistics forRule(int i, Rule rule) {
+        while (rules.size() <= i) {
+            rules.add(new RuleStatistics(rule));
+        }
+        return rules.get(i);
+    }
+
+    void iterationDone(int deltaSize) {
+        deltaSizes.add(deltaSize);
+    }
+
+    void processDone(long startNanos) {
+        wallNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or 0 if it cannot be measured.
+     */
+    static long currentCpuNanos() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Iterations: ").append(deltaSizes.size())
+                .append(", delta sizes: ").append(deltaSizes)
+                .append(", time: ").append(wallNanos / 1_000_000).append("ms\n");
+        for (int i = 0; i < rules.size(); i++) {
+            sb.append("#").append(i).append(' ').append(rules.get(i)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Counters of the work done to evaluate a rule.
+     */
+    public static class RuleStatistics {
+        private final Rule rule;
+        long candidates = 0;
+        long unificationAttempts = 0;
+        long unificationFailures = 0;
+        long headsProduced = 0;
+        long duplicatesRejected = 0;
+        long actionsFired = 0;
+        long wallNanos = 0;
+        long cpuNanos = 0;
+
+        RuleStatistics(Rule rule) {
+            this.rule = rule;
+        }
+
+        public Rule getRule() {
+            return rule;
+        }
+
+        /**
+         * Returns the number of sequences of facts matching the premises of the rule, produced by joining the
+         * candidates of the premises.
+         */
+        public long getCandidates() {
+            return candidates;
+        }
+
+        /**
+         * Returns the number of attempts to unify a candidate fact with a premise of the rule, while joining the
+         * candidates of the premises.
+         */
+        public long getUnificationAttempts() {
+            return unificationAttempts;
+        }
+
+        /**
+         * Returns the number of failed attempts to unify a candidate fact with a premise of the rule.
+         */
+        public long getUnificationFailures() {
+            return unificationFailures;
+        }
+
+        /**
+         * Returns the number of instances of the head produced by successful unifications.
+         */
+        public long getHeadsProduced() {
+            return headsProduced;
+        }
+
+        /**
+         * Returns the number of produced heads that were discarded, because an equivalent fact was already known.
+         */
+        public long getDuplicatesRejected() {
+            return duplicatesRejected;
+        }
+
+        /**
+         * Returns the number of new facts derived by the rule.
+         */
+        public long getNewFacts() {
+            return headsProduced - duplicatesRejected;
+        }
+
+        /**
+         * Returns the number of times the action of the rule was executed.
+         */
+        public long getActionsFired() {
+            return actionsFired;
+        }
+
+        /**
+         * Returns the elapsed time spent evaluating the rule, in nanoseconds.
+         */
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * Returns the CPU time spent evaluating the rule, in nanoseconds (0 if the JVM cannot measure it).
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        void timeSpent(long startWallNanos, long startCpuNanos) {
+            wallNanos += System.nanoTime() - startWallNanos;
+            if (CPU_TIME_SUPPORTED) {
+                cpuNanos += currentCpuNanos() - startCpuNanos;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return rule + " -- matches: " + candidates
+                    + ", unifications: " + unificationAttempts
+                    + " (failed: " + unificationFailures + ")"
+                    + ", heads: " + headsProduced
+                    + ", duplicates: " + duplicatesRejected
+                    + ", actions: " + actionsFired
+                    + ", wall: " + wallNanos / 1_000 + "us"
+                    + ", cpu: " + cpuNanos / 1_000 + "us";
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.terms.AtomDictionary;
+import parsleyj.simplerules.terms.RelationImpl;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Type;
+
+import java.util.*;
+
+/**
+ * Immutable view of the facts of a {@link FCKnowledgeBase} at the moment in which it was published (see
+ * {@link FCKnowledgeBase#enableVersions()}), which can be read by any number of threads while the knowledge base is
+ * being modified, e.g. by a fixpoint computation.
+ * <br>
+ * The versions share as much as possible with the previous ones: the facts stored as {@link Term} objects and the
+ * rows of the tables storing facts in compact form are kept in arrays which are only appended to, and a version only
+ * reads the prefix which existed when it was published, so publishing a version after some facts were added costs
+ * in proportion to the added facts. After some facts are removed, the next version copies all the facts again.
+ */
+public class FCVersion {
+
+    private final long version;
+    private final Term[] terms;
+    private final int termCount;
+    private final List<FrozenTable> tables;
+    /**
+     * The facts stored as {@link Term} objects, by directory, built on the first lookup by directory.
+     */
+    private volatile Map<List<String>, List<Term>> termsByDirectory = null;
+
+    private FCVersion(long version, Term[] terms, int termCount, List<FrozenTable> tables) {
+        this.version = version;
+        this.terms = terms;
+        this.termCount = termCount;
+        this.tables = tables;
+    }
+
+    /**
+     * Returns the number of this version; the versions published for a knowledge base (and its copies) have
+     * increasing numbers, starting from 0.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the number of facts in this version.
+     */
+    public int factsCount() {
+        int result = termCount;
+        for (FrozenTable table : tables) {
+            result += table.rows;
+        }
+        return result;
+    }
+
+    /**
+     * Returns all the facts in this version, in the same order of {@link FCKnowledgeBase#getAllFacts()}. The facts
+     * stored in compact form are materialized.
+     */
+    public List<Term> getAllFacts() {
+        List<Term> result = new ArrayList<>(factsCount());
+        result.addAll(Arrays.asList(terms).subList(0, termCount));
+        for (FrozenTable table : tables) {
+            table.materializeAll(result);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the facts in this version which are in the specified directory or in its sub-directories, as
+     * {@link FCKnowledgeBase#factsInDirectory(List)}.
+     *
+     * @param directory the directory
+     * @return the facts in the directory
+     */
+    public List<Term> factsInDirectory(List<String> directory) {
+        List<Term> result = new ArrayList<>();
+        termsByDirectory().forEach((d, facts) -> {
+            if (isPrefix(directory, d)) {
+                result.addAll(facts);
+            }
+        });
+        for (FrozenTable table : tables) {
+            if (isPrefix(directory, table.directory)) {
+                table.materializeAll(result);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private Map<List<String>, List<Term>> termsByDirectory() {
+        Map<List<String>, List<Term>> result = termsByDirectory;
+        if (result == null) {
+            result = new LinkedHashMap<>();
+            for (int i = 0; i < termCount; i++) {
+                result.computeIfAbsent(terms[i].directoryPath(), d -> new ArrayList<>()).add(terms[i]);
+            }
+            termsByDirectory = result;
+        }
+        return result;
+    }
+
+    private static boolean isPrefix(List<String> prefix, List<String> directory) {
+        return directory.size() >= prefix.size() && directory.subList(0, prefix.size()).equals(prefix);
+    }
+
+    @Override
+    public String toString() {
+        return "version " + version + " (" + factsCount() + " facts)";
+    }
+
+    /**
+     * The rows of a table of facts stored in compact form, as a prefix of an array of atom IDs (row by row).
+     */
+    private static class FrozenTable {
+        private final String name;
+        private final int arity;
+        private final List<String> directory;
+        private final int[] ids;
+        private final int rows;
+
+        private FrozenTable(String name, int arity, int[] ids, int rows) {
+            this.name = name;
+            this.arity = arity;
+            this.directory = FCKnowledgeBase.relationDirectory(name, arity);
+            this.ids = ids;
+            this.rows = rows;
+        }
+
+        private void materializeAll(List<Term> result) {
+            AtomDictionary dictionary = AtomDictionary.global();
+            for (int row = 0; row < rows; row++) {
+                List<Term> args = new ArrayList<>(arity);
+                for (int column = 0; column < arity; column++) {
+                    args.add(dictionary.atom(ids[row * arity + column]));
+                }
+                result.add(new RelationImpl(Type.ANY, name, args));
+            }
+        }
+    }
+
+    /**
+     * State of a knowledge base used to publish its versions: the arrays shared by the versions, and how much of the
+     * facts of the knowledge base they contain. Each knowledge base (and each of its copies) has its own writer.
+     */
+    static class Writer {
+        private Term[] terms = new Term[0];
+        private int termCount = 0;
+        private Map<FactTable, FrozenTable> frozenTables = new IdentityHashMap<>();
+        private FCVersion last = null;
+
+        /**
+         * Forgets the published facts, because some of them were removed from the knowledge base: the next version
+         * will copy all the facts.
+         */
+        void invalidate() {
+            terms = new Term[0];
+            termCount = 0;
+            frozenTables = new IdentityHashMap<>();
+            last = null;
+        }
+
+        /**
+         * Builds a version with the current facts of a knowledge base, appending to the shared arrays the facts
+         * added since the previous version. If no fact was added or removed since the previous version, the previous
+         * version is returned.
+         *
+         * @param version   the number of the version
+         * @param termFacts the facts stored as {@link Term} objects, in insertion order
+         * @param tables    the tables storing facts in compact form
+         * @return the version
+         */
+        FCVersion publish(long version, List<Term> termFacts, Collection<FactTable> tables) {
+            if (termFacts.size() < termCount) {
+                invalidate();
+            }
+            if (last != null && !changed(termFacts, tables)) {
+                return last;
+            }
+            if (termFacts.size() > terms.length) {
+                terms = Arrays.copyOf(terms, Math.max(termFacts.size(), terms.length * 2));
+            }
+            for (int i = termCount; i < termFacts.size(); i++) {
+                terms[i] = termFacts.get(i);
+            }
+            termCount = termFacts.size();
+            Map<FactTable, FrozenTable> frozen = new IdentityHashMap<>();
+            List<FrozenTable> result = new ArrayList<>(tables.size());
+            for (FactTable table : tables) {
+                FrozenTable frozenTable = freeze(table, frozenTables.get(table));
+                frozen.put(table, frozenTable);
+                result.add(frozenTable);
+            }
+            frozenTables = frozen;
+            last = new FCVersion(version, terms, termCount, Collections.unmodifiableList(result));
+            return last;
+        }
+
+        private boolean changed(List<Term> termFacts, Collection<FactTable> tables) {
+            if (termFacts.size() != termCount || tables.size() != frozenTables.size()) {
+                return true;
+            }
+            for (FactTable table : tables) {
+                FrozenTable frozen = frozenTables.get(table);
+                if (frozen == null || frozen.rows != table.size()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static FrozenTable freeze(FactTable table, FrozenTable previous) {
+            int arity = table.getArity();
+            int size = table.size();
+            int[] ids = new int[0];
+            int rows = 0;
+            if (previous != null && previous.rows <= size) {
+                ids = previous.ids;
+                rows = previous.rows;
+            }
+            if (rows == size) {
+                return previous != null && previous.rows == size ? previous
+                        : new FrozenTable(table.getName(), arity, ids, size);
+            }
+            if ((long) size * arity > ids.length) {
+                ids = Arrays.copyOf(ids, (int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max((long) size * arity, (long) ids.length * 2)));
+            }
+            for (int row = rows; row < size; row++) {
+                for (int column = 0; column < arity; column++) {
+                    ids[row * arity + column] = table.get(row, column);
+                }
+            }
+            return new FrozenTable(table.getName(), arity, ids, size);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Term;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the asserted facts of a {@link FCKnowledgeBase}, used to recover them after
+ * a crash. Once attached to a knowledge base (see {@link FCKnowledgeBase#setWriteAheadLog(FCWriteAheadLog)}), each
+ * addition or retraction of asserted facts, and each expiration of facts, is written to the log, and made durable,
+ * before being applied.
+ * <br>
+ * Each record contains the kind of change (addition, retraction, or expiration according to a retention policy) and
+ * the involved facts (native facts are recorded
+ * by module and name, as in {@link FCSnapshot}s), preceded by its length and CRC-32 checksum, so that a record
+ * partially written during a crash is detected and discarded on recovery.
+ * <br>
+ * Records are made durable with group commit: when several threads are waiting for their records (e.g. sessions
+ * sharing the same log), a single {@code fsync} makes durable all the records appended up to that moment. Adding
+ * facts in batches (e.g. with {@link FCKnowledgeBase#addFacts(List)} or with a {@link FCIngestionEngine}) also
+ * amortizes the cost of the {@code fsync}.
+ * <br>
+ * If writing or syncing the log fails, the partially written records are truncated away, and the log enters a failed
+ * state: the {@link IOException} is rethrown to every thread waiting for a record which was not made durable, and to
+ * every later caller, so that no change is applied without being logged. The log must then be closed and reopened.
+ * <br>
+ * The log is meant to be used together with {@link FCSnapshot}s: on restart, the last snapshot is loaded, and the
+ * records of the log are replayed into it (see {@link #replayInto(FCKnowledgeBase, FCSnapshot.Registry)}); after a new snapshot is saved,
+ * the log can be emptied (see {@link #reset()}).
+ */
+public class FCWriteAheadLog implements Closeable {
+
+    private static final byte ADDITION = 0;
+    private static final byte RETRACTION = 1;
+    private static final byte EXPIRY = 2;
+    private static final byte CASCADING_EXPIRY = 3;
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Object lock = new Object();
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long appendedCount = 0;
+    private long durableCount = 0;
+    /**
+     * The end of the last durable record in the file.
+     */
+    private long durableEnd;
+    private boolean flushing = false;
+    /**
+     * The error which put this log in the failed state, or null.
+     */
+    private IOException failure = null;
+
+    private FCWriteAheadLog(Path file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.durableEnd = channel.position();
+    }
+
+    /**
+     * Opens (or creates) a log. If the last record was only partially written (e.g. because of a crash), it is
+     * discarded.
+     *
+     * @param file the file of the log
+     * @return the log
+     * @throws IOException if an I/O error occurs
+     */
+    public static FCWriteAheadLog open(Path file) throws IOException {
+        return open(file, FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Opens a log on the specified channel of its file (see {@link #open(Path)}).
+     */
+    static FCWriteAheadLog open(Path file, FileChannel channel) throws IOException {
+        long validEnd = 0;
+        ByteBuffer record;
+        while ((record = readRecord(channel, validEnd)) != null) {
+            validEnd += RECORD_HEADER_BYTES + record.limit();
+        }
+        channel.truncate(validEnd);
+        channel.force(true);
+        channel.position(validEnd);
+        return new FCWriteAheadLog(file, channel);
+    }
+
+    /**
+     * Returns the file of this log.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Applies all the changes recorded in this log to the specified knowledge base, which is assumed to be at its
+     * fixed point (e.g. loaded from the last snapshot). Consecutive additions are applied with a single incremental
+     * fixpoint computation, in which the actions of the rules are not executed (since they were already executed
+     * before the crash). The changes applied are not logged again.
+     *
+     * @param kb       the knowledge base, which is updated in place
+     * @param registry the registry used to resolve the native facts in the records
+     * @return the number of replayed records
+     * @throws IOException if an I/O error occurs
+     */
+    public int replayInto(FCKnowledgeBase kb, FCSnapshot.Registry registry) throws IOException {
+        FCWriteAheadLog previous = kb.getWriteAheadLog();
+        kb.setWriteAheadLog(null);
+        try {
+            long end;
+            synchronized (lock) {
+                commit(appendedCount);
+                end = channel.size();
+            }
+            int count = 0;
+            List<Term> additions = new ArrayList<>();
+            long position = 0;
+            while (position < end) {
+                ByteBuffer record = readRecord(channel, position);
+                if (record == null) {
+                    break;
+                }
+                position += RECORD_HEADER_BYTES + record.limit();
+                byte kind = record.get();
+                List<Term> facts = readFacts(record, registry);
+                if (kind == ADDITION) {
+                    additions.addAll(facts);
+                } else {
+                    if (!additions.isEmpty()) {
+                        SimpleForwardChaining.extendToFixedPoint(kb, additions, false);
+                        additions = new ArrayList<>();
+                    }
+                    if (kind == RETRACTION) {
+                        SimpleForwardChaining.retractFromFixedPoint(kb, facts);
+                    } else {
+                        kb.replayExpiry(facts, kind == CASCADING_EXPIRY);
+                    }
+                }
+                count++;
+            }
+            if (!additions.isEmpty()) {
+                SimpleForwardChaining.extendToFixedPoint(kb, additions, false);
+            }
+            return count;
+        } finally {
+            kb.setWriteAheadLog(previous);
+        }
+    }
+
+    /**
+     * Durably records the addition of some asserted facts.
+     *
+     * @param facts the added facts
+     * @throws IOException if an I/O error occurs
+     */
+    public void logAddition(List<Term> facts) throws IOException {
+        commit(append(ADDITION, facts));
+    }
+
+    /**
+     * Durably records the retraction of some asserted facts.
+     *
+     * @param facts the retracted facts
+     * @throws IOException if an I/O error occurs
+     */
+    public void logRetraction(List<Term> facts) throws IOException {
+        commit(append(RETRACTION, facts));
+    }
+
+    /**
+     * Durably records the expiration of some facts (asserted or derived) according to a retention policy (see
+     * {@link FCKnowledgeBase#expireFacts()}). On replay, the facts are removed as the policy removed them: with the
+     * derived facts that are not supported anymore if the policy is cascading, and alone otherwise.
+     *
+     * @param facts     the expired facts
+     * @param cascading true if the policy is cascading
+     * @throws IOException if an I/O error occurs
+     */
+    public void logExpiry(List<Term> facts, boolean cascading) throws IOException {
+        commit(append(cascading ? CASCADING_EXPIRY : EXPIRY, facts));
+    }
+
+    /**
+     * Empties this log, e.g. after a snapshot including all its changes has been saved.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void reset() throws IOException {
+        synchronized (lock) {
+            commit(appendedCount);
+            channel.truncate(0);
+            channel.force(true);
+            channel.position(0);
+            durableEnd = 0;
+        }
+    }
+
+    /**
+     * Returns true if writing this log failed, so that it cannot be used anymore (see {@link FCWriteAheadLog}).
+     */
+    public boolean isFailed() {
+        synchronized (lock) {
+            return failure != null;
+        }
+    }
+
+    /**
+     * Closes this log, after making all the appended records durable (unless it is in the failed state).
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            try {
+                if (failure == null) {
+                    commit(appendedCount);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Encodes a record and queues it for writing.
+     *
+     * @return the sequence number of the record
+     * @throws IOException if the log is in the failed state
+     */
+    private long append(byte kind, List<Term> facts) throws IOException {
+        FCSnapshot.Output out = new FCSnapshot.Output();
+        out.putInt(0);
+        out.putInt(0);
+        out.putByte(kind);
+        out.putInt(facts.size());
+        for (Term fact : facts) {
+            FCSnapshot.writeTerm(out, fact);
+        }
+        ByteBuffer record = out.flipped().order(ByteOrder.LITTLE_ENDIAN);
+        int length = record.limit() - RECORD_HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = record.duplicate();
+        payload.position(RECORD_HEADER_BYTES);
+        crc.update(payload);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        synchronized (lock) {
+            if (failure != null) {
+                throw new IOException("The write-ahead log " + file + " failed", failure);
+            }
+            pending.add(record);
+            return ++appendedCount;
+        }
+    }
+
+    /**
+     * Waits until the record with the specified sequence number is durable. If no other thread is writing, this thread
+     * writes (and syncs) all the pending records, including the ones appended by other threads. If the record cannot
+     * be made durable, the log enters the failed state, and the error is thrown to all the waiting threads.
+     */
+    private void commit(long sequence) throws IOException {
+        while (true) {
+            List<ByteBuffer> batch;
+            long batchEnd;
+            synchronized (lock) {
+                while (flushing && durableCount < sequence && failure == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the log to be written");
+                    }
+                }
+                if (durableCount >= sequence) {
+                    return;
+                }
+                if (failure != null) {
+                    throw new IOException("The write-ahead log " + file + " failed", failure);
+                }
+                flushing = true;
+                batch = pending;
+                batchEnd = appendedCount;
+                pending = new ArrayList<>();
+            }
+            IOException error = null;
+            long end = 0;
+            try {
+                for (ByteBuffer record : batch) {
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                }
+                channel.force(false);
+                end = channel.position();
+            } catch (IOException | RuntimeException e) {
+                error = e instanceof IOException ? (IOException) e : new IOException(e);
+                discardPartialRecords(error);
+            } finally {
+                synchronized (lock) {
+                    flushing = false;
+                    if (error == null) {
+                        durableCount = batchEnd;
+                        durableEnd = end;
+                    } else {
+                        failure = error;
+                        pending = new ArrayList<>();
+                    }
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Truncates the file after the last durable record, after a failed write, so that a partially written record is
+     * not followed by other records, which would be hidden from recovery.
+     */
+    private void discardPartialRecords(IOException error) {
+        long end;
+        synchronized (lock) {
+            end = durableEnd;
+        }
+        try {
+            channel.truncate(end);
+            channel.position(end);
+            channel.force(false);
+        } catch (IOException e) {
+            // the log is not written anymore, and a partial record at the end of the file is discarded on recovery
+            error.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Reads the payload of the record at the specified position, or returns null if there is no complete and valid
+     * record there.
+     */
+    private static ByteBuffer readRecord(FileChannel channel, long position) throws IOException {
+        long size = channel.size();
+        if (position + RECORD_HEADER_BYTES > size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, position);
+        int length = header.getInt(0);
+        int checksum = header.getInt(4);
+        if (length <= 0 || position + RECORD_HEADER_BYTES + length > size) {
+            return null;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, payload, position + RECORD_HEADER_BYTES);
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        return payload;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    private static List<Term> readFacts(ByteBuffer record, FCSnapshot.Registry registry) throws IOException {
+        int count = record.getInt();
+        List<Term> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(FCSnapshot.readTerm(record, registry));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,68 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A knowledge base kept at its fixed point while batches of facts are added to it, in place: the first batch brings
+ * the whole knowledge base to its fixed point, the next ones extend it incrementally (see
+ * {@link SimpleForwardChaining#extendToFixedPoint(FCKnowledgeBase, List)}). After each batch, the expired facts are
+ * removed (see {@link FCKnowledgeBase#expireFacts()}).
+ * <br>
+ * Used by {@link FCIngestionEngine} and by the sessions of {@link FCSessionScheduler}; it is not thread safe.
+ */
+class IncrementalFixpoint {
+
+    private final FCKnowledgeBase kb;
+    private boolean atFixedPoint = false;
+
+    IncrementalFixpoint(FCKnowledgeBase kb) {
+        this.kb = kb;
+    }
+
+    /**
+     * Adds a batch of facts to the knowledge base, bringing it to its fixed point.
+     * <br>
+     * If the computation fails (e.g. because an action of a rule throws an exception), the facts of the batch are
+     * added anyway, but their consequences may have been derived only in part: the knowledge base is then no longer
+     * considered at its fixed point, and the next batch brings the whole knowledge base to its fixed point again.
+     *
+     * @param batch the facts to be added
+     * @return the result of the fixpoint computation
+     * @throws RuntimeException the exception that made the computation fail
+     */
+    FCResult add(List<Term> batch) {
+        FCResult result;
+        try {
+            if (atFixedPoint) {
+                result = SimpleForwardChaining.extendToFixedPoint(kb, batch);
+            } else {
+                kb.addFacts(batch);
+                result = SimpleForwardChaining.getToFixedPointInPlace(kb);
+                atFixedPoint = true;
+            }
+        } catch (RuntimeException e) {
+            if (atFixedPoint) {
+                // the facts of the batch are stored only at the end of the first iteration (they are already logged)
+                RenamingIndex added = new RenamingIndex();
+                List<Term> missing = new ArrayList<>();
+                for (Term fact : batch) {
+                    if (!kb.containsRenamingOf(fact) && added.addIfAbsent(fact)) {
+                        missing.add(fact);
+                    }
+                }
+                kb.insertFacts(missing);
+            }
+            atFixedPoint = false;
+            throw e;
+        }
+        kb.expireFacts();
+        return result;
+    }
+
+    FCKnowledgeBase knowledgeBase() {
+        return kb;
+    }
+}
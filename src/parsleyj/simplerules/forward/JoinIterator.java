@@ -0,0 +1,722 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.CustomUnifiable;
+import parsleyj.simplerules.terms.Struct;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Type;
+import parsleyj.simplerules.terms.Variable;
+import parsleyj.simplerules.unify.SimpleUnify;
+import parsleyj.simplerules.unify.Substitution;
+import parsleyj.simplerules.unify.UnificationResult;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Enumerates the sequences of candidate facts that unify with a sequence of premises, joining the premises from left
+ * to right.
+ * <br>
+ * Each premise is unified with its candidates as soon as the previous premises are matched, so that partial
+ * sequences that cannot unify are discarded as early as possible, instead of enumerating the whole cartesian product
+ * of the candidates. When a premise shares variables with the previous ones, and it has enough candidates, its
+ * candidates are put in a hash table keyed by the arguments in the positions of the shared variables (hash join): the
+ * table is built once, and probed with the values bound by each partial match, so that only the candidates with the
+ * right values are tried. The hash tables of the candidates which are all the facts of a relation are kept by the
+ * knowledge base, reused by the next joins, and extended when facts are added to the relation (see
+ * {@link FCKnowledgeBase#joinIndex(Term, List, int[])}).
+ * <br>
+ * The sequences are produced in the same order of a nested loop over the candidates (the last premise varying
+ * fastest), and each one comes with the result of its unification with the premises (see {@link #unification()}),
+ * which is the same of {@link SimpleUnify#conjunctUnify(UnificationResult, List, List)}.
+ * <br>
+ * When the variables of the head are known, a premise whose new variables (the ones not appearing in the previous
+ * premises) do not appear in the head nor in the next premises is evaluated as an existence check (semi-join): once a
+ * candidate matches it, the other candidates are skipped, since they would lead to the same matches of the next
+ * premises, and to the same instances of the head. This is the case, e.g., of {@code reading(X, _, _)} in
+ * {@code alarm(X) :- sensor(X), reading(X, _, _)}. The check is applied only if the facts selected for the previous
+ * premises are ground (native facts are assumed to bind variables only to ground terms), otherwise the skipped
+ * candidates could bind variables of the previous facts in different ways.
+ * <br>
+ * When the premises form a cyclic pattern of shared variables (e.g. {@code edge(A, B), edge(B, C), edge(C, A)}), and
+ * all their candidates are relations of atoms, they are joined by a {@link TrieJoin} instead, which produces the same
+ * sequences in a different order.
+ * <br>
+ * When a {@link RuleMatcher} compiled from the premises is provided, and all the candidates of a pass are relations of
+ * atoms, the candidates are matched by it instead of being unified, and the values of the variables are kept in its
+ * slots; the unification of a complete sequence is then built from the slots, with the same bindings.
+ * <br>
+ * An iterator can perform several passes, each one with its own candidates for the premises (e.g. one for each
+ * position of the delta in semi-naive evaluation), one after the other.
+ * <br>
+ * An iterator can be stopped by a check of the interruption of the process (see
+ * {@link #setInterruptionCheck(Supplier)}), which is performed periodically while searching for the next match, so
+ * that a join producing few matches from many candidates is stopped as promptly as one producing many matches.
+ */
+class JoinIterator implements Iterator<List<Term>> {
+
+    /**
+     * The minimum number of candidates of a premise for which a hash table is built.
+     */
+    static final int HASH_JOIN_THRESHOLD = 8;
+
+    /**
+     * The number of steps of the search (unifications attempted, or matches found by a trie join) between two checks
+     * of the interruption; must be a power of two.
+     */
+    private static final int INTERRUPTION_CHECK_INTERVAL = 256;
+
+    private final List<List<List<Term>>> passes;
+    private final List<? extends Term> premises;
+    private final int size;
+    private final boolean cyclic;
+    private int pass = 0;
+    private List<List<Term>> candidates;
+    private TrieJoin trieJoin = null;
+    /**
+     * For each premise, the positions of its arguments which are variables bound by the previous premises, or null
+     * if the premise is not joined with a hash table.
+     */
+    private final int[][] keyPositions;
+    private final String[][] keyVariables;
+    private final HashIndex[] indexes;
+    /**
+     * The knowledge base whose hash tables of the candidates are reused (see
+     * {@link FCKnowledgeBase#joinIndex(Term, List, int[])}), or null.
+     */
+    private final FCKnowledgeBase indexSource;
+    /**
+     * For each premise, the indexes of the candidates to be tried for the current partial match, or null to try all
+     * the candidates.
+     */
+    private final int[][] rows;
+    private final int[] cursors;
+    private final UnificationResult[] thetas;
+    private final Term[] selected;
+    /**
+     * For each premise, true if it can be evaluated as an existence check, and true if a candidate matched it for
+     * the current partial match, so that the other candidates can be skipped.
+     */
+    private final boolean[] existential;
+    private final boolean[] matched;
+    /**
+     * For each level, true if the facts selected for the previous premises are all ground (only tracked if some
+     * premise can be evaluated as an existence check).
+     */
+    private final boolean[] groundBefore;
+    private final int lastExistential;
+    /**
+     * The compiled matcher of the premises, or null; the names of the variables in its slots, and their values. The
+     * matcher is used only in the passes in which {@code compiled} is true.
+     */
+    private final RuleMatcher matcher;
+    private final List<String> slotVariables;
+    private final Term[] slots;
+    private final int[][] keySlots;
+    private boolean compiled = false;
+    private int level;
+    private boolean ready = false;
+    private long attempts = 0;
+    private long failures = 0;
+    private Supplier<FCResult.Status> interruptionCheck = null;
+    private FCResult.Status interruption = null;
+    private long steps = 0;
+    /**
+     * For each premise, the number of partial matches of the previous premises that reached it, the number of them
+     * extended by one of its candidates, and the number of probes of its hash table (see {@link #entered(int)}).
+     */
+    private final long[] entered;
+    private final long[] survived;
+    private final long[] probes;
+    private int trieJoinPasses = 0;
+    private int compiledPasses = 0;
+
+    /**
+     * Creates an iterator over the sequences of the candidates of the specified premises in the knowledge base.
+     */
+    JoinIterator(FCKnowledgeBase kb, List<? extends Term> premises) {
+        this(kb, premises, null);
+    }
+
+    /**
+     * Creates an iterator over the sequences of the candidates of the specified premises in the knowledge base,
+     * which are used to produce instances of the specified head (so that the premises whose variables are not used
+     * can be evaluated as existence checks).
+     */
+    JoinIterator(FCKnowledgeBase kb, List<? extends Term> premises, Term head) {
+        this(kb, premises, head, null);
+    }
+
+    /**
+     * Creates an iterator over the sequences of the candidates of the specified premises in the knowledge base, which
+     * are matched with the specified compiled matcher (if not null) when possible.
+     */
+    JoinIterator(FCKnowledgeBase kb, List<? extends Term> premises, Term head, RuleMatcher matcher) {
+        this(kb, premises, head, Collections.singletonList(candidatesOf(kb, premises)), matcher);
+    }
+
+    /**
+     * Creates an iterator performing a pass for each of the specified lists of candidates (which contain one list
+     * for each premise). If the head is not null, only the sequences producing different instances of the head are
+     * guaranteed to be enumerated.
+     */
+    JoinIterator(List<? extends Term> premises, Term head, List<List<List<Term>>> passes) {
+        this(premises, head, passes, null);
+    }
+
+    /**
+     * Creates an iterator performing a pass for each of the specified lists of candidates, matching them with the
+     * specified compiled matcher (if not null) when possible.
+     */
+    JoinIterator(List<? extends Term> premises, Term head, List<List<List<Term>>> passes, RuleMatcher matcher) {
+        this(null, premises, head, passes, matcher);
+    }
+
+    /**
+     * Creates an iterator performing a pass for each of the specified lists of candidates, some of which are
+     * candidates of the premises in the specified knowledge base (if not null), so that their hash tables are reused
+     * instead of being built by each pass.
+     */
+    JoinIterator(FCKnowledgeBase indexSource, List<? extends Term> premises, Term head,
+                 List<List<List<Term>>> passes, RuleMatcher matcher) {
+        this.indexSource = indexSource;
+        this.passes = passes;
+        this.premises = premises;
+        this.size = premises.size();
+        this.keyPositions = new int[size][];
+        this.keyVariables = new String[size][];
+        this.indexes = new HashIndex[size];
+        this.rows = new int[size][];
+        this.cursors = new int[size];
+        this.thetas = new UnificationResult[size + 1];
+        this.selected = new Term[size];
+        this.thetas[0] = UnificationResult.empty();
+        this.cyclic = TrieJoin.isApplicable(premises);
+        this.existential = head == null ? new boolean[size] : existentialPremises(premises, head);
+        this.matched = new boolean[size];
+        this.groundBefore = new boolean[size + 1];
+        this.groundBefore[0] = true;
+        int last = -1;
+        for (int i = 0; i < size; i++) {
+            if (existential[i]) {
+                last = i;
+            }
+        }
+        this.lastExistential = last;
+        this.slotVariables = matcher != null ? TrieJoin.variables(premises) : Collections.emptyList();
+        this.matcher = matcher != null && slotVariables.size() == matcher.variablesCount() ? matcher : null;
+        this.slots = new Term[slotVariables.size()];
+        this.keySlots = new int[size][];
+        this.entered = new long[size];
+        this.survived = new long[size];
+        this.probes = new long[size];
+        startPass();
+    }
+
+    /**
+     * Returns, for each premise, true if none of its new variables appears in the head or in the next premises.
+     */
+    static boolean[] existentialPremises(List<? extends Term> premises, Term head) {
+        boolean[] result = new boolean[premises.size()];
+        Map<String, Type> used = new HashMap<>();
+        head.populateVarTypes(used);
+        Map<String, Type> previous = new HashMap<>();
+        List<Set<String>> variables = new ArrayList<>();
+        for (Term premise : premises) {
+            Map<String, Type> premiseVariables = new HashMap<>();
+            premise.populateVarTypes(premiseVariables);
+            variables.add(premiseVariables.keySet());
+        }
+        for (int i = 0; i < premises.size(); i++) {
+            Set<String> later = new HashSet<>(used.keySet());
+            for (int j = i + 1; j < premises.size(); j++) {
+                later.addAll(variables.get(j));
+            }
+            result[i] = true;
+            for (String variable : variables.get(i)) {
+                if (!previous.containsKey(variable) && later.contains(variable)) {
+                    result[i] = false;
+                    break;
+                }
+            }
+            premises.get(i).populateVarTypes(previous);
+        }
+        return result;
+    }
+
+    private void startPass() {
+        if (pass >= passes.size()) {
+            level = -1;
+            return;
+        }
+        candidates = passes.get(pass);
+        compiled = false;
+        if (trieJoin != null) {
+            attempts += trieJoin.attempts();
+            failures += trieJoin.failures();
+            for (int i = 0; i < size; i++) {
+                entered[i] += trieJoin.entered(i);
+                survived[i] += trieJoin.survived(i);
+            }
+            trieJoin = null;
+        }
+        if (cyclic) {
+            trieJoin = TrieJoin.create(premises, candidates, indexSource);
+            if (trieJoin != null) {
+                trieJoinPasses++;
+                level = 0;
+                return;
+            }
+        }
+        Arrays.fill(keyPositions, null);
+        Arrays.fill(keyVariables, null);
+        Arrays.fill(keySlots, null);
+        Arrays.fill(indexes, null);
+        compiled = matcher != null && candidates.stream().allMatch(
+                facts -> TableCandidates.allTermsMatch(facts, RuleMatcher::isAtomRelation));
+        if (compiled) {
+            compiledPasses++;
+        }
+        planJoins();
+        level = size == 0 || candidates.stream().anyMatch(List::isEmpty) ? -1 : 0;
+        if (level == 0) {
+            openLevel(0);
+        }
+    }
+
+    private static List<List<Term>> candidatesOf(FCKnowledgeBase kb, List<? extends Term> premises) {
+        RangeGuards guards = RangeGuards.of(premises);
+        List<List<Term>> result = new ArrayList<>();
+        for (Term premise : premises) {
+            result.add(kb.candidatesFor(premise, guards));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the positions of the arguments of the premise at index i which can be used as keys of a hash join, i.e.
+     * the variables appearing in the previous premises, or null if there are none.
+     */
+    static int[] joinKeyPositions(List<? extends Term> premises, int i) {
+        Term premise = premises.get(i);
+        if (i == 0 || !(premise instanceof Struct) || premise instanceof CustomUnifiable) {
+            return null;
+        }
+        Map<String, Type> previousVariables = new HashMap<>();
+        for (int p = 0; p < i; p++) {
+            premises.get(p).populateVarTypes(previousVariables);
+        }
+        List<Term> args = ((Struct) premise).toJavaList();
+        int[] result = new int[args.size()];
+        int count = 0;
+        for (int a = 0; a < args.size(); a++) {
+            Term arg = args.get(a);
+            if (arg instanceof Variable && previousVariables.containsKey(((Variable) arg).getName())) {
+                result[count++] = a;
+            }
+        }
+        return count == 0 ? null : Arrays.copyOf(result, count);
+    }
+
+    private void planJoins() {
+        for (int i = 1; i < size; i++) {
+            if (candidates.get(i).size() < HASH_JOIN_THRESHOLD) {
+                continue;
+            }
+            int[] positions = joinKeyPositions(premises, i);
+            if (positions != null) {
+                List<Term> args = ((Struct) premises.get(i)).toJavaList();
+                keyPositions[i] = positions;
+                keyVariables[i] = new String[positions.length];
+                for (int k = 0; k < positions.length; k++) {
+                    keyVariables[i][k] = ((Variable) args.get(positions[k])).getName();
+                }
+                if (compiled) {
+                    keySlots[i] = new int[positions.length];
+                    for (int k = 0; k < positions.length; k++) {
+                        keySlots[i][k] = slotVariables.indexOf(keyVariables[i][k]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the result of the unification of the last sequence returned by {@link #next()} with the premises.
+     */
+    UnificationResult unification() {
+        if (compiled) {
+            Substitution subs = new Substitution();
+            for (int v = 0; v < slots.length; v++) {
+                subs.put(slotVariables.get(v), slots[v]);
+            }
+            return new UnificationResult(subs);
+        }
+        return thetas[size];
+    }
+
+    /**
+     * Returns the number of unifications of a candidate with a premise attempted so far.
+     */
+    long attempts() {
+        return attempts + (trieJoin != null ? trieJoin.attempts() : 0);
+    }
+
+    /**
+     * Returns the number of failed unifications of a candidate with a premise so far.
+     */
+    long failures() {
+        return failures + (trieJoin != null ? trieJoin.failures() : 0);
+    }
+
+    /**
+     * Returns the number of partial matches of the premises before the specified one that reached it, in all the
+     * passes so far. In a pass performed by a trie join, these are the combinations of candidates agreeing on the
+     * values of all the variables, which are unified with the premises in order.
+     */
+    long entered(int premise) {
+        return entered[premise] + (trieJoin != null ? trieJoin.entered(premise) : 0);
+    }
+
+    /**
+     * Returns the number of partial matches that were extended by a candidate of the specified premise, in all the
+     * passes so far.
+     */
+    long survived(int premise) {
+        return survived[premise] + (trieJoin != null ? trieJoin.survived(premise) : 0);
+    }
+
+    /**
+     * Returns the number of lookups in the hash table of the candidates of the specified premise, in all the passes
+     * so far (0 if it was never joined with a hash table).
+     */
+    long probes(int premise) {
+        return probes[premise];
+    }
+
+    /**
+     * Returns the number of the passes so far performed by a {@link TrieJoin}.
+     */
+    int trieJoinPasses() {
+        return trieJoinPasses;
+    }
+
+    /**
+     * Returns the number of the passes so far whose candidates were matched by the compiled matcher.
+     */
+    int compiledPasses() {
+        return compiledPasses;
+    }
+
+    /**
+     * Sets the check of the interruption of the process using this iterator, which returns the status with which the
+     * process must stop, or null if it can continue. When the check returns a status, the iterator stops producing
+     * matches, and the status is returned by {@link #interruption()}.
+     */
+    void setInterruptionCheck(Supplier<FCResult.Status> check) {
+        this.interruptionCheck = check;
+    }
+
+    /**
+     * Returns the status returned by the check which stopped this iterator, or null if it was not stopped.
+     */
+    FCResult.Status interruption() {
+        return interruption;
+    }
+
+    /**
+     * Performs the check of the interruption if it is due, i.e. once every
+     * {@link #INTERRUPTION_CHECK_INTERVAL} steps, starting from the first one.
+     *
+     * @return true if the iterator must stop
+     */
+    private boolean interrupted() {
+        if (interruptionCheck == null || (steps++ & (INTERRUPTION_CHECK_INTERVAL - 1)) != 0) {
+            return false;
+        }
+        interruption = interruptionCheck.get();
+        return interruption != null;
+    }
+
+    /**
+     * Returns true if the current pass is performed by a {@link TrieJoin}.
+     */
+    boolean isTrieJoin() {
+        return trieJoin != null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!ready && interruption == null && pass < passes.size()) {
+            ready = advance();
+            if (!ready && interruption == null) {
+                pass++;
+                startPass();
+            }
+        }
+        return ready;
+    }
+
+    @Override
+    public List<Term> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        return new ArrayList<>(Arrays.asList(selected));
+    }
+
+    /**
+     * Finds the next complete match, starting from the current state.
+     */
+    private boolean advance() {
+        if (trieJoin != null) {
+            if (interrupted() || !trieJoin.advance()) {
+                return false;
+            }
+            System.arraycopy(trieJoin.selected(), 0, selected, 0, size);
+            thetas[size] = trieJoin.unification();
+            return true;
+        }
+        if (level == size) {
+            // backtrack from the previous match
+            level = size - 1;
+        }
+        while (level >= 0) {
+            int count = rows[level] != null ? rows[level].length : candidates.get(level).size();
+            if (cursors[level] >= count || matched[level]) {
+                level--;
+                continue;
+            }
+            if (interrupted()) {
+                return false;
+            }
+            int row = rows[level] != null ? rows[level][cursors[level]] : cursors[level];
+            cursors[level]++;
+            attempts++;
+            Term fact;
+            if (compiled) {
+                // the rows of a table are matched on their atoms, and materialized only if they match
+                if (!matcher.match(level, TableCandidates.argumentsOf(candidates.get(level), row), slots)) {
+                    failures++;
+                    continue;
+                }
+                fact = candidates.get(level).get(row);
+            } else {
+                fact = candidates.get(level).get(row);
+                UnificationResult ur = SimpleUnify.unify(thetas[level], fact, premises.get(level));
+                if (ur.isFailure()) {
+                    failures++;
+                    continue;
+                }
+                thetas[level + 1] = ur;
+            }
+            survived[level]++;
+            selected[level] = fact;
+            if (existential[level] && groundBefore[level]) {
+                matched[level] = true;
+            }
+            if (level < lastExistential) {
+                groundBefore[level + 1] = groundBefore[level] && isGround(fact);
+            }
+            if (level == size - 1) {
+                level = size;
+                return true;
+            }
+            level++;
+            openLevel(level);
+        }
+        return false;
+    }
+
+    /**
+     * Prepares the candidates of the premise at index i for the current partial match.
+     */
+    private void openLevel(int i) {
+        cursors[i] = 0;
+        rows[i] = null;
+        matched[i] = false;
+        entered[i]++;
+        if (keyPositions[i] == null) {
+            return;
+        }
+        Substitution subs = compiled ? null : thetas[i].getSubstitution();
+        Term[] key = new Term[keyVariables[i].length];
+        for (int k = 0; k < key.length; k++) {
+            Term value = compiled ? slots[keySlots[i][k]] : resolve(subs, keyVariables[i][k]);
+            if (!(value instanceof Atom)) {
+                // not bound to an atom: all the candidates must be tried
+                return;
+            }
+            key[k] = value;
+        }
+        if (indexes[i] == null) {
+            indexes[i] = indexSource != null
+                    ? indexSource.joinIndex(premises.get(i), candidates.get(i), keyPositions[i]) : null;
+            if (indexes[i] == null) {
+                indexes[i] = new HashIndex(candidates.get(i), keyPositions[i]);
+            }
+        }
+        probes[i]++;
+        rows[i] = indexes[i].probe(key);
+    }
+
+    /**
+     * Returns true if the term does not contain variables (a term with a custom unification is considered ground).
+     */
+    static boolean isGround(Term term) {
+        if (term instanceof Atom || term instanceof CustomUnifiable) {
+            return true;
+        } else if (term instanceof Struct) {
+            for (Term t : ((Struct) term).toJavaList()) {
+                if (!isGround(t)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static Term resolve(Substitution subs, String name) {
+        Term value = subs.contains(name) ? subs.get(name) : null;
+        for (int steps = 0; value instanceof Variable && steps < 64; steps++) {
+            String next = ((Variable) value).getName();
+            if (!subs.contains(next)) {
+                break;
+            }
+            value = subs.get(next);
+        }
+        return value;
+    }
+
+    /**
+     * Hash table of candidate facts, keyed by the atoms in some argument positions. The facts which do not have atoms
+     * in all these positions (e.g. non-ground facts) can match any key, so they are kept apart and returned by all the
+     * probes. The keys of the rows of a table (see {@link TableCandidates}) are read from the table, without
+     * materializing the rows.
+     * <br>
+     * An index covers a range of the facts of a list, and can be extended to the facts appended to the list (see
+     * {@link #extend(HashIndex, List, int[])}) with a new index over the appended ones, which is probed after the
+     * indexes of the previous ranges.
+     */
+    static class HashIndex {
+        private static final int[] EMPTY = new int[0];
+        private final Map<Object, int[]> buckets = new HashMap<>();
+        private final int[] wildcards;
+        private final int keyLength;
+        private final HashIndex previous;
+        private final int start;
+        private final int end;
+
+        /**
+         * Creates an index of all the specified facts.
+         */
+        HashIndex(List<Term> facts, int[] positions) {
+            this(facts, positions, 0, null);
+        }
+
+        /**
+         * Creates an index of the facts from the specified index to the end of the list, extending the index of the
+         * previous ones (if not null).
+         */
+        private HashIndex(List<Term> facts, int[] positions, int start, HashIndex previous) {
+            this.keyLength = positions.length;
+            this.previous = previous;
+            this.start = start;
+            this.end = facts.size();
+            Map<Object, List<Integer>> lists = new HashMap<>();
+            List<Integer> wildcardList = new ArrayList<>();
+            for (int row = start; row < end; row++) {
+                Object key = keyOf(TableCandidates.argumentsOf(facts, row), positions);
+                if (key == null) {
+                    wildcardList.add(row);
+                } else {
+                    lists.computeIfAbsent(key, k -> new ArrayList<>(2)).add(row);
+                }
+            }
+            lists.forEach((key, list) -> buckets.put(key, toArray(list)));
+            this.wildcards = toArray(wildcardList);
+        }
+
+        /**
+         * Returns an index of the specified facts, whose first ones are the ones indexed by the specified index,
+         * which indexes only the facts appended after them. The indexes of ranges of similar sizes are merged, so
+         * that an index extended many times is made of a number of ranges logarithmic in the number of facts, and
+         * each fact is indexed again a logarithmic number of times.
+         */
+        static HashIndex extend(HashIndex index, List<Term> facts, int[] positions) {
+            if (index.end == facts.size()) {
+                return index;
+            }
+            HashIndex result = new HashIndex(facts, positions, index.end, index);
+            while (result.previous != null && result.previous.end - result.previous.start <= result.end - result.start) {
+                result = new HashIndex(facts, positions, result.previous.start, result.previous.previous);
+            }
+            return result;
+        }
+
+        private static Object keyOf(List<Term> args, int[] positions) {
+            if (args == null) {
+                return null;
+            }
+            if (positions.length == 1) {
+                Term arg = positions[0] < args.size() ? args.get(positions[0]) : null;
+                return arg instanceof Atom ? arg : null;
+            }
+            List<Term> key = new ArrayList<>(positions.length);
+            for (int position : positions) {
+                Term arg = position < args.size() ? args.get(position) : null;
+                if (!(arg instanceof Atom)) {
+                    return null;
+                }
+                key.add(arg);
+            }
+            return key;
+        }
+
+        /**
+         * Returns the indexes of the facts that can match the specified key, in increasing order.
+         */
+        int[] probe(Term[] key) {
+            int[] bucket = buckets.get(keyLength == 1 ? key[0] : Arrays.asList(key));
+            if (bucket == null) {
+                bucket = EMPTY;
+            }
+            int[] result = wildcards.length == 0 ? bucket : merge(bucket, wildcards);
+            if (previous == null) {
+                return result;
+            }
+            // the facts of the previous ranges come before the ones of this range
+            int[] before = previous.probe(key);
+            if (result.length == 0) {
+                return before;
+            }
+            int[] all = Arrays.copyOf(before, before.length + result.length);
+            System.arraycopy(result, 0, all, before.length, result.length);
+            return all;
+        }
+        private static int[] merge(int[] a, int[] b) {
+            int[] result = new int[a.length + b.length];
+            int i = 0, j = 0, k = 0;
+            while (i < a.length && j < b.length) {
+                result[k++] = a[i] < b[j] ? a[i++] : b[j++];
+            }
+            while (i < a.length) {
+                result[k++] = a[i++];
+            }
+            while (j < b.length) {
+                result[k++] = b[j++];
+            }
+            return result;
+        }
+
+        private static int[] toArray(List<Integer> list) {
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = list.get(i);
+            }
+            return result;
+        }
+    }
+}
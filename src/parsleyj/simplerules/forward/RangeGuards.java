@@ -0,0 +1,122 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.NativeFactInvoker;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Variable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ranges of values allowed for the variables of a sequence of premises by their comparison guards, i.e. the
+ * premises invoking the integer comparisons of {@link parsleyj.simplerules.NativeFacts#nativeIntegerFacts()}
+ * ({@code <}, {@code <=}, {@code >}, {@code >=} of the {@code INT_LIB} module) between a variable and an integer
+ * atom, e.g. {@code invokeNative("INT_LIB", "<", var("M"), atom(10))}.
+ * <br>
+ * Such a guard can only succeed if the variable is bound to an integer in the range, so the candidates of the other
+ * premises having the variable as an argument can be retrieved with a range scan on a {@link RangeIndex}, instead of
+ * being filtered by the guard after being joined. The guards are still evaluated as usual.
+ */
+class RangeGuards {
+
+    static final String MODULE = "INT_LIB";
+
+    static final RangeGuards NONE = new RangeGuards(Collections.emptyMap());
+
+    /**
+     * For each constrained variable, the minimum and the maximum allowed value (included).
+     */
+    private final Map<String, long[]> ranges;
+
+    private RangeGuards(Map<String, long[]> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * Collects the ranges allowed by the comparison guards among the specified premises.
+     */
+    static RangeGuards of(List<? extends Term> premises) {
+        Map<String, long[]> ranges = null;
+        for (Term premise : premises) {
+            if (!(premise instanceof NativeFactInvoker) || !MODULE.equals(((NativeFactInvoker) premise).getModule())) {
+                continue;
+            }
+            NativeFactInvoker guard = (NativeFactInvoker) premise;
+            List<Term> terms = guard.toJavaList();
+            if (terms.size() != 3) {
+                continue;
+            }
+            String operator = guard.getName();
+            Term left = terms.get(1);
+            Term right = terms.get(2);
+            if (left instanceof Atom && right instanceof Variable) {
+                // c < X is X > c, and so on
+                operator = mirror(operator);
+                Term swap = left;
+                left = right;
+                right = swap;
+            }
+            if (operator == null || !(left instanceof Variable) || !(right instanceof Atom)
+                    || !(((Atom<?>) right).getWrappedValue() instanceof Integer)) {
+                continue;
+            }
+            long value = (Integer) ((Atom<?>) right).getWrappedValue();
+            long min = Long.MIN_VALUE;
+            long max = Long.MAX_VALUE;
+            switch (operator) {
+                case "<":
+                    max = value - 1;
+                    break;
+                case "<=":
+                    max = value;
+                    break;
+                case ">":
+                    min = value + 1;
+                    break;
+                case ">=":
+                    min = value;
+                    break;
+                default:
+                    continue;
+            }
+            if (ranges == null) {
+                ranges = new HashMap<>();
+            }
+            long[] range = ranges.computeIfAbsent(((Variable) left).getName(),
+                    v -> new long[]{Long.MIN_VALUE, Long.MAX_VALUE});
+            range[0] = Math.max(range[0], min);
+            range[1] = Math.min(range[1], max);
+        }
+        return ranges == null ? NONE : new RangeGuards(ranges);
+    }
+
+    private static String mirror(String operator) {
+        switch (operator) {
+            case "<":
+                return ">";
+            case "<=":
+                return ">=";
+            case ">":
+                return "<";
+            case ">=":
+                return "<=";
+            default:
+                return null;
+        }
+    }
+
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * Returns the minimum and the maximum value (included) allowed for the variable, or null if it is not
+     * constrained.
+     */
+    long[] rangeOf(String variable) {
+        return ranges.get(variable);
+    }
+}
@@ -0,0 +1,132 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.CustomUnifiable;
+import parsleyj.simplerules.terms.Struct;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Variable;
+
+import java.util.*;
+
+/**
+ * Sorted index of the facts of a relation by the integer value of one of their arguments, used to retrieve only the
+ * facts whose argument is in a range (see {@link RangeGuards}), instead of scanning all the facts of the relation.
+ * <br>
+ * The facts whose argument is an integer atom are kept in a {@link TreeMap} by value; the facts whose argument is a
+ * variable (or a term with a custom unification) could take any value, so they are returned by all the range scans.
+ * The facts whose argument is any other term are never returned, since no integer comparison can succeed on them. The
+ * facts are returned in insertion order.
+ */
+class RangeIndex {
+
+    /**
+     * The position of the indexed argument in {@link Struct#toJavaList()} of the facts.
+     */
+    private final int position;
+    private final TreeMap<Integer, List<Entry>> sorted = new TreeMap<>();
+    private final List<Entry> unbound = new ArrayList<>();
+    private long nextSequence = 0;
+
+    RangeIndex(int position, Collection<? extends Term> terms) {
+        this.position = position;
+        terms.forEach(this::add);
+    }
+
+    /**
+     * Returns the value of the indexed argument of the fact, if it is an integer atom, otherwise null.
+     */
+    private Integer keyOf(Term fact) {
+        Term argument = argumentOf(fact);
+        if (argument instanceof Atom && ((Atom<?>) argument).getWrappedValue() instanceof Integer) {
+            return (Integer) ((Atom<?>) argument).getWrappedValue();
+        }
+        return null;
+    }
+
+    private Term argumentOf(Term fact) {
+        if (!(fact instanceof Struct)) {
+            return null;
+        }
+        List<Term> terms = ((Struct) fact).toJavaList();
+        return position < terms.size() ? terms.get(position) : null;
+    }
+
+    private boolean isUnbound(Term fact) {
+        Term argument = argumentOf(fact);
+        return argument instanceof Variable || argument instanceof CustomUnifiable
+                || fact instanceof CustomUnifiable;
+    }
+
+    void add(Term fact) {
+        Integer key = keyOf(fact);
+        Entry entry = new Entry(nextSequence++, fact);
+        if (key != null) {
+            sorted.computeIfAbsent(key, k -> new ArrayList<>(1)).add(entry);
+        } else if (isUnbound(fact)) {
+            unbound.add(entry);
+        }
+    }
+
+    /**
+     * Removes the terms contained in the specified set, according to the notion of equality of the set (e.g.
+     * identity, for sets backed by an {@link IdentityHashMap}).
+     *
+     * @param terms       the terms whose keys are visited
+     * @param toBeRemoved the terms to be removed
+     */
+    void removeAll(Collection<Term> terms, Set<Term> toBeRemoved) {
+        boolean unboundVisited = false;
+        for (Term term : terms) {
+            Integer key = keyOf(term);
+            if (key != null) {
+                List<Entry> entries = sorted.get(key);
+                if (entries != null) {
+                    entries.removeIf(entry -> toBeRemoved.contains(entry.term));
+                    if (entries.isEmpty()) {
+                        sorted.remove(key);
+                    }
+                }
+            } else if (!unboundVisited && isUnbound(term)) {
+                unbound.removeIf(entry -> toBeRemoved.contains(entry.term));
+                unboundVisited = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the facts whose argument can be in the specified range (bounds included), in insertion order.
+     */
+    List<Term> inRange(long min, long max) {
+        List<Entry> entries = new ArrayList<>(unbound);
+        rangeOf(min, max).values().forEach(entries::addAll);
+        entries.sort(Comparator.comparingLong(entry -> entry.sequence));
+        List<Term> result = new ArrayList<>(entries.size());
+        entries.forEach(entry -> result.add(entry.term));
+        return result;
+    }
+
+    /**
+     * Returns the number of facts whose argument can be in the specified range (bounds included).
+     */
+    int countInRange(long min, long max) {
+        return unbound.size() + rangeOf(min, max).values().stream().mapToInt(List::size).sum();
+    }
+
+    private NavigableMap<Integer, List<Entry>> rangeOf(long min, long max) {
+        if (min > max || min > Integer.MAX_VALUE || max < Integer.MIN_VALUE) {
+            return Collections.emptyNavigableMap();
+        }
+        return sorted.subMap((int) Math.max(min, Integer.MIN_VALUE), true,
+                (int) Math.min(max, Integer.MAX_VALUE), true);
+    }
+
+    private static class Entry {
+        private final long sequence;
+        private final Term term;
+
+        private Entry(long sequence, Term term) {
+            this.sequence = sequence;
+            this.term = term;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.Struct;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Variable;
+
+import java.util.*;
+
+/**
+ * Hash-based multiset of terms, used to check in constant expected time whether it contains a term of which another
+ * term is "just a renaming" (see {@link Term#justARenaming(Term)}), instead of scanning a list of terms.
+ * <br>
+ * Terms are hashed by their structure, with all the variables hashing to the same value, so that a term and all its
+ * renamings fall in the same bucket; the terms in the bucket are then compared with {@link Term#justARenaming(Term)}.
+ */
+class RenamingIndex {
+
+    private static final int VARIABLE_HASH = 0x5bd1e995;
+
+    /**
+     * The buckets, by hash; each bucket is either a single {@link Term}, or a list of terms with the same hash.
+     */
+    private final HashMap<Integer, Object> buckets;
+
+    RenamingIndex() {
+        this.buckets = new HashMap<>();
+    }
+
+    RenamingIndex(Collection<? extends Term> terms) {
+        this.buckets = new HashMap<>(Math.max(16, (int) (terms.size() / 0.75f) + 1));
+        terms.forEach(this::add);
+    }
+
+    /**
+     * Returns a hash of the specified term which is the same for all its renamings.
+     */
+    static int renamingHash(Term term) {
+        if (term instanceof Atom) {
+            return term.hashCode();
+        } else if (term instanceof Variable) {
+            return VARIABLE_HASH;
+        } else if (term instanceof Struct) {
+            int result = 1;
+            for (Term t : ((Struct) term).toJavaList()) {
+                result = 31 * result + renamingHash(t);
+            }
+            return result;
+        }
+        // other kinds of terms only compare with eq(), which could be consistent with any hash
+        return 0;
+    }
+
+    /**
+     * Adds a term (even if a renaming of it is already present).
+     */
+    @SuppressWarnings("unchecked")
+    void add(Term term) {
+        buckets.merge(renamingHash(term), term, (old, t) -> {
+            if (old instanceof Term) {
+                List<Term> list = new ArrayList<>(2);
+                list.add((Term) old);
+                list.add((Term) t);
+                return list;
+            }
+            ((List<Term>) old).add((Term) t);
+            return old;
+        });
+    }
+
+    /**
+     * Adds a term only if no renaming of it is already present.
+     *
+     * @return true if the term was added
+     */
+    boolean addIfAbsent(Term term) {
+        if (containsRenamingOf(term)) {
+            return false;
+        }
+        add(term);
+        return true;
+    }
+
+    /**
+     * Returns true if this index contains a term of which {@code term} is "just a renaming".
+     */
+    @SuppressWarnings("unchecked")
+    boolean containsRenamingOf(Term term) {
+        Object bucket = buckets.get(renamingHash(term));
+        if (bucket == null) {
+            return false;
+        }
+        if (bucket instanceof Term) {
+            return ((Term) bucket).justARenaming(term);
+        }
+        for (Term t : (List<Term>) bucket) {
+            if (t.justARenaming(term)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the terms contained in the specified set, according to the notion of equality of the set (e.g.
+     * identity, for sets backed by an {@link IdentityHashMap}). Only the buckets of the specified terms are visited.
+     *
+     * @param terms       the terms whose buckets are visited
+     * @param toBeRemoved the terms to be removed
+     */
+    @SuppressWarnings("unchecked")
+    void removeAll(Collection<Term> terms, Set<Term> toBeRemoved) {
+        for (Term term : terms) {
+            int hash = renamingHash(term);
+            Object bucket = buckets.get(hash);
+            if (bucket instanceof Term) {
+                if (toBeRemoved.contains(bucket)) {
+                    buckets.remove(hash);
+                }
+            } else if (bucket != null) {
+                List<Term> list = (List<Term>) bucket;
+                list.removeIf(toBeRemoved::contains);
+                if (list.isEmpty()) {
+                    buckets.remove(hash);
+                } else if (list.size() == 1) {
+                    buckets.put(hash, list.get(0));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.Relation;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Describes for how long the facts of a relation (identified by its name and arity) are retained in a
+ * {@link FCKnowledgeBase}. It is meant to be used for relations of event facts (e.g. percepts), which otherwise would
+ * accumulate forever in long-running processes.
+ * <br>
+ * A policy can limit the age of the facts (time elapsed since they were added to the knowledge base), their number
+ * (only the most recently added ones are kept), or can keep only the facts in a sliding window, defined on a
+ * numeric timestamp argument of the relation.
+ * <br>
+ * Policies are enforced by {@link FCKnowledgeBase#expireFacts()}. When a policy is cascading, the derived facts that
+ * lose all their support because of the expiration are removed as well (see
+ * {@link SimpleForwardChaining#retractFromFixedPoint(FCKnowledgeBase, List)}).
+ * Policy objects are immutable and can be shared between knowledge bases.
+ */
+public class RetentionPolicy {
+
+    private enum Kind {
+        MAX_AGE,
+        MAX_COUNT,
+        TIMESTAMP_WINDOW
+    }
+
+    private final Kind kind;
+    private final long limit;
+    private final int timestampArgument;
+    private final boolean cascading;
+    private final Consumer<List<Term>> expiryListener;
+
+    private RetentionPolicy(Kind kind,
+                            long limit,
+                            int timestampArgument,
+                            boolean cascading,
+                            Consumer<List<Term>> expiryListener) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative retention limit: " + limit);
+        }
+        this.kind = kind;
+        this.limit = limit;
+        this.timestampArgument = timestampArgument;
+        this.cascading = cascading;
+        this.expiryListener = expiryListener;
+    }
+
+    /**
+     * Creates a policy that expires the facts after the specified amount of time since they were added to the
+     * knowledge base.
+     *
+     * @param maxAge the maximum age of the facts
+     * @param unit   the time unit of {@code maxAge}
+     * @return the policy
+     */
+    public static RetentionPolicy maxAge(long maxAge, TimeUnit unit) {
+        return new RetentionPolicy(Kind.MAX_AGE, unit.toNanos(maxAge), -1, false, null);
+    }
+
+    /**
+     * Creates a policy that keeps only the {@code maxCount} most recently added facts.
+     *
+     * @param maxCount the maximum number of facts kept
+     * @return the policy
+     */
+    public static RetentionPolicy maxCount(int maxCount) {
+        return new RetentionPolicy(Kind.MAX_COUNT, maxCount, -1, false, null);
+    }
+
+    /**
+     * Creates a policy that keeps only the facts whose timestamp is at most {@code windowSize} units older than the
+     * most recent timestamp seen. The timestamp is the argument of the relation in position {@code argumentIndex}
+     * (starting from 0), which has to be an {@link Atom} wrapping a {@link Number}; facts without a valid timestamp
+     * are never expired.
+     *
+     * @param argumentIndex the position of the timestamp argument
+     * @param windowSize    the size of the window, in the same unit of the timestamps
+     * @return the policy
+     */
+    public static RetentionPolicy timestampWindow(int argumentIndex, long windowSize) {
+        if (argumentIndex < 0) {
+            throw new IllegalArgumentException("Negative argument index: " + argumentIndex);
+        }
+        return new RetentionPolicy(Kind.TIMESTAMP_WINDOW, windowSize, argumentIndex, false, null);
+    }
+
+    /**
+     * Returns a copy of this policy that, when facts expire, also removes the derived facts that are not supported
+     * anymore.
+     */
+    public RetentionPolicy cascading() {
+        return new RetentionPolicy(kind, limit, timestampArgument, true, expiryListener);
+    }
+
+    /**
+     * Returns a copy of this policy with the specified listener, which is notified with all the facts removed
+     * because of an expiration (including the derived facts removed by a cascading policy).
+     *
+     * @param expiryListener the listener
+     * @return the new policy
+     */
+    public RetentionPolicy onExpiry(Consumer<List<Term>> expiryListener) {
+        return new RetentionPolicy(kind, limit, timestampArgument, cascading, expiryListener);
+    }
+
+    public boolean isCascading() {
+        return cascading;
+    }
+
+    /**
+     * Notifies the expiry listener, if any.
+     */
+    void notifyExpired(List<Term> removed) {
+        if (expiryListener != null && !removed.isEmpty()) {
+            expiryListener.accept(removed);
+        }
+    }
+
+    /**
+     * Returns true if this policy keeps facts in order of insertion.
+     */
+    boolean isInsertionOrdered() {
+        return kind != Kind.TIMESTAMP_WINDOW;
+    }
+
+    /**
+     * Returns the timestamp of the specified fact according to this policy, or null if the fact has no valid
+     * timestamp.
+     */
+    Long timestampOf(Term fact) {
+        if (!(fact instanceof Relation)) {
+            return null;
+        }
+        List<Term> terms = ((Relation) fact).toJavaList();
+        if (terms.size() <= timestampArgument + 1) {
+            return null;
+        }
+        Term arg = terms.get(timestampArgument + 1);
+        if (arg instanceof Atom && ((Atom<?>) arg).getWrappedValue() instanceof Number) {
+            return ((Number) ((Atom<?>) arg).getWrappedValue()).longValue();
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the oldest retained fact has to expire.
+     *
+     * @param oldestKey      the insertion time (in nanoseconds) or the timestamp of the oldest fact
+     * @param retainedCount  the number of facts currently retained
+     * @param now            the current time, as given by {@link System#nanoTime()}
+     * @param newestKey      the most recent timestamp seen
+     * @return true if the oldest fact has to expire
+     */
+    boolean isExpired(long oldestKey, int retainedCount, long now, long newestKey) {
+        switch (kind) {
+            case MAX_AGE:
+                return now - oldestKey > limit;
+            case MAX_COUNT:
+                return retainedCount > limit;
+            case TIMESTAMP_WINDOW:
+                return newestKey - oldestKey > limit;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,124 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.*;
+
+/**
+ * Immutable set of rules, prepared once and shared by many knowledge bases containing only facts (e.g. one for each
+ * reasoning session of a device, all with the same rules). The knowledge bases created by {@link #newSession()} do not
+ * hold their own list of rules, so their memory depends only on their facts.
+ * <br>
+ * When the rule base is created, the premises of each rule are compiled into a {@link RuleMatcher} (see
+ * {@link FCKnowledgeBase#setCompiledMatching(boolean)}), and the rules are indexed by the directories of their
+ * premises, so that in each iteration of the semi-naive evaluation only the rules having a premise which can match
+ * some of the new facts are evaluated.
+ * <br>
+ * A rule base can be used concurrently by many threads, as long as the {@link Rule} objects (and their terms) are not
+ * modified after its creation, and the actions of the rules are thread safe.
+ */
+public final class RuleBase {
+
+    private final List<Rule> rules;
+    private final Map<Rule, RuleMatcher> matchers = new IdentityHashMap<>();
+    /**
+     * The indexes of the rules having a premise in each directory.
+     */
+    private final Map<List<String>, BitSet> rulesByDirectory = new HashMap<>();
+
+    /**
+     * Creates a rule base with the specified rules.
+     *
+     * @param rules the rules
+     */
+    public RuleBase(List<Rule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        for (int r = 0; r < this.rules.size(); r++) {
+            Rule rule = this.rules.get(r);
+            matchers.put(rule, RuleMatcher.compile(rule.getPremises()));
+            for (Term premise : rule.getPremises()) {
+                rulesByDirectory.computeIfAbsent(premise.directoryPath(), d -> new BitSet()).set(r);
+            }
+        }
+    }
+
+    /**
+     * Creates a rule base with the specified rules.
+     *
+     * @param rules the rules
+     * @return the rule base
+     */
+    public static RuleBase of(Rule... rules) {
+        return new RuleBase(Arrays.asList(rules));
+    }
+
+    /**
+     * Returns the (unmodifiable) list of the rules.
+     */
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Creates an empty knowledge base which uses the rules of this rule base, and stores all the facts as
+     * {@link Term} objects.
+     *
+     * @return the knowledge base
+     */
+    public FCKnowledgeBase newSession() {
+        return new FCKnowledgeBase(null, this);
+    }
+
+    /**
+     * Creates an empty knowledge base which uses the rules of this rule base, and stores the ground relations whose
+     * arguments are all atoms in the tables created by the specified factory.
+     *
+     * @param tableFactory the table factory, or null to store all the facts as {@link Term} objects
+     * @return the knowledge base
+     */
+    public FCKnowledgeBase newSession(FactTable.Factory tableFactory) {
+        return new FCKnowledgeBase(tableFactory, this);
+    }
+
+    /**
+     * Returns the compiled matcher of the premises of the rule, or null if the rule cannot be compiled or it is not
+     * in this rule base.
+     */
+    RuleMatcher matcherFor(Rule rule) {
+        return matchers.get(rule);
+    }
+
+    /**
+     * Returns the indexes of the rules having a premise whose candidates can include some of the specified facts,
+     * i.e. a premise whose directory contains the directory of the fact.
+     */
+    BitSet rulesTriggeredBy(Collection<Term> facts) {
+        BitSet result = new BitSet(rules.size());
+        Set<List<String>> visited = new HashSet<>();
+        for (Term fact : facts) {
+            List<String> directory = fact.directoryPath();
+            if (!visited.add(directory)) {
+                continue;
+            }
+            for (int length = directory.size(); length > 0; length--) {
+                BitSet triggered = rulesByDirectory.get(directory.subList(0, length));
+                if (triggered != null) {
+                    result.or(triggered);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("RuleBase(").append(rules.size()).append("):\n");
+        for (Rule rule : rules) {
+            sb.append(rule.toString()).append(".\n");
+        }
+        return sb.toString();
+    }
+}
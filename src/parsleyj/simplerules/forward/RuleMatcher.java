@@ -0,0 +1,205 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.CustomUnifiable;
+import parsleyj.simplerules.terms.NativeFactInvoker;
+import parsleyj.simplerules.terms.Relation;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Type;
+import parsleyj.simplerules.terms.Variable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * Specialized matcher of the premises of a rule, used by {@link JoinIterator} instead of
+ * {@link parsleyj.simplerules.unify.SimpleUnify} when compiled matching is enabled (see
+ * {@link FCKnowledgeBase#setCompiledMatching(boolean)}) and all the candidates are relations of atoms.
+ * <br>
+ * For each premise, a {@link MethodHandle} is generated by composing, with {@link MethodHandles#guardWithTest}, a
+ * straight-line sequence of checks on the arguments of a candidate: an argument matching a constant of the premise is
+ * compared with the constant, the first occurrence of a variable stores the argument in the slot of the variable, and
+ * the next occurrences compare the argument with the content of the slot. The constants, the positions and the slots
+ * are bound into the handles, so after warm-up the JIT compiler can specialize each of them for its rule, without the
+ * generic dispatch on the kinds of terms and the substitutions of the unification.
+ * <br>
+ * The slots of the variables are numbered in order of first appearance in the premises (see
+ * {@link TrieJoin#variables(List)}). Since a premise only reads the slots of the variables bound by the previous
+ * premises, the slots never have to be cleared when backtracking.
+ */
+class RuleMatcher {
+
+    private static final MethodType CHECK = MethodType.methodType(boolean.class, List.class, Term[].class);
+    private static final MethodHandle ARITY = check("arity", int.class);
+    private static final MethodHandle CONSTANT = check("constant", Atom.class, int.class);
+    private static final MethodHandle BIND = check("bind", int.class, int.class);
+    private static final MethodHandle BIND_TYPED = check("bindTyped", Type.class, int.class, int.class);
+    private static final MethodHandle SAME = check("same", int.class, int.class);
+    private static final MethodHandle SAME_TYPED = check("sameTyped", Type.class, int.class, int.class);
+    private static final MethodHandle TRUE = MethodHandles.dropArguments(
+            MethodHandles.constant(boolean.class, true), 0, CHECK.parameterList());
+    private static final MethodHandle FALSE = MethodHandles.dropArguments(
+            MethodHandles.constant(boolean.class, false), 0, CHECK.parameterList());
+
+    private final MethodHandle[] matchers;
+    private final int variablesCount;
+
+    private RuleMatcher(MethodHandle[] matchers, int variablesCount) {
+        this.matchers = matchers;
+        this.variablesCount = variablesCount;
+    }
+
+    /**
+     * Returns true if the premises can be compiled, i.e. if they are all relations (without custom unification)
+     * whose arguments are atoms or variables.
+     */
+    static boolean isApplicable(List<? extends Term> premises) {
+        if (premises.isEmpty()) {
+            return false;
+        }
+        for (Term premise : premises) {
+            if (!(premise instanceof Relation) || premise instanceof CustomUnifiable
+                    || premise instanceof NativeFactInvoker) {
+                return false;
+            }
+            for (Term arg : ((Relation) premise).toJavaList()) {
+                if (!(arg instanceof Variable) && !isPlainAtom(arg)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compiles the premises of a rule, or returns null if they cannot be compiled (see {@link #isApplicable(List)}).
+     */
+    static RuleMatcher compile(List<? extends Term> premises) {
+        if (!isApplicable(premises)) {
+            return null;
+        }
+        Map<String, Integer> slots = new HashMap<>();
+        MethodHandle[] matchers = new MethodHandle[premises.size()];
+        for (int p = 0; p < premises.size(); p++) {
+            List<Term> args = ((Relation) premises.get(p)).toJavaList();
+            List<MethodHandle> checks = new ArrayList<>();
+            checks.add(MethodHandles.insertArguments(ARITY, 0, args.size()));
+            for (int a = 0; a < args.size(); a++) {
+                Term arg = args.get(a);
+                if (arg instanceof Atom) {
+                    checks.add(MethodHandles.insertArguments(CONSTANT, 0, arg, a));
+                    continue;
+                }
+                Variable variable = (Variable) arg;
+                Type type = variable.type();
+                Integer slot = slots.get(variable.getName());
+                if (slot == null) {
+                    slot = slots.size();
+                    slots.put(variable.getName(), slot);
+                    checks.add(type == Type.ANY
+                            ? MethodHandles.insertArguments(BIND, 0, a, slot)
+                            : MethodHandles.insertArguments(BIND_TYPED, 0, type, a, slot));
+                } else {
+                    checks.add(type == Type.ANY
+                            ? MethodHandles.insertArguments(SAME, 0, a, slot)
+                            : MethodHandles.insertArguments(SAME_TYPED, 0, type, a, slot));
+                }
+            }
+            MethodHandle matcher = TRUE;
+            for (int c = checks.size() - 1; c >= 0; c--) {
+                matcher = MethodHandles.guardWithTest(checks.get(c), matcher, FALSE);
+            }
+            matchers[p] = matcher;
+        }
+        return new RuleMatcher(matchers, slots.size());
+    }
+
+    /**
+     * Returns true if the fact can be matched by a compiled matcher, i.e. if it is a relation (without custom
+     * unification) whose arguments are all atoms.
+     */
+    static boolean isAtomRelation(Term fact) {
+        if (!(fact instanceof Relation) || fact instanceof CustomUnifiable) {
+            return false;
+        }
+        for (Term arg : ((Relation) fact).toJavaList()) {
+            if (!isPlainAtom(arg)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPlainAtom(Term term) {
+        return term instanceof Atom && !(term instanceof CustomUnifiable);
+    }
+
+    /**
+     * Returns the number of the slots, i.e. of the distinct variables of the premises.
+     */
+    int variablesCount() {
+        return variablesCount;
+    }
+
+    /**
+     * Matches a relation of atoms with the premise at the specified index, storing the values of the variables bound
+     * by it in the slots. The slots of the variables of the previous premises must be already set.
+     *
+     * @param premise the index of the premise
+     * @param args    the terms of the relation (see {@link Relation#toJavaList()})
+     * @param slots   the values of the variables
+     * @return true if the relation matches the premise
+     */
+    boolean match(int premise, List<Term> args, Term[] slots) {
+        try {
+            return (boolean) matchers[premise].invokeExact(args, slots);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static MethodHandle check(String name, Class<?>... boundTypes) {
+        try {
+            return MethodHandles.lookup().findStatic(RuleMatcher.class, name,
+                    CHECK.insertParameterTypes(0, boundTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean arity(int arity, List<Term> args, Term[] slots) {
+        return args.size() == arity;
+    }
+
+    private static boolean constant(Atom<?> constant, int position, List<Term> args, Term[] slots) {
+        Term arg = args.get(position);
+        return arg == constant || constant.eq(arg);
+    }
+
+    private static boolean bind(int position, int slot, List<Term> args, Term[] slots) {
+        slots[slot] = args.get(position);
+        return true;
+    }
+
+    private static boolean bindTyped(Type type, int position, int slot, List<Term> args, Term[] slots) {
+        Term arg = args.get(position);
+        if (!type.compatible(arg)) {
+            return false;
+        }
+        slots[slot] = arg;
+        return true;
+    }
+
+    private static boolean same(int position, int slot, List<Term> args, Term[] slots) {
+        return slots[slot].eq(args.get(position));
+    }
+
+    private static boolean sameTyped(Type type, int position, int slot, List<Term> args, Term[] slots) {
+        Term arg = args.get(position);
+        return type.compatible(arg) && slots[slot].eq(arg);
+    }
+}
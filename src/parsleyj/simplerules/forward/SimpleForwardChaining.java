@@ -1,6 +1,7 @@
 package parsleyj.simplerules.forward;
 
 import parsleyj.simplerules.*;
+import parsleyj.simplerules.terms.NativeFact;
 import parsleyj.simplerules.terms.Struct;
 import parsleyj.simplerules.terms.Term;
 import parsleyj.simplerules.unify.SimpleUnify;
@@ -9,136 +10,605 @@ import parsleyj.simplerules.unify.UnificationResult;
 import parsleyj.simplerules.utils.Uniquer;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created on 03/12/2019.
  */
 public class SimpleForwardChaining {
 
+    private static volatile FCEventListener eventListener = null;
+
+    /**
+     * Installs a listener of the internal events of the engine, for all the reasoning processes. Invocations of native
+     * facts are notified only if they take at least the specified threshold.
+     *
+     * @param listener                 the listener, or null to remove the current one
+     * @param nativeFactThresholdNanos the minimum duration of the notified invocations of native facts
+     */
+    public static void setEventListener(FCEventListener listener, long nativeFactThresholdNanos) {
+        eventListener = listener;
+        NativeFact.setInvocationObserver(listener == null ? null : listener::nativeFactInvoked, nativeFactThresholdNanos);
+    }
+
+    /**
+     * Returns the installed listener of the internal events of the engine, or null.
+     */
+    static FCEventListener eventListener() {
+        return eventListener;
+    }
 
     public static FCResult getToFixedPoint(FCKnowledgeBase initialKB) {
         return forwardChainingAsk(initialKB, null);
     }
 
+    /**
+     * As {@link #getToFixedPoint(FCKnowledgeBase)}, but the knowledge base is brought to its fixed point in place,
+     * instead of in a copy.
+     */
+    static FCResult getToFixedPointInPlace(FCKnowledgeBase kb) {
+        FCResult result = saturate(kb, null, false, null, true, FCLimits.NONE, null, true);
+        kb.publishVersion();
+        return result;
+    }
+
 
     public static FCResult forwardChainingAsk(FCKnowledgeBase initialKB, Struct query) {
-        boolean stopAtQuery = query != null;
+        return forwardChainingAsk(initialKB, query, FCLimits.NONE);
+    }
+
+    /**
+     * As {@link #forwardChainingAsk(FCKnowledgeBase, Struct)}, but the process stops as soon as one of the specified
+     * limits is hit, or when the current thread is interrupted. In this case, the result is not successful, its status
+     * tells why the process stopped, and its knowledge base contains the facts derived up to that moment (so it is
+     * not at its fixed point).
+     *
+     * @param initialKB the knowledge base, which is not modified
+     * @param query     the query, or null to get to the fixed point
+     * @param limits    the limits of the process
+     * @return the result of the process
+     */
+    public static FCResult forwardChainingAsk(FCKnowledgeBase initialKB, Struct query, FCLimits limits) {
+        return forwardChainingAsk(initialKB, query, limits, null);
+    }
+
+    /**
+     * Runs {@link #forwardChainingAsk(FCKnowledgeBase, Struct, FCLimits)} asynchronously in the specified executor.
+     * Cancelling the returned future stops the process at the next check of the limits (checks happen every few
+     * hundred candidate sequences). The knowledge base must not be modified until the process has copied it, i.e.
+     * until the future completes.
+     *
+     * @param initialKB the knowledge base, which is not modified
+     * @param query     the query, or null to get to the fixed point
+     * @param limits    the limits of the process
+     * @param executor  the executor running the process
+     * @return the future result of the process
+     */
+    public static CompletableFuture<FCResult> forwardChainingAskAsync(
+            FCKnowledgeBase initialKB,
+            Struct query,
+            FCLimits limits,
+            Executor executor
+    ) {
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        CompletableFuture<FCResult> future = new CompletableFuture<FCResult>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                cancelled.set(true);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        executor.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(forwardChainingAsk(initialKB, query, limits, cancelled));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * As {@link #forwardChainingAskAsync(FCKnowledgeBase, Struct, FCLimits, Executor)}, in the common fork-join pool.
+     */
+    public static CompletableFuture<FCResult> forwardChainingAskAsync(
+            FCKnowledgeBase initialKB,
+            Struct query,
+            FCLimits limits
+    ) {
+        return forwardChainingAskAsync(initialKB, query, limits, ForkJoinPool.commonPool());
+    }
+
+    private static FCResult forwardChainingAsk(
+            FCKnowledgeBase initialKB,
+            Struct query,
+            FCLimits limits,
+            AtomicBoolean cancelled
+    ) {
         FCKnowledgeBase kb = initialKB.copy();
+        FCResult result = saturate(kb, null, false, query, true, limits, cancelled, true);
+        kb.publishVersion();
+        return result;
+    }
+
+    /**
+     * Adds the specified facts to a knowledge base which is already at its fixed point, and then brings it again to its
+     * fixed point. Only the rule instances that use at least one of the new facts (or one of the facts derived from
+     * them) are evaluated, so the cost of the process depends on the size of the consequences of the new facts, and
+     * not on the number of rule instances that already fired in the past.
+     * Note that, unlike {@link #getToFixedPoint(FCKnowledgeBase)}, the knowledge base is updated in place.
+     *
+     * @param kb       a knowledge base at its fixed point
+     * @param newFacts the facts to be added
+     * @return the result of the process; the updated knowledge base in it is {@code kb} itself
+     */
+    public static FCResult extendToFixedPoint(FCKnowledgeBase kb, List<Term> newFacts) {
+        kb.logAddition(newFacts);
+        return extendToFixedPoint(kb, newFacts, true);
+    }
+
+    /**
+     * As {@link #extendToFixedPoint(FCKnowledgeBase, List)}, but the new facts are not recorded in the write-ahead log
+     * of the knowledge base, and the actions of the rules are executed only if {@code executeActions} is true.
+     */
+    static FCResult extendToFixedPoint(FCKnowledgeBase kb, List<Term> newFacts, boolean executeActions) {
+        FCResult result = saturate(kb, new ArrayList<>(newFacts), false, null, executeActions, FCLimits.NONE, null,
+                true);
+        kb.publishVersion();
+        return result;
+    }
+
+    /**
+     * Retracts the specified asserted facts from a knowledge base which is at its fixed point, and incrementally
+     * removes the derived facts that are not supported anymore, using the DRed (delete and re-derive) algorithm:
+     * <br>
+     * 1. all the derived facts that have at least one derivation using a removed fact are (over-)deleted, recursively;
+     * <br>
+     * 2. each over-deleted fact that still has a derivation from the remaining facts is put back in the knowledge base;
+     * <br>
+     * 3. the consequences of the facts put back are derived again, as in {@link #extendToFixedPoint}.
+     * <br>
+     * In this way, only the derived facts that lost all their support disappear. Derived facts cannot be retracted
+     * directly (they would be derived again), so only the facts that were added to the knowledge base by means of
+     * {@link FCKnowledgeBase#addFact(Term)} or {@link FCKnowledgeBase#addFacts(List)} are matched. The actions of the
+     * rules are not executed during the process, since the facts put back were already in the knowledge base.
+     * Note that the knowledge base is updated in place.
+     *
+     * @param kb    a knowledge base at its fixed point
+     * @param facts the asserted facts to be retracted
+     * @return the facts removed from the knowledge base, i.e. the retracted ones and the derived facts that lost all
+     * their support
+     */
+    public static List<Term> retractFromFixedPoint(FCKnowledgeBase kb, List<Term> facts) {
+        kb.logRetraction(facts);
+        Set<Term> retracted = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Term fact : facts) {
+            for (Term f : kb.candidatesFor(fact)) {
+                if (!kb.isDerived(f) && f.justARenaming(fact)) {
+                    retracted.add(f);
+                }
+            }
+        }
+        return removeFromFixedPoint(kb, retracted, true);
+    }
+
+    /**
+     * Removes the specified fact objects (compared by identity) from a knowledge base which is at its fixed point,
+     * and incrementally removes the derived facts that are not supported anymore (see
+     * {@link #retractFromFixedPoint(FCKnowledgeBase, List)}).
+     *
+     * @param kb              a knowledge base at its fixed point
+     * @param removedFacts    the fact objects to be removed
+     * @param rederiveRemoved if true, each removed fact that can still be derived from the remaining facts is put
+     *                        back in the knowledge base as a derived fact
+     * @return the facts removed from the knowledge base
+     */
+    static List<Term> removeFromFixedPoint(FCKnowledgeBase kb, Set<Term> removedFacts, boolean rederiveRemoved) {
+        if (removedFacts.isEmpty()) {
+            return Collections.emptyList();
+        }
+        kb.removeFacts(removedFacts);
+
+        // a removed fact for which an equivalent copy is still in the kb does not invalidate anything
+        List<Term> delta = new ArrayList<>();
+        for (Term f : removedFacts) {
+            if (!kb.containsRenamingOf(f)) {
+                delta.add(f);
+            }
+        }
+
         Uniquer<String> uniquer = new Uniquer<>(l -> "__gen_" + l);
 
-        List<Term> newFacts = new ArrayList<>();
+        // 1. over-deletion
+        List<Term> overDeleted = new ArrayList<>(delta);
+        while (!delta.isEmpty()) {
+            FCKnowledgeBase deltaKB = new FCKnowledgeBase();
+            deltaKB.addFacts(delta);
+            Set<Term> toBeDeleted = Collections.newSetFromMap(new IdentityHashMap<>());
+            // the facts stored in tables are materialized as new objects by each lookup, so they are also compared
+            // by renaming, to delete each one once
+            RenamingIndex toBeDeletedIndex = new RenamingIndex();
+            BitSet triggered = kb.rulesTriggeredBy(delta);
+            List<Rule> rules = kb.getRules();
+            for (int r = 0; r < rules.size(); r++) {
+                if (triggered != null && !triggered.get(r)) {
+                    continue;
+                }
+                Rule rule = rules.get(r);
+                Rule std = rule.standardizeApart(uniquer);
+                JoinIterator candidates = semiNaiveCandidates(kb, deltaKB, std.getPremises(), std.getHead(),
+                        kb.matcherFor(rule));
+                while (candidates.hasNext()) {
+                    candidates.next();
+                    UnificationResult ur = candidates.unification();
+                    if (!ur.isFailure()) {
+                        Term q = std.getHead().applySubstitution(ur.getSubstitution());
+                        for (Term f : kb.candidatesFor(q)) {
+                            if (kb.isDerived(f) && f.justARenaming(q) && !toBeDeletedIndex.containsRenamingOf(f)) {
+                                toBeDeleted.add(f);
+                                toBeDeletedIndex.add(f);
+                            }
+                        }
+                    }
+                }
+            }
+            kb.removeFacts(toBeDeleted);
+            delta = new ArrayList<>(toBeDeleted);
+            overDeleted.addAll(delta);
+        }
+
+        // 2. re-derivation of the over-deleted facts that have alternative derivations
+        List<Term> rederived = new ArrayList<>();
+        RenamingIndex rederivedIndex = new RenamingIndex();
+        for (Term f : overDeleted) {
+            if (!rederiveRemoved && removedFacts.contains(f)) {
+                continue;
+            }
+            if (!rederivedIndex.containsRenamingOf(f) && isDerivable(kb, f, uniquer)) {
+                rederived.add(f);
+                rederivedIndex.add(f);
+            }
+        }
+
+        // 3. propagation of the re-derived facts
+        saturate(kb, rederived, true, null, false, FCLimits.NONE, null, false);
+        kb.publishVersion();
+
+        List<Term> removed = new ArrayList<>();
+        for (Term f : overDeleted) {
+            if (!kb.containsRenamingOf(f)) {
+                removed.add(f);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Checks if there is a rule instance that derives {@code fact} using only the facts currently in the knowledge base.
+     */
+    private static boolean isDerivable(FCKnowledgeBase kb, Term fact, Uniquer<String> uniquer) {
+        for (Rule rule : kb.getRules()) {
+            Rule std = rule.standardizeApart(uniquer);
+            UnificationResult headUnification = SimpleUnify.unify(std.getHead(), fact);
+            if (headUnification.isFailure()) {
+                continue;
+            }
+            Rule instance = std.applySubstitution(headUnification.getSubstitution());
+            JoinIterator candidates = new JoinIterator(kb, instance.getPremises(), instance.getHead());
+            while (candidates.hasNext()) {
+                candidates.next();
+                UnificationResult ur = candidates.unification();
+                if (!ur.isFailure() && fact.justARenaming(instance.getHead().applySubstitution(ur.getSubstitution()))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Semi-naive evaluation loop. At each iteration, the facts in {@code delta} are the ones that have not been
+     * used yet to fire rules: they are not in the kb, and they are added to it only at the end of the iteration.
+     * If {@code delta} is null, the first iteration is a naive one, where all the facts in the kb are considered new.
+     * The facts in the initial delta are added as derived facts only if {@code derivedDelta} is true, while the
+     * facts produced by the rules are always added as derived facts.
+     * The process stops early when one of the {@code limits} is hit, when {@code cancelled} (if not null) is set, or
+     * (if there are limits or {@code cancelled} is not null) when the current thread is interrupted.
+     * If {@code publishIterations} is true, a version of the kb is published at the end of each iteration (see
+     * {@link FCKnowledgeBase#enableVersions()}).
+     */
+    private static FCResult saturate(
+            FCKnowledgeBase kb,
+            List<Term> delta,
+            boolean derivedDelta,
+            Struct query,
+            boolean executeActions,
+            FCLimits limits,
+            AtomicBoolean cancelled,
+            boolean publishIterations
+    ) {
+        boolean stopAtQuery = query != null;
+        Uniquer<String> uniquer = new Uniquer<>(l -> "__gen_" + l);
+        long startNanos = System.nanoTime();
+        FCStatistics stats = new FCStatistics(kb.getRules());
+        FCEventListener listener = eventListener;
+        boolean bounded = limits != FCLimits.NONE || cancelled != null;
+        long budgetNanos = limits.budgetNanos();
+        long derivedCount = 0;
+        FCResult.Status stopped = null;
+
+        boolean naive = delta == null;
+        if (naive) {
+            delta = new ArrayList<>();
+        }
+        List<Term> newFacts;
         int iterationCounter = 0;
         do {
-            newFacts.clear();
+            if (iterationCounter >= limits.getMaxIterations()) {
+                addDelta(kb, delta, derivedDelta);
+                stats.processDone(startNanos);
+                return new FCResult(false, iterationCounter, new Substitution(), kb, stats,
+                        FCResult.Status.ITERATION_LIMIT_REACHED);
+            }
+            long iterationNanos = System.nanoTime();
+            if (listener != null) {
+                listener.iterationStarted(iterationCounter, delta.size());
+            }
+            newFacts = new ArrayList<>();
+            RenamingIndex deltaIndex = new RenamingIndex(delta);
+            RenamingIndex newFactsIndex = new RenamingIndex();
             if (stopAtQuery) {
                 //check for trivial queries first
-                List<Term> queryFacts = kb.factsInDirectory(query.directoryPath());
+                List<Term> queryFacts = new ArrayList<>(kb.candidatesFor(query));
+                queryFacts.addAll(delta);
                 for (Term fact : queryFacts) {
                     UnificationResult unify = SimpleUnify.unify(fact, query);
                     if (!unify.isFailure()) {
-                        return new FCResult(true, iterationCounter, unify.getSubstitution(), kb);
+                        addDelta(kb, delta, derivedDelta);
+                        stats.processDone(startNanos);
+                        return new FCResult(true, iterationCounter, unify.getSubstitution(), kb, stats);
                     }
                 }
             }
 
+            FCKnowledgeBase deltaKB = new FCKnowledgeBase();
+            deltaKB.addFacts(delta);
+            // with a rule base, the rules without premises matching the delta are not evaluated
+            BitSet triggered = naive ? null : kb.rulesTriggeredBy(delta);
+
             List<Rule> rules = kb.getRules();
-            for (Rule rule : rules) {
+            for (int r = 0; r < rules.size() && stopped == null; r++) {
+                if (triggered != null && !triggered.get(r)) {
+                    continue;
+                }
+                Rule rule = rules.get(r);
+                FCStatistics.RuleStatistics ruleStats = stats.forRule(r, rule);
+                long ruleWallNanos = System.nanoTime();
+                long ruleCpuNanos = FCStatistics.currentCpuNanos();
+                long ruleCandidates = ruleStats.candidates;
+                long ruleNewFacts = ruleStats.getNewFacts();
                 Rule std = rule.standardizeApart(uniquer);
-                FCInternalContinuation FCInternalContinuation = new FCInternalContinuation(kb, std.getPremises());
-
-                while (FCInternalContinuation.hasNext()) {
-                    List<Term> selectedFacts = FCInternalContinuation.next();
-
+                RuleMatcher matcher = kb.matcherFor(rule);
+                JoinIterator candidates = naive
+                        ? new JoinIterator(kb, std.getPremises(), std.getHead(), matcher)
+                        : semiNaiveCandidates(kb, deltaKB, std.getPremises(), std.getHead(), matcher);
+                if (bounded) {
+                    // checked by the join while searching, since a join can try many candidates between two matches
+                    candidates.setInterruptionCheck(() -> checkInterruption(cancelled, startNanos, budgetNanos));
+                }
 
+                while (candidates.hasNext()) {
+                    candidates.next();
+                    ruleStats.candidates++;
 
-                    UnificationResult ur = SimpleUnify.conjunctUnify(UnificationResult.empty(), selectedFacts, std.getPremises());
+                    UnificationResult ur = candidates.unification();
                     if (!ur.isFailure()) {
                         Substitution subs = ur.getSubstitution();
 
                         Term q = std.getHead().applySubstitution(subs);
+                        ruleStats.headsProduced++;
 
-                        // if there is no fact in the kb and the new facts for which q is "just a renaming of"
-                        //
-                        if (kb.getAllFacts().stream().noneMatch(f -> f.justARenaming(q)) &&
-                                newFacts.stream().noneMatch(f -> f.justARenaming(q))) {
+                        // if there is no fact in the kb, in the delta and in the new facts for which q is
+                        // "just a renaming of"
+                        if (!kb.containsRenamingOf(q) &&
+                                !deltaIndex.containsRenamingOf(q) &&
+                                !newFactsIndex.containsRenamingOf(q)) {
 
+                            // stops only if this fact would exceed the limit, so a fixed point reached with exactly
+                            // the maximum number of facts is complete
+                            if (derivedCount == limits.getMaxDerivedFacts()) {
+                                stopped = FCResult.Status.FACT_LIMIT_REACHED;
+                                break;
+                            }
+                            derivedCount++;
                             newFacts.add(q);
+                            newFactsIndex.add(q);
 
-                            rule.executeAction(q);
+                            if (executeActions && rule.getAction() != null) {
+                                rule.executeAction(q);
+                                ruleStats.actionsFired++;
+                            }
 
                             if (stopAtQuery) {
                                 UnificationResult unify = SimpleUnify.unify(q, query);
                                 if (!unify.isFailure()) {
-                                    kb.addFacts(newFacts);
-                                    return new FCResult(true, iterationCounter, unify.getSubstitution(), kb);
+                                    addDelta(kb, delta, derivedDelta);
+                                    kb.addDerivedFacts(newFacts);
+                                    ruleStats.timeSpent(ruleWallNanos, ruleCpuNanos);
+                                    stats.iterationDone(newFacts.size());
+                                    if (listener != null) {
+                                        listener.iterationEnded(iterationCounter, newFacts.size(),
+                                                System.nanoTime() - iterationNanos);
+                                    }
+                                    stats.processDone(startNanos);
+                                    return new FCResult(true, iterationCounter, unify.getSubstitution(), kb, stats);
                                 }
                             }
+                        } else {
+                            ruleStats.duplicatesRejected++;
                         }
                     }
 
                 }
+                if (stopped == null) {
+                    stopped = candidates.interruption();
+                }
+                ruleStats.unificationAttempts += candidates.attempts();
+                ruleStats.unificationFailures += candidates.failures();
+                ruleStats.timeSpent(ruleWallNanos, ruleCpuNanos);
+                if (listener != null) {
+                    listener.ruleEvaluated(rule, iterationCounter, ruleStats.candidates - ruleCandidates,
+                            ruleStats.getNewFacts() - ruleNewFacts, System.nanoTime() - ruleWallNanos);
+                }
+            }
+            stats.iterationDone(newFacts.size());
+            if (listener != null) {
+                listener.iterationEnded(iterationCounter, newFacts.size(), System.nanoTime() - iterationNanos);
+            }
+            addDelta(kb, delta, derivedDelta);
+            if (publishIterations) {
+                kb.publishVersion();
+            }
+            if (stopped != null) {
+                kb.addDerivedFacts(newFacts);
+                stats.processDone(startNanos);
+                return new FCResult(false, iterationCounter, new Substitution(), kb, stats, stopped);
             }
-            kb.addFacts(newFacts);
+            delta = newFacts;
+            derivedDelta = true;
+            naive = false;
             iterationCounter++;
         } while (!newFacts.isEmpty());
 
-        return new FCResult(!stopAtQuery, iterationCounter, new Substitution(), kb);
+        stats.processDone(startNanos);
+        return new FCResult(!stopAtQuery, iterationCounter, new Substitution(), kb, stats);
     }
 
-    private static class FCInternalContinuation implements Iterator<List<Term>> {
-        private final int[] indexes;
-        private final List<List<Term>> selectedFacts = new ArrayList<>();
-
+    /**
+     * Returns the status of a process that must stop because it was cancelled (or its thread was interrupted) or
+     * because its deadline expired, or null if it can continue.
+     */
+    private static FCResult.Status checkInterruption(AtomicBoolean cancelled, long startNanos, long budgetNanos) {
+        if ((cancelled != null && cancelled.get()) || Thread.currentThread().isInterrupted()) {
+            return FCResult.Status.CANCELLED;
+        }
+        if (System.nanoTime() - startNanos >= budgetNanos) {
+            return FCResult.Status.DEADLINE_EXCEEDED;
+        }
+        return null;
+    }
 
-        public FCInternalContinuation(FCKnowledgeBase kb, List<? extends Term> premises) {
-            indexes = new int[premises.size()];
-            for (Term premise : premises) {
-                selectedFacts.add(kb.factsInDirectory(premise.directoryPath()));
-            }
+    private static void addDelta(FCKnowledgeBase kb, List<Term> delta, boolean derived) {
+        if (derived) {
+            kb.addDerivedFacts(delta);
+        } else {
+            kb.insertFacts(delta);
         }
+    }
 
-        public boolean isEverythingMaxedOut() {
-            if(selectedFacts.stream().anyMatch(List::isEmpty)){
-                return true;
+    /**
+     * Generates all the candidate sequences of facts for the premises in which at least one of the facts is taken
+     * from the delta. For each premise position d, the premises before d are matched against the old facts only,
+     * the premise d is matched against the delta only, and the premises after d against both; in this way, each
+     * sequence is generated at most once (the sequences which would produce the same instances of the head of other
+     * ones may be skipped, see {@link JoinIterator}). The candidates are matched with the compiled matcher of the
+     * premises, if not null.
+     * <br>
+     * The candidates in the delta are computed first, and a pass is performed only for the premises which have some;
+     * the candidates among the old facts are computed only when a pass needing them is started, so a rule whose
+     * premises match nothing in the delta costs nothing in proportion to the size of the knowledge base.
+     */
+    private static JoinIterator semiNaiveCandidates(
+            FCKnowledgeBase oldKB,
+            FCKnowledgeBase deltaKB,
+            List<? extends Term> premises,
+            Term head,
+            RuleMatcher matcher
+    ) {
+        RangeGuards guards = RangeGuards.of(premises);
+        List<List<Term>> deltaFacts = new ArrayList<>();
+        List<Integer> deltaPositions = new ArrayList<>();
+        for (Term premise : premises) {
+            List<Term> facts = deltaKB.candidatesFor(premise, guards);
+            if (!facts.isEmpty()) {
+                deltaPositions.add(deltaFacts.size());
             }
-            for (int i = 0; i < indexes.length; i++) {
-                int premiseIndex = indexes[i];
-                if (premiseIndex <= selectedFacts.get(i).size()-1) {
-                    return false;
-                }
-            }
-            return true;
+            deltaFacts.add(facts);
+        }
+        if (deltaPositions.isEmpty()) {
+            return new JoinIterator(premises, head, Collections.emptyList(), matcher);
         }
+        return new JoinIterator(oldKB, premises, head,
+                new SemiNaivePasses(oldKB, premises, guards, deltaFacts, deltaPositions), matcher);
+    }
 
+    /**
+     * The passes of {@link #semiNaiveCandidates(FCKnowledgeBase, FCKnowledgeBase, List, Term, RuleMatcher)}, whose
+     * candidates are computed when the pass is started. The candidates of each premise among the old facts are
+     * computed at most once, and the candidates of the premises after the first one with no candidates are not
+     * computed at all.
+     */
+    private static class SemiNaivePasses extends AbstractList<List<List<Term>>> {
+        private final FCKnowledgeBase oldKB;
+        private final List<? extends Term> premises;
+        private final RangeGuards guards;
+        private final List<List<Term>> deltaFacts;
+        private final List<Integer> deltaPositions;
+        private final List<List<Term>> oldFacts;
 
-        @Override
-        public boolean hasNext() {
-            return !isEverythingMaxedOut();
+        private SemiNaivePasses(FCKnowledgeBase oldKB, List<? extends Term> premises, RangeGuards guards,
+                               List<List<Term>> deltaFacts, List<Integer> deltaPositions) {
+            this.oldKB = oldKB;
+            this.premises = premises;
+            this.guards = guards;
+            this.deltaFacts = deltaFacts;
+            this.deltaPositions = deltaPositions;
+            this.oldFacts = new ArrayList<>(Collections.nCopies(premises.size(), null));
         }
 
-        private void inc(int[] vect, int viewSize) {
-            if(viewSize==0){
-                for (int i = 0; i < vect.length; i++) {
-                    vect[i] = selectedFacts.get(i).size();
+        @Override
+        public List<List<Term>> get(int pass) {
+            int d = deltaPositions.get(pass);
+            List<List<Term>> selectedFacts = new ArrayList<>();
+            for (int i = 0; i < premises.size(); i++) {
+                List<Term> facts;
+                if (i < d) {
+                    facts = oldFacts(i);
+                } else if (i == d) {
+                    facts = deltaFacts.get(i);
+                } else if (deltaFacts.get(i).isEmpty()) {
+                    facts = oldFacts(i);
+                } else {
+                    facts = TableCandidates.concat(oldFacts(i), deltaFacts.get(i));
                 }
-                return;
-            }
-            vect[viewSize - 1]++;
-            if (vect[viewSize - 1] == selectedFacts.get(viewSize-1).size()) {
-                vect[viewSize - 1] = 0;
-                inc(vect, viewSize - 1);
+                if (facts.isEmpty()) {
+                    // the pass produces nothing: the other premises are not looked up
+                    while (selectedFacts.size() < premises.size()) {
+                        selectedFacts.add(Collections.emptyList());
+                    }
+                    return selectedFacts;
+                }
+                selectedFacts.add(facts);
             }
+            return selectedFacts;
         }
 
         @Override
-        public List<Term> next() {
-            int[] currentCounters = new int[indexes.length];
-            System.arraycopy(indexes, 0, currentCounters, 0, indexes.length);
-            inc(indexes, indexes.length);
-            List<Term> result = new ArrayList<>();
-            for (int i = 0; i < currentCounters.length; i++) {
-                int currentCounter = currentCounters[i];
-                result.add(selectedFacts.get(i).get(currentCounter));
+        public int size() {
+            return deltaPositions.size();
+        }
+
+        private List<Term> oldFacts(int i) {
+            List<Term> result = oldFacts.get(i);
+            if (result == null) {
+                result = oldKB.candidatesFor(premises.get(i), guards);
+                oldFacts.set(i, result);
             }
             return result;
         }
@@ -0,0 +1,189 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.AtomDictionary;
+import parsleyj.simplerules.terms.Struct;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+/**
+ * Candidates of a premise made of some facts stored as {@link Term} objects, followed by some rows of a
+ * {@link FactTable}, followed by other facts stored as {@link Term} objects. The rows are selected on their atom IDs,
+ * and each one is materialized only when it is read (at most once), so that a join can filter the rows on their
+ * columns (see {@link #atomId(int, int)}) and materialize only the ones it binds to the premise.
+ * <br>
+ * The table must not be modified while the list is in use.
+ */
+class TableCandidates extends AbstractList<Term> implements RandomAccess {
+
+    private final List<Term> before;
+    private final FactTable table;
+    private final int[] rows;
+    private final Term[] materialized;
+    private final List<Term> after;
+    private RowArguments arguments = null;
+    /**
+     * The first list of the concatenation which created this list, or null (see {@link #prefixOf(List)}).
+     */
+    private List<Term> prefix = null;
+
+    private TableCandidates(List<Term> before, FactTable table, int[] rows, Term[] materialized, List<Term> after) {
+        this.before = before;
+        this.table = table;
+        this.rows = rows;
+        this.materialized = materialized;
+        this.after = after;
+    }
+
+    /**
+     * Creates the list of the specified facts followed by the specified rows of a table.
+     */
+    TableCandidates(List<Term> before, FactTable table, int[] rows) {
+        this(before, table, rows, new Term[rows.length], Collections.emptyList());
+    }
+
+    /**
+     * Returns a view of the concatenation of two lists of candidates, which does not copy the first one; if the first
+     * one is a {@link TableCandidates}, the result shares its materialized rows.
+     */
+    static List<Term> concat(List<Term> first, List<Term> second) {
+        if (second.isEmpty()) {
+            return first;
+        }
+        if (first.isEmpty()) {
+            return second;
+        }
+        TableCandidates result;
+        if (!(first instanceof TableCandidates)) {
+            result = new TableCandidates(first, null, new int[0], new Term[0], second);
+        } else {
+            TableCandidates candidates = (TableCandidates) first;
+            List<Term> after = second;
+            if (!candidates.after.isEmpty()) {
+                after = new ArrayList<>(candidates.after);
+                after.addAll(second);
+            }
+            result = new TableCandidates(candidates.before, candidates.table, candidates.rows,
+                    candidates.materialized, after);
+        }
+        result.prefix = first;
+        return result;
+    }
+
+    /**
+     * Returns the first list of the concatenation (see {@link #concat(List, List)}) which created the specified list,
+     * whose candidates are the first ones of the list, in the same order, or null if the list was not created by a
+     * concatenation.
+     */
+    static List<Term> prefixOf(List<Term> candidates) {
+        return candidates instanceof TableCandidates ? ((TableCandidates) candidates).prefix : null;
+    }
+
+    /**
+     * Returns true if the specified predicate holds for all the candidates which are not rows of a table, without
+     * materializing the rows (which are plain relations of atoms).
+     */
+    static boolean allTermsMatch(List<Term> candidates, Predicate<Term> predicate) {
+        if (!(candidates instanceof TableCandidates)) {
+            return candidates.stream().allMatch(predicate);
+        }
+        TableCandidates tableCandidates = (TableCandidates) candidates;
+        return tableCandidates.before.stream().allMatch(predicate)
+                && tableCandidates.after.stream().allMatch(predicate);
+    }
+
+    /**
+     * Returns the atom ID in the specified column of the candidate at the specified index, if it is a row of the
+     * table, or -1.
+     */
+    int atomId(int index, int column) {
+        int row = index - before.size();
+        return row >= 0 && row < rows.length ? table.get(rows[row], column) : FactTable.ANY_ID;
+    }
+
+    /**
+     * Returns the terms of the candidate at the specified index, as {@link Struct#toJavaList()}, or null if it is not
+     * a {@link Struct}. The terms of a row are read from the table without materializing it, in a list which is
+     * reused by the next call.
+     */
+    List<Term> arguments(int index) {
+        if (!isRow(index)) {
+            return argumentsOf(get(index));
+        }
+        if (arguments == null) {
+            arguments = new RowArguments();
+        }
+        arguments.row = rows[index - before.size()];
+        return arguments;
+    }
+
+    /**
+     * Returns the terms of the candidate at the specified index of a list of candidates (see
+     * {@link #arguments(int)}).
+     */
+    static List<Term> argumentsOf(List<Term> candidates, int index) {
+        if (candidates instanceof TableCandidates) {
+            return ((TableCandidates) candidates).arguments(index);
+        }
+        return argumentsOf(candidates.get(index));
+    }
+
+    private static List<Term> argumentsOf(Term fact) {
+        return fact instanceof Struct ? ((Struct) fact).toJavaList() : null;
+    }
+
+    /**
+     * Returns true if the candidate at the specified index is a row of the table.
+     */
+    boolean isRow(int index) {
+        int row = index - before.size();
+        return row >= 0 && row < rows.length;
+    }
+
+    @Override
+    public Term get(int index) {
+        int row = index - before.size();
+        if (row < 0) {
+            return before.get(index);
+        }
+        if (row >= rows.length) {
+            return after.get(row - rows.length);
+        }
+        Term fact = materialized[row];
+        if (fact == null) {
+            fact = table.materialize(rows[row]);
+            materialized[row] = fact;
+        }
+        return fact;
+    }
+
+    @Override
+    public int size() {
+        return before.size() + rows.length + after.size();
+    }
+
+    /**
+     * The terms of a row of the table: the name of the relation, followed by the atoms of the columns.
+     */
+    private class RowArguments extends AbstractList<Term> implements RandomAccess {
+        private final Term name = new Atom<>(table.getName());
+        private int row;
+
+        @Override
+        public Term get(int index) {
+            return index == 0 ? name : AtomDictionary.global().atom(table.get(row, index - 1));
+        }
+
+        @Override
+        public int size() {
+            return table.getArity() + 1;
+        }
+    }
+}
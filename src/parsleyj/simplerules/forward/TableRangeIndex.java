@@ -0,0 +1,111 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.terms.AtomDictionary;
+
+import java.util.Arrays;
+
+/**
+ * Sorted index of the rows of a {@link FactTable} by the integer value of the atom in one of their columns: the
+ * counterpart of {@link RangeIndex} for the facts stored in compact form, used to retrieve only the rows whose atom is
+ * in a range, instead of decoding the atom of each row of the table.
+ * <br>
+ * The rows whose atom is an integer are kept as entries sorted by value and row; the other rows are never returned,
+ * since no integer comparison can succeed on them. The rows appended to the table are indexed when the index is used
+ * next, by sorting them and merging them with the indexed ones. Since removing a row from a table moves another row
+ * in its place, the index must be discarded when rows are removed.
+ */
+class TableRangeIndex {
+
+    private static final long[] EMPTY = new long[0];
+
+    private final FactTable table;
+    private final int column;
+    private int indexedRows = 0;
+    /**
+     * The value of the atom of each indexed row in the high 32 bits, and the row in the low 32 bits, sorted.
+     */
+    private long[] entries = EMPTY;
+
+    TableRangeIndex(FactTable table, int column) {
+        this.table = table;
+        this.column = column;
+    }
+
+    /**
+     * Returns the table indexed by this index.
+     */
+    FactTable table() {
+        return table;
+    }
+
+    /**
+     * Returns the rows whose atom is an integer in the specified range (bounds included), in increasing order.
+     */
+    int[] rowsInRange(long min, long max) {
+        refresh();
+        int from = firstEntry(min);
+        int to = firstEntry(max == Long.MAX_VALUE ? max : max + 1);
+        if (to <= from) {
+            return new int[0];
+        }
+        int[] result = new int[to - from];
+        for (int i = from; i < to; i++) {
+            result[i - from] = (int) entries[i];
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the index of the first entry whose value is at least the specified one.
+     */
+    private int firstEntry(long value) {
+        if (value <= Integer.MIN_VALUE) {
+            return 0;
+        }
+        if (value > Integer.MAX_VALUE) {
+            return entries.length;
+        }
+        long key = value << 32;
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Indexes the rows appended to the table since the last use.
+     */
+    private void refresh() {
+        int size = table.size();
+        if (size <= indexedRows) {
+            return;
+        }
+        AtomDictionary dictionary = AtomDictionary.global();
+        long[] added = new long[size - indexedRows];
+        int count = 0;
+        for (int row = indexedRows; row < size; row++) {
+            Object value = dictionary.atom(table.get(row, column)).getWrappedValue();
+            if (value instanceof Integer) {
+                added[count++] = ((long) (Integer) value << 32) | row;
+            }
+        }
+        Arrays.sort(added, 0, count);
+        long[] merged = new long[entries.length + count];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            merged[k] = j == count || (i < entries.length && entries[i] < added[j]) ? entries[i++] : added[j++];
+        }
+        entries = merged;
+        indexedRows = size;
+    }
+}
@@ -0,0 +1,728 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.AtomDictionary;
+import parsleyj.simplerules.terms.CustomUnifiable;
+import parsleyj.simplerules.terms.NativeFactInvoker;
+import parsleyj.simplerules.terms.Relation;
+import parsleyj.simplerules.terms.Struct;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.terms.Variable;
+import parsleyj.simplerules.unify.SimpleUnify;
+import parsleyj.simplerules.unify.UnificationResult;
+
+import java.util.*;
+
+/**
+ * Worst-case optimal join of a sequence of premises (leapfrog triejoin), used by {@link JoinIterator} for the rules
+ * whose premises form a cyclic pattern of shared variables, e.g. {@code edge(A, B), edge(B, C), edge(C, A)}. With
+ * such patterns, any join of the premises two at a time can produce many more partial matches than the final ones.
+ * <br>
+ * The variables are bound one at a time, in order of first appearance in the premises. The candidates of each premise
+ * are encoded as tuples of atom IDs (see {@link AtomDictionary}), ordered by the variables of the premise, and sorted,
+ * so that they form a trie. The values of each variable are found by intersecting the
+ * corresponding levels of the tries of all the premises in which it appears, skipping ahead with binary searches
+ * (leapfrog), so no partial match is produced that cannot be extended with the next variable.
+ * <br>
+ * The matches are produced in order of atom IDs, and not in the order of a nested loop over the candidates.
+ * <br>
+ * The tries of the candidates which are all the facts of a relation are kept by the knowledge base, and extended when
+ * facts are added to the relation (see {@link FCKnowledgeBase#joinTrie(Term, List, int[])}), so that the tries are not
+ * built again by each join.
+ */
+class TrieJoin {
+
+    private final List<? extends Term> premises;
+    private final int premisesCount;
+    private final int variablesCount;
+    /**
+     * For each premise, its candidates, the indexes of the ones which unify with it on their own (sorted as the
+     * tuples), and the tuples of the IDs of their arguments in the positions of the variables of the premise (ordered
+     * by the variables), sorted.
+     */
+    private final List<List<Term>> facts;
+    private final int[][] factIndexes;
+    private final int[][][] tuples;
+    /**
+     * For each variable, the premises in which it appears, and the depth of the variable in their tries.
+     */
+    private final int[][] participants;
+    private final int[][] depths;
+    /**
+     * For each premise and depth in its trie, the range of the rows matching the values bound so far.
+     */
+    private final int[][] rangeStart;
+    private final int[][] rangeEnd;
+    /**
+     * For each premise, the number of its variables, i.e. the depth of its trie.
+     */
+    private final int[] premiseVariables;
+    /**
+     * For each variable, the current position of the leapfrog in each participant.
+     */
+    private final int[][] positions;
+    private final int[] boundValues;
+    private final int[] outputRows;
+    private int level;
+    private boolean exhausted = false;
+    private boolean producing = false;
+    private long attempts = 0;
+    private long failures = 0;
+    /**
+     * For each premise, the number of combinations of rows unified with it, and the number of the successful
+     * unifications.
+     */
+    private final long[] entered;
+    private final long[] survived;
+    private final Term[] selected;
+    private UnificationResult unification;
+    /**
+     * The IDs of the values of the atoms in the tuples of the tries.
+     */
+    private final Ids ids;
+
+    private TrieJoin(List<? extends Term> premises, List<String> variables, List<List<Term>> candidates,
+                     FCKnowledgeBase source) {
+        this.premises = premises;
+        this.premisesCount = premises.size();
+        this.variablesCount = variables.size();
+        this.facts = new ArrayList<>(premisesCount);
+        this.factIndexes = new int[premisesCount][];
+        this.tuples = new int[premisesCount][][];
+        this.rangeStart = new int[premisesCount][];
+        this.rangeEnd = new int[premisesCount][];
+        this.premiseVariables = new int[premisesCount];
+        this.outputRows = new int[premisesCount];
+        this.selected = new Term[premisesCount];
+        this.ids = source != null ? source.trieIds() : new Ids();
+        this.entered = new long[premisesCount];
+        this.survived = new long[premisesCount];
+
+        List<List<Integer>> participantLists = new ArrayList<>();
+        List<List<Integer>> depthLists = new ArrayList<>();
+        for (int v = 0; v < variablesCount; v++) {
+            participantLists.add(new ArrayList<>());
+            depthLists.add(new ArrayList<>());
+        }
+        for (int p = 0; p < premisesCount; p++) {
+            List<String> names = new ArrayList<>();
+            int[] argumentPositions = variablePositions(premises.get(p), variables, names);
+            for (int d = 0; d < names.size(); d++) {
+                int v = variables.indexOf(names.get(d));
+                participantLists.get(v).add(p);
+                depthLists.get(v).add(d);
+            }
+            premiseVariables[p] = argumentPositions.length;
+            Trie trie = source != null ? source.joinTrie(premises.get(p), candidates.get(p), argumentPositions) : null;
+            if (trie == null) {
+                trie = Trie.build(premises.get(p), argumentPositions, candidates.get(p), ids);
+                attempts += trie.attempts;
+                failures += trie.failures;
+            }
+            facts.add(trie.facts);
+            factIndexes[p] = trie.factIndexes;
+            tuples[p] = trie.tuples;
+            rangeStart[p] = new int[argumentPositions.length + 1];
+            rangeEnd[p] = new int[argumentPositions.length + 1];
+            rangeEnd[p][0] = tuples[p].length;
+        }
+        this.participants = new int[variablesCount][];
+        this.depths = new int[variablesCount][];
+        for (int v = 0; v < variablesCount; v++) {
+            participants[v] = participantLists.get(v).stream().mapToInt(Integer::intValue).toArray();
+            depths[v] = depthLists.get(v).stream().mapToInt(Integer::intValue).toArray();
+        }
+        this.positions = new int[variablesCount][];
+        for (int v = 0; v < variablesCount; v++) {
+            positions[v] = new int[participants[v].length];
+        }
+        this.boundValues = new int[variablesCount];
+        this.level = 0;
+        for (int p = 0; p < premisesCount; p++) {
+            if (tuples[p].length == 0) {
+                exhausted = true;
+            }
+        }
+        if (!exhausted && variablesCount > 0) {
+            openLevel(0);
+        }
+    }
+
+    /**
+     * Returns true if the premises can be joined by a trie join, i.e. if they are all plain relations whose arguments
+     * are atoms or variables, and their pattern of shared variables is cyclic.
+     */
+    static boolean isApplicable(List<? extends Term> premises) {
+        if (premises.size() < 3) {
+            return false;
+        }
+        List<Set<String>> edges = new ArrayList<>();
+        for (Term premise : premises) {
+            if (!(premise instanceof Relation) || premise instanceof NativeFactInvoker
+                    || premise instanceof CustomUnifiable) {
+                return false;
+            }
+            List<Term> args = ((Struct) premise).toJavaList();
+            Set<String> edge = new HashSet<>();
+            for (int a = 1; a < args.size(); a++) {
+                Term arg = args.get(a);
+                if (arg instanceof Variable) {
+                    edge.add(((Variable) arg).getName());
+                } else if (!(arg instanceof Atom)) {
+                    return false;
+                }
+            }
+            edges.add(edge);
+        }
+        return isCyclic(edges);
+    }
+
+    /**
+     * Tests the cyclicity of the hypergraph whose edges are the sets of variables of the premises, by GYO reduction:
+     * the variables appearing in a single edge, and the edges contained in other edges, are removed until nothing
+     * changes; the hypergraph is acyclic if and only if at most an edge is left.
+     */
+    static boolean isCyclic(List<Set<String>> hypergraph) {
+        List<Set<String>> edges = new ArrayList<>();
+        for (Set<String> edge : hypergraph) {
+            edges.add(new HashSet<>(edge));
+        }
+        boolean changed = true;
+        while (changed && edges.size() > 1) {
+            changed = false;
+            Map<String, Integer> occurrences = new HashMap<>();
+            for (Set<String> edge : edges) {
+                for (String variable : edge) {
+                    occurrences.merge(variable, 1, Integer::sum);
+                }
+            }
+            for (Set<String> edge : edges) {
+                if (edge.removeIf(variable -> occurrences.get(variable) == 1)) {
+                    changed = true;
+                }
+            }
+            for (int i = 0; i < edges.size(); i++) {
+                for (int j = 0; j < edges.size(); j++) {
+                    if (i != j && edges.get(j).containsAll(edges.get(i))) {
+                        edges.remove(i);
+                        i--;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return edges.size() > 1;
+    }
+
+    /**
+     * Creates a trie join of the premises with the specified candidates (one list for each premise), or returns null
+     * if some candidate is not a relation whose arguments are atoms.
+     */
+    static TrieJoin create(List<? extends Term> premises, List<List<Term>> candidates) {
+        return create(premises, candidates, null);
+    }
+
+    /**
+     * Creates a trie join of the premises with the specified candidates, some of which can be candidates of the
+     * premises in the specified knowledge base (if not null), so that their tries kept by the knowledge base are
+     * used, instead of being built again.
+     */
+    static TrieJoin create(List<? extends Term> premises, List<List<Term>> candidates, FCKnowledgeBase source) {
+        for (List<Term> list : candidates) {
+            if (!TableCandidates.allTermsMatch(list, TrieJoin::isAtomRelation)) {
+                return null;
+            }
+        }
+        return new TrieJoin(premises, variables(premises), candidates, source);
+    }
+
+    private static boolean isAtomRelation(Term fact) {
+        if (!(fact instanceof Relation) || fact instanceof NativeFactInvoker || fact instanceof CustomUnifiable) {
+            return false;
+        }
+        List<Term> args = ((Struct) fact).toJavaList();
+        for (int a = 1; a < args.size(); a++) {
+            if (!(args.get(a) instanceof Atom)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the names of the variables of the premises, in order of first appearance.
+     */
+    static List<String> variables(List<? extends Term> premises) {
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for (Term premise : premises) {
+            List<Term> args = ((Struct) premise).toJavaList();
+            for (Term arg : args) {
+                if (arg instanceof Variable) {
+                    result.add(((Variable) arg).getName());
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Returns the positions of the first occurrences of the variables of the premise, ordered by the global order of
+     * the variables, and adds the variables to the specified list in the same order.
+     */
+    private static int[] variablePositions(Term premise, List<String> variables, List<String> premiseVariables) {
+        List<Term> args = ((Struct) premise).toJavaList();
+        Map<String, Integer> firstPosition = new HashMap<>();
+        for (int a = 1; a < args.size(); a++) {
+            Term arg = args.get(a);
+            if (arg instanceof Variable) {
+                firstPosition.putIfAbsent(((Variable) arg).getName(), a);
+            }
+        }
+        for (String variable : variables) {
+            if (firstPosition.containsKey(variable)) {
+                premiseVariables.add(variable);
+            }
+        }
+        int[] result = new int[premiseVariables.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = firstPosition.get(premiseVariables.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if a relation of atoms, with the specified terms, unifies with a premise whose arguments are atoms
+     * and variables.
+     */
+    private static boolean matchesAtoms(List<Term> premiseArgs, List<Term> args) {
+        if (premiseArgs.size() != args.size()) {
+            return false;
+        }
+        Map<String, Term> values = null;
+        for (int a = 0; a < args.size(); a++) {
+            Term premiseArg = premiseArgs.get(a);
+            Term arg = args.get(a);
+            if (!(premiseArg instanceof Variable)) {
+                if (!premiseArg.eq(arg)) {
+                    return false;
+                }
+                continue;
+            }
+            if (!premiseArg.type().compatible(arg)) {
+                return false;
+            }
+            if (values == null) {
+                values = new HashMap<>();
+            }
+            Term previous = values.putIfAbsent(((Variable) premiseArg).getName(), arg);
+            if (previous != null && !previous.eq(arg)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compareRows(int[] a, int[] b) {
+        for (int c = 0; c < a.length; c++) {
+            int cmp = Integer.compare(a[c], b[c]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of unifications of a candidate with a premise attempted so far (the candidates of the tries
+     * kept by the knowledge base are not counted).
+     */
+    long attempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the number of failed unifications of a candidate with a premise so far.
+     */
+    long failures() {
+        return failures;
+    }
+
+    /**
+     * Returns the number of combinations of rows, agreeing on the values of all the variables, which were unified
+     * with the specified premise (after being unified with the previous ones).
+     */
+    long entered(int premise) {
+        return entered[premise];
+    }
+
+    /**
+     * Returns the number of combinations of rows whose unification with the specified premise succeeded.
+     */
+    long survived(int premise) {
+        return survived[premise];
+    }
+
+    /**
+     * Returns the result of the unification of the last match with the premises.
+     */
+    UnificationResult unification() {
+        return unification;
+    }
+
+    /**
+     * Returns the facts of the last match, one for each premise.
+     */
+    Term[] selected() {
+        return selected;
+    }
+
+    /**
+     * Finds the next match.
+     *
+     * @return false if there are no more matches
+     */
+    boolean advance() {
+        while (!exhausted) {
+            if (producing) {
+                if (nextCombination()) {
+                    if (emit()) {
+                        return true;
+                    }
+                    continue;
+                }
+                producing = false;
+                if (!backtrack(variablesCount)) {
+                    return false;
+                }
+            }
+            if (level == variablesCount) {
+                producing = true;
+                for (int p = 0; p < premisesCount; p++) {
+                    outputRows[p] = rangeStart[p][premiseVariables[p]];
+                }
+                if (emit()) {
+                    return true;
+                }
+            } else if (findValue(level)) {
+                bindValue(level);
+                level++;
+                if (level < variablesCount) {
+                    openLevel(level);
+                }
+            } else if (!backtrack(level)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the next value of the variable before the specified level.
+     *
+     * @return false if there are no more values, i.e. the join is exhausted
+     */
+    private boolean backtrack(int fromLevel) {
+        if (fromLevel == 0) {
+            exhausted = true;
+            return false;
+        }
+        level = fromLevel - 1;
+        nextValue(level);
+        return true;
+    }
+
+    /**
+     * Positions the participants of the variable v at the start of their current ranges.
+     */
+    private void openLevel(int v) {
+        for (int i = 0; i < participants[v].length; i++) {
+            positions[v][i] = rangeStart[participants[v][i]][depths[v][i]];
+        }
+    }
+
+    private int key(int v, int i) {
+        return tuples[participants[v][i]][positions[v][i]][depths[v][i]];
+    }
+
+    private boolean atEnd(int v, int i) {
+        return positions[v][i] >= rangeEnd[participants[v][i]][depths[v][i]];
+    }
+
+    /**
+     * Leapfrog search: moves the participants of the variable v forward until they all agree on a value.
+     *
+     * @return false if one of the participants ran out of values
+     */
+    private boolean findValue(int v) {
+        int count = participants[v].length;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (atEnd(v, i)) {
+                return false;
+            }
+            max = Math.max(max, key(v, i));
+        }
+        int agreeing = 0;
+        for (int i = 0; agreeing < count; i = (i + 1) % count) {
+            if (key(v, i) < max) {
+                seek(v, i, max);
+                if (atEnd(v, i)) {
+                    return false;
+                }
+            }
+            int found = key(v, i);
+            if (found > max) {
+                max = found;
+                agreeing = 1;
+            } else {
+                agreeing++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the i-th participant of the variable v to the first row of its range whose value is at least the
+     * specified one, with an exponential search followed by a binary search.
+     */
+    private void seek(int v, int i, int value) {
+        int p = participants[v][i];
+        int depth = depths[v][i];
+        int[][] rows = tuples[p];
+        int end = rangeEnd[p][depth];
+        int low = positions[v][i];
+        int high = low;
+        int step = 1;
+        while (high < end && rows[high][depth] < value) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min(high, end);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (rows[mid][depth] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        positions[v][i] = low;
+    }
+
+    /**
+     * Binds the variable v to the value on which its participants agree, and narrows the ranges of the participants
+     * to the rows with that value.
+     */
+    private void bindValue(int v) {
+        int value = key(v, 0);
+        boundValues[v] = value;
+        for (int i = 0; i < participants[v].length; i++) {
+            int p = participants[v][i];
+            int depth = depths[v][i];
+            int start = positions[v][i];
+            seek(v, i, value + 1);
+            rangeStart[p][depth + 1] = start;
+            rangeEnd[p][depth + 1] = positions[v][i];
+            positions[v][i] = start;
+        }
+    }
+
+    /**
+     * Moves the participants of the variable v past its current value.
+     */
+    private void nextValue(int v) {
+        for (int i = 0; i < participants[v].length; i++) {
+            seek(v, i, boundValues[v] + 1);
+        }
+    }
+
+    /**
+     * Moves to the next combination of the rows matching all the bound values (usually there is only one row for
+     * each premise).
+     */
+    private boolean nextCombination() {
+        for (int p = premisesCount - 1; p >= 0; p--) {
+            outputRows[p]++;
+            if (outputRows[p] < rangeEnd[p][premiseVariables[p]]) {
+                return true;
+            }
+            outputRows[p] = rangeStart[p][premiseVariables[p]];
+        }
+        return false;
+    }
+
+    /**
+     * Unifies the current combination of rows with the premises.
+     *
+     * @return true if the unification succeeded
+     */
+    private boolean emit() {
+        UnificationResult theta = UnificationResult.empty();
+        for (int p = 0; p < premisesCount; p++) {
+            selected[p] = facts.get(p).get(factIndexes[p][outputRows[p]]);
+            attempts++;
+            entered[p]++;
+            theta = SimpleUnify.unify(theta, selected[p], premises.get(p));
+            if (theta.isFailure()) {
+                failures++;
+                return false;
+            }
+            survived[p]++;
+        }
+        unification = theta;
+        return true;
+    }
+
+    /**
+     * The trie of the candidates of a premise: the indexes of the candidates which unify with it on their own (this
+     * checks the atom arguments, the repeated variables and the types of the variables), and the tuples of the IDs of
+     * their arguments in the positions of the variables of the premise (ordered by the variables), sorted. The rows of
+     * a table (see {@link TableCandidates}) are checked on their atoms, without materializing them.
+     * <br>
+     * A trie can be extended to the candidates appended to its list (see {@link #extend(List)}): only the appended
+     * candidates are checked and sorted, and merged with the tuples of the trie.
+     */
+    static class Trie {
+        private final Term premise;
+        private final int[] argumentPositions;
+        private final Ids ids;
+        private final List<Term> facts;
+        private final int end;
+        private final int[] factIndexes;
+        private final int[][] tuples;
+        /**
+         * The numbers of the candidates checked by the construction of this trie from the previous one, and of the
+         * ones which did not unify with the premise.
+         */
+        private long attempts = 0;
+        private long failures = 0;
+
+        private Trie(Term premise, int[] argumentPositions, Ids ids, List<Term> facts, int end, int[] factIndexes,
+                     int[][] tuples) {
+            this.premise = premise;
+            this.argumentPositions = argumentPositions;
+            this.ids = ids;
+            this.facts = facts;
+            this.end = end;
+            this.factIndexes = factIndexes;
+            this.tuples = tuples;
+        }
+
+        /**
+         * Builds the trie of the candidates of a premise, whose variables have their first occurrences in the
+         * specified positions, ordered by the variables.
+         */
+        static Trie build(Term premise, int[] argumentPositions, List<Term> candidates, Ids ids) {
+            return new Trie(premise, argumentPositions, ids, candidates, 0, new int[0], new int[0][])
+                    .extend(candidates);
+        }
+
+        /**
+         * Returns a key identifying the tries of the premises of the same shape with the same candidates, i.e. the
+         * premises with the same atoms, the same repeated variables with the same types, and the same positions of
+         * the variables in the tuples.
+         */
+        static List<Object> shape(Term premise, int[] argumentPositions) {
+            List<Term> args = ((Struct) premise).toJavaList();
+            List<Object> result = new ArrayList<>();
+            for (int position : argumentPositions) {
+                result.add(position);
+            }
+            Map<String, Integer> firstPosition = new HashMap<>();
+            for (int a = 1; a < args.size(); a++) {
+                Term arg = args.get(a);
+                if (arg instanceof Variable) {
+                    int position = a;
+                    result.add(firstPosition.computeIfAbsent(((Variable) arg).getName(), name -> position));
+                    result.add(arg.type());
+                } else {
+                    result.add(arg);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the trie of the specified candidates, whose first ones are the candidates of this trie.
+         */
+        Trie extend(List<Term> candidates) {
+            if (candidates == facts && end == candidates.size()) {
+                return this;
+            }
+            List<Term> premiseArgs = ((Struct) premise).toJavaList();
+            List<Integer> matching = new ArrayList<>(candidates.size() - end);
+            long checked = 0;
+            long failed = 0;
+            for (int i = end; i < candidates.size(); i++) {
+                checked++;
+                boolean unifies = candidates instanceof TableCandidates && ((TableCandidates) candidates).isRow(i)
+                        ? matchesAtoms(premiseArgs, ((TableCandidates) candidates).arguments(i))
+                        : !SimpleUnify.unify(UnificationResult.empty(), candidates.get(i), premise).isFailure();
+                if (unifies) {
+                    matching.add(i);
+                } else {
+                    failed++;
+                }
+            }
+            int[][] rows = new int[matching.size()][];
+            Integer[] order = new Integer[rows.length];
+            for (int r = 0; r < rows.length; r++) {
+                List<Term> args = TableCandidates.argumentsOf(candidates, matching.get(r));
+                rows[r] = new int[argumentPositions.length];
+                for (int c = 0; c < argumentPositions.length; c++) {
+                    rows[r][c] = ids.idOf((Atom<?>) args.get(argumentPositions[c]));
+                }
+                order[r] = r;
+            }
+            // stable, and the tuples of this trie come first among the equal ones: the result is the same of
+            // sorting all the candidates
+            Arrays.sort(order, (a, b) -> compareRows(rows[a], rows[b]));
+            int total = tuples.length + rows.length;
+            int[][] mergedTuples = new int[total][];
+            int[] mergedIndexes = new int[total];
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < total; k++) {
+                if (j == rows.length || (i < tuples.length && compareRows(tuples[i], rows[order[j]]) <= 0)) {
+                    mergedTuples[k] = tuples[i];
+                    mergedIndexes[k] = factIndexes[i++];
+                } else {
+                    mergedTuples[k] = rows[order[j]];
+                    mergedIndexes[k] = matching.get(order[j++]);
+                }
+            }
+            Trie result = new Trie(premise, argumentPositions, ids, candidates, candidates.size(), mergedIndexes,
+                    mergedTuples);
+            result.attempts = checked;
+            result.failures = failed;
+            return result;
+        }
+    }
+
+    /**
+     * The IDs of the values of the atoms in the tuples of the tries: the IDs of the {@link AtomDictionary}, for the
+     * values which are there (e.g. because they are stored in a table), and IDs local to this object, all below -1,
+     * for the other ones, so that the atoms of the facts on the heap are not added to the dictionary. A value keeps
+     * the local ID it got, even if it is added to the dictionary later, so that all the tries built with the same
+     * IDs can be joined.
+     */
+    static class Ids {
+        private final Map<Object, Integer> localIds = new HashMap<>();
+
+        int idOf(Atom<?> atom) {
+            Integer local = localIds.get(atom.getWrappedValue());
+            if (local != null) {
+                return local;
+            }
+            int id = AtomDictionary.global().lookup(atom);
+            if (id >= 0) {
+                return id;
+            }
+            id = -2 - localIds.size();
+            localIds.put(atom.getWrappedValue(), id);
+            return id;
+        }
+    }
+}
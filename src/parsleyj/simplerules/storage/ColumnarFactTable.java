@@ -0,0 +1,228 @@
+package parsleyj.simplerules.storage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * {@link FactTable} that stores the rows on the heap, as one {@code int} array for each column, with an
+ * open-addressing hash index on whole rows used to keep them unique.
+ * Rows are removed by moving the last row in place of the removed one, so the table is always dense.
+ */
+public class ColumnarFactTable implements FactTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final String name;
+    private final int arity;
+    private int[][] columns;
+    private int size = 0;
+    private final BitSet derived;
+
+    /**
+     * Hash index: each slot contains a row index + 1, or 0 if empty. Collisions are solved by linear probing.
+     */
+    private int[] slots;
+
+    /**
+     * Creates an empty table for the relation with specified name and arity.
+     */
+    public ColumnarFactTable(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+        this.columns = new int[arity][INITIAL_CAPACITY];
+        this.derived = new BitSet();
+        this.slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    private ColumnarFactTable(ColumnarFactTable original) {
+        this.name = original.name;
+        this.arity = original.arity;
+        this.columns = new int[arity][];
+        for (int c = 0; c < arity; c++) {
+            this.columns[c] = Arrays.copyOf(original.columns[c], Math.max(original.size, INITIAL_CAPACITY));
+        }
+        this.size = original.size;
+        this.derived = (BitSet) original.derived.clone();
+        this.slots = original.slots.clone();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getArity() {
+        return arity;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int row, int column) {
+        return columns[column][row];
+    }
+
+    @Override
+    public boolean isDerived(int row) {
+        return derived.get(row);
+    }
+
+    @Override
+    public int find(int[] ids) {
+        int mask = slots.length - 1;
+        for (int s = hash(ids) & mask; slots[s] != 0; s = (s + 1) & mask) {
+            int row = slots[s] - 1;
+            if (rowEquals(row, ids)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean add(int[] ids, boolean derived) {
+        int existing = find(ids);
+        if (existing >= 0) {
+            if (!derived) {
+                this.derived.clear(existing);
+            }
+            return false;
+        }
+        if (size == capacity()) {
+            for (int c = 0; c < arity; c++) {
+                columns[c] = Arrays.copyOf(columns[c], capacity() * 2);
+            }
+        }
+        int row = size;
+        for (int c = 0; c < arity; c++) {
+            columns[c][row] = ids[c];
+        }
+        this.derived.set(row, derived);
+        size++;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            insertSlot(row);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(int[] ids) {
+        int mask = slots.length - 1;
+        int s = hash(ids) & mask;
+        while (slots[s] != 0 && !rowEquals(slots[s] - 1, ids)) {
+            s = (s + 1) & mask;
+        }
+        if (slots[s] == 0) {
+            return false;
+        }
+        int row = slots[s] - 1;
+        deleteSlot(s);
+        int last = size - 1;
+        if (row != last) {
+            // moves the last row in the hole
+            int lastSlot = hashRow(last) & mask;
+            while (slots[lastSlot] != last + 1) {
+                lastSlot = (lastSlot + 1) & mask;
+            }
+            for (int c = 0; c < arity; c++) {
+                columns[c][row] = columns[c][last];
+            }
+            derived.set(row, derived.get(last));
+            slots[lastSlot] = row + 1;
+        }
+        derived.clear(last);
+        size--;
+        return true;
+    }
+
+    @Override
+    public FactTable copy() {
+        return new ColumnarFactTable(this);
+    }
+
+    private int capacity() {
+        return arity == 0 ? Integer.MAX_VALUE : columns[0].length;
+    }
+
+    private boolean rowEquals(int row, int[] ids) {
+        for (int c = 0; c < arity; c++) {
+            if (columns[c][row] != ids[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static int hash(int[] ids) {
+        int h = 1;
+        for (int id : ids) {
+            h = 31 * h + id;
+        }
+        return mix(h);
+    }
+
+    private int hashRow(int row) {
+        int h = 1;
+        for (int c = 0; c < arity; c++) {
+            h = 31 * h + columns[c][row];
+        }
+        return mix(h);
+    }
+
+    private void insertSlot(int row) {
+        int mask = slots.length - 1;
+        int s = hashRow(row) & mask;
+        while (slots[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        slots[s] = row + 1;
+    }
+
+    private void rehash(int newLength) {
+        slots = new int[newLength];
+        for (int row = 0; row < size; row++) {
+            insertSlot(row);
+        }
+    }
+
+    /**
+     * Empties a slot, shifting back the following entries of the same probe sequence (so that no tombstones are
+     * needed).
+     */
+    private void deleteSlot(int hole) {
+        int mask = slots.length - 1;
+        slots[hole] = 0;
+        int s = hole;
+        while (true) {
+            s = (s + 1) & mask;
+            if (slots[s] == 0) {
+                return;
+            }
+            int ideal = hashRow(slots[s] - 1) & mask;
+            // the entry can be moved to the hole only if its ideal slot is not in the cyclic interval (hole, s]
+            boolean inInterval = hole <= s
+                    ? (ideal > hole && ideal <= s)
+                    : (ideal > hole || ideal <= s);
+            if (!inInterval) {
+                slots[hole] = slots[s];
+                slots[s] = 0;
+                hole = s;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package parsleyj.simplerules.storage;
+
+import parsleyj.simplerules.terms.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact storage for the ground facts of a single relation (identified by name and arity), whose arguments are all
+ * atoms. Each fact is stored as a row of atom IDs (see {@link AtomDictionary}), and {@link Term} objects are
+ * materialized only when requested. Rows are unique: adding a fact which is already in the table has no effect,
+ * apart from marking it as asserted (see {@link #add(int[], boolean)}).
+ */
+public interface FactTable {
+
+    /**
+     * Value used in patterns for the columns which are not constrained (see {@link #materializeMatching(int[])}).
+     */
+    int ANY_ID = -1;
+
+    /**
+     * Function used by knowledge bases to create the tables for their relations.
+     */
+    @FunctionalInterface
+    interface Factory {
+        FactTable create(String name, int arity);
+    }
+
+    /**
+     * Returns the name of the relation stored in this table.
+     */
+    String getName();
+
+    /**
+     * Returns the arity of the relation stored in this table.
+     */
+    int getArity();
+
+    /**
+     * Returns the number of rows (facts) in this table.
+     */
+    int size();
+
+    /**
+     * Returns the atom ID in the specified row and column.
+     *
+     * @param row    the row index
+     * @param column the column index, i.e. the position of the argument in the relation
+     * @return the atom ID
+     */
+    int get(int row, int column);
+
+    /**
+     * Returns true if the fact in the specified row was produced by the reasoning engine (and never asserted).
+     */
+    boolean isDerived(int row);
+
+    /**
+     * Finds the row with the specified atom IDs.
+     *
+     * @param ids the atom IDs, one for each column
+     * @return the row index, or -1 if there is no such row
+     */
+    int find(int[] ids);
+
+    /**
+     * Adds a row to this table. If the row is already present, and {@code derived} is false, the row is marked as
+     * asserted.
+     *
+     * @param ids     the atom IDs, one for each column
+     * @param derived true if the fact was produced by the reasoning engine
+     * @return true if the row was not already in the table
+     */
+    boolean add(int[] ids, boolean derived);
+
+    /**
+     * Removes a row from this table. The indexes of the other rows may change.
+     *
+     * @param ids the atom IDs, one for each column
+     * @return true if the row was in the table
+     */
+    boolean remove(int[] ids);
+
+    /**
+     * Returns an independent copy of this table.
+     */
+    FactTable copy();
+
+    /**
+     * Releases the resources (e.g. files) held by this table, which cannot be used anymore.
+     */
+    default void release() {
+    }
+
+    /**
+     * Builds the {@link Term} representation of the fact in the specified row.
+     *
+     * @param row the row index
+     * @return the fact
+     */
+    default RelationImpl materialize(int row) {
+        AtomDictionary dictionary = AtomDictionary.global();
+        List<Term> terms = new ArrayList<>(getArity());
+        for (int column = 0; column < getArity(); column++) {
+            terms.add(dictionary.atom(get(row, column)));
+        }
+        return new RelationImpl(Type.ANY, getName(), terms);
+    }
+
+    /**
+     * Builds the {@link Term} representations of all the facts in this table.
+     */
+    default List<Term> materializeAll() {
+        List<Term> result = new ArrayList<>(size());
+        for (int row = 0; row < size(); row++) {
+            result.add(materialize(row));
+        }
+        return result;
+    }
+
+    /**
+     * Builds the {@link Term} representations of the facts in this table which match the specified pattern. Only the
+     * columns constrained by the pattern are read for the rows which do not match.
+     *
+     * @param pattern for each column, the required atom ID, or {@link #ANY_ID} if the column is not constrained
+     * @return the matching facts
+     */
+    default List<Term> materializeMatching(int[] pattern) {
+        List<Term> result = new ArrayList<>();
+        for (int row = 0; row < size(); row++) {
+            boolean matches = true;
+            for (int column = 0; column < pattern.length && matches; column++) {
+                matches = pattern[column] == ANY_ID || get(row, column) == pattern[column];
+            }
+            if (matches) {
+                result.add(materialize(row));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the fact can be stored in a table, i.e. if it is a plain {@link RelationImpl} whose arguments
+     * are all atoms encodable by the {@link AtomDictionary}.
+     */
+    static boolean isStorable(Term fact) {
+        if (fact == null || fact.getClass() != RelationImpl.class || fact.type() != Type.ANY) {
+            return false;
+        }
+        List<Term> terms = ((RelationImpl) fact).toJavaList();
+        for (int i = 1; i < terms.size(); i++) {
+            if (!AtomDictionary.isEncodable(terms.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the arguments of a storable fact (see {@link #isStorable(Term)}) as atom IDs, adding their values to
+     * the dictionary if needed.
+     *
+     * @param fact the fact
+     * @return the atom IDs, or null if the fact is not storable
+     */
+    static int[] encode(Term fact) {
+        if (!isStorable(fact)) {
+            return null;
+        }
+        List<Term> terms = ((RelationImpl) fact).toJavaList();
+        int[] ids = new int[terms.size() - 1];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ((Atom<?>) terms.get(i + 1)).id();
+        }
+        return ids;
+    }
+
+    /**
+     * Encodes the arguments of a ground relation whose arguments are all atoms, without adding values to the
+     * dictionary.
+     *
+     * @param fact the fact
+     * @return the atom IDs, or null if the fact is not a plain relation of atoms, or if one of the values is not in
+     * the dictionary (in which case the fact cannot be in any table)
+     */
+    static int[] lookup(Term fact) {
+        if (fact == null || fact.getClass() != RelationImpl.class) {
+            return null;
+        }
+        List<Term> terms = ((RelationImpl) fact).toJavaList();
+        int[] ids = new int[terms.size() - 1];
+        for (int i = 0; i < ids.length; i++) {
+            Term term = terms.get(i + 1);
+            if (!(term instanceof Atom)) {
+                return null;
+            }
+            ids[i] = AtomDictionary.global().lookup((Atom<?>) term);
+            if (ids[i] < 0) {
+                return null;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Builds the pattern matching the rows which could unify with the specified relation (see
+     * {@link #materializeMatching(int[])}): the columns of its atom arguments are constrained to their IDs, while the
+     * others are not constrained.
+     *
+     * @param premise the relation
+     * @return the pattern, or null if one of the atom arguments is not in the dictionary (in which case no row can
+     * match)
+     */
+    static int[] pattern(Relation premise) {
+        List<Term> terms = premise.toJavaList();
+        int[] pattern = new int[terms.size() - 1];
+        for (int i = 0; i < pattern.length; i++) {
+            Term term = terms.get(i + 1);
+            if (term instanceof Atom) {
+                pattern[i] = AtomDictionary.global().lookup((Atom<?>) term);
+                if (pattern[i] < 0) {
+                    return null;
+                }
+            } else {
+                pattern[i] = ANY_ID;
+            }
+        }
+        return pattern;
+    }
+}
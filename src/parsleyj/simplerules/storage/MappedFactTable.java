@@ -0,0 +1,620 @@
+package parsleyj.simplerules.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link FactTable} that stores the rows off-heap, in memory-mapped files, so that the size of a knowledge base is not
+ * limited by the heap, and the facts do not burden the garbage collector. The operating system page cache keeps in
+ * memory the parts of the files which are actually used.
+ * <br>
+ * The rows file starts with a header ({@code magic, arity, size, index length}), followed by the rows, each one made
+ * of the atom IDs of the arguments and a flag word (bit 0 is set for derived facts). The whole-row hash index,
+ * used to keep the rows unique, is kept in a second file with the same name and the {@code .idx} extension.
+ * <br>
+ * The atom IDs refer to the global {@link parsleyj.simplerules.terms.AtomDictionary}, which stays on the heap.
+ * <br>
+ * Copies are copy-on-write: a copy shares the files of the original table, and the files are copied only when one of
+ * the tables sharing them is modified (the table opened from a file keeps writing to that file, and the other ones
+ * get the copy). Temporary files (the ones created by the tables of a {@link #factory(Path)}, and the copies) are
+ * deleted when no table uses them anymore: when all of their tables are released, closed or garbage collected, or at
+ * the latest when the JVM terminates.
+ */
+public class MappedFactTable implements FactTable, Closeable {
+
+    static final int MAGIC = 0x53524654;
+    static final String ROWS_EXTENSION = ".rows";
+    static final String INDEX_EXTENSION = ".idx";
+
+    private static final int HEADER_INTS = 4;
+    private static final int MAGIC_POS = 0;
+    private static final int ARITY_POS = 1;
+    private static final int SIZE_POS = 2;
+    private static final int SLOTS_POS = 3;
+    private static final int INITIAL_SLOTS = 32;
+    private static final int DERIVED_FLAG = 1;
+
+    /**
+     * The temporary storages not deleted yet, deleted when the JVM terminates.
+     */
+    private static final Set<Storage> TEMPORARY_STORAGES = ConcurrentHashMap.newKeySet();
+    /**
+     * The references used to release the leases of the tables which were garbage collected without being released.
+     */
+    private static final Set<TableReference> TABLE_REFERENCES = ConcurrentHashMap.newKeySet();
+    private static final ReferenceQueue<MappedFactTable> COLLECTED_TABLES = new ReferenceQueue<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Storage storage : TEMPORARY_STORAGES) {
+                storage.delete();
+            }
+        }, "MappedFactTable cleanup"));
+    }
+
+    private final String name;
+    private final int arity;
+    private final int rowWidth;
+    private final Lease lease;
+    private final TableReference reference;
+    private int size;
+    private int slotsLength;
+
+    /**
+     * Creates an empty table for the relation with specified name and arity, in new files of the specified
+     * directory.
+     *
+     * @param directory the directory in which the files of the table are created
+     * @param name      the name of the relation
+     * @param arity     the arity of the relation
+     */
+    public MappedFactTable(Path directory, String name, int arity) {
+        this(name, new MappedIntArray(newRowsFile(directory)), arity);
+    }
+
+    private MappedFactTable(String name, MappedIntArray rows, int arity) {
+        expungeCollectedTables();
+        this.name = name;
+        this.arity = arity;
+        this.rowWidth = arity + 1;
+        this.size = 0;
+        this.slotsLength = INITIAL_SLOTS;
+        MappedIntArray index = new MappedIntArray(indexFileOf(rows.getPath()));
+        rows.ensureCapacity(HEADER_INTS);
+        rows.set(MAGIC_POS, MAGIC);
+        rows.set(ARITY_POS, arity);
+        rows.set(SIZE_POS, 0);
+        rows.set(SLOTS_POS, slotsLength);
+        index.ensureCapacity(slotsLength);
+        this.lease = new Lease(new Storage(rows, index, false));
+        this.reference = new TableReference(this, lease);
+    }
+
+    private MappedFactTable(String name, MappedIntArray rows) {
+        if (rows.capacity() < HEADER_INTS || rows.get(MAGIC_POS) != MAGIC) {
+            rows.close();
+            throw new IllegalArgumentException("Not a fact table file: " + rows.getPath());
+        }
+        expungeCollectedTables();
+        this.name = name;
+        this.arity = rows.get(ARITY_POS);
+        this.rowWidth = arity + 1;
+        this.size = rows.get(SIZE_POS);
+        this.slotsLength = rows.get(SLOTS_POS);
+        this.lease = new Lease(new Storage(rows, new MappedIntArray(indexFileOf(rows.getPath())), false));
+        this.reference = new TableReference(this, lease);
+        if (lease.storage.index.capacity() < slotsLength) {
+            // the index file was lost (e.g. during a crash while it was rebuilt)
+            rehash(slotsLength);
+        }
+    }
+
+    /**
+     * Creates a table sharing the storage of another one (see {@link #copy()}).
+     */
+    private MappedFactTable(MappedFactTable original) {
+        expungeCollectedTables();
+        this.name = original.name;
+        this.arity = original.arity;
+        this.rowWidth = original.rowWidth;
+        this.size = original.size;
+        this.slotsLength = original.slotsLength;
+        this.lease = original.lease.share();
+        this.reference = new TableReference(this, lease);
+    }
+
+    /**
+     * Opens a table previously stored in the specified rows file (and in its index file, which is rebuilt if it is
+     * missing).
+     *
+     * @param rowsFile the rows file
+     * @param name     the name of the relation
+     * @return the table
+     */
+    public static MappedFactTable open(Path rowsFile, String name) {
+        return new MappedFactTable(name, new MappedIntArray(rowsFile));
+    }
+
+    /**
+     * Returns a factory which creates the tables in new temporary files of the specified directory. Such files are
+     * deleted when the tables (and their copies) are not used anymore (see {@link MappedFactTable}).
+     *
+     * @param directory the directory in which the files of the tables are created
+     * @return the factory
+     */
+    public static FactTable.Factory factory(Path directory) {
+        return (name, arity) -> {
+            MappedFactTable table = new MappedFactTable(directory, name, arity);
+            table.lease.storage.makeTemporary();
+            return table;
+        };
+    }
+
+    private static Path newRowsFile(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            return Files.createTempFile(directory, "relation-", ROWS_EXTENSION);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Path indexFileOf(Path rowsFile) {
+        String fileName = rowsFile.getFileName().toString();
+        if (fileName.endsWith(ROWS_EXTENSION)) {
+            fileName = fileName.substring(0, fileName.length() - ROWS_EXTENSION.length());
+        }
+        return rowsFile.resolveSibling(fileName + INDEX_EXTENSION);
+    }
+
+    /**
+     * Returns the path of the rows file of this table.
+     */
+    public Path getRowsFile() {
+        return lease.storage.rows.getPath();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getArity() {
+        return arity;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int row, int column) {
+        return lease.storage.rows.get(position(row, column));
+    }
+
+    @Override
+    public boolean isDerived(int row) {
+        return (lease.storage.rows.get(position(row, arity)) & DERIVED_FLAG) != 0;
+    }
+
+    @Override
+    public int find(int[] ids) {
+        int mask = slotsLength - 1;
+        for (int s = ColumnarFactTable.hash(ids) & mask; slot(s) != 0; s = (s + 1) & mask) {
+            int row = slot(s) - 1;
+            if (rowEquals(row, ids)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean add(int[] ids, boolean derived) {
+        int existing = find(ids);
+        if (existing >= 0) {
+            if (!derived && isDerived(existing)) {
+                writableRows().set(position(existing, arity), 0);
+            }
+            return false;
+        }
+        MappedIntArray rows = writableRows();
+        int row = size;
+        rows.ensureCapacity(position(row + 1, 0));
+        for (int c = 0; c < arity; c++) {
+            rows.set(position(row, c), ids[c]);
+        }
+        rows.set(position(row, arity), derived ? DERIVED_FLAG : 0);
+        setSize(size + 1);
+        if (size * 2 > slotsLength) {
+            rehash(slotsLength * 2);
+        } else {
+            insertSlot(row);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(int[] ids) {
+        int mask = slotsLength - 1;
+        int s = ColumnarFactTable.hash(ids) & mask;
+        while (slot(s) != 0 && !rowEquals(slot(s) - 1, ids)) {
+            s = (s + 1) & mask;
+        }
+        if (slot(s) == 0) {
+            return false;
+        }
+        MappedIntArray rows = writableRows();
+        MappedIntArray index = lease.storage.index;
+        int row = slot(s) - 1;
+        deleteSlot(s);
+        int last = size - 1;
+        if (row != last) {
+            // moves the last row in the hole
+            int lastSlot = hashRow(last) & mask;
+            while (slot(lastSlot) != last + 1) {
+                lastSlot = (lastSlot + 1) & mask;
+            }
+            for (int c = 0; c <= arity; c++) {
+                rows.set(position(row, c), rows.get(position(last, c)));
+            }
+            index.set(lastSlot, row + 1);
+        }
+        setSize(last);
+        return true;
+    }
+
+    /**
+     * Creates a copy of this table, which shares its files until one of the two tables is modified; then the files
+     * are copied to new temporary files of the same directory.
+     */
+    @Override
+    public FactTable copy() {
+        return new MappedFactTable(this);
+    }
+
+    /**
+     * Writes the modified rows and index entries to the files.
+     */
+    public void force() {
+        Storage storage = lease.storage;
+        storage.rows.force();
+        storage.index.force();
+    }
+
+    /**
+     * Closes the files of this table, which cannot be used anymore. Temporary files are deleted, when no other table
+     * shares them.
+     */
+    @Override
+    public void close() {
+        reference.clear();
+        TABLE_REFERENCES.remove(reference);
+        lease.release(false);
+    }
+
+    /**
+     * Closes the files of this table, which cannot be used anymore, and deletes them as soon as no other table shares
+     * them.
+     */
+    @Override
+    public void release() {
+        reference.clear();
+        TABLE_REFERENCES.remove(reference);
+        lease.release(true);
+    }
+
+    /**
+     * Releases the leases of the tables which were garbage collected without being released or closed.
+     */
+    private static void expungeCollectedTables() {
+        Reference<? extends MappedFactTable> collected;
+        while ((collected = COLLECTED_TABLES.poll()) != null) {
+            TABLE_REFERENCES.remove(collected);
+            ((TableReference) collected).lease.release(false);
+        }
+    }
+
+    /**
+     * Returns the rows of this table, for modification: if they are shared with other tables, they are copied first.
+     */
+    private MappedIntArray writableRows() {
+        return lease.ensureExclusive().rows;
+    }
+
+    private long position(int row, int column) {
+        return HEADER_INTS + (long) row * rowWidth + column;
+    }
+
+    private void setSize(int newSize) {
+        size = newSize;
+        writableRows().set(SIZE_POS, newSize);
+    }
+
+    private int slot(int s) {
+        return lease.storage.index.get(s);
+    }
+
+    private boolean rowEquals(int row, int[] ids) {
+        MappedIntArray rows = lease.storage.rows;
+        for (int c = 0; c < arity; c++) {
+            if (rows.get(position(row, c)) != ids[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hashRow(int row) {
+        MappedIntArray rows = lease.storage.rows;
+        int h = 1;
+        for (int c = 0; c < arity; c++) {
+            h = 31 * h + rows.get(position(row, c));
+        }
+        return ColumnarFactTable.mix(h);
+    }
+
+    private void insertSlot(int row) {
+        int mask = slotsLength - 1;
+        int s = hashRow(row) & mask;
+        while (slot(s) != 0) {
+            s = (s + 1) & mask;
+        }
+        lease.ensureExclusive().index.set(s, row + 1);
+    }
+
+    /**
+     * Rebuilds the index with the specified number of slots. The new index is built in a new file, which replaces the
+     * old one only when complete, so that the old file is never modified while it is still mapped.
+     */
+    private void rehash(int newLength) {
+        Storage storage = lease.ensureExclusive();
+        MappedIntArray oldIndex = storage.index;
+        Path indexFile = oldIndex.getPath();
+        MappedIntArray newIndex;
+        try {
+            newIndex = new MappedIntArray(Files.createTempFile(indexFile.getParent(),
+                    indexFile.getFileName().toString(), ".tmp"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        newIndex.ensureCapacity(newLength);
+        int mask = newLength - 1;
+        for (int row = 0; row < size; row++) {
+            int s = hashRow(row) & mask;
+            while (newIndex.get(s) != 0) {
+                s = (s + 1) & mask;
+            }
+            newIndex.set(s, row + 1);
+        }
+        storage.index = newIndex;
+        slotsLength = newLength;
+        storage.rows.set(SLOTS_POS, newLength);
+        oldIndex.delete();
+        newIndex.moveTo(indexFile);
+    }
+
+    /**
+     * Empties a slot, shifting back the following entries of the same probe sequence (so that no tombstones are
+     * needed).
+     */
+    private void deleteSlot(int hole) {
+        MappedIntArray index = lease.ensureExclusive().index;
+        int mask = slotsLength - 1;
+        index.set(hole, 0);
+        int s = hole;
+        while (true) {
+            s = (s + 1) & mask;
+            if (slot(s) == 0) {
+                return;
+            }
+            int ideal = hashRow(slot(s) - 1) & mask;
+            // the entry can be moved to the hole only if its ideal slot is not in the cyclic interval (hole, s]
+            boolean inInterval = hole <= s
+                    ? (ideal > hole && ideal <= s)
+                    : (ideal > hole || ideal <= s);
+            if (!inInterval) {
+                index.set(hole, slot(s));
+                index.set(s, 0);
+                hole = s;
+            }
+        }
+    }
+
+    /**
+     * The files of a table, shared by the table and its copies until one of them is modified.
+     */
+    private static class Storage {
+        private final MappedIntArray rows;
+        private MappedIntArray index;
+        /**
+         * The leases of the tables using this storage.
+         */
+        private final Set<Lease> leases = new HashSet<>();
+        /**
+         * True if the files are deleted when no table uses them anymore.
+         */
+        private boolean temporary;
+        /**
+         * The lease of the table which was opened from (or created in) the files of this storage, if they are not
+         * temporary: such table keeps writing to them.
+         */
+        private Lease owner = null;
+
+        private Storage(MappedIntArray rows, MappedIntArray index, boolean temporary) {
+            this.rows = rows;
+            this.index = index;
+            this.temporary = temporary;
+            if (temporary) {
+                TEMPORARY_STORAGES.add(this);
+            }
+        }
+
+        private synchronized void makeTemporary() {
+            if (!temporary) {
+                temporary = true;
+                owner = null;
+                TEMPORARY_STORAGES.add(this);
+            }
+        }
+
+        /**
+         * Copies the files to new temporary files of the same directory.
+         */
+        private synchronized Storage duplicate() {
+            rows.force();
+            index.force();
+            Path rowsFile = newRowsFile(rows.getPath().getParent());
+            try {
+                Files.copy(rows.getPath(), rowsFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(index.getPath(), indexFileOf(rowsFile), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new Storage(new MappedIntArray(rowsFile), new MappedIntArray(indexFileOf(rowsFile)), true);
+        }
+
+        private void delete() {
+            TEMPORARY_STORAGES.remove(this);
+            rows.delete();
+            index.delete();
+        }
+    }
+
+    /**
+     * The use of a {@link Storage} by a table. When the table is modified while the storage is shared, the storage
+     * of the lease is replaced by a copy (or, if the table owns the storage, the storages of the other leases are).
+     */
+    private static class Lease {
+        private volatile Storage storage;
+        private boolean released = false;
+
+        private Lease(Storage storage) {
+            this(storage, true);
+        }
+
+        private Lease(Storage storage, boolean owner) {
+            this.storage = storage;
+            synchronized (storage) {
+                storage.leases.add(this);
+                if (owner && !storage.temporary) {
+                    storage.owner = this;
+                }
+            }
+        }
+
+        /**
+         * Returns a new lease of the same storage.
+         */
+        private Lease share() {
+            while (true) {
+                Storage current = storage;
+                synchronized (current) {
+                    if (current == storage) {
+                        return new Lease(current, false);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Makes sure that the storage of this lease is not shared with other leases, and returns it.
+         */
+        private Storage ensureExclusive() {
+            while (true) {
+                Storage current = storage;
+                Storage replacement;
+                synchronized (current) {
+                    if (current != storage) {
+                        // moved to a copy by the owner in the meantime
+                        continue;
+                    }
+                    if (current.leases.size() <= 1) {
+                        return current;
+                    }
+                    replacement = current.duplicate();
+                    if (current.owner == this) {
+                        List<Lease> others = new ArrayList<>(current.leases);
+                        others.remove(this);
+                        for (Lease other : others) {
+                            current.leases.remove(other);
+                            replacement.leases.add(other);
+                            other.storage = replacement;
+                        }
+                        return current;
+                    }
+                    current.leases.remove(this);
+                    replacement.leases.add(this);
+                    storage = replacement;
+                }
+                return replacement;
+            }
+        }
+
+        /**
+         * Removes this lease from its storage; when the last lease is removed, the files are closed, and deleted if
+         * temporary.
+         *
+         * @param delete if true, and this lease owns the storage, the files are deleted when no lease uses them
+         */
+        private void release(boolean delete) {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            while (true) {
+                Storage current = storage;
+                boolean temporary;
+                synchronized (current) {
+                    if (current != storage) {
+                        continue;
+                    }
+                    if (delete && current.owner == this) {
+                        current.makeTemporary();
+                    }
+                    current.leases.remove(this);
+                    if (!current.leases.isEmpty()) {
+                        return;
+                    }
+                    temporary = current.temporary;
+                }
+                if (temporary) {
+                    current.delete();
+                } else {
+                    current.rows.close();
+                    current.index.close();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Phantom reference to a table, used to release its lease after it is garbage collected.
+     */
+    private static class TableReference extends PhantomReference<MappedFactTable> {
+        private final Lease lease;
+
+        private TableReference(MappedFactTable table, Lease lease) {
+            super(table, COLLECTED_TABLES);
+            this.lease = lease;
+            TABLE_REFERENCES.add(this);
+        }
+    }
+}
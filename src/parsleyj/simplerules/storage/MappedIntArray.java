@@ -0,0 +1,158 @@
+package parsleyj.simplerules.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Growable array of {@code int}s stored in a file, which is memory-mapped in fixed-size segments (so that the array
+ * is not limited by the maximum size of a single mapping). Segments are mapped on demand, and the file grows
+ * accordingly; the operating system page cache decides which parts of the array are actually in memory.
+ * <br>
+ * Small arrays do not take a whole segment: while the array fits in one segment, its capacity is doubled as needed
+ * (starting from {@link #MIN_CAPACITY} ints), and the only segment is mapped again with the new size.
+ */
+class MappedIntArray implements Closeable {
+
+    static final int SEGMENT_SHIFT = 20;
+    static final int SEGMENT_INTS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_INTS - 1;
+    private static final long SEGMENT_BYTES = (long) SEGMENT_INTS * Integer.BYTES;
+    static final int MIN_CAPACITY = 1024;
+
+    private Path path;
+    private final FileChannel channel;
+    private MappedByteBuffer[] mappings = new MappedByteBuffer[0];
+    private IntBuffer[] segments = new IntBuffer[0];
+
+    /**
+     * Opens (or creates) the file at the specified path, and maps all of its existing content.
+     *
+     * @param path the path of the file
+     */
+    MappedIntArray(Path path) {
+        this.path = path;
+        try {
+            this.channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ensureCapacity(channel.size() / Integer.BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the path of the file storing this array.
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the number of ints currently mapped: a power of two smaller than {@link #SEGMENT_INTS}, or a multiple of
+     * it.
+     */
+    long capacity() {
+        if (segments.length == 0) {
+            return 0;
+        }
+        return (long) (segments.length - 1) * SEGMENT_INTS + segments[segments.length - 1].capacity();
+    }
+
+    int get(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    void set(long index, int value) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Maps enough segments to contain the specified number of ints, extending the file if needed.
+     */
+    void ensureCapacity(long ints) {
+        if (ints <= capacity()) {
+            return;
+        }
+        int needed = (int) ((ints + SEGMENT_INTS - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] newMappings = Arrays.copyOf(mappings, needed);
+        IntBuffer[] newSegments = Arrays.copyOf(segments, needed);
+        // a last segment smaller than SEGMENT_INTS is mapped again
+        int first = segments.length > 0 && segments[segments.length - 1].capacity() < SEGMENT_INTS
+                ? segments.length - 1
+                : segments.length;
+        try {
+            for (int s = first; s < needed; s++) {
+                long bytes = SEGMENT_BYTES;
+                if (needed == 1) {
+                    long small = Math.max(MIN_CAPACITY, Math.max(ints, capacity() * 2));
+                    bytes = Math.min(SEGMENT_INTS, Long.highestOneBit(small - 1) << 1) * (long) Integer.BYTES;
+                }
+                newMappings[s] = channel.map(FileChannel.MapMode.READ_WRITE, s * SEGMENT_BYTES, bytes);
+                newSegments[s] = newMappings[s].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mappings = newMappings;
+        segments = newSegments;
+    }
+
+    /**
+     * Writes the modified pages to the file.
+     */
+    void force() {
+        for (MappedByteBuffer mapping : mappings) {
+            mapping.force();
+        }
+    }
+
+    /**
+     * Closes the file. The mapped segments are released when they are garbage collected.
+     */
+    @Override
+    public void close() {
+        mappings = new MappedByteBuffer[0];
+        segments = new IntBuffer[0];
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Renames the file, which stays mapped.
+     *
+     * @param target the new path of the file, which must not exist
+     */
+    void moveTo(Path target) {
+        try {
+            Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        path = target;
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package parsleyj.simplerules.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link FactTable} whose rows and whole-row hash index are memory-mapped from a block of a snapshot file, so that
+ * loading it does not require reading its rows. Rows contain atom IDs which are local to the snapshot, and which are
+ * translated from/to the IDs of the global {@link parsleyj.simplerules.terms.AtomDictionary} when accessed.
+ * <br>
+ * The mapped block is read-only: the first modification copies the rows into a writable table, created by the
+ * factory provided when the block is mapped. Copies of an unmodified table share the same mapped block.
+ * <br>
+ * The block of a table of arity {@code n} contains the rows (each made of the {@code n} local atom IDs and a flag
+ * word, whose bit 0 is set for derived facts), followed by the slots of the index; each slot contains a row index +
+ * 1, or 0 if empty, and collisions are solved by linear probing.
+ */
+public class SnapshotFactTable implements FactTable {
+
+    private static final int DERIVED_FLAG = 1;
+
+    private final String name;
+    private final int arity;
+    private final int rowWidth;
+    private final int size;
+    private final int slotsLength;
+    private final IntBuffer[] rows;
+    private final IntBuffer[] index;
+    private final int[] localToGlobal;
+    private final int[] globalToLocal;
+    private final Factory writableFactory;
+    private FactTable writable = null;
+
+    private SnapshotFactTable(String name, int arity, int size, IntBuffer[] rows, IntBuffer[] index,
+                              int[] localToGlobal, int[] globalToLocal, Factory writableFactory) {
+        this.name = name;
+        this.arity = arity;
+        this.rowWidth = arity + 1;
+        this.size = size;
+        this.slotsLength = slotsFor(size);
+        this.rows = rows;
+        this.index = index;
+        this.localToGlobal = localToGlobal;
+        this.globalToLocal = globalToLocal;
+        this.writableFactory = writableFactory;
+    }
+
+    /**
+     * Maps a table from a block of a snapshot file.
+     *
+     * @param channel         the channel of the snapshot file
+     * @param name            the name of the relation
+     * @param arity           the arity of the relation
+     * @param size            the number of rows
+     * @param offset          the position of the block in the file
+     * @param localToGlobal   for each local atom ID, the corresponding global ID
+     * @param globalToLocal   for each global atom ID, the corresponding local ID, or -1 (global IDs beyond the end of
+     *                        the array have no local ID)
+     * @param writableFactory the factory of the table in which rows are copied on the first modification
+     * @return the table
+     */
+    public static SnapshotFactTable map(FileChannel channel, String name, int arity, int size, long offset,
+                                        int[] localToGlobal, int[] globalToLocal, Factory writableFactory) {
+        long rowsInts = (long) size * (arity + 1);
+        IntBuffer[] rows = mapRegion(channel, FileChannel.MapMode.READ_ONLY, offset, rowsInts);
+        IntBuffer[] index = mapRegion(channel, FileChannel.MapMode.READ_ONLY,
+                offset + rowsInts * Integer.BYTES, slotsFor(size));
+        return new SnapshotFactTable(name, arity, size, rows, index, localToGlobal, globalToLocal, writableFactory);
+    }
+
+    /**
+     * Writes the block of a table in a snapshot file.
+     *
+     * @param table         the table to be written
+     * @param channel       the channel of the snapshot file, which must be open for reading and writing
+     * @param offset        the position of the block in the file
+     * @param globalToLocal for each global atom ID used in the table, the corresponding local ID
+     */
+    public static void write(FactTable table, FileChannel channel, long offset, int[] globalToLocal) {
+        int arity = table.getArity();
+        int size = table.size();
+        long rowsInts = (long) size * (arity + 1);
+        IntBuffer[] rows = mapRegion(channel, FileChannel.MapMode.READ_WRITE, offset, rowsInts);
+        int slotsLength = slotsFor(size);
+        IntBuffer[] index = mapRegion(channel, FileChannel.MapMode.READ_WRITE,
+                offset + rowsInts * Integer.BYTES, slotsLength);
+        int mask = slotsLength - 1;
+        int[] ids = new int[arity];
+        long position = 0;
+        for (int row = 0; row < size; row++) {
+            for (int c = 0; c < arity; c++) {
+                ids[c] = globalToLocal[table.get(row, c)];
+                put(rows, position++, ids[c]);
+            }
+            put(rows, position++, table.isDerived(row) ? DERIVED_FLAG : 0);
+            int s = ColumnarFactTable.hash(ids) & mask;
+            while (get(index, s) != 0) {
+                s = (s + 1) & mask;
+            }
+            put(index, s, row + 1);
+        }
+    }
+
+    /**
+     * Returns the size in bytes of the block of a table with the specified arity and number of rows.
+     */
+    public static long blockBytes(int arity, int size) {
+        return ((long) size * (arity + 1) + slotsFor(size)) * Integer.BYTES;
+    }
+
+    private static int slotsFor(int size) {
+        int result = 2;
+        while (result < size * 2L) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    private static IntBuffer[] mapRegion(FileChannel channel, FileChannel.MapMode mode, long offset, long ints) {
+        int count = (int) ((ints + MappedIntArray.SEGMENT_INTS - 1) >>> MappedIntArray.SEGMENT_SHIFT);
+        IntBuffer[] result = new IntBuffer[count];
+        try {
+            for (int s = 0; s < count; s++) {
+                long first = (long) s * MappedIntArray.SEGMENT_INTS;
+                long length = Math.min(MappedIntArray.SEGMENT_INTS, ints - first);
+                result[s] = channel.map(mode, offset + first * Integer.BYTES, length * Integer.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                        .asIntBuffer();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    private static int get(IntBuffer[] region, long i) {
+        return region[(int) (i >>> MappedIntArray.SEGMENT_SHIFT)].get((int) (i & (MappedIntArray.SEGMENT_INTS - 1)));
+    }
+
+    private static void put(IntBuffer[] region, long i, int value) {
+        region[(int) (i >>> MappedIntArray.SEGMENT_SHIFT)].put((int) (i & (MappedIntArray.SEGMENT_INTS - 1)), value);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getArity() {
+        return arity;
+    }
+
+    @Override
+    public int size() {
+        return writable != null ? writable.size() : size;
+    }
+
+    @Override
+    public int get(int row, int column) {
+        if (writable != null) {
+            return writable.get(row, column);
+        }
+        return localToGlobal[get(rows, (long) row * rowWidth + column)];
+    }
+
+    @Override
+    public boolean isDerived(int row) {
+        if (writable != null) {
+            return writable.isDerived(row);
+        }
+        return (get(rows, (long) row * rowWidth + arity) & DERIVED_FLAG) != 0;
+    }
+
+    @Override
+    public int find(int[] ids) {
+        if (writable != null) {
+            return writable.find(ids);
+        }
+        int[] local = new int[arity];
+        for (int c = 0; c < arity; c++) {
+            if (ids[c] < 0 || ids[c] >= globalToLocal.length || globalToLocal[ids[c]] < 0) {
+                return -1;
+            }
+            local[c] = globalToLocal[ids[c]];
+        }
+        int mask = slotsLength - 1;
+        for (int s = ColumnarFactTable.hash(local) & mask; get(index, s) != 0; s = (s + 1) & mask) {
+            int row = get(index, s) - 1;
+            if (rowEquals(row, local)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean add(int[] ids, boolean derived) {
+        if (writable == null) {
+            int existing = find(ids);
+            if (existing >= 0 && (derived || !isDerived(existing))) {
+                return false;
+            }
+        }
+        return writable().add(ids, derived);
+    }
+
+    @Override
+    public boolean remove(int[] ids) {
+        if (writable == null && find(ids) < 0) {
+            return false;
+        }
+        return writable().remove(ids);
+    }
+
+    @Override
+    public FactTable copy() {
+        if (writable != null) {
+            return writable.copy();
+        }
+        return new SnapshotFactTable(name, arity, size, rows, index, localToGlobal, globalToLocal, writableFactory);
+    }
+
+    @Override
+    public void release() {
+        if (writable != null) {
+            writable.release();
+        }
+    }
+
+    /**
+     * Returns true if this table has been modified, and its rows have been copied in a writable table.
+     */
+    public boolean isCopied() {
+        return writable != null;
+    }
+
+    private boolean rowEquals(int row, int[] local) {
+        long position = (long) row * rowWidth;
+        for (int c = 0; c < arity; c++) {
+            if (get(rows, position + c) != local[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private FactTable writable() {
+        if (writable == null) {
+            FactTable result = writableFactory.create(name, arity);
+            int[] ids = new int[arity];
+            for (int row = 0; row < size; row++) {
+                for (int c = 0; c < arity; c++) {
+                    ids[c] = get(row, c);
+                }
+                result.add(ids, isDerived(row));
+            }
+            writable = result;
+        }
+        return writable;
+    }
+}
@@ -14,8 +14,11 @@ import java.util.Map;
 public class Atom<T> implements Term {
 
     private final T lit;
-    private final Class<?> clazz;
     private final JavaType type;
+    /**
+     * The ID of the wrapped value in the global {@link AtomDictionary}, or -1 if not known yet.
+     */
+    private int id;
 
     /**
      * Creates an Atom wrapping the value {@code lit}. The type is the {@link JavaType} extracted by using .getClass on
@@ -25,8 +28,8 @@ public class Atom<T> implements Term {
      */
     public Atom(T lit) {
         this.lit = lit;
-        this.clazz = lit.getClass();
-        this.type = new JavaType(clazz);
+        this.type = JavaType.of(lit.getClass());
+        this.id = -1;
     }
 
     /**
@@ -38,15 +41,53 @@ public class Atom<T> implements Term {
      */
     public Atom(T lit, Class<?> clazz) {
         this.lit = lit;
-        this.clazz = clazz;
-        this.type = new JavaType(clazz);
+        this.type = JavaType.of(clazz);
+        this.id = -1;
+    }
+
+    /**
+     * Creates the canonical atom of the {@link AtomDictionary} for the value {@code lit}.
+     */
+    Atom(T lit, int id) {
+        this.lit = lit;
+        this.type = JavaType.of(lit.getClass());
+        this.id = id;
     }
 
     /**
      * Returns the java class of the type of this atom.
      */
     public Class<?> getType() {
-        return clazz;
+        return type.getJavaClass();
+    }
+
+    /**
+     * Returns the ID assigned by the {@link AtomDictionary} to the java class of the type of this atom.
+     */
+    public int getClassId() {
+        return type.getClassId();
+    }
+
+    /**
+     * Returns the ID of the wrapped value in the global {@link AtomDictionary}, adding the value to the dictionary
+     * if needed. Since the values are never removed from the dictionary, this is meant for the atoms stored in compact
+     * fact tables; the others can use {@link AtomDictionary#lookup(Atom)}.
+     */
+    public int id() {
+        int result = id;
+        if (result < 0) {
+            result = AtomDictionary.global().idOf(this);
+            id = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ID of the wrapped value in the global {@link AtomDictionary} if already known by this atom,
+     * -1 otherwise.
+     */
+    int cachedID() {
+        return id;
     }
 
 
@@ -71,13 +112,18 @@ public class Atom<T> implements Term {
 
     /**
      * Returns true only if y is an instance of Atom and the wrapped values are equal.
+     * When the dictionary IDs of both atoms are known, only the IDs are compared.
      * @param y the term to which this term will be checked against.
      * @return true only if y is an instance of Atom and the wrapped values are equal.
      */
     @Override
     public boolean eq(Term y) {
         if (y instanceof Atom) {
-            return lit.equals(((Atom) y).lit);
+            Atom<?> other = (Atom<?>) y;
+            if (id >= 0 && other.id >= 0) {
+                return id == other.id;
+            }
+            return lit.equals(other.lit);
         }
 
         return false;
@@ -91,6 +137,25 @@ public class Atom<T> implements Term {
 
 
 
+    /**
+     * Atoms are equal if their wrapped values are equal, consistently with {@link #eq(Term)}.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Atom)) {
+            return false;
+        }
+        return eq((Atom<?>) o);
+    }
+
+    @Override
+    public int hashCode() {
+        return lit.hashCode();
+    }
+
     @Override
     public String toString() {
         return "«" + lit.toString() + "»";
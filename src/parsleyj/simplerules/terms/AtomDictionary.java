@@ -0,0 +1,234 @@
+package parsleyj.simplerules.terms;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table that assigns a dense integer ID to each distinct value wrapped by an {@link Atom}, so that ground
+ * terms can be stored, hashed and compared as integers. Two values get the same ID if and only if they are equal,
+ * consistently with {@link Atom#eq(Term)}. Each value is represented by a canonical {@link Atom}, which already knows
+ * its ID.
+ * <br>
+ * The dictionary also assigns a dense integer ID to each Java class used as type of atoms, and caches the
+ * compatibility between the registered classes (as in {@link Class#isAssignableFrom(Class)}), computed the first time
+ * each pair of classes is checked, so that type checks on atoms do not need reflection (see
+ * {@link #isAssignable(int, int)}).
+ * <br>
+ * IDs are never reclaimed, so a value is added to the dictionary only when an ID is really needed, i.e. when an atom is
+ * stored in a compact fact table (see {@link Atom#id()}): the atoms created by the builders and the facts kept on the
+ * heap do not enter the dictionary, and can be collected as soon as they are not used.
+ * <br>
+ * The dictionary is thread-safe, and a single global instance is shared by all the knowledge bases of the JVM (see
+ * {@link #global()}).
+ */
+public class AtomDictionary {
+
+    private static final AtomDictionary GLOBAL = new AtomDictionary();
+
+    private final ConcurrentHashMap<Object, Integer> ids = new ConcurrentHashMap<>();
+    private volatile Atom<?>[] atoms = new Atom<?>[1024];
+    private int size = 0;
+
+    private static final byte ASSIGNABLE = 1;
+    private static final byte NOT_ASSIGNABLE = 2;
+
+    private final ConcurrentHashMap<Class<?>, Integer> classIds = new ConcurrentHashMap<>();
+    private volatile Class<?>[] classes = new Class<?>[16];
+    private volatile JavaType[] javaTypes = new JavaType[16];
+    private int classCount = 0;
+    /**
+     * For each registered class (by class ID), the results of {@link #isAssignable(int, int)} with the class as target,
+     * by the ID of the source class: 0 if not computed yet, otherwise {@link #ASSIGNABLE} or {@link #NOT_ASSIGNABLE}.
+     * The rows are created and grown when a result is stored. Since a result never changes, a reader which does not
+     * see it yet can only compute it again.
+     */
+    private volatile byte[][] assignable = new byte[16][];
+
+    /**
+     * Returns the dictionary shared by all the knowledge bases.
+     */
+    public static AtomDictionary global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Returns true if the specified atom can be encoded by a dictionary, i.e. if its type is exactly the class of
+     * its wrapped value (so that it can be rebuilt from the value alone).
+     */
+    public static boolean isEncodable(Term term) {
+        if (!(term instanceof Atom)) {
+            return false;
+        }
+        Atom<?> atom = (Atom<?>) term;
+        return atom.getType() == atom.getWrappedValue().getClass();
+    }
+
+    /**
+     * Returns the ID of the value wrapped by the specified atom, assigning a new one if needed.
+     * Prefer {@link Atom#id()}, which caches the result.
+     *
+     * @param atom the atom
+     * @return the ID
+     */
+    public int idOf(Atom<?> atom) {
+        return idOfValue(atom.getWrappedValue());
+    }
+
+    /**
+     * Returns the canonical atom wrapping the specified value, adding the value to the dictionary if needed.
+     *
+     * @param value the value
+     * @param <T>   the type of the value
+     * @return the canonical atom
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Atom<T> atomOf(T value) {
+        return (Atom<T>) atom(idOfValue(value));
+    }
+
+    private int idOfValue(Object value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            int newID = size;
+            Atom<?>[] current = atoms;
+            if (newID == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[newID] = new Atom<>(value, newID);
+            atoms = current;
+            size++;
+            // published after the atom is stored, so that whoever gets the ID can also read the atom
+            ids.put(value, newID);
+            return newID;
+        }
+    }
+
+    /**
+     * Returns the ID of the value wrapped by the specified atom, or -1 if the value is not in the dictionary.
+     *
+     * @param atom the atom
+     * @return the ID, or -1
+     */
+    public int lookup(Atom<?> atom) {
+        int known = atom.cachedID();
+        if (known >= 0) {
+            return known;
+        }
+        Integer id = ids.get(atom.getWrappedValue());
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the canonical atom with the specified ID.
+     *
+     * @param id the ID
+     * @return the atom
+     */
+    public Atom<?> atom(int id) {
+        return atoms[id];
+    }
+
+    /**
+     * Returns the number of values in this dictionary.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ID of the specified class, registering it if needed.
+     *
+     * @param clazz the class
+     * @return the class ID
+     */
+    public int classIdOf(Class<?> clazz) {
+        Integer id = classIds.get(clazz);
+        if (id != null) {
+            return id;
+        }
+        return registerClass(clazz);
+    }
+
+    /**
+     * Returns the class with the specified class ID.
+     */
+    public Class<?> classOf(int classId) {
+        return classes[classId];
+    }
+
+    /**
+     * Returns the canonical {@link JavaType} of the specified class.
+     */
+    public JavaType javaTypeOf(Class<?> clazz) {
+        // the ID is obtained before reading the array, since the registration could replace it
+        int classId = classIdOf(clazz);
+        return javaTypes[classId];
+    }
+
+    /**
+     * Equivalent to {@code classOf(targetClassId).isAssignableFrom(classOf(sourceClassId))}, but the result is
+     * computed only the first time, and then it only requires a lookup in an array.
+     *
+     * @param targetClassId the ID of the class to which the values are assigned
+     * @param sourceClassId the ID of the class of the values
+     * @return true if the values of the source class can be assigned to the target class
+     */
+    public boolean isAssignable(int targetClassId, int sourceClassId) {
+        if (targetClassId == sourceClassId) {
+            return true;
+        }
+        byte[] row = assignable[targetClassId];
+        if (row != null && sourceClassId < row.length && row[sourceClassId] != 0) {
+            return row[sourceClassId] == ASSIGNABLE;
+        }
+        return computeAssignable(targetClassId, sourceClassId);
+    }
+
+    private synchronized boolean computeAssignable(int targetClassId, int sourceClassId) {
+        boolean result = classes[targetClassId].isAssignableFrom(classes[sourceClassId]);
+        byte[][] rows = assignable;
+        byte[] row = rows[targetClassId];
+        if (row == null || sourceClassId >= row.length) {
+            int length = Math.max(16, Integer.highestOneBit(Math.max(classCount, sourceClassId + 1) - 1) << 1);
+            row = row == null ? new byte[length] : Arrays.copyOf(row, length);
+        }
+        row[sourceClassId] = result ? ASSIGNABLE : NOT_ASSIGNABLE;
+        rows[targetClassId] = row;
+        // published again, so that whoever reads the rows also sees the new result
+        assignable = rows;
+        return result;
+    }
+
+    private synchronized int registerClass(Class<?> clazz) {
+        Integer id = classIds.get(clazz);
+        if (id != null) {
+            return id;
+        }
+        int newID = classCount++;
+        if (newID == classes.length) {
+            classes = Arrays.copyOf(classes, newID * 2);
+            javaTypes = Arrays.copyOf(javaTypes, newID * 2);
+            assignable = Arrays.copyOf(assignable, newID * 2);
+        }
+        classes[newID] = clazz;
+        // creating the type can register other classes (the initialization of JavaType registers Integer), which
+        // take the next IDs and can replace the arrays
+        JavaType javaType = new JavaType(clazz, newID);
+        Class<?>[] currentClasses = classes;
+        JavaType[] currentJavaTypes = javaTypes;
+        currentJavaTypes[newID] = javaType;
+        // written again after the elements are stored, so that whoever reads the arrays also sees them
+        classes = currentClasses;
+        javaTypes = currentJavaTypes;
+        // published last, so that whoever gets the ID can also read the other arrays
+        classIds.put(clazz, newID);
+        return newID;
+    }
+}
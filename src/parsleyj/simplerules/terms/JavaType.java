@@ -2,24 +2,38 @@ package parsleyj.simplerules.terms;
 
 /**
  * Data type defined by a Java class or interface.
+ * Compatibility checks are performed on the class IDs assigned by the {@link AtomDictionary}.
  */
 public class JavaType implements Type{
 
     public static final JavaType Integer = new JavaType(java.lang.Integer.class);
 
     private final Class<?> clazz;
+    private final int classId;
 
     /**
      * Creates a Java type defined by the provided class in {@code clazz}
      */
     public JavaType(Class<?> clazz) {
+        this(clazz, AtomDictionary.global().classIdOf(clazz));
+    }
+
+    JavaType(Class<?> clazz, int classId) {
         this.clazz = clazz;
+        this.classId = classId;
+    }
+
+    /**
+     * Returns the canonical Java type defined by the provided class.
+     */
+    public static JavaType of(Class<?> clazz) {
+        return AtomDictionary.global().javaTypeOf(clazz);
     }
 
     @Override
     public boolean compatible(Term arg) {
         if(arg.type() instanceof JavaType) {
-            return clazz.isAssignableFrom(((JavaType) arg.type()).clazz);
+            return AtomDictionary.global().isAssignable(classId, ((JavaType) arg.type()).classId);
         }
         return false;
     }
@@ -27,4 +41,11 @@ public class JavaType implements Type{
     public Class<?> getJavaClass(){
         return clazz;
     }
+
+    /**
+     * Returns the ID assigned by the {@link AtomDictionary} to the class of this type.
+     */
+    public int getClassId() {
+        return classId;
+    }
 }
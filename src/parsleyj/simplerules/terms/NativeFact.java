@@ -20,7 +20,19 @@ public class NativeFact extends RelationImpl implements CustomUnifiable {
         UnificationResult unify(NativeFact self, UnificationResult theta, Relation other);
     }
 
+    /**
+     * Observer of the invocations of the custom unification functions of native facts.
+     */
+    @FunctionalInterface
+    public interface InvocationObserver {
+        void invoked(NativeFact fact, Relation other, long durationNanos);
+    }
+
     public static final String NATIVEFACTS_DIR = "NATIVEFACTS";
+
+    private static volatile InvocationObserver invocationObserver = null;
+    private static volatile long invocationThresholdNanos = 0;
+
     private final String module;
     private final NativeFactCustomUnificationFunction customUnification;
 
@@ -51,6 +63,13 @@ public class NativeFact extends RelationImpl implements CustomUnifiable {
     }
 
 
+    /**
+     * Returns the name of the module of this native fact.
+     */
+    public String getModule() {
+        return module;
+    }
+
     @Override
     public List<String> directoryPath() {
         return genDirectoryNameForNative(module, getName(), length() - 1);
@@ -67,11 +86,33 @@ public class NativeFact extends RelationImpl implements CustomUnifiable {
     }
 
 
+    /**
+     * Sets the observer notified of each invocation of the custom unification function of a native fact that takes at
+     * least the specified duration. When no observer is set, invocations are not timed.
+     *
+     * @param observer       the observer, or null
+     * @param thresholdNanos the minimum duration of the notified invocations
+     */
+    public static void setInvocationObserver(InvocationObserver observer, long thresholdNanos) {
+        invocationThresholdNanos = thresholdNanos;
+        invocationObserver = observer;
+    }
+
     @Override
     public UnificationResult customUnify(UnificationResult theta, Term other) {
         if(other instanceof Relation){
             Relation relation = (Relation) other;
-            return customUnification.unify(this, theta, relation);
+            InvocationObserver observer = invocationObserver;
+            if (observer == null) {
+                return customUnification.unify(this, theta, relation);
+            }
+            long start = System.nanoTime();
+            UnificationResult result = customUnification.unify(this, theta, relation);
+            long duration = System.nanoTime() - start;
+            if (duration >= invocationThresholdNanos) {
+                observer.invoked(this, relation, duration);
+            }
+            return result;
         }
         return UnificationResult.FAILURE; //other has to be a relation
     }
@@ -88,4 +129,14 @@ public class NativeFact extends RelationImpl implements CustomUnifiable {
         return new NativeFact(type(), module, getName(), newTerms, customUnification);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && module.equals(((NativeFact) o).module);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + module.hashCode();
+    }
+
 }
@@ -25,6 +25,13 @@ public class NativeFactInvoker extends RelationImpl{
         this.module = module;
     }
 
+    /**
+     * Returns the name of the module of the invoked native fact.
+     */
+    public String getModule() {
+        return module;
+    }
+
     @Override
     public List<String> directoryPath() {
         return NativeFact.genDirectoryNameForNative(module, getName(), length() - 1);
@@ -41,7 +48,14 @@ public class NativeFactInvoker extends RelationImpl{
         return new NativeFactInvoker(type(), module, getName(), newTerms);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && module.equals(((NativeFactInvoker) o).module);
+    }
 
-
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + module.hashCode();
+    }
 
 }
@@ -73,6 +73,25 @@ public class StructImpl implements Struct {
     }
 
 
+    /**
+     * Structural equality: two structs are equal if they are of the same class and their sub-terms are equal.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return terms.equals(((StructImpl) o).terms);
+    }
+
+    @Override
+    public int hashCode() {
+        return terms.hashCode();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("(");
@@ -0,0 +1,43 @@
+package parsleyj.simplerules;
+
+import parsleyj.simplerules.terms.Term;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * Assertions used by the behavior tests (see {@link TestRunner}).
+ */
+public class Check {
+
+    private Check() {
+    } // don't instantiate
+
+    public static void isTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Checks that two collections of facts contain the same facts, compared by their textual representation,
+     * regardless of their order.
+     */
+    public static void sameFacts(Collection<Term> expected, Collection<Term> actual, String message) {
+        equal(expected.size(), actual.size(), message + " (number of facts)");
+        equal(texts(expected), texts(actual), message);
+    }
+
+    private static TreeSet<String> texts(Collection<Term> facts) {
+        TreeSet<String> result = new TreeSet<>();
+        facts.forEach(fact -> result.add(fact.toString()));
+        return result;
+    }
+}
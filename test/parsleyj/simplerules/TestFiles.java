@@ -0,0 +1,27 @@
+package parsleyj.simplerules;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * File utilities used by the behavior tests (see {@link TestRunner}).
+ */
+public class TestFiles {
+
+    private TestFiles() {
+    } // don't instantiate
+
+    /**
+     * Deletes a temporary directory created by a test, together with the files in it.
+     */
+    public static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(f);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+}
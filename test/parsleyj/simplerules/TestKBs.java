@@ -0,0 +1,102 @@
+package parsleyj.simplerules;
+
+import parsleyj.simplerules.forward.FCKnowledgeBase;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Knowledge bases, rules and facts shared by the behavior tests (see {@link TestRunner}).
+ */
+public class TestKBs {
+
+    private TestKBs() {
+    } // don't instantiate
+
+    /**
+     * Derives the paths of length two of a graph, joining two edges on a shared variable (by a hash join).
+     */
+    public static final Rule PATH2 = rule().withPremises(
+            relation("edge", var("X"), var("Y")),
+            relation("edge", var("Y"), var("Z")))
+            .withHead(relation("path2", var("X"), var("Z")))
+            .build();
+
+    /**
+     * Derives the triangles of a graph, joining three edges in a cycle (by a trie join).
+     */
+    public static final Rule TRIANGLE = rule().withPremises(
+            relation("edge", var("A"), var("B")),
+            relation("edge", var("B"), var("C")),
+            relation("edge", var("C"), var("A")))
+            .withHead(relation("triangle", var("A"), var("B"), var("C")))
+            .build();
+
+    /**
+     * Returns an empty knowledge base, storing its ground relations in compact tables or on the heap.
+     */
+    public static FCKnowledgeBase empty(boolean compact) {
+        return compact ? FCKnowledgeBase.compact() : new FCKnowledgeBase();
+    }
+
+    /**
+     * Returns the suffix of the messages of the checks made on a knowledge base created by {@link #empty(boolean)}.
+     */
+    public static String storage(boolean compact) {
+        return compact ? " (compact)" : " (heap)";
+    }
+
+    /**
+     * Returns the rule {@code from(X) => to(X)}, with the specified action (or none, if null).
+     */
+    public static Rule copyRule(String from, String to, Consumer<Term> action) {
+        return rule().withPremise(relation(from, var("X")))
+                .withHead(relation(to, var("X")))
+                .withAction(action)
+                .build();
+    }
+
+    /**
+     * Returns the rules deriving the transitive closure {@code path/2} of the relation {@code edge/2}.
+     */
+    public static List<Rule> transitiveClosure() {
+        return Arrays.asList(
+                rule().withPremises(relation("edge", var("X"), var("Y")))
+                        .withHead(relation("path", var("X"), var("Y")))
+                        .build(),
+                rule().withPremises(relation("path", var("X"), var("Y")), relation("edge", var("Y"), var("Z")))
+                        .withHead(relation("path", var("X"), var("Z")))
+                        .build());
+    }
+
+    public static Term edge(int from, int to) {
+        return relation("edge", atom(from), atom(to));
+    }
+
+    /**
+     * Returns the edges of a chain of the specified length, from 0 to {@code length}.
+     */
+    public static List<Term> chain(int length) {
+        List<Term> result = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            result.add(edge(i, i + 1));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the facts {@code name(i)}, with i from 0 to {@code count} (excluded).
+     */
+    public static List<Term> numbered(String name, int count) {
+        List<Term> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.add(relation(name, atom(i)));
+        }
+        return result;
+    }
+}
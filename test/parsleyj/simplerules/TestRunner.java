@@ -0,0 +1,76 @@
+package parsleyj.simplerules;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Minimal, dependency-free runner of the behavior tests: each test is a public static method without parameters whose
+ * name starts with {@code test}, which throws an {@link AssertionError} (see {@link Check}) or any other exception
+ * when it fails. The tests of each class are run in alphabetical order.
+ * <br>
+ * Usage: {@code java parsleyj.simplerules.TestRunner [test class names...]}; without arguments, all the test classes
+ * of {@link #TEST_CLASSES} are run. The exit status is 1 if a test failed.
+ */
+public class TestRunner {
+
+    private static final List<String> TEST_CLASSES = Arrays.asList(
+            "parsleyj.simplerules.forward.ExistenceCheckTest",
+            "parsleyj.simplerules.forward.FCBatchInsertionTest",
+            "parsleyj.simplerules.forward.FCBulkLoaderTest",
+            "parsleyj.simplerules.forward.FCEventListenerTest",
+            "parsleyj.simplerules.forward.FCExplainTest",
+            "parsleyj.simplerules.forward.FCFactInboxTest",
+            "parsleyj.simplerules.forward.FCIngestionEngineTest",
+            "parsleyj.simplerules.forward.FCLimitsTest",
+            "parsleyj.simplerules.forward.FCQueryTest",
+            "parsleyj.simplerules.forward.FCRetractionTest",
+            "parsleyj.simplerules.forward.FCSessionSchedulerTest",
+            "parsleyj.simplerules.forward.FCSnapshotTest",
+            "parsleyj.simplerules.forward.FCStatisticsTest",
+            "parsleyj.simplerules.forward.FCVersionTest",
+            "parsleyj.simplerules.forward.FCWriteAheadLogTest",
+            "parsleyj.simplerules.forward.JoinIteratorTest",
+            "parsleyj.simplerules.forward.RangeGuardsTest",
+            "parsleyj.simplerules.forward.RetentionPolicyTest",
+            "parsleyj.simplerules.forward.RuleBaseTest",
+            "parsleyj.simplerules.storage.MappedFactTableTest",
+            "parsleyj.simplerules.terms.AtomDictionaryTest"
+    );
+
+    public static void main(String[] args) throws ClassNotFoundException {
+        List<String> classNames = args.length > 0 ? Arrays.asList(args) : TEST_CLASSES;
+        int run = 0;
+        int failed = 0;
+        for (String className : classNames) {
+            Method[] methods = Class.forName(className).getMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            for (Method method : methods) {
+                if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers())
+                        || method.getParameterCount() != 0) {
+                    continue;
+                }
+                run++;
+                long start = System.nanoTime();
+                try {
+                    method.invoke(null);
+                    System.out.printf("PASS %s.%s (%d ms)%n", className, method.getName(),
+                            (System.nanoTime() - start) / 1_000_000);
+                } catch (InvocationTargetException e) {
+                    failed++;
+                    System.out.printf("FAIL %s.%s%n", className, method.getName());
+                    e.getCause().printStackTrace(System.out);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        System.out.println(run + " tests, " + failed + " failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
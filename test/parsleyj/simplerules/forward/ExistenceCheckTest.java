@@ -0,0 +1,89 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of the premises evaluated by {@link JoinIterator} as existence checks, since their new variables are
+ * used neither by the head nor by the next premises.
+ */
+public class ExistenceCheckTest {
+
+    private static final Rule ALARM = rule().withPremises(
+            relation("sensor", var("X")),
+            relation("reading", var("X"), var("V")))
+            .withHead(relation("alarm", var("X")))
+            .build();
+
+    private static final Rule HIGH = rule().withPremises(
+            relation("sensor", var("X")),
+            relation("reading", var("X"), var("V")),
+            relation("threshold", var("V")))
+            .withHead(relation("high", var("X")))
+            .build();
+
+    /**
+     * Creates three sensors, two of which with 100 readings each.
+     */
+    private static FCKnowledgeBase createKB(boolean compact) {
+        List<Term> facts = new ArrayList<>();
+        for (String sensor : Arrays.asList("s1", "s2", "s3")) {
+            facts.add(relation("sensor", atom(sensor)));
+        }
+        for (int i = 0; i < 200; i++) {
+            facts.add(relation("reading", atom(i < 100 ? "s1" : "s2"), atom(i)));
+        }
+        facts.add(relation("threshold", atom(150)));
+        FCKnowledgeBase kb = TestKBs.empty(compact);
+        kb.addFacts(facts);
+        kb.getRules().add(ALARM);
+        kb.getRules().add(HIGH);
+        return kb;
+    }
+
+    public static void testExistenceCheckStopsAtFirstMatch() {
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            FCKnowledgeBase kb = createKB(compact);
+            Check.isTrue(FCExplain.explain(kb, ALARM).getSteps().get(1).isExistenceCheck(),
+                    "existence check of the readings" + storage);
+            Check.isTrue(!FCExplain.explain(kb, HIGH).getSteps().get(1).isExistenceCheck(),
+                    "readings whose value is used by the next premise" + storage);
+
+            FCResult result = SimpleForwardChaining.getToFixedPoint(kb);
+            List<Term> derived = new ArrayList<>(result.getUpdatedKB().getAllFacts());
+            derived.removeAll(kb.getAllFacts());
+            Check.sameFacts(Arrays.asList(relation("alarm", atom("s1")), relation("alarm", atom("s2")),
+                    relation("high", atom("s2"))), derived, "derived facts" + storage);
+            FCStatistics.RuleStatistics alarm = result.getStatistics().getRuleStatistics(0);
+            Check.equal(2L, alarm.getHeadsProduced(), "heads of the rule with an existence check" + storage);
+            Check.equal(0L, alarm.getDuplicatesRejected(), "duplicates of the rule with an existence check" + storage);
+        }
+    }
+
+    /**
+     * When an earlier premise is matched by a non-ground fact, the premise is not an existence check for that match,
+     * since its candidates bind the variables of the earlier premise in different ways.
+     */
+    public static void testNonGroundFactsAreEnumerated() {
+        FCKnowledgeBase kb = kb()
+                .withFacts(relation("sensor", var("Any")),
+                        relation("reading", atom("s1"), atom(1)),
+                        relation("reading", atom("s1"), atom(2)),
+                        relation("reading", atom("s2"), atom(3)))
+                .withRule(ALARM)
+                .build();
+        List<Term> facts = SimpleForwardChaining.getToFixedPoint(kb).getUpdatedKB()
+                .factsInDirectory(FCKnowledgeBase.relationDirectory("alarm", 1));
+        Check.sameFacts(Arrays.asList(relation("alarm", atom("s1")), relation("alarm", atom("s2"))), facts,
+                "alarms derived through the non-ground sensor");
+    }
+}
@@ -0,0 +1,68 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link FCKnowledgeBase#addNewFacts(List)}: a batch must add only the facts which are not
+ * renamings of facts already in the knowledge base or earlier in the batch.
+ */
+public class FCBatchInsertionTest {
+
+    public static void testDuplicatesAreSkipped() {
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            kb.addFacts(Arrays.asList(TestKBs.edge(1, 2), relation("edge", var("X"), atom(3))));
+
+            List<Term> batch = Arrays.asList(
+                    TestKBs.edge(1, 2),                             // already in the knowledge base
+                    relation("edge", var("Y"), atom(3)),            // renaming of a fact in the knowledge base
+                    TestKBs.edge(2, 3),
+                    TestKBs.edge(2, 3),                             // duplicate in the batch
+                    relation("edge", var("A"), var("A")),
+                    relation("edge", var("B"), var("B")),           // renaming of a previous fact of the batch
+                    relation("edge", var("A"), atom(4)),
+                    relation("label", atom(1), atom("one")));
+            List<Term> added = kb.addNewFacts(batch);
+            List<Term> expected = Arrays.asList(TestKBs.edge(2, 3), relation("edge", var("A"), var("A")),
+                    relation("edge", var("A"), atom(4)), relation("label", atom(1), atom("one")));
+            Check.sameFacts(expected, added, "added facts" + storage);
+            Check.equal(6, kb.factsCount(), "facts" + storage);
+            for (Term fact : batch) {
+                Check.isTrue(kb.containsRenamingOf(fact), "fact in the knowledge base: " + fact + storage);
+            }
+            Check.equal(0, kb.addNewFacts(batch).size(), "facts added by the same batch again" + storage);
+        }
+    }
+
+    /**
+     * A large batch gives the same knowledge base as adding its distinct facts one by one.
+     */
+    public static void testLargeBatchMatchesSingleInsertions() {
+        List<Term> batch = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            batch.add(TestKBs.edge(i % 5000, (i * 7) % 5000));
+            batch.add(relation("label", var("X" + i), atom(i % 10)));
+        }
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            FCKnowledgeBase expected = TestKBs.empty(compact);
+            for (Term fact : batch) {
+                if (!expected.containsRenamingOf(fact)) {
+                    expected.addFact(fact);
+                }
+            }
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            Check.equal(expected.factsCount(), kb.addNewFacts(batch).size(), "added facts" + storage);
+            Check.sameFacts(expected.getAllFacts(), kb.getAllFacts(), "facts" + storage);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link FCBulkLoader}: the same rows must give the same facts in all the formats, on the heap and
+ * in compact tables, parsed by one or by several threads.
+ */
+public class FCBulkLoaderTest {
+
+    private static final int ROWS = 60_000;
+
+    private static String label(int i) {
+        return i % 1000 == 0 ? "a, \"b\"" : "a label long enough to fill the blocks " + i % 3;
+    }
+
+    private static List<Term> expectedFacts() {
+        List<Term> result = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            result.add(relation("reading", atom("s" + i % 7), atom(i), atom(label(i))));
+        }
+        return result;
+    }
+
+    private static Path write(FCBulkLoader.Format format) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (format == FCBulkLoader.Format.CSV) {
+            sb.append("value,sensor,label\n");
+        }
+        for (int i = 0; i < ROWS; i++) {
+            String label = label(i);
+            switch (format) {
+                case CSV:
+                    sb.append(i).append(",s").append(i % 7).append(",\"").append(label.replace("\"", "\"\""))
+                            .append("\"\n");
+                    break;
+                case TSV:
+                    sb.append("s").append(i % 7).append('\t').append(i).append('\t').append(label).append('\n');
+                    break;
+                case NDJSON:
+                    sb.append("{\"label\": \"").append(label.replace("\"", "\\\"")).append("\", \"value\": ")
+                            .append(i).append(", \"sensor\": \"s").append(i % 7).append("\"}\n");
+                    break;
+            }
+            if (i % 5000 == 0) {
+                // blank lines are skipped
+                sb.append('\n');
+            }
+        }
+        Path file = Files.createTempFile("bulk-test", "." + format.name().toLowerCase());
+        Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static FCBulkLoader loader(FCBulkLoader.Format format) {
+        FCBulkLoader loader = new FCBulkLoader(format, "reading");
+        switch (format) {
+            case CSV:
+                return loader.withHeader()
+                        .withColumn("sensor", String.class)
+                        .withColumn("value", Integer.class)
+                        .withColumn("label", String.class);
+            case TSV:
+                return loader.withColumn(0, String.class)
+                        .withColumn(1, Integer.class)
+                        .withColumn(2, String.class);
+            default:
+                return loader.withColumn("sensor", String.class)
+                        .withColumn("value", Integer.class)
+                        .withColumn("label", String.class);
+        }
+    }
+
+    public static void testFormatsLoadSameFacts() throws IOException {
+        List<Term> expected = expectedFacts();
+        for (FCBulkLoader.Format format : FCBulkLoader.Format.values()) {
+            Path file = write(format);
+            try {
+                Check.isTrue(Files.size(file) > 2 << 20, "file larger than two blocks, split among the threads");
+                for (boolean compact : new boolean[]{false, true}) {
+                    for (int parallelism : new int[]{1, 3}) {
+                        String label = " (" + format + ", " + parallelism + " threads)" + TestKBs.storage(compact);
+                        FCKnowledgeBase kb = TestKBs.empty(compact);
+                        long rows = loader(format).withParallelism(parallelism).withBatchSize(1000).load(file, kb);
+                        Check.equal((long) ROWS, rows, "rows read" + label);
+                        Check.sameFacts(expected, kb.getAllFacts(), "facts loaded" + label);
+                        Check.isTrue(!kb.isDerived(kb.getAllFacts().get(0)), "loaded facts are asserted" + label);
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * A malformed row is reported with its position, instead of being skipped or loaded with a wrong value.
+     */
+    public static void testMalformedRowIsReported() throws IOException {
+        Path file = Files.createTempFile("bulk-test", ".csv");
+        try {
+            Files.write(file, "s1,1\ns2,two\ns3,3\n".getBytes(StandardCharsets.UTF_8));
+            FCKnowledgeBase kb = new FCKnowledgeBase();
+            try {
+                new FCBulkLoader(FCBulkLoader.Format.CSV, "reading")
+                        .withColumn(0, String.class)
+                        .withColumn(1, Integer.class)
+                        .load(file, kb);
+            } catch (IOException e) {
+                Check.isTrue(e.getMessage().contains("at byte 5") && e.getMessage().contains("s2,two"),
+                        "message of the error: " + e.getMessage());
+                return;
+            }
+            throw new AssertionError("malformed row loaded");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
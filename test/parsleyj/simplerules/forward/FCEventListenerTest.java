@@ -0,0 +1,111 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.NativeFacts;
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.NativeFact;
+import parsleyj.simplerules.terms.Relation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of the events notified to the {@link FCEventListener} installed in {@link SimpleForwardChaining}.
+ */
+public class FCEventListenerTest {
+
+    /**
+     * Records the events, as the values of their arguments.
+     */
+    private static class Recorder implements FCEventListener {
+        private final List<int[]> iterationsStarted = new ArrayList<>();
+        private final List<int[]> iterationsEnded = new ArrayList<>();
+        private long ruleNewFacts = 0;
+        private int nativeFactInvocations = 0;
+        private final List<Integer> copies = new ArrayList<>();
+
+        @Override
+        public void iterationStarted(int iteration, int deltaSize) {
+            iterationsStarted.add(new int[]{iteration, deltaSize});
+        }
+
+        @Override
+        public void iterationEnded(int iteration, int newFacts, long durationNanos) {
+            iterationsEnded.add(new int[]{iteration, newFacts});
+        }
+
+        @Override
+        public void ruleEvaluated(Rule rule, int iteration, long candidates, long newFacts, long durationNanos) {
+            ruleNewFacts += newFacts;
+        }
+
+        @Override
+        public void nativeFactInvoked(NativeFact fact, Relation other, long durationNanos) {
+            nativeFactInvocations++;
+        }
+
+        @Override
+        public void knowledgeBaseCopied(int facts, long durationNanos) {
+            copies.add(facts);
+        }
+    }
+
+    private static FCKnowledgeBase createKB() {
+        FCKnowledgeBase kb = kb()
+                .withRules(TestKBs.transitiveClosure())
+                .withRule(rule().withPremises(
+                        relation("path", var("X"), var("Y")),
+                        invokeNative("INT_LIB", "<", var("X"), atom(1)))
+                        .withHead(relation("reachable", var("Y")))
+                        .build())
+                .withFacts(NativeFacts.nativeIntegerFacts())
+                .build();
+        kb.addFacts(TestKBs.chain(5));
+        return kb;
+    }
+
+    public static void testEventsOfFixpoint() {
+        Recorder recorder = new Recorder();
+        FCKnowledgeBase kb = createKB();
+        int initialFacts = kb.factsCount();
+        SimpleForwardChaining.setEventListener(recorder, 0);
+        FCResult result;
+        try {
+            result = SimpleForwardChaining.getToFixedPoint(kb);
+        } finally {
+            SimpleForwardChaining.setEventListener(null, 0);
+        }
+        int iterations = result.getStatistics().getDeltaSizes().size();
+        Check.equal(iterations, recorder.iterationsStarted.size(), "iterations started");
+        Check.equal(iterations, recorder.iterationsEnded.size(), "iterations ended");
+        for (int i = 0; i < iterations; i++) {
+            Check.equal(i, recorder.iterationsStarted.get(i)[0], "number of the started iteration");
+            Check.equal(i, recorder.iterationsEnded.get(i)[0], "number of the ended iteration");
+            Check.equal(result.getStatistics().getDeltaSizes().get(i), recorder.iterationsEnded.get(i)[1],
+                    "new facts of iteration " + i);
+            // the facts derived by an iteration are the delta of the next one
+            Check.equal(i == 0 ? 0 : recorder.iterationsEnded.get(i - 1)[1], recorder.iterationsStarted.get(i)[1],
+                    "delta of iteration " + i);
+        }
+        Check.equal((long) (result.getUpdatedKB().factsCount() - initialFacts), recorder.ruleNewFacts,
+                "new facts of the evaluated rules");
+        Check.isTrue(recorder.nativeFactInvocations > 0, "invocations of native facts");
+        Check.equal(1, recorder.copies.size(), "copies of the knowledge base");
+        Check.equal(initialFacts, recorder.copies.get(0), "facts of the copied knowledge base");
+    }
+
+    /**
+     * After the listener is removed, it is not notified anymore.
+     */
+    public static void testRemovedListenerIsNotNotified() {
+        Recorder recorder = new Recorder();
+        SimpleForwardChaining.setEventListener(recorder, 0);
+        SimpleForwardChaining.setEventListener(null, 0);
+        SimpleForwardChaining.getToFixedPoint(createKB());
+        Check.equal(0, recorder.iterationsStarted.size() + recorder.copies.size() + recorder.nativeFactInvocations,
+                "events after the listener was removed");
+    }
+}
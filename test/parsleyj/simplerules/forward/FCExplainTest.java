@@ -0,0 +1,62 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+import static parsleyj.simplerules.TestKBs.*;
+
+/**
+ * Behavior tests of {@link FCExplain}: the profile of a rule must report the join actually performed by the engine.
+ */
+public class FCExplainTest {
+
+    /**
+     * Creates a chain of 20 edges, and a triangle apart.
+     */
+    private static FCKnowledgeBase createKB(boolean compiled) {
+        List<Term> facts = new ArrayList<>(chain(20));
+        facts.add(relation("edge", atom(100), atom(101)));
+        facts.add(relation("edge", atom(101), atom(102)));
+        facts.add(relation("edge", atom(102), atom(100)));
+        FCKnowledgeBase kb = new FCKnowledgeBase();
+        kb.setCompiledMatching(compiled);
+        kb.addFacts(facts);
+        kb.getRules().add(PATH2);
+        kb.getRules().add(TRIANGLE);
+        return kb;
+    }
+
+    public static void testProfileCountsHashJoin() {
+        FCKnowledgeBase kb = createKB(false);
+        FCExplain.Plan plan = FCExplain.profile(kb, PATH2);
+        Check.equal("premises joined from left to right", plan.getJoinStrategy(), "join strategy");
+        Check.equal(22L, plan.getHeadsProduced(), "heads");
+        Check.equal(22L, plan.getNewHeads(), "new heads");
+        FCExplain.Step second = plan.getSteps().get(1);
+        Check.equal(23L, second.getActualCandidates(), "candidates of the second premise");
+        Check.equal(23L, second.getEntered(), "matches entering the second premise");
+        Check.equal(23L, second.getHashProbes(), "probes of the hash table of the second premise");
+        Check.equal(22L, second.getSurvived(), "matches surviving the second premise");
+        Check.equal(23, kb.factsCount(), "facts after the profile");
+    }
+
+    public static void testProfileReportsCompiledMatching() {
+        FCExplain.Plan plan = FCExplain.profile(createKB(true), PATH2);
+        Check.equal("premises joined from left to right, matched by compiled matchers", plan.getJoinStrategy(),
+                "join strategy");
+        Check.equal(22L, plan.getHeadsProduced(), "heads");
+        Check.equal(22L, plan.getSteps().get(1).getSurvived(), "matches surviving the second premise");
+    }
+
+    public static void testProfileReportsTrieJoin() {
+        FCExplain.Plan plan = FCExplain.profile(createKB(false), TRIANGLE);
+        Check.isTrue(plan.getJoinStrategy().startsWith("leapfrog triejoin"), "join strategy: " + plan.getJoinStrategy());
+        Check.equal(3L, plan.getHeadsProduced(), "heads");
+        Check.equal(3L, plan.getSteps().get(2).getSurvived(), "matches surviving the last premise");
+        Check.equal(0L, plan.getSteps().get(1).getHashProbes(), "probes of a hash table");
+    }
+}
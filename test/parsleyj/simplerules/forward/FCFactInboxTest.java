@@ -0,0 +1,91 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.Relation;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link FCFactInbox}.
+ */
+public class FCFactInboxTest {
+
+    private static int argument(Term fact, int index) {
+        return (Integer) ((Atom<?>) ((Relation) fact).toJavaList().get(index + 1)).getWrappedValue();
+    }
+
+    /**
+     * The facts added by many producers while the consumer drains them are all drained exactly once, in the order in
+     * which each producer added them.
+     */
+    public static void testConcurrentProducers() throws InterruptedException {
+        int producers = 8;
+        int facts = 5000;
+        FCFactInbox inbox = new FCFactInbox(4, false);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < facts; i++) {
+                    inbox.add(relation("fact", atom(producer), atom(i)));
+                }
+            }, "inbox-producer-" + p);
+            threads.add(thread);
+            thread.start();
+        }
+        List<Term> drained = new ArrayList<>();
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            drained.addAll(inbox.drain());
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        drained.addAll(inbox.drain());
+
+        Check.equal(producers * facts, drained.size(), "drained facts");
+        Check.isTrue(inbox.isEmpty(), "empty inbox");
+        Check.equal(0L, inbox.pendingCount(), "pending facts");
+        int[] next = new int[producers];
+        for (Term fact : drained) {
+            int producer = argument(fact, 0);
+            Check.equal(next[producer], argument(fact, 1), "next fact of producer " + producer);
+            next[producer]++;
+        }
+    }
+
+    public static void testDeduplication() {
+        FCFactInbox inbox = new FCFactInbox(3, true);
+        Check.equal(4, inbox.getStripes(), "stripes");
+        Check.isTrue(inbox.add(relation("p", atom(1))), "first fact added");
+        Check.isTrue(!inbox.add(relation("p", atom(1))), "pending fact rejected");
+        Check.isTrue(inbox.add(relation("p", var("X"))), "non-ground fact added");
+        Check.isTrue(!inbox.add(relation("p", var("Y"))), "renaming of a pending fact rejected");
+        Check.equal(1, inbox.addAll(Arrays.asList(relation("p", atom(1)), relation("p", atom(2)))),
+                "facts of a batch added");
+        Check.equal(3L, inbox.pendingCount(), "pending facts");
+
+        FCKnowledgeBase kb = kb().withFacts(relation("p", atom(2))).build();
+        List<Term> added = inbox.drainInto(kb);
+        Check.sameFacts(Arrays.asList(relation("p", atom(1)), relation("p", var("X"))), added,
+                "facts added to the knowledge base");
+        Check.equal(3, kb.factsCount(), "facts of the knowledge base");
+        Check.isTrue(inbox.add(relation("p", atom(1))), "drained fact added again");
+        Check.equal(0, inbox.drainInto(kb).size(), "facts already in the knowledge base added");
+    }
+
+    /**
+     * Without deduplication, the same fact can be pending many times.
+     */
+    public static void testNoDeduplication() {
+        FCFactInbox inbox = new FCFactInbox(1, false);
+        Check.isTrue(inbox.add(relation("p", atom(1))) && inbox.add(relation("p", atom(1))), "facts added");
+        Check.equal(2, inbox.drain().size(), "drained facts");
+    }
+}
@@ -0,0 +1,92 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link FCIngestionEngine}.
+ */
+public class FCIngestionEngineTest {
+
+    private static FCKnowledgeBase createKB(Consumer<Term> action) {
+        return kb().withRule(TestKBs.copyRule("p", "q", action)).build();
+    }
+
+    private static Thread start(FCIngestionEngine engine) {
+        Thread thread = new Thread(engine, "ingestion-test");
+        thread.start();
+        return thread;
+    }
+
+    private static void stop(FCIngestionEngine engine, Thread thread) throws InterruptedException {
+        engine.stop();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        Check.isTrue(!thread.isAlive(), "engine stopped");
+    }
+
+    private static void awaitProcessed(AtomicLong processed, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (processed.get() < count) {
+            Check.isTrue(System.nanoTime() < deadline, "facts processed");
+            Thread.sleep(1);
+        }
+    }
+
+    public static void testBatchesReachFixedPoint() throws InterruptedException {
+        AtomicLong processed = new AtomicLong();
+        FCIngestionEngine engine = new FCIngestionEngine(createKB(fact -> processed.incrementAndGet()),
+                16, 8, 5, TimeUnit.MILLISECONDS);
+        Thread thread = start(engine);
+        engine.submitAll(TestKBs.numbered("p", 100));
+        awaitProcessed(processed, 100);
+        stop(engine, thread);
+        Check.equal(200, engine.getKnowledgeBase().factsCount(), "facts");
+    }
+
+    /**
+     * A stopped engine waiting for facts must wake up and terminate.
+     */
+    public static void testStopWakesIdleEngine() throws InterruptedException {
+        FCIngestionEngine engine = new FCIngestionEngine(createKB(fact -> {
+        }));
+        Thread thread = start(engine);
+        Thread.sleep(20);
+        stop(engine, thread);
+    }
+
+    /**
+     * A failing batch is reported, and the engine keeps processing the next ones, bringing the knowledge base to
+     * the fixed point of all the facts.
+     */
+    public static void testFailingBatchDoesNotStopEngine() throws InterruptedException {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        AtomicLong processed = new AtomicLong();
+        FCIngestionEngine engine = new FCIngestionEngine(createKB(fact -> {
+            if (fail.getAndSet(false)) {
+                throw new IllegalStateException("action failed on " + fact);
+            }
+            processed.incrementAndGet();
+        }));
+        Thread thread = start(engine);
+        engine.submit(relation("p", atom(1)));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (engine.getFailedBatches() == 0) {
+            Check.isTrue(System.nanoTime() < deadline, "batch failed");
+            Thread.sleep(1);
+        }
+        engine.submit(relation("p", atom(2)));
+        awaitProcessed(processed, 2);
+        stop(engine, thread);
+        Check.equal(1L, engine.getFailedBatches(), "failed batches");
+        Check.isTrue(engine.getLastFailure() instanceof IllegalStateException, "last failure");
+        Check.equal(4, engine.getKnowledgeBase().factsCount(), "facts");
+    }
+}
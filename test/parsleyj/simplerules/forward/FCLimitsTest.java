@@ -0,0 +1,87 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of the evaluation with {@link FCLimits}.
+ */
+public class FCLimitsTest {
+
+    /**
+     * Creates a knowledge base with a rule whose join tries all the pairs of the candidates of its premises, and
+     * matches none of them.
+     */
+    private static FCKnowledgeBase createKB(int facts) {
+        List<Term> list = new ArrayList<>();
+        for (int i = 0; i < facts; i++) {
+            list.add(relation("left", atom(i)));
+            list.add(relation("right", atom(i), atom(i + 1)));
+        }
+        FCKnowledgeBase kb = kb()
+                .withRules(rule()
+                        .withPremises(
+                                relation("left", var("X")),
+                                relation("right", var("Y"), var("Y")))
+                        .withHead(relation("pair", var("X"), var("Y")))
+                        .build())
+                .build();
+        kb.addFacts(list);
+        return kb;
+    }
+
+    /**
+     * The deadline must be checked while the join searches for matches, and not only when it finds them.
+     */
+    public static void testDeadlineStopsJoinWithoutMatches() {
+        FCKnowledgeBase kb = createKB(5000);
+        long start = System.nanoTime();
+        FCResult result = SimpleForwardChaining.forwardChainingAsk(kb, null,
+                FCLimits.NONE.withTimeout(Duration.ofMillis(50)));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        Check.equal(FCResult.Status.DEADLINE_EXCEEDED, result.getStatus(), "status");
+        Check.isTrue(elapsedMillis < 1000, "time spent after the deadline: " + elapsedMillis + " ms");
+    }
+
+    public static void testJoinWithoutMatchesCompletesWithoutLimits() {
+        FCKnowledgeBase kb = createKB(200);
+        FCResult result = SimpleForwardChaining.forwardChainingAsk(kb, null,
+                FCLimits.NONE.withTimeout(Duration.ofMinutes(1)));
+        Check.isTrue(!result.isPartial(), "complete evaluation");
+        Check.equal(400, result.getUpdatedKB().factsCount(), "facts");
+    }
+
+    /**
+     * Creates a knowledge base whose fixed point has the specified number of derived facts.
+     */
+    private static FCKnowledgeBase createChainKB(int facts) {
+        return kb().withRule(TestKBs.copyRule("p", "q", null)).withFacts(TestKBs.numbered("p", facts)).build();
+    }
+
+    /**
+     * A fixed point with exactly the maximum number of derived facts is complete.
+     */
+    public static void testFixedPointWithMaxDerivedFacts() {
+        FCResult result = SimpleForwardChaining.forwardChainingAsk(createChainKB(5), null,
+                FCLimits.NONE.withMaxDerivedFacts(5));
+        Check.equal(FCResult.Status.COMPLETED, result.getStatus(), "status");
+        Check.equal(10, result.getUpdatedKB().factsCount(), "facts");
+    }
+
+    /**
+     * When one more fact would be derived, the process stops, keeping the facts derived so far.
+     */
+    public static void testFactLimitKeepsDerivedFacts() {
+        FCResult result = SimpleForwardChaining.forwardChainingAsk(createChainKB(5), null,
+                FCLimits.NONE.withMaxDerivedFacts(4));
+        Check.equal(FCResult.Status.FACT_LIMIT_REACHED, result.getStatus(), "status");
+        Check.equal(9, result.getUpdatedKB().factsCount(), "facts");
+    }
+}
@@ -0,0 +1,108 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.storage.ColumnarFactTable;
+import parsleyj.simplerules.storage.FactTable;
+import parsleyj.simplerules.terms.RelationImpl;
+import parsleyj.simplerules.terms.Struct;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.unify.SimpleUnify;
+import parsleyj.simplerules.unify.Substitution;
+import parsleyj.simplerules.unify.UnificationResult;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link FCKnowledgeBase#query(Struct, int)}.
+ */
+public class FCQueryTest {
+
+    private static FCKnowledgeBase createKB(FactTable.Factory tables, int rows) {
+        FCKnowledgeBase kb = kb().withFactTables(tables).build();
+        List<Term> facts = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            facts.add(relation("reading", atom("s" + (i % 10)), atom(i)));
+        }
+        facts.add(relation("reading", atom("s1"), struct(atom("nested"), atom(1))));
+        facts.add(relation("reading", var("X"), var("X")));
+        facts.add(relation("sensor", atom("s1")));
+        kb.addFacts(facts);
+        return kb;
+    }
+
+    /**
+     * Returns the results of a query computed by unifying the pattern with all the candidates.
+     */
+    private static List<String> expected(FCKnowledgeBase kb, Struct pattern) {
+        List<String> result = new ArrayList<>();
+        for (Term fact : kb.candidatesFor(pattern)) {
+            UnificationResult unify = SimpleUnify.unify(fact, pattern);
+            if (!unify.isFailure()) {
+                result.add(unify.getSubstitution().toString());
+            }
+        }
+        return result;
+    }
+
+    private static List<String> results(Iterator<Substitution> query) {
+        List<String> result = new ArrayList<>();
+        query.forEachRemaining(subs -> result.add(subs.toString()));
+        return result;
+    }
+
+    public static void testSameResultsAsCandidates() {
+        for (FactTable.Factory tables : new FactTable.Factory[]{null, ColumnarFactTable::new}) {
+            FCKnowledgeBase kb = createKB(tables, 1000);
+            List<Struct> patterns = new ArrayList<>();
+            patterns.add(relation("reading", atom("s1"), var("V")));
+            patterns.add(relation("reading", var("S"), var("V")));
+            patterns.add(relation("reading", var("S"), var("S")));
+            patterns.add(relation("reading", atom("s3"), atom(3)));
+            patterns.add(relation("reading", atom("s3"), atom(4)));
+            patterns.add(relation("sensor", var("S")));
+            patterns.add(relation("missing", var("S")));
+            patterns.add(struct(var("A"), var("B")));
+            for (Struct pattern : patterns) {
+                String label = pattern + (tables == null ? " (heap)" : " (compact)");
+                List<String> expected = expected(kb, pattern);
+                Check.equal(expected, results(kb.query(pattern)), "results of " + label);
+                Check.equal(expected.subList(0, Math.min(3, expected.size())), results(kb.query(pattern, 3)),
+                        "limited results of " + label);
+            }
+        }
+    }
+
+    /**
+     * A query with a limit must stop reading the facts as soon as it has enough results: the rows of the tables are
+     * materialized one at a time, also when the pattern is not in the directory of a table.
+     */
+    public static void testQueryIsLazy() {
+        AtomicInteger materialized = new AtomicInteger();
+        FactTable.Factory counting = (name, arity) -> new ColumnarFactTable(name, arity) {
+            @Override
+            public RelationImpl materialize(int row) {
+                materialized.incrementAndGet();
+                return super.materialize(row);
+            }
+        };
+        FCKnowledgeBase kb = createKB(counting, 100_000);
+
+        materialized.set(0);
+        Iterator<Substitution> query = kb.query(relation("reading", var("S"), var("V")), 5);
+        Check.equal(0, materialized.get(), "rows materialized before the query advances");
+        Check.equal(5, results(query).size(), "results of the limited query");
+        Check.isTrue(materialized.get() <= 5, "rows materialized by the limited query: " + materialized.get());
+
+        materialized.set(0);
+        query = kb.query(struct(var("Name"), var("A"), var("B")), 2);
+        Check.equal(0, materialized.get(), "rows materialized before the query on the parent directory advances");
+        Check.equal(2, results(query).size(), "results of the limited query on the parent directory");
+        Check.isTrue(materialized.get() <= 2,
+                "rows materialized by the limited query on the parent directory: " + materialized.get());
+    }
+}
@@ -0,0 +1,87 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.examples.FamilyTree;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link FCKnowledgeBase#retractFacts(List)}: the incremental maintenance (delete and rederive)
+ * must leave the same facts of a full recomputation of the fixed point without the retracted facts.
+ */
+public class FCRetractionTest {
+
+    /**
+     * Returns a new knowledge base with the asserted facts and the rules of the specified one, except for the
+     * specified facts.
+     */
+    private static FCKnowledgeBase copyWithout(FCKnowledgeBase kb, boolean compact, List<Term> excluded) {
+        Set<String> excludedTexts = excluded.stream().map(Term::toString).collect(Collectors.toSet());
+        FCKnowledgeBase result = TestKBs.empty(compact);
+        result.addFacts(kb.getAllFacts().stream()
+                .filter(fact -> !excludedTexts.contains(fact.toString()))
+                .collect(Collectors.toList()));
+        result.getRules().addAll(kb.getRules());
+        return result;
+    }
+
+    private static void checkRetraction(FCKnowledgeBase initial, List<Term> retracted, String label) {
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            FCKnowledgeBase kb = SimpleForwardChaining.getToFixedPoint(
+                    copyWithout(initial, compact, Collections.emptyList())).getUpdatedKB();
+            int before = kb.factsCount();
+            List<Term> removed = kb.retractFacts(retracted);
+            FCKnowledgeBase recomputed = SimpleForwardChaining.getToFixedPoint(
+                    copyWithout(initial, compact, retracted)).getUpdatedKB();
+            Check.sameFacts(recomputed.getAllFacts(), kb.getAllFacts(), "facts after retracting " + label + storage);
+            Check.equal(before - removed.size(), kb.factsCount(), "facts removed by retracting " + label + storage);
+        }
+    }
+
+    public static void testFamilyTree() {
+        FCKnowledgeBase family = FamilyTree.createFamilyKnowledgeBase();
+        String[][] parents = {{"jess", "simon"}, {"jack", "jess"}, {"james", "harry"}, {"lily", "harry"}};
+        for (String[] parent : parents) {
+            Term fact = relation("parent_of", atom(parent[0]), atom(parent[1]));
+            checkRetraction(family, Collections.singletonList(fact), fact.toString());
+        }
+        checkRetraction(family, Arrays.asList(
+                relation("parent_of", atom("jack"), atom("jess")),
+                relation("parent_of", atom("helen"), atom("jess")),
+                relation("male", atom("james"))), "several facts");
+    }
+
+    /**
+     * A derived fact with an alternative derivation must be rederived, also when it supports itself through a
+     * cycle of rules; when the last derivation is retracted, the whole cycle is removed.
+     */
+    public static void testCyclicSupport() {
+        FCKnowledgeBase kb = kb()
+                .withFact(relation("b", atom(1)))
+                .withFact(relation("c", atom(1)))
+                .withRule(rule().withPremise(relation("b", var("X"))).buildWithHead(relation("a", var("X"))))
+                .withRule(rule().withPremise(relation("c", var("X"))).buildWithHead(relation("a", var("X"))))
+                .withRule(rule().withPremise(relation("a", var("X"))).buildWithHead(relation("d", var("X"))))
+                .withRule(rule().withPremise(relation("d", var("X"))).buildWithHead(relation("a", var("X"))))
+                .build();
+        checkRetraction(kb, Collections.singletonList(relation("b", atom(1))), "one of two supports");
+        checkRetraction(kb, Arrays.asList(relation("b", atom(1)), relation("c", atom(1))), "all the supports");
+    }
+
+    public static void testRetractingDerivedFactHasNoEffect() {
+        FCKnowledgeBase kb = SimpleForwardChaining.getToFixedPoint(FamilyTree.createFamilyKnowledgeBase())
+                .getUpdatedKB();
+        int before = kb.factsCount();
+        Check.isTrue(!kb.retractFact(relation("father_of", atom("jack"), atom("jess"))), "derived fact retracted");
+        Check.equal(before, kb.factsCount(), "facts after retracting a derived fact");
+    }
+}
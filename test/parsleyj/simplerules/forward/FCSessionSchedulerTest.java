@@ -0,0 +1,78 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link FCSessionScheduler}.
+ */
+public class FCSessionSchedulerTest {
+
+    private static FCKnowledgeBase createKB(Consumer<Term> action) {
+        return kb()
+                .withRule(TestKBs.copyRule("p", "q", action))
+                .withRule(TestKBs.copyRule("q", "r", null))
+                .build();
+    }
+
+    private static void awaitIdle(FCSessionScheduler.Session session) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!session.isIdle()) {
+            Check.isTrue(System.nanoTime() < deadline, "session idle");
+            Thread.sleep(1);
+        }
+    }
+
+    public static void testSessionProcessesBatches() throws InterruptedException {
+        try (FCSessionScheduler scheduler = new FCSessionScheduler(2)) {
+            FCSessionScheduler.Session session = scheduler.openSession(createKB(fact -> {
+            }));
+            Check.equal(50, session.submitAll(TestKBs.numbered("p", 50)), "submitted facts");
+            awaitIdle(session);
+            Check.equal(150, session.getKnowledgeBase().factsCount(), "facts");
+            Check.equal(50L, session.getProcessedFacts(), "processed facts");
+        }
+    }
+
+    /**
+     * After a batch fails in the middle of the fixpoint computation, the next batch must bring the knowledge base to
+     * the fixed point of all the submitted facts, including the ones of the failed batch.
+     */
+    public static void testFailedBatchIsRecoveredByNextBatch() throws InterruptedException {
+        AtomicBoolean fail = new AtomicBoolean(false);
+        Consumer<Term> action = fact -> {
+            if (fail.getAndSet(false)) {
+                throw new IllegalStateException("action failed on " + fact);
+            }
+        };
+        try (FCSessionScheduler scheduler = new FCSessionScheduler(1)) {
+            FCSessionScheduler.Session session = scheduler.openSession(createKB(action));
+            session.submit(relation("p", atom(1)));
+            awaitIdle(session);
+
+            fail.set(true);
+            session.submit(relation("p", atom(2)));
+            awaitIdle(session);
+            Check.equal(1L, session.getFailedBatches(), "failed batches");
+
+            session.submit(relation("p", atom(3)));
+            awaitIdle(session);
+
+            FCKnowledgeBase expected = createKB(fact -> {
+            });
+            for (int i = 1; i <= 3; i++) {
+                expected.addFact(relation("p", atom(i)));
+            }
+            expected = SimpleForwardChaining.getToFixedPoint(expected).getUpdatedKB();
+            Check.sameFacts(expected.getAllFacts(), session.getKnowledgeBase().getAllFacts(),
+                    "facts after the batch following the failed one");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestFiles;
+import parsleyj.simplerules.terms.Term;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link FCSnapshot}.
+ */
+public class FCSnapshotTest {
+
+    private static FCKnowledgeBase createKB(int rows) {
+        FCKnowledgeBase kb = FCKnowledgeBase.compact();
+        List<Term> facts = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            facts.add(relation("small", atom(i), atom("v" + (i % 97))));
+        }
+        facts.add(relation("open", var("X")));
+        kb.addFacts(facts);
+        kb.getRules().add(rule()
+                .withPremises(relation("small", var("X"), atom("v0")))
+                .withHead(relation("zero", var("X")))
+                .build());
+        return kb;
+    }
+
+    /**
+     * Returns whether each fact of the knowledge base is derived, by the textual representation of the fact.
+     */
+    private static Map<String, Boolean> derivedFlags(FCKnowledgeBase kb) {
+        Map<String, Boolean> result = new TreeMap<>();
+        for (Term fact : kb.getAllFacts()) {
+            result.put(fact.toString(), kb.isDerived(fact));
+        }
+        return result;
+    }
+
+    public static void testRoundTrip() throws IOException {
+        Path dir = Files.createTempDirectory("snapshot-test");
+        try {
+            Path file = dir.resolve("kb.snapshot");
+            FCKnowledgeBase kb = SimpleForwardChaining.getToFixedPoint(createKB(10_000)).getUpdatedKB();
+            FCSnapshot.save(kb, file, new FCSnapshot.Registry());
+            FCKnowledgeBase loaded = FCSnapshot.load(file, new FCSnapshot.Registry());
+            Check.sameFacts(kb.getAllFacts(), loaded.getAllFacts(), "facts after load");
+            Check.equal(derivedFlags(kb), derivedFlags(loaded), "derived flags after load");
+            Check.equal(104L, derivedFlags(loaded).values().stream().filter(derived -> derived).count(),
+                    "derived facts after load");
+            Check.equal(kb.getRules().toString(), loaded.getRules().toString(), "rules after load");
+        } finally {
+            TestFiles.delete(dir);
+        }
+    }
+
+    /**
+     * A knowledge base loaded from a snapshot maps the file, so saving it back to the same path must not corrupt
+     * either the file or the knowledge base reading it.
+     */
+    public static void testResaveToSamePath() throws IOException {
+        Path dir = Files.createTempDirectory("snapshot-test");
+        try {
+            Path file = dir.resolve("kb.snapshot");
+            FCKnowledgeBase kb = createKB(100_000);
+            FCSnapshot.save(kb, file, new FCSnapshot.Registry());
+            FCKnowledgeBase loaded = FCSnapshot.load(file, new FCSnapshot.Registry());
+            // the table of small/2 is still read from the mapped file while it is saved
+            loaded.addFact(relation("other", atom("extra")));
+            FCSnapshot.save(loaded, file, new FCSnapshot.Registry());
+
+            List<Term> expected = new ArrayList<>(kb.getAllFacts());
+            expected.add(relation("other", atom("extra")));
+            Check.sameFacts(expected, loaded.getAllFacts(), "facts of the knowledge base mapping the old file");
+            FCKnowledgeBase reloaded = FCSnapshot.load(file, new FCSnapshot.Registry());
+            Check.sameFacts(expected, reloaded.getAllFacts(), "facts after re-save to the same path");
+            try (Stream<Path> files = Files.list(dir)) {
+                Check.equal(1L, files.count(), "files in the directory (no temporary file left)");
+            }
+        } finally {
+            TestFiles.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of the {@link FCStatistics} collected by the reasoning processes.
+ */
+public class FCStatisticsTest {
+
+    /**
+     * Computes the paths of a chain of 5 edges with a shortcut from 0 to 2, whose path is derived again by the
+     * second rule.
+     */
+    public static void testCountersOfTransitiveClosure() {
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            AtomicInteger actions = new AtomicInteger();
+            List<Rule> rules = TestKBs.transitiveClosure();
+            Rule step = rules.get(1);
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            kb.getRules().add(rules.get(0));
+            kb.getRules().add(rule().withPremises(step.getPremises())
+                    .withHead(step.getHead())
+                    .withAction(fact -> actions.incrementAndGet())
+                    .build());
+            List<Term> facts = new ArrayList<>(TestKBs.chain(5));
+            facts.add(TestKBs.edge(0, 2));
+            kb.addFacts(facts);
+
+            FCResult result = SimpleForwardChaining.getToFixedPoint(kb);
+            FCStatistics stats = result.getStatistics();
+            Check.equal(21, result.getUpdatedKB().factsCount(), "facts" + storage);
+            Check.equal(Arrays.asList(6, 4, 3, 2, 0), stats.getDeltaSizes(), "new facts of each iteration" + storage);
+
+            FCStatistics.RuleStatistics first = stats.getRuleStatistics(0);
+            Check.equal(6L, first.getNewFacts(), "new facts of the first rule" + storage);
+            Check.equal(0L, first.getDuplicatesRejected(), "duplicates of the first rule" + storage);
+            Check.equal(0L, first.getActionsFired(), "actions of the first rule" + storage);
+
+            FCStatistics.RuleStatistics second = stats.getRuleStatistics(1);
+            Check.equal(10L, second.getHeadsProduced(), "heads of the second rule" + storage);
+            Check.equal(1L, second.getDuplicatesRejected(), "duplicates of the second rule" + storage);
+            Check.equal(9L, second.getNewFacts(), "new facts of the second rule" + storage);
+            Check.equal((long) actions.get(), second.getActionsFired(), "actions of the second rule" + storage);
+            Check.equal(9L, second.getActionsFired(), "actions of the second rule" + storage);
+            Check.isTrue(second.getCandidates() >= second.getHeadsProduced(), "matches of the second rule" + storage);
+            Check.isTrue(stats.getWallNanos() > 0, "duration of the process" + storage);
+        }
+    }
+}
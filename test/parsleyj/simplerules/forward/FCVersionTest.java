@@ -0,0 +1,104 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Behavior tests of the {@link FCVersion}s published by {@link FCKnowledgeBase#enableVersions()}: a version must keep
+ * the facts it was published with, while the knowledge base is modified by the same or by another thread.
+ */
+public class FCVersionTest {
+
+    private static Set<String> texts(List<Term> facts) {
+        Set<String> result = new HashSet<>();
+        facts.forEach(fact -> result.add(fact.toString()));
+        return result;
+    }
+
+    public static void testVersionsKeepTheirFacts() {
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            kb.getRules().addAll(TestKBs.transitiveClosure());
+            kb.enableVersions();
+            FCVersion empty = kb.currentVersion();
+            Check.equal(0, empty.factsCount(), "facts of the first version" + storage);
+
+            SimpleForwardChaining.extendToFixedPoint(kb, TestKBs.chain(4));
+            FCVersion closed = kb.currentVersion();
+            Check.isTrue(closed.getVersion() > empty.getVersion(), "number of the new version" + storage);
+            Check.sameFacts(kb.getAllFacts(), closed.getAllFacts(), "facts of the fixed point" + storage);
+            Check.sameFacts(kb.factsInDirectory(FCKnowledgeBase.relationDirectory("path", 2)),
+                    closed.factsInDirectory(FCKnowledgeBase.relationDirectory("path", 2)),
+                    "paths of the fixed point" + storage);
+
+            List<Term> before = closed.getAllFacts();
+            SimpleForwardChaining.retractFromFixedPoint(kb, Collections.singletonList(TestKBs.edge(1, 2)));
+            FCVersion retracted = kb.currentVersion();
+            Check.isTrue(retracted.getVersion() > closed.getVersion(), "number of the version after removal" + storage);
+            Check.sameFacts(kb.getAllFacts(), retracted.getAllFacts(), "facts after the removal" + storage);
+            Check.sameFacts(before, closed.getAllFacts(), "facts of the old version after the removal" + storage);
+            Check.equal(0, empty.factsCount(), "facts of the first version after the changes" + storage);
+
+            kb.publishVersion();
+            Check.isTrue(retracted == kb.currentVersion(), "version published without changes" + storage);
+        }
+    }
+
+    /**
+     * A reader thread sees only consistent versions, with increasing numbers and facts, while another thread extends
+     * the knowledge base.
+     */
+    public static void testConcurrentReader() throws InterruptedException {
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            kb.getRules().addAll(TestKBs.transitiveClosure());
+            kb.enableVersions();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Set<String>> seen = new ArrayList<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    long previous = -1;
+                    while (!Thread.currentThread().isInterrupted()) {
+                        FCVersion version = kb.currentVersion();
+                        if (version.getVersion() == previous) {
+                            continue;
+                        }
+                        Check.isTrue(version.getVersion() > previous, "increasing version numbers");
+                        previous = version.getVersion();
+                        List<Term> facts = version.getAllFacts();
+                        Check.equal(version.factsCount(), facts.size(), "facts of version " + previous);
+                        seen.add(texts(facts));
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }, "version-reader");
+            reader.start();
+            List<Term> chain = TestKBs.chain(40);
+            for (int i = 0; i < chain.size(); i += 4) {
+                SimpleForwardChaining.extendToFixedPoint(kb, chain.subList(i, i + 4));
+            }
+            reader.interrupt();
+            reader.join(TimeUnit.SECONDS.toMillis(10));
+            Check.isTrue(failure.get() == null, "reader failed: " + failure.get());
+            Check.isTrue(!seen.isEmpty(), "versions seen" + storage);
+            Set<String> all = texts(kb.getAllFacts());
+            for (int i = 0; i < seen.size(); i++) {
+                Check.isTrue(all.containsAll(seen.get(i)), "facts of a version in the knowledge base" + storage);
+                Check.isTrue(i == 0 || seen.get(i).containsAll(seen.get(i - 1)),
+                        "facts of a version in the next one" + storage);
+            }
+        }
+    }
+}
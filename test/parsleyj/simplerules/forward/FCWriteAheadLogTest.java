@@ -0,0 +1,310 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static parsleyj.simplerules.KBBuilders.*;
+import static parsleyj.simplerules.TestKBs.edge;
+
+/**
+ * Behavior tests of {@link FCWriteAheadLog}.
+ */
+public class FCWriteAheadLogTest {
+
+    private static FCKnowledgeBase createKB() {
+        return kb().withRules(TestKBs.transitiveClosure()).build();
+    }
+
+    /**
+     * The changes logged before a crash are replayed into the knowledge base, and a record torn by the crash is
+     * discarded.
+     */
+    public static void testCrashAndReplay() throws IOException {
+        Path file = Files.createTempFile("wal-test", ".log");
+        try {
+            FCKnowledgeBase kb = SimpleForwardChaining.getToFixedPoint(createKB()).getUpdatedKB();
+            try (FCWriteAheadLog log = FCWriteAheadLog.open(file)) {
+                kb.setWriteAheadLog(log);
+                SimpleForwardChaining.extendToFixedPoint(kb, Arrays.asList(edge(1, 2), edge(2, 3), edge(3, 4)));
+                SimpleForwardChaining.extendToFixedPoint(kb, Collections.singletonList(edge(4, 5)));
+                kb.retractFacts(Collections.singletonList(edge(2, 3)));
+            }
+            long durableSize = Files.size(file);
+            // a torn record: a header announcing more bytes than were written
+            Files.write(file, new byte[]{100, 0, 0, 0, 1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+            FCKnowledgeBase recovered = SimpleForwardChaining.getToFixedPoint(createKB()).getUpdatedKB();
+            try (FCWriteAheadLog log = FCWriteAheadLog.open(file)) {
+                Check.equal(durableSize, Files.size(file), "size of the log after discarding the torn record");
+                Check.equal(3, log.replayInto(recovered, new FCSnapshot.Registry()), "replayed records");
+            }
+            Check.sameFacts(kb.getAllFacts(), recovered.getAllFacts(), "facts after replay");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static FCKnowledgeBase createReadingsKB() {
+        FCKnowledgeBase kb = new FCKnowledgeBase();
+        kb.getRules().add(rule()
+                .withPremises(relation("reading", var("S"), var("V")))
+                .withHead(relation("seen", var("S"), var("V")))
+                .build());
+        kb.getRules().add(rule()
+                .withPremises(relation("seen", var("S"), var("V")))
+                .withHead(relation("sensor", var("S")))
+                .build());
+        // not cascading: the consequences of the expired facts are kept
+        kb.setRetentionPolicy("reading", 2, RetentionPolicy.maxCount(2));
+        kb.setRetentionPolicy("seen", 2, RetentionPolicy.maxCount(3));
+        return kb;
+    }
+
+    /**
+     * The expirations of a non-cascading policy, of asserted and of derived facts, are replayed as plain removals,
+     * which keep the consequences of the expired facts.
+     */
+    public static void testExpiryReplay() throws IOException {
+        Path file = Files.createTempFile("wal-test", ".log");
+        try {
+            FCKnowledgeBase kb = SimpleForwardChaining.getToFixedPoint(createReadingsKB()).getUpdatedKB();
+            try (FCWriteAheadLog log = FCWriteAheadLog.open(file)) {
+                kb.setWriteAheadLog(log);
+                for (int i = 0; i < 5; i++) {
+                    SimpleForwardChaining.extendToFixedPoint(kb,
+                            Collections.singletonList(relation("reading", atom("s"), atom(i))));
+                    kb.expireFacts();
+                }
+            }
+            Check.equal(2, kb.factsInDirectory(FCKnowledgeBase.relationDirectory("reading", 2)).size(),
+                    "readings retained");
+            Check.equal(3, kb.factsInDirectory(FCKnowledgeBase.relationDirectory("seen", 2)).size(),
+                    "derived facts retained");
+
+            FCKnowledgeBase recovered = SimpleForwardChaining.getToFixedPoint(createReadingsKB()).getUpdatedKB();
+            try (FCWriteAheadLog log = FCWriteAheadLog.open(file)) {
+                log.replayInto(recovered, new FCSnapshot.Registry());
+            }
+            Check.sameFacts(kb.getAllFacts(), recovered.getAllFacts(), "facts after replay");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * When a write fails, the partial record is truncated away, and the failure is reported to the current and to
+     * all the later callers, instead of reporting later records as durable.
+     */
+    public static void testFailedWrite() throws IOException {
+        Path file = Files.createTempFile("wal-test", ".log");
+        try {
+            FailingChannel channel = new FailingChannel(FileChannel.open(file,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            FCWriteAheadLog log = FCWriteAheadLog.open(file, channel);
+            log.logAddition(Collections.singletonList(edge(1, 2)));
+            long durableSize = Files.size(file);
+
+            channel.failWrites = true;
+            expectFailure(() -> log.logAddition(Collections.singletonList(edge(2, 3))), "failed write");
+            Check.isTrue(log.isFailed(), "the log is in the failed state");
+            Check.equal(durableSize, Files.size(file), "size of the log after the failed write");
+
+            channel.failWrites = false;
+            expectFailure(() -> log.logAddition(Collections.singletonList(edge(3, 4))), "write after the failure");
+            log.close();
+
+            FCKnowledgeBase recovered = createKB();
+            try (FCWriteAheadLog reopened = FCWriteAheadLog.open(file)) {
+                Check.equal(1, reopened.replayInto(recovered, new FCSnapshot.Registry()), "replayed records");
+            }
+            Check.equal(Collections.singletonList(edge(1, 2).toString()),
+                    recovered.factsInDirectory(FCKnowledgeBase.relationDirectory("edge", 2)).stream()
+                            .map(Term::toString).collect(java.util.stream.Collectors.toList()),
+                    "replayed facts");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * When the sync of a group commit fails, every thread waiting for a record of the group gets the error.
+     */
+    public static void testFailedSyncReachesAllWaiters() throws Exception {
+        Path file = Files.createTempFile("wal-test", ".log");
+        try {
+            FailingChannel channel = new FailingChannel(FileChannel.open(file,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            FCWriteAheadLog log = FCWriteAheadLog.open(file, channel);
+            channel.failForce = true;
+            channel.forceDelayMillis = 50;
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    final int from = i;
+                    results.add(pool.submit(() -> {
+                        try {
+                            log.logAddition(Collections.singletonList(edge(from, from + 1)));
+                            return true;
+                        } catch (IOException e) {
+                            return false;
+                        }
+                    }));
+                }
+                for (Future<Boolean> result : results) {
+                    Check.equal(false, result.get(), "a record reported as durable after a failed sync");
+                }
+            } finally {
+                pool.shutdown();
+            }
+            Check.equal(0L, Files.size(file), "size of the log after the failed sync");
+            log.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    private static void expectFailure(IOAction action, String message) {
+        try {
+            action.run();
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError(message + ": no IOException");
+    }
+
+    /**
+     * File channel which fails the writes (after writing half of the buffer) or the syncs on request.
+     */
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel delegate;
+        private volatile boolean failWrites = false;
+        private volatile boolean failForce = false;
+        private volatile long forceDelayMillis = 0;
+
+        private FailingChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failWrites) {
+                ByteBuffer half = src.duplicate();
+                half.limit(src.position() + src.remaining() / 2);
+                delegate.write(half);
+                throw new IOException("simulated write failure");
+            }
+            return delegate.write(src);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (forceDelayMillis > 0) {
+                try {
+                    Thread.sleep(forceDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failForce) {
+                throw new IOException("simulated sync failure");
+            }
+            delegate.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
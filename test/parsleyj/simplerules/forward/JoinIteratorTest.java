@@ -0,0 +1,219 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.Term;
+import parsleyj.simplerules.unify.SimpleUnify;
+import parsleyj.simplerules.unify.UnificationResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link JoinIterator}: the join strategies (hash join, trie join, compiled matching) must produce
+ * the same instances of the head of a rule as a nested loop over all the candidates, on the same facts stored on the
+ * heap or in compact tables.
+ */
+public class JoinIteratorTest {
+
+    /**
+     * Creates a random graph, without duplicate edges (which the compact tables would store only once).
+     */
+    private static List<Term> createFacts() {
+        Random random = new Random(42);
+        Set<List<Integer>> edges = new LinkedHashSet<>();
+        while (edges.size() < 200) {
+            edges.add(Arrays.asList(random.nextInt(30), random.nextInt(30)));
+        }
+        for (int i = 0; i < 10; i++) {
+            edges.add(Arrays.asList(i, i));
+        }
+        List<Term> facts = new ArrayList<>();
+        for (List<Integer> edge : edges) {
+            facts.add(relation("edge", atom(edge.get(0)), atom(edge.get(1))));
+        }
+        for (int i = 0; i < 30; i++) {
+            facts.add(relation("label", atom(i), atom("l" + i % 4)));
+        }
+        return facts;
+    }
+
+    private static List<Rule> createRules() {
+        return Arrays.asList(
+                // hash join on a shared variable
+                TestKBs.PATH2,
+                // trie join of a cyclic pattern
+                TestKBs.TRIANGLE,
+                // atoms, repeated variables and an existence check
+                rule().withPremises(
+                        relation("label", var("N"), atom("l1")),
+                        relation("edge", var("N"), var("N")),
+                        relation("edge", var("N"), var("M")))
+                        .withHead(relation("loop", var("N")))
+                        .build(),
+                // hash join on two variables
+                rule().withPremises(
+                        relation("edge", var("X"), var("Y")),
+                        relation("label", var("X"), var("L")),
+                        relation("label", var("Y"), var("L")),
+                        relation("edge", var("Y"), var("X")))
+                        .withHead(relation("same", var("X"), var("Y"), var("L")))
+                        .build());
+    }
+
+    private static FCKnowledgeBase createKB(boolean compact, boolean compiled) {
+        FCKnowledgeBase kb = TestKBs.empty(compact);
+        kb.setCompiledMatching(compiled);
+        kb.addFacts(createFacts());
+        kb.getRules().addAll(createRules());
+        return kb;
+    }
+
+    /**
+     * Returns the instances of the head of the rule obtained by unifying the premises with all the sequences of their
+     * candidates.
+     */
+    private static Set<String> nestedLoop(FCKnowledgeBase kb, Rule rule) {
+        List<List<Term>> candidates = new ArrayList<>();
+        for (Term premise : rule.getPremises()) {
+            candidates.add(kb.candidatesFor(premise));
+        }
+        Set<String> result = new TreeSet<>();
+        nestedLoop(rule, candidates, 0, UnificationResult.empty(), result);
+        return result;
+    }
+
+    private static void nestedLoop(Rule rule, List<List<Term>> candidates, int level, UnificationResult theta,
+                                   Set<String> result) {
+        if (level == candidates.size()) {
+            result.add(rule.getHead().applySubstitution(theta.getSubstitution()).toString());
+            return;
+        }
+        for (Term fact : candidates.get(level)) {
+            UnificationResult ur = SimpleUnify.unify(theta, fact, rule.getPremises().get(level));
+            if (!ur.isFailure()) {
+                nestedLoop(rule, candidates, level + 1, ur, result);
+            }
+        }
+    }
+
+    private static Set<String> joined(FCKnowledgeBase kb, Rule rule) {
+        JoinIterator join = new JoinIterator(kb, rule.getPremises(), rule.getHead(), kb.matcherFor(rule));
+        Set<String> result = new TreeSet<>();
+        while (join.hasNext()) {
+            join.next();
+            result.add(rule.getHead().applySubstitution(join.unification().getSubstitution()).toString());
+        }
+        return result;
+    }
+
+    public static void testStrategiesMatchNestedLoop() {
+        for (boolean compact : new boolean[]{false, true}) {
+            for (boolean compiled : new boolean[]{false, true}) {
+                FCKnowledgeBase kb = createKB(compact, compiled);
+                String label = (compact ? " (compact" : " (heap") + (compiled ? ", compiled)" : ")");
+                for (Rule rule : kb.getRules()) {
+                    Set<String> expected = nestedLoop(kb, rule);
+                    Check.isTrue(!expected.isEmpty(), "matches of " + rule.getHead() + label);
+                    Check.equal(expected, joined(kb, rule), "matches of " + rule.getHead() + label);
+                }
+            }
+        }
+    }
+
+    public static void testTrieJoinIsUsedForCyclicRules() {
+        for (boolean compact : new boolean[]{false, true}) {
+            FCKnowledgeBase kb = createKB(compact, false);
+            Rule triangle = kb.getRules().get(1);
+            JoinIterator join = new JoinIterator(kb, triangle.getPremises(), triangle.getHead());
+            Check.isTrue(join.hasNext(), "matches of the triangles");
+            Check.isTrue(join.isTrieJoin(), "trie join of the triangles" + TestKBs.storage(compact));
+        }
+    }
+
+    public static void testSameFixedPointWithAllStrategies() {
+        List<Term> expected = null;
+        for (boolean compact : new boolean[]{false, true}) {
+            for (boolean compiled : new boolean[]{false, true}) {
+                List<Term> facts = SimpleForwardChaining.getToFixedPoint(createKB(compact, compiled))
+                        .getUpdatedKB().getAllFacts();
+                if (expected == null) {
+                    expected = facts;
+                } else {
+                    Check.sameFacts(expected, facts, "fixed point" + (compact ? " (compact" : " (heap")
+                            + (compiled ? ", compiled)" : ")"));
+                }
+            }
+        }
+    }
+
+    /**
+     * The hash tables and the tries kept by the knowledge base must be reused while the relations do not change, and
+     * must give the same matches as a nested loop after facts are added to the relations (on the heap, in the tables,
+     * or both) in many batches.
+     */
+    public static void testCachedIndexesFollowAddedFacts() {
+        List<Term> facts = createFacts();
+        for (boolean compact : new boolean[]{false, true}) {
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            kb.getRules().addAll(createRules());
+            String label = TestKBs.storage(compact);
+            for (int start = 0; start < facts.size(); start += 20) {
+                List<Term> batch = new ArrayList<>(facts.subList(start, Math.min(facts.size(), start + 20)));
+                if (start % 60 == 0) {
+                    // facts which are never stored in a table: an edge whose atom is typed with a superclass of its
+                    // value, and a non-ground label
+                    batch.add(relation("edge", new Atom<>(start % 30, Number.class), atom(start % 29)));
+                    batch.add(relation("label", atom(start % 30), var("Q" + start)));
+                }
+                kb.addFacts(batch);
+                for (Rule rule : kb.getRules()) {
+                    Check.equal(nestedLoop(kb, rule), joined(kb, rule), "matches of " + rule.getHead() + label
+                            + " after " + (start + batch.size()) + " facts");
+                }
+            }
+            Term premise = relation("edge", var("Y"), var("Z"));
+            List<Term> candidates = kb.candidatesFor(premise, RangeGuards.of(Collections.singletonList(premise)));
+            JoinIterator.HashIndex index = kb.joinIndex(premise, candidates, new int[]{1});
+            Check.isTrue(index != null, "cached index" + label);
+            joined(kb, kb.getRules().get(0));
+            Check.isTrue(index == kb.joinIndex(premise, candidates, new int[]{1}), "reused index" + label);
+            Check.isTrue(kb.joinTrie(premise, candidates, new int[]{1, 2})
+                    == kb.joinTrie(premise, candidates, new int[]{1, 2}), "reused trie" + label);
+        }
+    }
+
+    /**
+     * Extending the fixed point in many small batches, whose semi-naive passes extend the cached hash tables with
+     * the delta, must give the same facts as computing it at once.
+     */
+    public static void testIncrementalBatchesMatchFixedPoint() {
+        List<Term> facts = createFacts();
+        for (boolean compact : new boolean[]{false, true}) {
+            FCKnowledgeBase expected = TestKBs.empty(compact);
+            expected.getRules().addAll(createRules());
+            expected.addFacts(facts);
+            expected = SimpleForwardChaining.getToFixedPoint(expected).getUpdatedKB();
+
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            kb.getRules().addAll(createRules());
+            kb = SimpleForwardChaining.getToFixedPoint(kb).getUpdatedKB();
+            for (int start = 0; start < facts.size(); start += 7) {
+                SimpleForwardChaining.extendToFixedPoint(kb,
+                        facts.subList(start, Math.min(facts.size(), start + 7)));
+            }
+            Check.sameFacts(expected.getAllFacts(), kb.getAllFacts(),
+                    "fixed point extended in batches" + TestKBs.storage(compact));
+        }
+    }
+}
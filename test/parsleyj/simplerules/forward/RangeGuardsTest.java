@@ -0,0 +1,105 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.NativeFacts;
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Atom;
+import parsleyj.simplerules.terms.Relation;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of the range scans of the premises constrained by {@link RangeGuards}, on the facts stored on the
+ * heap and in compact tables.
+ */
+public class RangeGuardsTest {
+
+    private static final Rule HIGH = rule().withPremises(
+            relation("reading", var("S"), var("V")),
+            invokeNative("INT_LIB", ">=", var("V"), atom(50)),
+            invokeNative("INT_LIB", "<", var("V"), atom(60)))
+            .withHead(relation("high", var("S"), var("V")))
+            .build();
+
+    private static List<Term> readings(int from, int to) {
+        List<Term> result = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            // the values are not in insertion order
+            result.add(relation("reading", atom("s" + i % 3), atom((i * 37) % 100)));
+        }
+        return result;
+    }
+
+    private static FCKnowledgeBase createKB(boolean compact, boolean indexed) {
+        FCKnowledgeBase kb = TestKBs.empty(compact);
+        kb.getRules().add(HIGH);
+        kb.addFacts(NativeFacts.nativeIntegerFacts());
+        if (indexed) {
+            kb.createRangeIndex("reading", 2, 1);
+        }
+        kb.addFacts(readings(0, 100));
+        // facts which are never stored in a table: a reading whose atom is typed with a superclass of its value, and
+        // a non-ground reading
+        kb.addFact(relation("reading", atom("s9"), new Atom<>(55, Number.class)));
+        kb.addFact(relation("reading", atom("s9"), var("X")));
+        return kb;
+    }
+
+    /**
+     * Returns the candidates of the first premise of {@link #HIGH} retrieved by a range scan, and checks them against
+     * the candidates filtered by the range after a full scan.
+     */
+    private static List<String> checkRangeScan(FCKnowledgeBase kb, String label) {
+        Term premise = HIGH.getPremises().get(0);
+        List<String> scanned = kb.candidatesFor(premise, RangeGuards.of(HIGH.getPremises())).stream()
+                .map(Term::toString).collect(Collectors.toList());
+        List<String> filtered = kb.candidatesFor(premise).stream()
+                .filter(fact -> {
+                    Term value = ((Relation) fact).toJavaList().get(2);
+                    if (!(value instanceof Atom)) {
+                        return true;
+                    }
+                    Object wrapped = ((Atom<?>) value).getWrappedValue();
+                    return wrapped instanceof Integer && (Integer) wrapped >= 50 && (Integer) wrapped < 60;
+                })
+                .map(Term::toString).collect(Collectors.toList());
+        Check.equal(filtered, scanned, "candidates of the range scan" + label);
+        return scanned;
+    }
+
+    public static void testRangeScanMatchesFilteredScan() {
+        for (boolean compact : new boolean[]{false, true}) {
+            String label = TestKBs.storage(compact);
+            FCKnowledgeBase kb = createKB(compact, true);
+            Check.equal(12, checkRangeScan(kb, label).size(), "candidates of the range scan" + label);
+            Check.sameFacts(SimpleForwardChaining.getToFixedPoint(createKB(compact, false)).getUpdatedKB()
+                            .getAllFacts(),
+                    SimpleForwardChaining.getToFixedPoint(kb).getUpdatedKB().getAllFacts(), "fixed point" + label);
+        }
+    }
+
+    /**
+     * The index of a table must follow the rows added to it, and the rows moved by the removal of other rows.
+     */
+    public static void testRangeScanAfterChanges() {
+        for (boolean compact : new boolean[]{false, true}) {
+            String label = TestKBs.storage(compact);
+            FCKnowledgeBase kb = createKB(compact, true);
+            checkRangeScan(kb, label);
+            kb.addFacts(readings(100, 250));
+            checkRangeScan(kb, label + " after adding facts");
+            kb.retractFacts(Arrays.asList(relation("reading", atom("s1"), atom(57)),
+                    relation("reading", atom("s0"), atom(0))));
+            checkRangeScan(kb, label + " after removing facts");
+            kb.addFacts(readings(250, 300));
+            checkRangeScan(kb, label + " after adding facts again");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of the retention policies enforced by {@link FCKnowledgeBase#expireFacts()}.
+ */
+public class RetentionPolicyTest {
+
+    private static Term reading(String sensor, Object value) {
+        return relation("reading", atom(sensor), atom(value));
+    }
+
+    private static List<Term> readings(FCKnowledgeBase kb) {
+        return kb.factsInDirectory(FCKnowledgeBase.relationDirectory("reading", 2));
+    }
+
+    public static void testMaxCountKeepsNewestFacts() {
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            List<Term> notified = new ArrayList<>();
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            kb.setRetentionPolicy("reading", 2, RetentionPolicy.maxCount(3).onExpiry(notified::addAll));
+            for (int i = 0; i < 5; i++) {
+                kb.addFact(reading("s", i));
+            }
+            List<Term> expired = kb.expireFacts();
+            List<Term> expected = Arrays.asList(reading("s", 0), reading("s", 1));
+            Check.sameFacts(expected, expired, "expired facts" + storage);
+            Check.sameFacts(expected, notified, "facts notified to the listener" + storage);
+            Check.sameFacts(Arrays.asList(reading("s", 2), reading("s", 3), reading("s", 4)), readings(kb),
+                    "retained facts" + storage);
+            Check.equal(0, kb.expireFacts().size(), "facts expired again" + storage);
+        }
+    }
+
+    /**
+     * The facts older than the window from the most recent timestamp expire, and the facts without a numeric
+     * timestamp are retained.
+     */
+    public static void testTimestampWindow() {
+        for (boolean compact : new boolean[]{false, true}) {
+            String storage = TestKBs.storage(compact);
+            FCKnowledgeBase kb = TestKBs.empty(compact);
+            kb.setRetentionPolicy("reading", 2, RetentionPolicy.timestampWindow(1, 10));
+            kb.addFacts(Arrays.asList(reading("s", 12), reading("s", 0), reading("s", "late"), reading("s", 20),
+                    reading("s", 5)));
+            Check.sameFacts(Arrays.asList(reading("s", 0), reading("s", 5)), kb.expireFacts(),
+                    "expired facts" + storage);
+            Check.sameFacts(Arrays.asList(reading("s", 12), reading("s", "late"), reading("s", 20)), readings(kb),
+                    "retained facts" + storage);
+        }
+    }
+
+    /**
+     * A cascading policy also removes the derived facts which lost all their support, while the consequences of the
+     * facts expired by a plain policy are kept.
+     */
+    public static void testCascadingRemovesUnsupportedFacts() {
+        for (boolean cascading : new boolean[]{false, true}) {
+            for (boolean compact : new boolean[]{false, true}) {
+                String label = (cascading ? " (cascading)" : " (plain)") + TestKBs.storage(compact);
+                FCKnowledgeBase kb = TestKBs.empty(compact);
+                kb.getRules().add(rule().withPremise(relation("reading", var("S"), var("V")))
+                        .withHead(relation("seen", var("S")))
+                        .build());
+                RetentionPolicy policy = RetentionPolicy.maxCount(1);
+                kb.setRetentionPolicy("reading", 2, cascading ? policy.cascading() : policy);
+                kb = SimpleForwardChaining.getToFixedPoint(kb).getUpdatedKB();
+                SimpleForwardChaining.extendToFixedPoint(kb, Arrays.asList(reading("s1", 1), reading("s1", 2)));
+                SimpleForwardChaining.extendToFixedPoint(kb, Arrays.asList(reading("s2", 3)));
+                List<Term> expired = kb.expireFacts();
+
+                List<Term> expected = new ArrayList<>(Arrays.asList(reading("s2", 3), relation("seen", atom("s2"))));
+                if (cascading) {
+                    Check.equal(3, expired.size(), "expired facts" + label);
+                } else {
+                    Check.equal(2, expired.size(), "expired facts" + label);
+                    expected.add(relation("seen", atom("s1")));
+                }
+                Check.sameFacts(expected, kb.getAllFacts(), "retained facts" + label);
+            }
+        }
+    }
+}
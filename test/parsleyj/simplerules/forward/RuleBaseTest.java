@@ -0,0 +1,94 @@
+package parsleyj.simplerules.forward;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.Rule;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.storage.ColumnarFactTable;
+import parsleyj.simplerules.terms.Term;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link RuleBase}: the sessions sharing a rule base must reach the same fixed points of knowledge
+ * bases holding their own rules, while evaluating only the rules triggered by the new facts.
+ */
+public class RuleBaseTest {
+
+    private static final Rule LABELLED = rule().withPremises(
+            relation("path", var("X"), var("Y")),
+            relation("label", var("Y"), var("L")))
+            .withHead(relation("reaches", var("X"), var("L")))
+            .build();
+
+    private static List<Rule> createRules() {
+        List<Rule> rules = new ArrayList<>(TestKBs.transitiveClosure());
+        rules.add(TestKBs.TRIANGLE);
+        rules.add(LABELLED);
+        return rules;
+    }
+
+    private static List<Term> createFacts(int session) {
+        List<Term> facts = new ArrayList<>(TestKBs.chain(10 + session));
+        facts.add(TestKBs.edge(10 + session, 8));
+        facts.add(relation("label", atom(9), atom("l" + session)));
+        return facts;
+    }
+
+    public static void testSessionsMatchOwnRules() {
+        RuleBase ruleBase = new RuleBase(createRules());
+        for (int session = 0; session < 3; session++) {
+            for (boolean compact : new boolean[]{false, true}) {
+                String label = " of session " + session + TestKBs.storage(compact);
+                FCKnowledgeBase expected = TestKBs.empty(compact);
+                expected.getRules().addAll(createRules());
+                expected.addFacts(createFacts(session));
+                expected = SimpleForwardChaining.getToFixedPoint(expected).getUpdatedKB();
+
+                FCKnowledgeBase kb = ruleBase.newSession(compact ? ColumnarFactTable::new : null);
+                kb.addFacts(createFacts(session));
+                Check.sameFacts(expected.getAllFacts(),
+                        SimpleForwardChaining.getToFixedPoint(kb).getUpdatedKB().getAllFacts(), "fixed point" + label);
+
+                // the semi-naive iterations evaluate only the rules triggered by their delta
+                FCKnowledgeBase extended = ruleBase.newSession(compact ? ColumnarFactTable::new : null);
+                SimpleForwardChaining.getToFixedPointInPlace(extended);
+                for (Term fact : createFacts(session)) {
+                    SimpleForwardChaining.extendToFixedPoint(extended, Collections.singletonList(fact));
+                }
+                Check.sameFacts(expected.getAllFacts(), extended.getAllFacts(), "fixed point extended" + label);
+            }
+        }
+    }
+
+    public static void testRulesTriggeredByFacts() {
+        RuleBase ruleBase = new RuleBase(createRules());
+        BitSet labels = ruleBase.rulesTriggeredBy(Collections.singletonList(relation("label", atom(1), atom("l"))));
+        Check.equal("{3}", labels.toString(), "rules triggered by a label");
+        BitSet edges = ruleBase.rulesTriggeredBy(TestKBs.chain(3));
+        Check.equal("{0, 1, 2}", edges.toString(), "rules triggered by the edges");
+        BitSet none = ruleBase.rulesTriggeredBy(Collections.singletonList(relation("other", atom(1))));
+        Check.isTrue(none.isEmpty(), "rules triggered by an unrelated fact");
+    }
+
+    /**
+     * The rules of a rule base cannot be changed through its sessions.
+     */
+    public static void testRulesAreShared() {
+        RuleBase ruleBase = new RuleBase(createRules());
+        FCKnowledgeBase first = ruleBase.newSession();
+        FCKnowledgeBase second = ruleBase.newSession();
+        Check.isTrue(first.getRules() == second.getRules(), "rules shared by the sessions");
+        Check.isTrue(first.copy().getRuleBase() == ruleBase, "rule base of a copy of a session");
+        try {
+            first.getRules().add(TestKBs.PATH2);
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        throw new AssertionError("rule added to a rule base");
+    }
+}
@@ -0,0 +1,174 @@
+package parsleyj.simplerules.storage;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestFiles;
+import parsleyj.simplerules.forward.FCKnowledgeBase;
+import parsleyj.simplerules.forward.FCResult;
+import parsleyj.simplerules.forward.SimpleForwardChaining;
+import parsleyj.simplerules.terms.Term;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link MappedFactTable}.
+ */
+public class MappedFactTableTest {
+
+    public static void testCopyOnWrite() throws IOException {
+        Path dir = Files.createTempDirectory("mapped-test");
+        try {
+            FactTable table = MappedFactTable.factory(dir).create("r", 2);
+            for (int i = 0; i < 1000; i++) {
+                table.add(new int[]{i, i + 1}, false);
+            }
+            Check.equal(2L, countFiles(dir), "files of the table");
+            List<FactTable> copies = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                copies.add(table.copy());
+            }
+            Check.equal(2L, countFiles(dir), "files after copying the table (the copies share them)");
+
+            FactTable copy = copies.get(0);
+            copy.add(new int[]{-5, -6}, true);
+            copy.remove(new int[]{0, 1});
+            table.add(new int[]{-7, -8}, false);
+            Check.equal(1000, copy.size(), "size of the modified copy");
+            Check.isTrue(copy.find(new int[]{-5, -6}) >= 0 && copy.find(new int[]{0, 1}) < 0
+                    && copy.find(new int[]{-7, -8}) < 0, "rows of the modified copy");
+            Check.equal(1001, table.size(), "size of the modified original");
+            Check.isTrue(table.find(new int[]{0, 1}) >= 0 && table.find(new int[]{-5, -6}) < 0
+                    && table.find(new int[]{-7, -8}) >= 0, "rows of the modified original");
+            for (FactTable other : copies.subList(1, copies.size())) {
+                Check.equal(1000, other.size(), "size of an unmodified copy");
+                Check.isTrue(other.find(new int[]{0, 1}) >= 0 && other.find(new int[]{-5, -6}) < 0
+                        && other.find(new int[]{-7, -8}) < 0, "rows of an unmodified copy");
+            }
+
+            for (FactTable c : copies) {
+                c.release();
+            }
+            table.release();
+            Check.equal(0L, countFiles(dir), "files after releasing all the tables");
+        } finally {
+            TestFiles.delete(dir);
+        }
+    }
+
+    /**
+     * An opened table keeps writing to its own files, and its copies are moved to new files.
+     */
+    public static void testOpenedTableOwnsItsFiles() throws IOException {
+        Path dir = Files.createTempDirectory("mapped-test");
+        try {
+            MappedFactTable table = new MappedFactTable(dir, "r", 1);
+            table.add(new int[]{1}, false);
+            Path rowsFile = table.getRowsFile();
+            FactTable copy = table.copy();
+            table.add(new int[]{2}, false);
+            Check.equal(rowsFile, table.getRowsFile(), "rows file of the original after the copy is split off");
+            Check.equal(1, copy.size(), "size of the copy");
+            Check.isTrue(copy.find(new int[]{2}) < 0, "row added to the original only");
+            table.close();
+
+            MappedFactTable reopened = MappedFactTable.open(rowsFile, "r");
+            Check.equal(2, reopened.size(), "size of the reopened table");
+            Check.isTrue(reopened.find(new int[]{1}) >= 0 && reopened.find(new int[]{2}) >= 0,
+                    "rows of the reopened table");
+            reopened.release();
+            copy.release();
+            Check.equal(0L, countFiles(dir), "files after releasing all the tables");
+        } finally {
+            TestFiles.delete(dir);
+        }
+    }
+
+    /**
+     * Growing the index replaces its file, without leaving other files behind; a lost index file is rebuilt.
+     */
+    public static void testRehashReplacesIndexFile() throws IOException {
+        Path dir = Files.createTempDirectory("mapped-test");
+        try {
+            MappedFactTable table = new MappedFactTable(dir, "r", 2);
+            for (int i = 0; i < 20_000; i++) {
+                table.add(new int[]{i, -i}, false);
+            }
+            Check.equal(2L, countFiles(dir), "files after growing the index");
+            Path rowsFile = table.getRowsFile();
+            table.force();
+            table.close();
+            Files.delete(MappedFactTable.indexFileOf(rowsFile));
+
+            MappedFactTable reopened = MappedFactTable.open(rowsFile, "r");
+            Check.equal(20_000, reopened.size(), "size of the reopened table");
+            for (int i = 0; i < 20_000; i++) {
+                Check.equal(i, reopened.find(new int[]{i, -i}), "row found through the rebuilt index");
+            }
+            reopened.release();
+            Check.equal(0L, countFiles(dir), "files after releasing the table");
+        } finally {
+            TestFiles.delete(dir);
+        }
+    }
+
+    /**
+     * Repeated queries on a knowledge base with mapped tables must not accumulate files, since the working copies of
+     * the queries are deleted after they are garbage collected.
+     */
+    public static void testQueriesDoNotLeakFiles() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("mapped-test");
+        try {
+            List<Term> facts = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                facts.add(relation("edge", atom("n" + i), atom("n" + (i + 1))));
+            }
+            FCKnowledgeBase kb = kb()
+                    .withMappedStorage(dir)
+                    .withFacts(facts)
+                    .withRules(rule()
+                            .withPremises(relation("edge", var("X"), atom("n10")))
+                            .withHead(relation("edge", var("X"), atom("end")))
+                            .build())
+                    .build();
+            long initialFiles = countFiles(dir);
+            for (int i = 0; i < 20; i++) {
+                FCResult result = SimpleForwardChaining.forwardChainingAsk(kb,
+                        relation("edge", atom("n9"), atom("end")));
+                Check.isTrue(result.isSuccess(), "answer of query " + i);
+            }
+            for (int attempt = 0; attempt < 50 && countFiles(dir) > initialFiles; attempt++) {
+                System.gc();
+                Thread.sleep(20);
+                // the collected tables are cleaned up when the next table is created
+                kb.copy().releaseStorage();
+            }
+            Check.equal(initialFiles, countFiles(dir), "files after the queries");
+            Check.isTrue(directorySize(dir) < 1 << 20, "files sized to their content: " + directorySize(dir));
+            kb.releaseStorage();
+        } finally {
+            TestFiles.delete(dir);
+        }
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        long result = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                result += Files.size(f);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,78 @@
+package parsleyj.simplerules.terms;
+
+import parsleyj.simplerules.Check;
+import parsleyj.simplerules.TestKBs;
+import parsleyj.simplerules.forward.FCKnowledgeBase;
+import parsleyj.simplerules.forward.SimpleForwardChaining;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static parsleyj.simplerules.KBBuilders.*;
+
+/**
+ * Behavior tests of {@link AtomDictionary}.
+ */
+public class AtomDictionaryTest {
+
+    /**
+     * Creates a knowledge base with a cycle of edges between new values, and a rule deriving the triangles (joined by
+     * a trie join).
+     */
+    private static FCKnowledgeBase createKB(boolean compact, String prefix) {
+        List<Term> facts = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            facts.add(relation("edge", atom(prefix + i), atom(prefix + (i + 1) % 3)));
+            facts.add(relation("edge", atom(prefix + (i + 1) % 3), atom(prefix + i)));
+        }
+        FCKnowledgeBase kb = TestKBs.empty(compact);
+        kb.getRules().add(TestKBs.TRIANGLE);
+        kb.addFacts(facts);
+        return SimpleForwardChaining.getToFixedPoint(kb).getUpdatedKB();
+    }
+
+    public static void testHeapFactsDoNotEnterDictionary() {
+        String prefix = "heap-" + System.nanoTime() + "-";
+        int size = AtomDictionary.global().size();
+        FCKnowledgeBase kb = createKB(false, prefix);
+        Check.isTrue(kb.getAllFacts().stream().anyMatch(fact -> fact.toString().contains("triangle")),
+                "triangles derived");
+        Check.equal(size, AtomDictionary.global().size(), "values in the dictionary");
+        Check.equal(-1, AtomDictionary.global().lookup(new Atom<>(prefix + 0)), "ID of a value on the heap");
+    }
+
+    public static void testCompactFactsEnterDictionary() {
+        String prefix = "compact-" + System.nanoTime() + "-";
+        FCKnowledgeBase heap = createKB(false, prefix);
+        FCKnowledgeBase compact = createKB(true, prefix);
+        Check.isTrue(AtomDictionary.global().lookup(new Atom<>(prefix + 0)) >= 0, "ID of a value in a table");
+        Check.sameFacts(heap.getAllFacts(), compact.getAllFacts(), "facts derived from tables and from the heap");
+    }
+
+    /**
+     * The cached compatibility of the classes must match {@link Class#isAssignableFrom(Class)}, also for classes
+     * registered after some checks were made.
+     */
+    public static void testClassAssignability() {
+        AtomDictionary dictionary = AtomDictionary.global();
+        List<Class<?>> classes = new ArrayList<>(Arrays.asList(Object.class, Number.class, Integer.class,
+                Comparable.class, String.class, CharSequence.class));
+        for (int round = 0; round < 3; round++) {
+            for (Class<?> target : classes) {
+                for (Class<?> source : classes) {
+                    Check.equal(target.isAssignableFrom(source),
+                            dictionary.isAssignable(dictionary.classIdOf(target), dictionary.classIdOf(source)),
+                            target.getSimpleName() + " assignable from " + source.getSimpleName());
+                }
+            }
+            // new array classes (at most 255 dimensions), with more dimensions than the ones registered so far
+            for (Class<?> component : Arrays.asList(Integer.class, Number.class)) {
+                for (int d = 1; d <= 80; d++) {
+                    classes.add(Array.newInstance(component, new int[round * 80 + d]).getClass());
+                }
+            }
+        }
+    }
+}